@@ -0,0 +1,45 @@
+package org.secr.sistemaenviocorreos.benchmark;
+
+import jakarta.mail.Session;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import java.time.LocalDateTime;
+import java.util.Properties;
+
+/**
+ * Objetos compartidos por los benchmarks, configurados como en la aplicación.
+ */
+final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    static PublishRabbitMQDTO message() {
+        return new PublishRabbitMQDTO("usuario@example.com",
+                "Bienvenido a la plataforma",
+                "<p>Gracias por registrarte. " + "Lorem ipsum dolor sit amet. ".repeat(40) + "</p>",
+                LocalDateTime.of(2030, 1, 1, 10, 0),
+                3);
+    }
+
+    static TemplateEngine templateEngine() {
+        ClassLoaderTemplateResolver resolver = new ClassLoaderTemplateResolver();
+        resolver.setPrefix("templates/");
+        resolver.setSuffix(".html");
+        resolver.setTemplateMode(TemplateMode.HTML);
+        resolver.setCharacterEncoding("UTF-8");
+        SpringTemplateEngine engine = new SpringTemplateEngine();
+        engine.setTemplateResolver(resolver);
+        return engine;
+    }
+
+    static Session mailSession() {
+        Properties properties = new Properties();
+        properties.put("mail.smtp.host", "localhost");
+        return Session.getInstance(properties);
+    }
+}
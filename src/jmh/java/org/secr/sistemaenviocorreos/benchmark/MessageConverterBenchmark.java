@@ -0,0 +1,46 @@
+package org.secr.sistemaenviocorreos.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.secr.sistemaenviocorreos.config.codec.BinaryEmailCodec;
+import org.secr.sistemaenviocorreos.config.codec.EmailMessageConverter;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialización del mensaje encolado con el conversor configurado en {@code RabbitMQConfiguration}, en cada formato.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MessageConverterBenchmark {
+
+    @Param({"json", "binary"})
+    public String format;
+
+    private MessageConverter converter;
+    private PublishRabbitMQDTO payload;
+    private Message message;
+
+    @Setup
+    public void setUp() {
+        converter = new EmailMessageConverter(new Jackson2JsonMessageConverter(),
+                new BinaryEmailCodec(1024, 1), "binary".equals(format));
+        payload = BenchmarkFixtures.message();
+        message = converter.toMessage(payload, new MessageProperties());
+    }
+
+    @Benchmark
+    public Message serialize() {
+        return converter.toMessage(payload, new MessageProperties());
+    }
+
+    @Benchmark
+    public Object deserialize() {
+        return converter.fromMessage(message);
+    }
+}
@@ -0,0 +1,59 @@
+package org.secr.sistemaenviocorreos.benchmark;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+import org.openjdk.jmh.annotations.*;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.springframework.mail.javamail.MimeMessageHelper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construcción del mensaje MIME tal y como lo hace el consumidor y su serialización, que es lo que se escribe en la
+ * conexión SMTP durante el DATA.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class MimeMessageBenchmark {
+
+    private Session session;
+    private PublishRabbitMQDTO payload;
+    private String html;
+    private MimeMessage built;
+
+    @Setup
+    public void setUp() throws MessagingException {
+        session = BenchmarkFixtures.mailSession();
+        payload = BenchmarkFixtures.message();
+        html = payload.message();
+        built = build();
+        built.saveChanges();
+    }
+
+    @Benchmark
+    public MimeMessage build() throws MessagingException {
+        MimeMessage mimeMessage = new MimeMessage(session);
+        MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, true, "UTF-8");
+        helper.setFrom("remitente@example.com");
+        helper.setTo(payload.email());
+        helper.setSubject(payload.subject());
+        helper.setText(html, true);
+        return mimeMessage;
+    }
+
+    @Benchmark
+    public void writeTo() throws IOException, MessagingException {
+        built.writeTo(OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void buildAndWrite() throws IOException, MessagingException {
+        MimeMessage mimeMessage = build();
+        mimeMessage.saveChanges();
+        mimeMessage.writeTo(OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,57 @@
+package org.secr.sistemaenviocorreos.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link EmailPublisher#publish} contra un broker en proceso: un {@link RabbitTemplate} que hace la conversión y el
+ * post-procesado reales pero entrega el mensaje a un Blackhole en lugar de a la red.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PublishBenchmark {
+
+    private EmailPublisher publisher;
+    private PublishRabbitMQDTO payload;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        RabbitTemplate template = new InProcessRabbitTemplate(blackhole);
+        template.setMessageConverter(new Jackson2JsonMessageConverter());
+
+        publisher = new EmailPublisher();
+        ReflectionTestUtils.setField(publisher, "rabbitTemplate", template);
+        ReflectionTestUtils.setField(publisher, "exchange", "email_exchange.topic");
+        ReflectionTestUtils.setField(publisher, "routingKey", "email_routing_key");
+        payload = BenchmarkFixtures.message();
+    }
+
+    @Benchmark
+    public void publish() {
+        publisher.publish(payload);
+    }
+
+    private static final class InProcessRabbitTemplate extends RabbitTemplate {
+
+        private final Blackhole blackhole;
+
+        private InProcessRabbitTemplate(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+
+        @Override
+        public void send(String exchange, String routingKey, Message message, CorrelationData correlationData) {
+            blackhole.consume(message);
+        }
+    }
+}
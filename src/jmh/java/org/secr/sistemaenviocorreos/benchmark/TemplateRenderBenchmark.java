@@ -0,0 +1,42 @@
+package org.secr.sistemaenviocorreos.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.secr.sistemaenviocorreos.service.EmailTemplateRenderer;
+import org.secr.sistemaenviocorreos.service.template.TemplateRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thymeleaf.TemplateEngine;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renderizado de cada {@link EmailTemplateType} con los dos motores disponibles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TemplateRenderBenchmark {
+
+    @Param({"WELCOME"})
+    public EmailTemplateType templateType;
+
+    @Param({"precompiled", "thymeleaf"})
+    public String engine;
+
+    private EmailTemplateRenderer renderer;
+    private PublishRabbitMQDTO payload;
+
+    @Setup
+    public void setUp() {
+        TemplateEngine templateEngine = BenchmarkFixtures.templateEngine();
+        renderer = new EmailTemplateRenderer(templateEngine, new TemplateRegistry(templateEngine));
+        ReflectionTestUtils.setField(renderer, "engine", engine);
+        payload = BenchmarkFixtures.message();
+    }
+
+    @Benchmark
+    public String render() {
+        return renderer.render(templateType, payload);
+    }
+}
@@ -0,0 +1,278 @@
+package org.secr.sistemaenviocorreos.loadtest;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.service.EmailConsumer;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.boot.test.web.server.LocalServerPort;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Prueba de carga de extremo a extremo sin red: la aplicación completa recibe peticiones HTTP a un ritmo fijo y envía
+ * los correos a un {@link FakeSmtpServer} a través de un {@link InMemoryBroker}. La latencia se mide desde el instante
+ * en que debía salir cada petición hasta que el servidor SMTP acepta el correo, de modo que las esperas del propio
+ * generador también cuentan. El informe se escribe en {@code loadtest.report} para comparar builds.
+ * <p>
+ * Se ejecuta con {@code ./mvnw -Ploadtest test}; los parámetros se pasan como propiedades del sistema
+ * ({@code -Dloadtest.rate=500 -Dloadtest.smtp.latency=20 ...}).
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT, properties = {
+        "spring.mail.host=127.0.0.1",
+        "spring.mail.username=",
+        "spring.mail.password=",
+        "spring.mail.sender=loadtest@example.com",
+        "spring.mail.properties.mail.smtp.auth=false",
+        "spring.mail.properties.mail.smtp.starttls.enable=false",
+        "spring.rabbitmq.listener.simple.auto-startup=false",
+        "spring.retry.send.delay=1",
+        "email.retry.max-delay=5",
+        "email.retry.jitter=0",
+        "email.throttling.enabled=false",
+        "email.outbox.dir=target/loadtest/outbox",
+        "email.scheduled.dir=target/loadtest/scheduled",
+        "email.campaigns.dir=target/loadtest/campaigns",
+        "email.templates.dir=target/loadtest/templates",
+        "email.attachments.dir=target/loadtest/attachments",
+        "logging.level.org.secr.sistemaenviocorreos=WARN"
+})
+@Import(EmailLoadTest.BrokerStandIn.class)
+public class EmailLoadTest {
+
+    private static final Logger logger = Logger.getLogger(EmailLoadTest.class.getName());
+
+    private static final int RATE = Integer.getInteger("loadtest.rate", 200); //correos por segundo
+    private static final int DURATION = Integer.getInteger("loadtest.duration", 10); //seconds
+    private static final int WARMUP = Integer.getInteger("loadtest.warmup", 2); //seconds, fuera de las estadísticas
+    private static final int DOMAINS = Integer.getInteger("loadtest.domains", 50);
+    private static final int DRAIN_TIMEOUT = Integer.getInteger("loadtest.drain-timeout", 120); //seconds
+    private static final double MIN_THROUGHPUT = doubleProperty("loadtest.min-throughput", 0);
+    private static final String REPORT = System.getProperty("loadtest.report", "target/loadtest-report.properties");
+    private static final FakeSmtpServer.Faults FAULTS = new FakeSmtpServer.Faults(
+            Long.getLong("loadtest.smtp.latency", 5),
+            doubleProperty("loadtest.smtp.transient-failure-rate", 0),
+            doubleProperty("loadtest.smtp.permanent-failure-rate", 0),
+            doubleProperty("loadtest.smtp.drop-rate", 0));
+
+    private static final String SUBJECT_PREFIX = "load-";
+    private static final int TOTAL = RATE * DURATION;
+
+    private static final long[] scheduledAt = new long[TOTAL];
+    private static final AtomicLongArray deliveredAt = new AtomicLongArray(TOTAL);
+    private static final FakeSmtpServer smtp = startSmtp();
+
+    @LocalServerPort
+    private int port;
+
+    @Autowired
+    private InMemoryBroker broker;
+
+    @Autowired
+    private EmailConsumer emailConsumer;
+
+    @DynamicPropertySource
+    static void smtpProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.mail.port", smtp::getPort);
+    }
+
+    @AfterAll
+    static void stopSmtp() throws IOException {
+        smtp.close();
+    }
+
+    @Test
+    void sustainedLoadTest() throws Exception {
+        //Arrange
+        broker.start(emailConsumer);
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .executor(executor)
+                .build();
+        URI uri = URI.create("http://127.0.0.1:" + port + "/email/send");
+        AtomicLong accepted = new AtomicLong();
+        AtomicLong rejected = new AtomicLong();
+        List<CompletableFuture<?>> responses = new ArrayList<>(TOTAL);
+
+        //Act: carga abierta, cada petición sale en su instante aunque las anteriores no hayan respondido
+        long period = TimeUnit.SECONDS.toNanos(1) / RATE;
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        for (int i = 0; i < TOTAL; i++) {
+            long intended = start + i * period;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) LockSupport.parkNanos(wait);
+            scheduledAt[i] = intended;
+            responses.add(client.sendAsync(request(uri, i), HttpResponse.BodyHandlers.discarding())
+                    .handle((response, error) -> {
+                        if (error == null && response.statusCode() == 202) accepted.incrementAndGet();
+                        else rejected.incrementAndGet();
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).get(DRAIN_TIMEOUT, TimeUnit.SECONDS);
+        boolean drained = awaitDrain(accepted.get());
+        executor.shutdown();
+
+        //Assert
+        Map<String, Object> report = report(start, accepted.get(), rejected.get(), drained);
+        write(report);
+        assertTrue(drained, "No se han terminado de entregar los correos en " + DRAIN_TIMEOUT + " s");
+        assertEquals(accepted.get(), delivered() + broker.getDeadLettered(), "Correos aceptados perdidos");
+        assertTrue((double) report.get("throughput") >= MIN_THROUGHPUT, "Throughput por debajo del mínimo");
+    }
+
+    private static HttpRequest request(URI uri, int sequence) {
+        String body = "{\"email\":\"user" + sequence + "@domain" + (sequence % DOMAINS) + ".test\","
+                + "\"subject\":\"" + SUBJECT_PREFIX + sequence + "\","
+                + "\"message\":\"<p>Mensaje de prueba de carga " + sequence + "</p>\"}";
+        return HttpRequest.newBuilder(uri)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+    }
+
+    /**
+     * Espera a que cada correo aceptado se haya entregado o haya pasado a fallidos.
+     */
+    private boolean awaitDrain(long accepted) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT);
+        while (System.nanoTime() < deadline) {
+            if (delivered() + broker.getDeadLettered() >= accepted && broker.isIdle()) return true;
+            Thread.sleep(50);
+        }
+        return false;
+    }
+
+    private static long delivered() {
+        long delivered = 0;
+        for (int i = 0; i < TOTAL; i++) {
+            if (deliveredAt.get(i) != 0) delivered++;
+        }
+        return delivered;
+    }
+
+    private Map<String, Object> report(long start, long accepted, long rejected, boolean drained) {
+        long measuredFrom = start + TimeUnit.SECONDS.toNanos(WARMUP);
+        long[] latencies = new long[TOTAL];
+        int count = 0;
+        long lastDelivery = measuredFrom;
+        for (int i = 0; i < TOTAL; i++) {
+            long delivered = deliveredAt.get(i);
+            if (delivered == 0 || scheduledAt[i] < measuredFrom) continue;
+            latencies[count++] = delivered - scheduledAt[i];
+            lastDelivery = Math.max(lastDelivery, delivered);
+        }
+        latencies = Arrays.copyOf(latencies, count);
+        Arrays.sort(latencies);
+        double window = (lastDelivery - measuredFrom) / 1e9;
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("rate", RATE);
+        report.put("duration", DURATION);
+        report.put("smtp.latency", FAULTS.latencyMillis());
+        report.put("smtp.transient-failure-rate", FAULTS.transientFailureRate());
+        report.put("smtp.permanent-failure-rate", FAULTS.permanentFailureRate());
+        report.put("smtp.drop-rate", FAULTS.dropRate());
+        report.put("requests.accepted", accepted);
+        report.put("requests.rejected", rejected);
+        report.put("smtp.accepted", smtp.getAccepted());
+        report.put("smtp.transient-failures", smtp.getTransientFailures());
+        report.put("smtp.permanent-failures", smtp.getPermanentFailures());
+        report.put("smtp.drops", smtp.getDrops());
+        report.put("smtp.sessions", smtp.getSessions());
+        report.put("broker.retried", broker.getRetried());
+        report.put("broker.dead-lettered", broker.getDeadLettered());
+        report.put("drained", drained);
+        report.put("throughput", window > 0 ? Math.round(count / window * 10) / 10.0 : 0.0);
+        report.put("latency.p50", millis(percentile(latencies, 0.50)));
+        report.put("latency.p99", millis(percentile(latencies, 0.99)));
+        report.put("latency.p999", millis(percentile(latencies, 0.999)));
+        report.put("latency.max", millis(count == 0 ? 0 : latencies[count - 1]));
+        return report;
+    }
+
+    private static void write(Map<String, Object> report) throws IOException {
+        StringBuilder out = new StringBuilder();
+        report.forEach((key, value) -> out.append(key).append('=').append(value).append('\n'));
+        Path path = Path.of(REPORT);
+        if (path.getParent() != null) Files.createDirectories(path.getParent());
+        Files.writeString(path, out);
+        logger.info("Resultado de la prueba de carga (" + path + "):\n" + out);
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1e4) / 100.0;
+    }
+
+    private static double doubleProperty(String name, double defaultValue) {
+        String value = System.getProperty(name);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    private static FakeSmtpServer startSmtp() {
+        try {
+            return new FakeSmtpServer(FAULTS, subject -> {
+                if (!subject.startsWith(SUBJECT_PREFIX)) return;
+                int sequence = Integer.parseInt(subject.substring(SUBJECT_PREFIX.length()));
+                if (sequence < TOTAL) deliveredAt.compareAndSet(sequence, 0, System.nanoTime());
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Sustituye el {@link org.springframework.amqp.rabbit.core.RabbitTemplate} de la aplicación por el broker en
+     * memoria.
+     */
+    @TestConfiguration
+    static class BrokerStandIn {
+
+        @Bean
+        @Primary
+        InMemoryBroker inMemoryBroker(ConnectionFactory connectionFactory, MessageConverter messageConverter,
+                                      @Value("${rabbitmq.exchange}") String exchange, RetryPolicy retryPolicy,
+                                      @Value("${spring.rabbitmq.listener.simple.prefetch:250}") int prefetch) {
+            return new InMemoryBroker(connectionFactory, messageConverter, exchange, retryPolicy, prefetch);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.secr.sistemaenviocorreos.loadtest;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Servidor SMTP en proceso para las pruebas de carga. Acepta el subconjunto del protocolo que usa JavaMail (EHLO,
+ * MAIL, RCPT, DATA, RSET, NOOP, QUIT) sin guardar los mensajes: al terminar cada DATA aplica la latencia configurada y
+ * responde 250, un error temporal (451), uno permanente (550) o cierra la conexión sin responder.
+ */
+public class FakeSmtpServer implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(FakeSmtpServer.class.getName());
+
+    /**
+     * Fallos simulados.
+     * @param latencyMillis         Espera antes de responder a cada DATA
+     * @param transientFailureRate  Fracción de mensajes respondidos con 451
+     * @param permanentFailureRate  Fracción de mensajes respondidos con 550
+     * @param dropRate              Fracción de mensajes tras los que se cierra la conexión sin responder
+     */
+    public record Faults(long latencyMillis, double transientFailureRate, double permanentFailureRate,
+                         double dropRate) {
+    }
+
+    private final Faults faults;
+    private final Consumer<String> onAccepted;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "fake-smtp");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong transientFailures = new AtomicLong();
+    private final AtomicLong permanentFailures = new AtomicLong();
+    private final AtomicLong drops = new AtomicLong();
+    private final AtomicLong sessions = new AtomicLong();
+
+    /**
+     * @param onAccepted    Recibe el asunto de cada mensaje aceptado, en el momento en que se responde 250
+     */
+    public FakeSmtpServer(Faults faults, Consumer<String> onAccepted) throws IOException {
+        this.faults = faults;
+        this.onAccepted = onAccepted;
+        this.serverSocket = new ServerSocket(0, 512, InetAddress.getLoopbackAddress());
+        connections.execute(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                sessions.incrementAndGet();
+                connections.execute(() -> session(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) logger.log(Level.WARNING, "Error aceptando conexión SMTP: ", e);
+            }
+        }
+    }
+
+    private void session(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.ISO_8859_1));
+            OutputStream out = socket.getOutputStream();
+            reply(out, "220 localhost ESMTP fake");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.length() < 4 ? line.toUpperCase(Locale.ROOT)
+                        : line.substring(0, 4).toUpperCase(Locale.ROOT);
+                switch (command) {
+                    case "EHLO" -> reply(out, "250-localhost\r\n250-8BITMIME\r\n250 PIPELINING");
+                    case "HELO" -> reply(out, "250 localhost");
+                    case "MAIL", "RCPT", "RSET", "NOOP" -> reply(out, "250 2.0.0 OK");
+                    case "DATA" -> {
+                        reply(out, "354 Fin con <CRLF>.<CRLF>");
+                        String subject = readData(in);
+                        if (!respond(out, subject)) return;
+                    }
+                    case "QUIT" -> {
+                        reply(out, "221 2.0.0 Adiós");
+                        return;
+                    }
+                    default -> reply(out, "502 5.5.1 Comando no soportado");
+                }
+            }
+        } catch (SocketException e) {
+            //Conexión cerrada por el cliente
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Error en la sesión SMTP: ", e);
+        }
+    }
+
+    /**
+     * Lee el contenido de un DATA hasta la línea con un punto.
+     * @return Asunto del mensaje, o {@code null} si no tiene
+     */
+    private static String readData(BufferedReader in) throws IOException {
+        String subject = null;
+        boolean headers = true;
+        String line;
+        while ((line = in.readLine()) != null && !line.equals(".")) {
+            if (line.isEmpty()) headers = false;
+            else if (headers && subject == null && line.regionMatches(true, 0, "Subject: ", 0, 9)) {
+                subject = line.substring(9).trim();
+            }
+        }
+        return subject;
+    }
+
+    /**
+     * @return {@code false} si se ha simulado una caída de la conexión
+     */
+    private boolean respond(OutputStream out, String subject) throws IOException {
+        if (faults.latencyMillis() > 0) {
+            try {
+                Thread.sleep(faults.latencyMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        double roll = ThreadLocalRandom.current().nextDouble();
+        if ((roll -= faults.dropRate()) < 0) {
+            drops.incrementAndGet();
+            return false;
+        }
+        if ((roll -= faults.transientFailureRate()) < 0) {
+            transientFailures.incrementAndGet();
+            reply(out, "451 4.3.0 Fallo temporal simulado");
+            return true;
+        }
+        if (roll - faults.permanentFailureRate() < 0) {
+            permanentFailures.incrementAndGet();
+            reply(out, "550 5.1.1 Buzón inexistente simulado");
+            return true;
+        }
+        accepted.incrementAndGet();
+        if (subject != null) onAccepted.accept(subject);
+        reply(out, "250 2.0.0 Aceptado");
+        return true;
+    }
+
+    private static void reply(OutputStream out, String reply) throws IOException {
+        out.write((reply + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    public long getAccepted() {
+        return accepted.get();
+    }
+
+    public long getTransientFailures() {
+        return transientFailures.get();
+    }
+
+    public long getPermanentFailures() {
+        return permanentFailures.get();
+    }
+
+    public long getDrops() {
+        return drops.get();
+    }
+
+    public long getSessions() {
+        return sessions.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+}
@@ -0,0 +1,174 @@
+package org.secr.sistemaenviocorreos.loadtest;
+
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.EmailConsumer;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.pipeline.DeliveryAck;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sustituto en memoria de RabbitMQ para las pruebas de carga. Sustituye al {@link RabbitTemplate} de la aplicación: las
+ * publicaciones a la cola principal se confirman al momento y se entregan al {@link EmailConsumer} como lo haría su
+ * listener, con los carriles transaccional y masivo por orden de prioridad y un prefetch que limita las entregas sin
+ * confirmar. Los reintentos se entregan de nuevo al vencer su expiración y los correos fallidos solo se cuentan.
+ */
+public class InMemoryBroker extends RabbitTemplate {
+
+    private static final Logger logger = Logger.getLogger(InMemoryBroker.class.getName());
+
+    private final String exchange;
+    private final RetryPolicy retryPolicy;
+    private final Semaphore prefetch;
+    private final PriorityBlockingQueue<Delivery> ready = new PriorityBlockingQueue<>();
+    private final ScheduledExecutorService delayed = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "broker-delayed");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final AtomicInteger unacked = new AtomicInteger();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong deadLettered = new AtomicLong();
+    private volatile Thread dispatcher;
+
+    public InMemoryBroker(ConnectionFactory connectionFactory, MessageConverter messageConverter, String exchange,
+                          RetryPolicy retryPolicy, int prefetch) {
+        super(connectionFactory);
+        setMessageConverter(messageConverter);
+        this.exchange = exchange;
+        this.retryPolicy = retryPolicy;
+        this.prefetch = new Semaphore(prefetch);
+    }
+
+    /**
+     * Empieza a entregar los mensajes al consumidor.
+     */
+    public void start(EmailConsumer emailConsumer) {
+        dispatcher = new Thread(() -> dispatch(emailConsumer), "broker-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    @Override
+    public void send(String exchange, String routingKey, Message message, CorrelationData correlationData)
+            throws AmqpException {
+        if (this.exchange.equals(exchange)) {
+            published.incrementAndGet();
+            enqueue(message);
+        } else if (routingKey.equals(retryPolicy.deadLetterQueue())) {
+            deadLettered.incrementAndGet();
+        } else if (routingKey.contains(".retry.")) {
+            retried.incrementAndGet();
+            String expiration = message.getMessageProperties().getExpiration();
+            long delay = expiration == null ? 0 : Long.parseLong(expiration);
+            waiting.incrementAndGet();
+            delayed.schedule(() -> {
+                enqueue(message);
+                waiting.decrementAndGet();
+            }, delay, TimeUnit.MILLISECONDS);
+        } else {
+            logger.warning("Mensaje sin cola en el broker de pruebas: " + exchange + "/" + routingKey);
+        }
+        if (correlationData != null) correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+    }
+
+    private void enqueue(Message message) {
+        PublishRabbitMQDTO dto = (PublishRabbitMQDTO) getMessageConverter().fromMessage(message);
+        ready.add(new Delivery(dto.lane(), sequence.incrementAndGet(), dto,
+                message.getMessageProperties().getHeader(EmailMetrics.ENQUEUED_AT_HEADER)));
+    }
+
+    private void dispatch(EmailConsumer emailConsumer) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Delivery delivery = ready.take();
+                unacked.incrementAndGet();
+                prefetch.acquire();
+                emailConsumer.consume(delivery.message(), delivery.lane(), delivery.enqueuedAt(), ack(delivery));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Error entregando un mensaje: ", e);
+                unacked.decrementAndGet();
+                prefetch.release();
+            }
+        }
+    }
+
+    private DeliveryAck ack(Delivery delivery) {
+        AtomicBoolean done = new AtomicBoolean();
+        return new DeliveryAck() {
+            @Override
+            public void ack() {
+                if (done.compareAndSet(false, true)) release();
+            }
+
+            @Override
+            public void reject(boolean requeue) {
+                if (!done.compareAndSet(false, true)) return;
+                if (requeue) ready.add(delivery);
+                release();
+            }
+        };
+    }
+
+    private void release() {
+        unacked.decrementAndGet();
+        prefetch.release();
+    }
+
+    /**
+     * Sin mensajes en cola, esperando su retardo ni entregados sin confirmar.
+     */
+    public boolean isIdle() {
+        return ready.isEmpty() && waiting.get() == 0 && unacked.get() == 0;
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getRetried() {
+        return retried.get();
+    }
+
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    @Override
+    public void destroy() {
+        if (dispatcher != null) dispatcher.interrupt();
+        delayed.shutdownNow();
+        super.destroy();
+    }
+
+    private record Delivery(EmailPriority lane, long sequence, PublishRabbitMQDTO message, Long enqueuedAt)
+            implements Comparable<Delivery> {
+        @Override
+        public int compareTo(Delivery other) {
+            int byLane = lane.compareTo(other.lane);
+            return byLane != 0 ? byLane : Long.compare(sequence, other.sequence);
+        }
+    }
+}
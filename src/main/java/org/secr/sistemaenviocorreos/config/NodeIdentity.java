@@ -0,0 +1,33 @@
+package org.secr.sistemaenviocorreos.config;
+
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Identificador de este nodo consumidor. Se usa para repartir trabajo entre varias instancias sin pisarse
+ * (reclamación de ficheros, particiones...). Si no se configura se deriva del hostname y el PID.
+ */
+@Getter
+@Component
+public class NodeIdentity {
+
+    private final String id;
+
+    public NodeIdentity(@Value("${email.node-id:}") String configuredId) {
+        this.id = configuredId == null || configuredId.isBlank() ? defaultId() : configuredId;
+    }
+
+    private static String defaultId() {
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            host = "node";
+        }
+        return host.replaceAll("[^A-Za-z0-9-]", "-") + "-" + ProcessHandle.current().pid();
+    }
+}
@@ -1,15 +1,22 @@
 package org.secr.sistemaenviocorreos.config;
 
+import org.secr.sistemaenviocorreos.config.codec.BinaryEmailCodec;
+import org.secr.sistemaenviocorreos.config.codec.EmailMessageConverter;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.partition.PartitionRouter;
 import org.springframework.amqp.core.*;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 @Configuration
 public class RabbitMQConfiguration {
@@ -23,41 +30,199 @@ public class RabbitMQConfiguration {
     @Value("${rabbitmq.routing-key}")
     private String routingKey;
 
+    @Value("${rabbitmq.bulk-queue}")
+    private String bulkQueueName;
+
+    @Value("${rabbitmq.bulk-routing-key}")
+    private String bulkRoutingKey;
+
+    @Value("${rabbitmq.campaign-queue}")
+    private String campaignQueueName;
+
+    @Value("${email.campaigns.pause-recheck:10000}")
+    private Integer pauseRecheck = 10000; //milliseconds
+
+    @Value("${email.codec.format:json}")
+    private String codecFormat;
+
+    @Value("${email.codec.compression-threshold:1024}")
+    private Integer compressionThreshold = 1024; //bytes
+
+    @Value("${email.codec.compression-level:1}")
+    private Integer compressionLevel = 1;
+
 
     @Bean
     public Queue queue() {
         return new Queue(queueName, true);
     }
 
-    /*@Bean
+    /**
+     * Cola de los envíos masivos, separada para que no retrase a los transaccionales.
+     */
+    @Bean
+    public Queue bulkQueue() {
+        return new Queue(bulkQueueName, true);
+    }
+
+    /**
+     * Tramos de destinatarios de las campañas. Se publican directamente en la cola, sin pasar por el exchange.
+     */
+    @Bean
+    public Queue campaignQueue() {
+        return new Queue(campaignQueueName, true);
+    }
+
+    /**
+     * Tramos de campañas en pausa. Sin consumidores: al cumplir el TTL vuelven a la cola de campañas, que comprueba de
+     * nuevo el estado.
+     */
+    @Bean
+    public Queue campaignPausedQueue() {
+        return QueueBuilder.durable(campaignQueueName + ".paused")
+                .ttl(pauseRecheck)
+                .deadLetterExchange("")
+                .deadLetterRoutingKey(campaignQueueName)
+                .build();
+    }
+
+    /**
+     * Exchange principal. Debe tener un nombre distinto del antiguo exchange {@code x-delayed-message}: declarar un
+     * exchange existente con otro tipo falla con {@code PRECONDITION_FAILED}. El antiguo conserva sus bindings, así que
+     * los nodos sin actualizar siguen entregando en las mismas colas hasta que se elimine.
+     */
+    @Bean
     public TopicExchange topicExchange() {
-        return new TopicExchange(exchange);
-    }*/
+        return new TopicExchange(exchange, true, false);
+    }
+
+    /**
+     * Colas de reintento, una por nivel de backoff y carril. No tienen consumidores: cada mensaje espera su TTL (el de
+     * la cola o su propia expiración, si es menor) y el broker lo devuelve por dead-letter a la cola de su carril.
+     */
+    @Bean
+    public Declarables retryQueues(RetryPolicy retryPolicy) {
+        List<Declarable> queues = new ArrayList<>(2 * retryPolicy.tiers());
+        for (EmailPriority priority : EmailPriority.values()) {
+            for (int tier = 0; tier < retryPolicy.tiers(); tier++) {
+                queues.add(QueueBuilder.durable(retryPolicy.tierQueue(priority, tier))
+                        .ttl((int) retryPolicy.tierDelay(tier))
+                        .deadLetterExchange(exchange)
+                        .deadLetterRoutingKey(priority == EmailPriority.BULK ? bulkRoutingKey : routingKey)
+                        .build());
+            }
+        }
+        return new Declarables(queues);
+    }
+
+    /**
+     * Colas de retardo de los correos frenados por el límite de ritmo, una por nivel y carril. Como los mensajes no
+     * llevan expiración propia, todos los de una cola esperan lo mismo y el de la cabeza es siempre el primero en
+     * vencer.
+     */
+    @Bean
+    public Declarables throttleQueues(RetryPolicy retryPolicy) {
+        List<Declarable> queues = new ArrayList<>(2 * retryPolicy.throttleLevels());
+        for (EmailPriority priority : EmailPriority.values()) {
+            for (int level = 0; level < retryPolicy.throttleLevels(); level++) {
+                queues.add(QueueBuilder.durable(retryPolicy.throttleQueue(priority, level))
+                        .ttl((int) retryPolicy.throttleDelay(level))
+                        .deadLetterExchange(exchange)
+                        .deadLetterRoutingKey(priority == EmailPriority.BULK ? bulkRoutingKey : routingKey)
+                        .build());
+            }
+        }
+        return new Declarables(queues);
+    }
+
+    /**
+     * Correos que han agotado los reintentos, a la espera de revisión o reinyección.
+     */
+    @Bean
+    public Queue deadLetterQueue(RetryPolicy retryPolicy) {
+        return QueueBuilder.durable(retryPolicy.deadLetterQueue()).build();
+    }
+
+    /**
+     * Particiones por dominio de cada carril. Con single-active-consumer el broker entrega cada partición a un único
+     * consumidor aunque durante un reparto dos nodos estén suscritos a la vez. Los mensajes rechazados (ilegibles) van
+     * a la cola de fallidos.
+     */
+    @Bean
+    @ConditionalOnProperty(name = "email.partitions.enabled", havingValue = "true")
+    public Declarables partitionQueues(PartitionRouter partitionRouter, RetryPolicy retryPolicy) {
+        List<Declarable> declarables = new ArrayList<>();
+        for (EmailPriority priority : EmailPriority.values()) {
+            String laneRoutingKey = priority == EmailPriority.BULK ? bulkRoutingKey : routingKey;
+            for (int partition = 0; partition < partitionRouter.getCount(); partition++) {
+                Queue queue = QueueBuilder.durable(partitionRouter.queueName(priority, partition))
+                        .singleActiveConsumer()
+                        .deadLetterExchange("")
+                        .deadLetterRoutingKey(retryPolicy.deadLetterQueue())
+                        .build();
+                declarables.add(queue);
+                declarables.add(BindingBuilder.bind(queue).to(topicExchange())
+                        .with(laneRoutingKey + PartitionRouter.suffix(partition)));
+            }
+        }
+        return new Declarables(declarables);
+    }
 
+    /**
+     * Latidos de los nodos consumidores, para repartir las particiones entre los nodos vivos.
+     */
     @Bean
-    public CustomExchange customExchange() {
-        Map<String, Object> args = new HashMap<>();
-        args.put("x-delayed-type", "topic");  //
-        return new CustomExchange(exchange, "x-delayed-message", true, false, args);
+    @ConditionalOnProperty(name = "email.partitions.enabled", havingValue = "true")
+    public FanoutExchange nodesExchange() {
+        return new FanoutExchange(exchange + ".nodes", true, false);
     }
 
+    /**
+     * Cola propia del nodo para recibir los latidos del resto; desaparece con la conexión.
+     */
     @Bean
-    public Jackson2JsonMessageConverter jsonMessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    @ConditionalOnProperty(name = "email.partitions.enabled", havingValue = "true")
+    public Queue nodeEventsQueue(NodeIdentity nodeIdentity) {
+        return new AnonymousQueue(new Base64UrlNamingStrategy(exchange + ".nodes." + nodeIdentity.getId() + "."));
     }
 
     @Bean
-    public Binding binding(Queue queue) {
+    @ConditionalOnProperty(name = "email.partitions.enabled", havingValue = "true")
+    public Binding nodeEventsBinding(@Qualifier("nodeEventsQueue") Queue nodeEventsQueue) {
+        return BindingBuilder.bind(nodeEventsQueue).to(nodesExchange());
+    }
+
+    /**
+     * Conversor usado por el RabbitTemplate y por los listeners. Lee JSON y binario; publica en el formato de
+     * {@code email.codec.format}.
+     */
+    @Bean
+    public MessageConverter emailMessageConverter() {
+        return new EmailMessageConverter(new Jackson2JsonMessageConverter(),
+                new BinaryEmailCodec(compressionThreshold, compressionLevel),
+                "binary".equalsIgnoreCase(codecFormat));
+    }
+
+    @Bean
+    public Binding binding(@Qualifier("queue") Queue queue) {
         return BindingBuilder
                 .bind(queue)
-                .to(customExchange())
-                .with(routingKey).noargs();
+                .to(topicExchange())
+                .with(routingKey);
+    }
+
+    @Bean
+    public Binding bulkBinding(@Qualifier("bulkQueue") Queue bulkQueue) {
+        return BindingBuilder
+                .bind(bulkQueue)
+                .to(topicExchange())
+                .with(bulkRoutingKey);
     }
 
 
     @Bean
     public RabbitTemplate rabbitTemplate(ConnectionFactory connectionFactory,
-                                         Jackson2JsonMessageConverter messageConverter) {
+                                         MessageConverter messageConverter) {
         RabbitTemplate template = new RabbitTemplate(connectionFactory);
         template.setMessageConverter(messageConverter);
         return template;
@@ -0,0 +1,128 @@
+package org.secr.sistemaenviocorreos.config;
+
+import lombok.Getter;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Política de reintentos con backoff exponencial. Cada nivel de espera es una cola con TTL cuyo dead-letter devuelve
+ * los mensajes al exchange principal, de modo que el retardo lo aplica el broker sin el plugin de mensajes retrasados.
+ * El jitter se aplica con la expiración de cada mensaje, siempre por debajo del TTL de su cola, para repartir en el
+ * tiempo los reintentos de un mismo fallo masivo.
+ * <p>
+ * Los correos frenados por el límite de ritmo no usan estas colas: el broker solo expira un mensaje cuando llega a la
+ * cabeza de la cola, así que uno con poca espera quedaría detrás de reintentos con esperas largas. Tienen su propia
+ * escalera de colas de retardo, con esperas que se duplican desde 1 s, y se publican sin expiración propia.
+ */
+@Component
+public class RetryPolicy {
+
+    private static final int THROTTLE_LEVELS = 7; //1 s a 64 s
+
+    private final String queue;
+    private final String bulkQueue;
+    private final long[] tierDelays; //milliseconds
+    private final double jitter;
+    @Getter
+    private final int maxAttempts;
+
+    /**
+     * @param queue         Cola transaccional, base del nombre de sus colas de reintento y de la de fallidos
+     * @param bulkQueue     Cola masiva, base del nombre de sus colas de reintento
+     * @param initialDelay  Espera del primer reintento en segundos
+     * @param multiplier    Factor de crecimiento entre niveles
+     * @param maxDelay      Espera máxima en segundos
+     * @param tiers         Número de colas de reintento
+     * @param jitter        Fracción de la espera que se resta al azar (0 = sin jitter)
+     * @param maxAttempts   Intentos de envío de un correo antes de mandarlo a la cola de fallidos
+     */
+    public RetryPolicy(@Value("${rabbitmq.queue}") String queue,
+                       @Value("${rabbitmq.bulk-queue}") String bulkQueue,
+                       @Value("${spring.retry.send.delay:30}") long initialDelay,
+                       @Value("${email.retry.multiplier:4}") double multiplier,
+                       @Value("${email.retry.max-delay:3600}") long maxDelay,
+                       @Value("${email.retry.tiers:5}") int tiers,
+                       @Value("${email.retry.jitter:0.2}") double jitter,
+                       @Value("${email.retry.max-attempts:3}") int maxAttempts) {
+        this.queue = queue;
+        this.bulkQueue = bulkQueue;
+        this.jitter = Math.min(1, Math.max(0, jitter));
+        this.maxAttempts = maxAttempts;
+        this.tierDelays = new long[Math.max(1, tiers)];
+        double delay = initialDelay * 1000d;
+        for (int i = 0; i < tierDelays.length; i++) {
+            tierDelays[i] = (long) Math.min(delay, maxDelay * 1000d);
+            delay *= multiplier;
+        }
+    }
+
+    public int tiers() {
+        return tierDelays.length;
+    }
+
+    /**
+     * Cola de reintento de un nivel; cada carril tiene las suyas para volver a su propia cola.
+     */
+    public String tierQueue(EmailPriority priority, int tier) {
+        return (priority == EmailPriority.BULK ? bulkQueue : queue) + ".retry." + tier;
+    }
+
+    /**
+     * TTL de la cola de un nivel en milisegundos.
+     */
+    public long tierDelay(int tier) {
+        return tierDelays[tier];
+    }
+
+    public String deadLetterQueue() {
+        return queue + ".dlq";
+    }
+
+    /**
+     * Nivel de reintento de un correo que acaba de fallar.
+     * @param remainingRetries  Reintentos que le quedaban al correo antes del fallo
+     */
+    public int tierFor(int remainingRetries) {
+        return Math.min(tierDelays.length - 1, Math.max(0, maxAttempts - remainingRetries));
+    }
+
+    /**
+     * Espera con jitter para un nivel, nunca mayor que el TTL de su cola.
+     */
+    public long backoffMillis(int tier) {
+        long delay = tierDelays[tier];
+        return delay - (long) (delay * jitter * ThreadLocalRandom.current().nextDouble());
+    }
+
+    public int throttleLevels() {
+        return THROTTLE_LEVELS;
+    }
+
+    /**
+     * Cola de retardo de un nivel para los correos frenados por el límite de ritmo.
+     */
+    public String throttleQueue(EmailPriority priority, int level) {
+        return (priority == EmailPriority.BULK ? bulkQueue : queue) + ".throttle." + level;
+    }
+
+    /**
+     * TTL de la cola de retardo de un nivel en milisegundos.
+     */
+    public long throttleDelay(int level) {
+        return 1000L << level;
+    }
+
+    /**
+     * Nivel de retardo más corto que cubre una espera; el último si ninguno la cubre, y el correo vuelve a frenarse al
+     * salir si todavía no tiene hueco.
+     */
+    public int throttleLevelFor(long delayMillis) {
+        for (int level = 0; level < THROTTLE_LEVELS; level++) {
+            if (throttleDelay(level) >= delayMillis) return level;
+        }
+        return THROTTLE_LEVELS - 1;
+    }
+}
@@ -0,0 +1,28 @@
+package org.secr.sistemaenviocorreos.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.FileTemplateResolver;
+
+/**
+ * Resolución de las versiones publicadas en caliente ({@code <nombre>.v<N>.html} en {@code email.templates.dir}). Se
+ * añade a la del classpath que configura Spring Boot; como los nombres versionados solo existen en el directorio, cada
+ * nombre lo resuelve uno de los dos.
+ */
+@Configuration
+public class TemplateConfiguration {
+
+    @Bean
+    public FileTemplateResolver versionedTemplateResolver(@Value("${email.templates.dir:./data/templates}") String dir) {
+        FileTemplateResolver resolver = new FileTemplateResolver();
+        resolver.setPrefix(dir.endsWith("/") ? dir : dir + "/");
+        resolver.setSuffix(".html");
+        resolver.setTemplateMode(TemplateMode.HTML);
+        resolver.setCharacterEncoding("UTF-8");
+        resolver.setCheckExistence(true);
+        resolver.setOrder(0);
+        return resolver;
+    }
+}
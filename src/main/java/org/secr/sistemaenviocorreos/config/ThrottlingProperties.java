@@ -0,0 +1,39 @@
+package org.secr.sistemaenviocorreos.config;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.boot.context.properties.bind.DefaultValue;
+
+import java.util.Map;
+
+/**
+ * Límites de envío por dominio del destinatario y por remitente ({@code email.throttling.*}).
+ * @param enabled                   Activa la limitación
+ * @param maxLocalDelay             Espera máxima en milisegundos que se hace en el propio consumidor; las esperas
+ *                                  mayores se reencolan con retardo
+ * @param transientFailurePenalty   Segundos que se frena un dominio cuando responde con un error temporal (4xx)
+ * @param defaultLimit              Límite de los dominios sin configuración propia
+ * @param sender                    Límite global del remitente, {@code rate} 0 = sin límite
+ * @param domains                   Límites por dominio. Las claves con puntos van entre corchetes: {@code "[gmail.com]"}
+ */
+@ConfigurationProperties(prefix = "email.throttling")
+public record ThrottlingProperties(
+        @DefaultValue("false") boolean enabled,
+        @DefaultValue("2000") long maxLocalDelay,
+        @DefaultValue("30") long transientFailurePenalty,
+        @DefaultValue Limit defaultLimit,
+        @DefaultValue Limit sender,
+        Map<String, Limit> domains
+) {
+    /**
+     * @param rate  Correos por segundo, 0 = sin límite
+     * @param burst Correos que se pueden enviar seguidos antes de aplicar el ritmo
+     */
+    public record Limit(
+            @DefaultValue("0") double rate,
+            @DefaultValue("1") int burst
+    ) {}
+
+    public Map<String, Limit> domains() {
+        return domains == null ? Map.of() : domains;
+    }
+}
@@ -0,0 +1,349 @@
+package org.secr.sistemaenviocorreos.config.codec;
+
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Formato binario de {@link PublishRabbitMQDTO}:
+ * <pre>
+ * versión (1 byte) | flags (1 byte) | [longitud sin comprimir (varint) si está comprimido] | campos
+ * campo: etiqueta (1 byte) | longitud (varint) | valor
+ * </pre>
+ * Los campos nulos no se escriben y las etiquetas desconocidas se saltan, de modo que se pueden añadir campos sin
+ * cambiar de versión. Cada adjunto es un campo propio con tres subcampos (id, nombre y tipo, longitud + valor). Si la
+ * sección de campos supera el umbral se comprime con deflate.
+ */
+public class BinaryEmailCodec {
+
+    static final byte VERSION = 1;
+    static final byte FLAG_DEFLATE = 0x01;
+
+    static final byte TAG_EMAIL = 1;
+    static final byte TAG_SUBJECT = 2;
+    static final byte TAG_MESSAGE = 3;
+    static final byte TAG_SEND_DATE = 4;
+    static final byte TAG_RETRY = 5;
+    static final byte TAG_IDEMPOTENCY_KEY = 6;
+    static final byte TAG_PRIORITY = 7;
+    static final byte TAG_ATTACHMENT = 8;
+    static final byte TAG_ID = 9;
+    static final byte TAG_SCHEDULE_TAG = 10;
+
+    private static final int SEND_DATE_LENGTH = Long.BYTES + Integer.BYTES;
+    private static final int MIN_COMPRESSION_THRESHOLD = 64;
+    private static final int MAX_RAW_LENGTH = 64 * 1024 * 1024;
+
+    private final int compressionThreshold;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+    /**
+     * @param compressionThreshold  Tamaño en bytes a partir del cual se comprimen los campos
+     * @param compressionLevel      Nivel de deflate (1 = más rápido, 9 = más compacto)
+     */
+    public BinaryEmailCodec(int compressionThreshold, int compressionLevel) {
+        this.compressionThreshold = Math.max(MIN_COMPRESSION_THRESHOLD, compressionThreshold);
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(compressionLevel));
+    }
+
+    public byte[] encode(PublishRabbitMQDTO rMQMessage) {
+        byte[] email = utf8(rMQMessage.email());
+        byte[] subject = utf8(rMQMessage.subject());
+        byte[] message = utf8(rMQMessage.message());
+        byte[] idempotencyKey = utf8(rMQMessage.idempotencyKey());
+        byte[] priority = rMQMessage.priority() == null ? null : utf8(rMQMessage.priority().name());
+        byte[] id = utf8(rMQMessage.id());
+        byte[] scheduleTag = utf8(rMQMessage.tag());
+
+        List<byte[]> attachments = attachments(rMQMessage.attachments());
+
+        int length = fieldLength(email) + fieldLength(subject) + fieldLength(message) + fieldLength(idempotencyKey)
+                + fieldLength(priority) + fieldLength(id) + fieldLength(scheduleTag);
+        for (byte[] attachment : attachments) length += fieldLength(attachment);
+        if (rMQMessage.sendDate() != null) length += 2 + SEND_DATE_LENGTH;
+        if (rMQMessage.retry() != null) length += 2 + Integer.BYTES;
+
+        Writer fields = new Writer(new byte[length]);
+        fields.bytesField(TAG_EMAIL, email);
+        fields.bytesField(TAG_SUBJECT, subject);
+        fields.bytesField(TAG_MESSAGE, message);
+        if (rMQMessage.sendDate() != null) {
+            fields.header(TAG_SEND_DATE, SEND_DATE_LENGTH);
+            fields.writeLong(rMQMessage.sendDate().toEpochSecond(ZoneOffset.UTC));
+            fields.writeInt(rMQMessage.sendDate().getNano());
+        }
+        if (rMQMessage.retry() != null) {
+            fields.header(TAG_RETRY, Integer.BYTES);
+            fields.writeInt(rMQMessage.retry());
+        }
+        fields.bytesField(TAG_IDEMPOTENCY_KEY, idempotencyKey);
+        fields.bytesField(TAG_PRIORITY, priority);
+        for (byte[] attachment : attachments) fields.bytesField(TAG_ATTACHMENT, attachment);
+        fields.bytesField(TAG_ID, id);
+        fields.bytesField(TAG_SCHEDULE_TAG, scheduleTag);
+
+        if (length >= compressionThreshold) {
+            byte[] compressed = deflate(fields.buffer);
+            if (compressed != null) return compressed;
+        }
+        byte[] out = new byte[2 + length];
+        out[0] = VERSION;
+        out[1] = 0;
+        System.arraycopy(fields.buffer, 0, out, 2, length);
+        return out;
+    }
+
+    public PublishRabbitMQDTO decode(byte[] body) {
+        if (body.length < 2) throw new MessageConversionException("Mensaje binario truncado");
+        if (body[0] != VERSION) throw new MessageConversionException("Versión de mensaje no soportada: " + body[0]);
+
+        Reader reader = new Reader(body, 2, body.length);
+        if ((body[1] & FLAG_DEFLATE) != 0) {
+            int rawLength = reader.readVarint();
+            if (rawLength < 0 || rawLength > MAX_RAW_LENGTH) {
+                throw new MessageConversionException("Longitud sin comprimir no válida: " + rawLength);
+            }
+            reader = new Reader(inflate(body, reader.position, rawLength), 0, rawLength);
+        }
+
+        String email = null, subject = null, message = null, idempotencyKey = null;
+        LocalDateTime sendDate = null;
+        Integer retry = null;
+        EmailPriority priority = null;
+        List<AttachmentDTO> attachments = null;
+        String id = null;
+        String scheduleTag = null;
+        while (reader.position < reader.limit) {
+            byte tag = reader.buffer[reader.position++];
+            int length = reader.readVarint();
+            int end = reader.position + length;
+            if (length < 0 || end > reader.limit) throw new MessageConversionException("Campo fuera de rango: " + tag);
+            switch (tag) {
+                case TAG_EMAIL -> email = reader.string(length);
+                case TAG_SUBJECT -> subject = reader.string(length);
+                case TAG_MESSAGE -> message = reader.string(length);
+                case TAG_SEND_DATE -> {
+                    checkLength(tag, length, SEND_DATE_LENGTH);
+                    long seconds = reader.readLong();
+                    int nanos = reader.readInt();
+                    sendDate = LocalDateTime.ofEpochSecond(seconds, nanos, ZoneOffset.UTC);
+                }
+                case TAG_RETRY -> {
+                    checkLength(tag, length, Integer.BYTES);
+                    retry = reader.readInt();
+                }
+                case TAG_IDEMPOTENCY_KEY -> idempotencyKey = reader.string(length);
+                case TAG_PRIORITY -> priority = priorityOf(reader.string(length));
+                case TAG_ATTACHMENT -> {
+                    if (attachments == null) attachments = new ArrayList<>();
+                    attachments.add(attachment(new Reader(reader.buffer, reader.position, end)));
+                }
+                case TAG_ID -> id = reader.string(length);
+                case TAG_SCHEDULE_TAG -> scheduleTag = reader.string(length);
+                default -> { } //Campo de una versión más nueva
+            }
+            reader.position = end;
+        }
+        return new PublishRabbitMQDTO(email, subject, message, sendDate, retry, idempotencyKey, priority,
+                attachments, id, scheduleTag);
+    }
+
+    /**
+     * Adjuntos codificados como id | nombre | tipo, cada uno con su longitud; los nulos se escriben vacíos.
+     */
+    private static List<byte[]> attachments(List<AttachmentDTO> attachments) {
+        if (attachments == null) return List.of();
+        List<byte[]> encoded = new ArrayList<>(attachments.size());
+        for (AttachmentDTO attachment : attachments) {
+            byte[][] values = {utf8(attachment.id()), utf8(attachment.filename()), utf8(attachment.contentType())};
+            int length = 0;
+            for (byte[] value : values) {
+                int valueLength = value == null ? 0 : value.length;
+                length += varintLength(valueLength) + valueLength;
+            }
+            Writer writer = new Writer(new byte[length]);
+            for (byte[] value : values) {
+                writer.writeVarint(value == null ? 0 : value.length);
+                if (value == null) continue;
+                System.arraycopy(value, 0, writer.buffer, writer.position, value.length);
+                writer.position += value.length;
+            }
+            encoded.add(writer.buffer);
+        }
+        return encoded;
+    }
+
+    private static AttachmentDTO attachment(Reader reader) {
+        String[] values = new String[3];
+        for (int i = 0; i < values.length && reader.position < reader.limit; i++) {
+            int length = reader.readVarint();
+            if (length < 0 || reader.position + length > reader.limit) {
+                throw new MessageConversionException("Adjunto fuera de rango");
+            }
+            values[i] = length == 0 ? null : reader.string(length);
+            reader.position += length;
+        }
+        return new AttachmentDTO(values[0], values[1], values[2]);
+    }
+
+    /**
+     * @return Mensaje comprimido completo, o {@code null} si comprimir no reduce el tamaño
+     */
+    private byte[] deflate(byte[] fields) {
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(fields);
+        deflater.finish();
+
+        Writer out = new Writer(new byte[fields.length]);
+        out.buffer[out.position++] = VERSION;
+        out.buffer[out.position++] = FLAG_DEFLATE;
+        out.writeVarint(fields.length);
+        while (!deflater.finished() && out.position < out.buffer.length) {
+            out.position += deflater.deflate(out.buffer, out.position, out.buffer.length - out.position);
+        }
+        if (!deflater.finished()) return null;
+        byte[] result = new byte[out.position];
+        System.arraycopy(out.buffer, 0, result, 0, out.position);
+        return result;
+    }
+
+    private byte[] inflate(byte[] body, int offset, int rawLength) {
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(body, offset, body.length - offset);
+        byte[] fields = new byte[rawLength];
+        try {
+            int read = 0;
+            while (read < rawLength && !inflater.finished()) {
+                int n = inflater.inflate(fields, read, rawLength - read);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                read += n;
+            }
+            if (read != rawLength) throw new MessageConversionException("Mensaje comprimido truncado");
+        } catch (DataFormatException e) {
+            throw new MessageConversionException("Mensaje comprimido corrupto", e);
+        }
+        return fields;
+    }
+
+    private static void checkLength(byte tag, int length, int expected) {
+        if (length != expected) throw new MessageConversionException("Longitud no válida para el campo " + tag);
+    }
+
+    private static byte[] utf8(String value) {
+        return value == null ? null : value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Prioridad por nombre; una prioridad desconocida (de una versión más nueva) se trata como transaccional.
+     */
+    private static EmailPriority priorityOf(String name) {
+        try {
+            return EmailPriority.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static int fieldLength(byte[] value) {
+        return value == null ? 0 : 1 + varintLength(value.length) + value.length;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static final class Writer {
+        private final byte[] buffer;
+        private int position;
+
+        private Writer(byte[] buffer) {
+            this.buffer = buffer;
+        }
+
+        private void bytesField(byte tag, byte[] value) {
+            if (value == null) return;
+            header(tag, value.length);
+            System.arraycopy(value, 0, buffer, position, value.length);
+            position += value.length;
+        }
+
+        private void header(byte tag, int length) {
+            buffer[position++] = tag;
+            writeVarint(length);
+        }
+
+        private void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        private void writeLong(long value) {
+            writeInt((int) (value >>> 32));
+            writeInt((int) value);
+        }
+
+        private void writeInt(int value) {
+            buffer[position++] = (byte) (value >>> 24);
+            buffer[position++] = (byte) (value >>> 16);
+            buffer[position++] = (byte) (value >>> 8);
+            buffer[position++] = (byte) value;
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] buffer;
+        private final int limit;
+        private int position;
+
+        private Reader(byte[] buffer, int position, int limit) {
+            this.buffer = buffer;
+            this.position = position;
+            this.limit = limit;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= limit) throw new MessageConversionException("Mensaje binario truncado");
+                byte b = buffer[position++];
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new MessageConversionException("Longitud de campo no válida");
+        }
+
+        private long readLong() {
+            return ((long) readInt() << 32) | (readInt() & 0xFFFFFFFFL);
+        }
+
+        private int readInt() {
+            return ((buffer[position++] & 0xFF) << 24) | ((buffer[position++] & 0xFF) << 16)
+                    | ((buffer[position++] & 0xFF) << 8) | (buffer[position++] & 0xFF);
+        }
+
+        private String string(int length) {
+            return new String(buffer, position, length, StandardCharsets.UTF_8);
+        }
+    }
+}
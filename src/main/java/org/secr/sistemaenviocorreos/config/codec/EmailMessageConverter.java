@@ -0,0 +1,58 @@
+package org.secr.sistemaenviocorreos.config.codec;
+
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.amqp.support.converter.SmartMessageConverter;
+
+/**
+ * Conversor de mensajes AMQP que elige el formato por la cabecera content-type. Los {@link PublishRabbitMQDTO} se
+ * publican en binario ({@link BinaryEmailCodec}) si está activado y el resto de mensajes, o todos si no, en JSON. Al
+ * leer se aceptan ambos formatos, por lo que durante un despliegue conviven productores JSON y binarios.
+ */
+public class EmailMessageConverter implements SmartMessageConverter {
+
+    public static final String BINARY_CONTENT_TYPE = "application/x-email-binary";
+
+    private final Jackson2JsonMessageConverter jsonConverter;
+    private final BinaryEmailCodec codec;
+    private final boolean binaryOutput;
+
+    /**
+     * @param jsonConverter Conversor JSON para el resto de mensajes y para leer los de productores JSON
+     * @param codec         Codec binario de {@link PublishRabbitMQDTO}
+     * @param binaryOutput  Si los {@link PublishRabbitMQDTO} se publican en binario
+     */
+    public EmailMessageConverter(Jackson2JsonMessageConverter jsonConverter, BinaryEmailCodec codec,
+                                 boolean binaryOutput) {
+        this.jsonConverter = jsonConverter;
+        this.codec = codec;
+        this.binaryOutput = binaryOutput;
+    }
+
+    @Override
+    public Message toMessage(Object object, MessageProperties messageProperties) throws MessageConversionException {
+        if (binaryOutput && object instanceof PublishRabbitMQDTO rMQMessage) {
+            byte[] body = codec.encode(rMQMessage);
+            messageProperties.setContentType(BINARY_CONTENT_TYPE);
+            messageProperties.setContentLength(body.length);
+            return new Message(body, messageProperties);
+        }
+        return jsonConverter.toMessage(object, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) throws MessageConversionException {
+        return fromMessage(message, null);
+    }
+
+    @Override
+    public Object fromMessage(Message message, Object conversionHint) throws MessageConversionException {
+        if (BINARY_CONTENT_TYPE.equals(message.getMessageProperties().getContentType())) {
+            return codec.decode(message.getBody());
+        }
+        return jsonConverter.fromMessage(message, conversionHint);
+    }
+}
@@ -1,18 +1,50 @@
 package org.secr.sistemaenviocorreos.controller;
 
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import jakarta.validation.Valid;
 import lombok.AllArgsConstructor;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignProgressDTO;
+import org.secr.sistemaenviocorreos.dto.DeliveryStatusDTO;
 import org.secr.sistemaenviocorreos.dto.EmailDTO;
+import org.secr.sistemaenviocorreos.dto.PublishResponseDTO;
+import org.secr.sistemaenviocorreos.dto.ReplayResultDTO;
+import org.secr.sistemaenviocorreos.dto.RescheduleDTO;
 import org.secr.sistemaenviocorreos.dto.ScheduledEmailDTO;
+import org.secr.sistemaenviocorreos.dto.StoredAttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.TemplateDTO;
+import org.secr.sistemaenviocorreos.service.EmailBatchPublisher;
+import org.secr.sistemaenviocorreos.enums.CampaignStatus;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
 import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.secr.sistemaenviocorreos.service.attachment.AttachmentStore;
+import org.secr.sistemaenviocorreos.service.campaign.CampaignService;
+import org.secr.sistemaenviocorreos.service.retry.DeadLetterService;
+import org.secr.sistemaenviocorreos.service.scheduled.ScheduledEmailStore;
+import org.secr.sistemaenviocorreos.service.status.DeliveryStatusStore;
+import org.secr.sistemaenviocorreos.service.template.TemplateRegistry;
 import org.springframework.amqp.AmqpException;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PatchMapping;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 
 @RestController
@@ -21,28 +53,264 @@ import java.util.logging.Logger;
 public class EmailController {
 
     private final EmailPublisher emailPublisher;
+    private final EmailBatchPublisher emailBatchPublisher;
+    private final DeadLetterService deadLetterService;
+    private final CampaignService campaignService;
+    private final TemplateRegistry templateRegistry;
+    private final AttachmentStore attachmentStore;
+    private final ScheduledEmailStore scheduledEmailStore;
+    private final DeliveryStatusStore deliveryStatusStore;
+    private static final int MAX_STATUS_IDS = 1000;
     private static final Logger logger = Logger.getLogger(EmailController.class.getName());
 
+    /**
+     * Encola un correo. Responde 202 con el identificador del mensaje cuando el broker confirma la publicación (o al
+     * enviarla en modo fire-and-forget) sin bloquear el hilo de Tomcat mientras tanto.
+     */
     @PostMapping("/send")
-    public ResponseEntity<Void> send(@Valid  @RequestBody EmailDTO emailDTO) {
+    public CompletableFuture<ResponseEntity<PublishResponseDTO>> send(@Valid  @RequestBody EmailDTO emailDTO) {
+        if (!attachmentsExist(emailDTO.attachments())) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
         try {
-            emailPublisher.send(emailDTO);
+            return emailPublisher.send(emailDTO).handle(this::accepted);
         }catch (AmqpException e){
             logger.warning("Error al encolar el correo.");
-            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
         }
-
-        return ResponseEntity.ok().build();
     }
 
     @PostMapping("/sendLater")
-    public ResponseEntity<Void> sendLater(@Valid @RequestBody ScheduledEmailDTO scheduledEmailDTO) {
+    public CompletableFuture<ResponseEntity<PublishResponseDTO>> sendLater(@Valid @RequestBody ScheduledEmailDTO scheduledEmailDTO) {
+        if (!attachmentsExist(scheduledEmailDTO.email().attachments())) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.BAD_REQUEST));
+        }
         try {
-            emailPublisher.sendLater(scheduledEmailDTO);
+            return emailPublisher.sendLater(scheduledEmailDTO).handle(this::accepted);
         }catch (AmqpException e){
             logger.warning("Error al encolar el correo.");
-            return new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR);
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.INTERNAL_SERVER_ERROR));
+        }catch (IllegalStateException e){
+            return CompletableFuture.completedFuture(new ResponseEntity<>(HttpStatus.CONFLICT));
+        }
+    }
+
+    /**
+     * Cancela un correo programado con el id devuelto por {@code sendLater}. Responde 404 si no está pendiente (no existe,
+     * ya se ha liberado o todavía no ha llegado del broker) y 409 si se está liberando en este momento.
+     */
+    @DeleteMapping("/scheduled/{id}")
+    public ResponseEntity<Void> cancelScheduled(@PathVariable String id) throws IOException {
+        try {
+            if (!scheduledEmailStore.cancel(id)) return ResponseEntity.notFound().build();
+            deliveryStatusStore.record(id, DeliveryState.CANCELLED, null);
+            return ResponseEntity.noContent().build();
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+    }
+
+    /**
+     * Cancela todos los correos programados con una etiqueta. La etiqueta no se puede volver a usar.
+     */
+    @DeleteMapping("/scheduled")
+    public ResponseEntity<Void> cancelScheduledTag(@RequestParam String tag) throws IOException {
+        try {
+            scheduledEmailStore.cancelTag(tag);
+            return ResponseEntity.noContent().build();
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().build();
+        }
+    }
+
+    /**
+     * Cambia la fecha de un correo programado. El correo pasa a tener un id nuevo, que se devuelve.
+     */
+    @PatchMapping("/scheduled/{id}")
+    public ResponseEntity<PublishResponseDTO> reschedule(@PathVariable String id,
+                                                         @Valid @RequestBody RescheduleDTO rescheduleDTO) throws IOException {
+        try {
+            String newId = scheduledEmailStore.reschedule(id, rescheduleDTO.scheduled());
+            if (newId == null) return ResponseEntity.notFound().build();
+            deliveryStatusStore.record(id, DeliveryState.CANCELLED, null);
+            deliveryStatusStore.record(newId, DeliveryState.SCHEDULED, null);
+            return ResponseEntity.ok(new PublishResponseDTO(newId));
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        }
+    }
+
+    /**
+     * Estado de entrega de un correo por el id devuelto al encolarlo. Responde 404 si el id no se conoce o su estado
+     * ya ha caducado.
+     */
+    @GetMapping("/{id}/status")
+    public ResponseEntity<DeliveryStatusDTO> status(@PathVariable String id) {
+        return ResponseEntity.ofNullable(deliveryStatusStore.get(id));
+    }
+
+    /**
+     * Estado de entrega de varios correos, en el orden de los ids recibidos. Los ids desconocidos se devuelven con
+     * estado {@code UNKNOWN}.
+     */
+    @PostMapping("/status")
+    public ResponseEntity<List<DeliveryStatusDTO>> statuses(@RequestBody List<String> ids) {
+        if (ids.size() > MAX_STATUS_IDS) return ResponseEntity.badRequest().build();
+        List<DeliveryStatusDTO> statuses = new ArrayList<>(ids.size());
+        for (String id : ids) statuses.add(deliveryStatusStore.getOrUnknown(id));
+        return ResponseEntity.ok(statuses);
+    }
+
+    /**
+     * Los adjuntos se suben antes con {@code POST /email/attachments}; un correo que referencia uno desconocido se
+     * rechaza en lugar de fallar al enviarse.
+     */
+    private boolean attachmentsExist(List<AttachmentDTO> attachments) {
+        if (attachments == null) return true;
+        for (AttachmentDTO attachment : attachments) {
+            if (!attachmentStore.exists(attachment.id())) {
+                logger.warning("Adjunto no encontrado: " + attachment.id());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sube un adjunto y devuelve su identificador para referenciarlo en los correos. El contenido se guarda una sola
+     * vez: subir el mismo fichero de nuevo devuelve el mismo identificador.
+     */
+    @PostMapping(value = "/attachments", consumes = MediaType.APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StoredAttachmentDTO> uploadAttachment(HttpServletRequest request) throws IOException {
+        try {
+            return new ResponseEntity<>(attachmentStore.store(request.getInputStream()), HttpStatus.CREATED);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Adjunto rechazado: " + e.getMessage());
+            return new ResponseEntity<>(HttpStatus.PAYLOAD_TOO_LARGE);
+        }
+    }
+
+    /**
+     * Las publicaciones no confirmadas (nack, sin confirmación o ventana llena) se pueden reintentar: 503.
+     */
+    private ResponseEntity<PublishResponseDTO> accepted(String id, Throwable error) {
+        if (error == null) return ResponseEntity.accepted().body(new PublishResponseDTO(id));
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        logger.warning("Correo no confirmado por el broker: " + cause.getMessage());
+        return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+
+    /**
+     * Envío masivo. Acepta un array JSON o NDJSON de correos y devuelve en NDJSON el resultado de cada elemento
+     * (aceptado o rechazado) sin cargar el cuerpo completo en memoria.
+     */
+    @PostMapping(value = "/sendBatch", consumes = {MediaType.APPLICATION_JSON_VALUE, MediaType.APPLICATION_NDJSON_VALUE})
+    public void sendBatch(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.OK.value());
+        response.setContentType(MediaType.APPLICATION_NDJSON_VALUE);
+        emailBatchPublisher.publish(request.getInputStream(), response.getOutputStream());
+    }
+
+    /**
+     * Devuelve a la cola de envío hasta {@code limit} correos de la cola de fallidos, con los reintentos completos.
+     */
+    @PostMapping("/deadLetters/replay")
+    public ResponseEntity<ReplayResultDTO> replayDeadLetters(@RequestParam(defaultValue = "1000") int limit) {
+        if (limit <= 0) return ResponseEntity.badRequest().build();
+        try {
+            return ResponseEntity.ok(deadLetterService.replay(limit));
+        } catch (AmqpException e) {
+            logger.warning("Error al reinyectar los correos fallidos.");
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Crea una campaña con el contenido común. Los destinatarios se añaden después con
+     * {@code POST /email/campaigns/{id}/recipients}.
+     */
+    @PostMapping("/campaigns")
+    public ResponseEntity<CampaignProgressDTO> createCampaign(@Valid @RequestBody CampaignDTO campaignDTO) throws IOException {
+        return new ResponseEntity<>(campaignService.create(campaignDTO), HttpStatus.CREATED);
+    }
+
+    /**
+     * Añade destinatarios a una campaña, una dirección por línea. Se puede llamar varias veces para listas grandes.
+     */
+    @PostMapping(value = "/campaigns/{id}/recipients", consumes = MediaType.TEXT_PLAIN_VALUE)
+    public ResponseEntity<CampaignProgressDTO> addCampaignRecipients(@PathVariable String id,
+                                                                     HttpServletRequest request) throws IOException {
+        try {
+            return ResponseEntity.ofNullable(campaignService.addRecipients(id, request.getInputStream()));
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
+        } catch (AmqpException e) {
+            logger.warning("Error al encolar los destinatarios de la campaña " + id);
+            return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+        }
+    }
+
+    @GetMapping("/campaigns/{id}")
+    public ResponseEntity<CampaignProgressDTO> campaignProgress(@PathVariable String id) throws IOException {
+        return ResponseEntity.ofNullable(campaignService.progress(id));
+    }
+
+    @PostMapping("/campaigns/{id}/pause")
+    public ResponseEntity<CampaignProgressDTO> pauseCampaign(@PathVariable String id) throws IOException {
+        return changeCampaignStatus(id, CampaignStatus.PAUSED);
+    }
+
+    @PostMapping("/campaigns/{id}/resume")
+    public ResponseEntity<CampaignProgressDTO> resumeCampaign(@PathVariable String id) throws IOException {
+        return changeCampaignStatus(id, CampaignStatus.ACTIVE);
+    }
+
+    /**
+     * Cancela una campaña: los tramos pendientes se descartan. No se puede deshacer.
+     */
+    @PostMapping("/campaigns/{id}/cancel")
+    public ResponseEntity<CampaignProgressDTO> cancelCampaign(@PathVariable String id) throws IOException {
+        return changeCampaignStatus(id, CampaignStatus.CANCELLED);
+    }
+
+    private ResponseEntity<CampaignProgressDTO> changeCampaignStatus(String id, CampaignStatus status) throws IOException {
+        try {
+            return ResponseEntity.ofNullable(campaignService.changeStatus(id, status));
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(HttpStatus.CONFLICT);
         }
-        return ResponseEntity.ok().build();
+    }
+
+    @GetMapping("/templates")
+    public List<TemplateDTO> templates() {
+        return templateRegistry.list();
+    }
+
+    /**
+     * Publica una versión nueva de una plantilla. Los correos pasan a usarla en cuanto está precompilada y calentada,
+     * sin reiniciar; si no se puede renderizar se responde 400 y se sigue usando la anterior. Responde 403 salvo con
+     * {@code email.templates.install-enabled}.
+     */
+    @PutMapping(value = "/templates/{name}", consumes = {MediaType.TEXT_HTML_VALUE, MediaType.TEXT_PLAIN_VALUE})
+    public ResponseEntity<TemplateDTO> installTemplate(@PathVariable String name, @RequestBody String source,
+                                                       HttpServletRequest request) throws IOException {
+        try {
+            return ResponseEntity.ok(templateRegistry.install(name, source, requester(request)));
+        } catch (IllegalStateException e) {
+            return new ResponseEntity<>(HttpStatus.FORBIDDEN);
+        } catch (IllegalArgumentException e) {
+            logger.warning("Plantilla " + name + " rechazada: " + e.getMessage());
+            return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
+        }
+    }
+
+    /**
+     * Usuario autenticado, si lo hay, y dirección de origen de una petición.
+     */
+    private static String requester(HttpServletRequest request) {
+        String address = request.getRemoteAddr();
+        return request.getUserPrincipal() != null
+                ? request.getUserPrincipal().getName() + " (" + address + ")"
+                : address;
     }
 }
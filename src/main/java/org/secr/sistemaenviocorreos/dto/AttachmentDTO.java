@@ -0,0 +1,21 @@
+package org.secr.sistemaenviocorreos.dto;
+
+import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Pattern;
+import jakarta.validation.constraints.Size;
+
+/**
+ * Referencia a un adjunto subido con {@code POST /email/attachments}. El mensaje encolado solo lleva la referencia;
+ * el contenido se lee del almacén al construir el correo.
+ * @param id            Hash SHA-256 del contenido, devuelto al subirlo
+ * @param filename      Nombre con el que se adjunta
+ * @param contentType   Tipo MIME; si no se indica, {@code application/octet-stream}
+ */
+public record AttachmentDTO(
+        @NotBlank(message = "Attachment id is required") @Pattern(regexp = "[0-9a-f]{64}", message = "Attachment id is wrong")
+        String id,
+        @NotBlank(message = "Attachment filename is required") @Size(max = 255, message = "Attachment filename is too long")
+        String filename,
+        @Size(max = 255, message = "Attachment content type is too long")
+        String contentType
+) {}
@@ -0,0 +1,20 @@
+package org.secr.sistemaenviocorreos.dto;
+
+/**
+ * @param id    Identificador del correo aceptado para consultar su estado de entrega, o {@code null} si se rechazó
+ */
+public record BatchItemResultDTO(
+        int index,
+        String email,
+        boolean accepted,
+        String error,
+        String id
+) {
+    public static BatchItemResultDTO accepted(int index, String email, String id) {
+        return new BatchItemResultDTO(index, email, true, null, id);
+    }
+
+    public static BatchItemResultDTO rejected(int index, String email, String error) {
+        return new BatchItemResultDTO(index, email, false, error, null);
+    }
+}
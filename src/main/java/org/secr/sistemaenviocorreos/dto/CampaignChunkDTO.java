@@ -0,0 +1,13 @@
+package org.secr.sistemaenviocorreos.dto;
+
+/**
+ * Tramo de destinatarios de una campaña que se encola en lugar de un mensaje completo por destinatario.
+ * @param campaignId    Campaña
+ * @param offset        Posición en bytes del primer destinatario en el fichero de destinatarios
+ * @param count         Número de destinatarios del tramo
+ */
+public record CampaignChunkDTO(
+        String campaignId,
+        long offset,
+        int count
+) {}
@@ -0,0 +1,16 @@
+package org.secr.sistemaenviocorreos.dto;
+
+import jakarta.validation.constraints.NotBlank;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+
+/**
+ * Contenido común de una campaña. Se guarda una sola vez; los destinatarios se añaden después.
+ * @param priority  Carril de envío, masivo si no se indica
+ */
+public record CampaignDTO(
+        @NotBlank(message = "Subject is required")
+        String subject,
+        @NotBlank(message = "Message is required")
+        String message,
+        EmailPriority priority
+) {}
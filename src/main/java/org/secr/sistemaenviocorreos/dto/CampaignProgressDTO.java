@@ -0,0 +1,19 @@
+package org.secr.sistemaenviocorreos.dto;
+
+import org.secr.sistemaenviocorreos.enums.CampaignStatus;
+
+/**
+ * Progreso de una campaña, sumado entre todos los nodos.
+ * @param enqueued  Destinatarios recibidos y encolados en tramos
+ * @param sent      Correos enviados
+ * @param failed    Correos que han agotado los reintentos
+ * @param skipped   Destinatarios descartados al cancelar la campaña
+ */
+public record CampaignProgressDTO(
+        String id,
+        CampaignStatus status,
+        long enqueued,
+        long sent,
+        long failed,
+        long skipped
+) {}
@@ -0,0 +1,20 @@
+package org.secr.sistemaenviocorreos.dto;
+
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+
+import java.time.LocalDateTime;
+
+/**
+ * @param retriesLeft   Intentos restantes al registrar el estado, o {@code null} si no se conoce
+ * @param updatedAt     Instante del último cambio de estado, o {@code null} si el id no se conoce
+ */
+public record DeliveryStatusDTO(
+        String id,
+        DeliveryState state,
+        Integer retriesLeft,
+        LocalDateTime updatedAt
+) {
+    public static DeliveryStatusDTO unknown(String id) {
+        return new DeliveryStatusDTO(id, DeliveryState.UNKNOWN, null, null);
+    }
+}
@@ -1,14 +1,38 @@
 package org.secr.sistemaenviocorreos.dto;
 
+import jakarta.validation.Valid;
 import jakarta.validation.constraints.Email;
 import jakarta.validation.constraints.NotBlank;
+import jakarta.validation.constraints.Size;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
 
+import java.util.List;
+
+/**
+ * @param idempotencyKey Clave opcional del cliente: las peticiones repetidas con la misma clave se encolan y se envían
+ *                       una sola vez mientras dure la ventana de deduplicación
+ * @param priority       Carril de envío; si no se indica, transaccional en los envíos individuales y masivo en los
+ *                       envíos por lotes
+ * @param attachments    Adjuntos subidos previamente, por referencia
+ */
 public record EmailDTO(
         @NotBlank(message = "Email is required") @Email(message = "Email is wrong")
         String email,
         @NotBlank(message = "Subject is required")
         String subject,
         @NotBlank(message = "Message is required")
-        String message
+        String message,
+        @Size(max = 255, message = "Idempotency key is too long")
+        String idempotencyKey,
+        EmailPriority priority,
+        @Valid @Size(max = 20, message = "Too many attachments")
+        List<AttachmentDTO> attachments
+) {
+    public EmailDTO(String email, String subject, String message) {
+        this(email, subject, message, null, null);
+    }
 
-) {}
+    public EmailDTO(String email, String subject, String message, String idempotencyKey, EmailPriority priority) {
+        this(email, subject, message, idempotencyKey, priority, null);
+    }
+}
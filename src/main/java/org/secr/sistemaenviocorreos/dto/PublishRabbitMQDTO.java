@@ -1,12 +1,75 @@
 package org.secr.sistemaenviocorreos.dto;
 
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+
 import java.time.LocalDateTime;
+import java.util.List;
 
+/**
+ * @param idempotencyKey Clave de deduplicación del cliente, o {@code null}
+ * @param priority       Carril de envío, o {@code null} para transaccional
+ * @param attachments    Referencias a los adjuntos del almacén, o {@code null}
+ * @param id             Identificador del mensaje devuelto al cliente, o {@code null} si se asigna al publicar
+ * @param tag            Etiqueta de los envíos programados para cancelarlos en bloque, o {@code null}
+ */
 public record PublishRabbitMQDTO (
         String email,
         String subject,
         String message,
         LocalDateTime sendDate,
-        Integer retry
+        Integer retry,
+        String idempotencyKey,
+        EmailPriority priority,
+        List<AttachmentDTO> attachments,
+        String id,
+        String tag
 ){
+    public PublishRabbitMQDTO(String email, String subject, String message, LocalDateTime sendDate, Integer retry) {
+        this(email, subject, message, sendDate, retry, null, null);
+    }
+
+    public PublishRabbitMQDTO(String email, String subject, String message, LocalDateTime sendDate, Integer retry,
+                              String idempotencyKey, EmailPriority priority) {
+        this(email, subject, message, sendDate, retry, idempotencyKey, priority, null);
+    }
+
+    public PublishRabbitMQDTO(String email, String subject, String message, LocalDateTime sendDate, Integer retry,
+                              String idempotencyKey, EmailPriority priority, List<AttachmentDTO> attachments) {
+        this(email, subject, message, sendDate, retry, idempotencyKey, priority, attachments, null, null);
+    }
+
+    /**
+     * Copia del correo con otro número de reintentos restantes.
+     */
+    public PublishRabbitMQDTO withRetry(Integer retry) {
+        return new PublishRabbitMQDTO(email, subject, message, sendDate, retry, idempotencyKey, priority, attachments,
+                id, tag);
+    }
+
+    /**
+     * Copia del correo con el identificador asignado al publicarlo.
+     */
+    public PublishRabbitMQDTO withId(String id) {
+        return new PublishRabbitMQDTO(email, subject, message, sendDate, retry, idempotencyKey, priority, attachments,
+                id, tag);
+    }
+
+    /**
+     * Copia del correo con otro identificador y fecha de envío.
+     */
+    public PublishRabbitMQDTO rescheduled(String id, LocalDateTime sendDate) {
+        return new PublishRabbitMQDTO(email, subject, message, sendDate, retry, idempotencyKey, priority, attachments,
+                id, tag);
+    }
+
+    public boolean hasAttachments() {
+        return attachments != null && !attachments.isEmpty();
+    }
+
+    /**
+     * Carril del correo, nunca {@code null}.
+     */
+    public EmailPriority lane() {
+        return EmailPriority.of(priority);
+    }
 }
@@ -0,0 +1,9 @@
+package org.secr.sistemaenviocorreos.dto;
+
+/**
+ * Respuesta a una petición de envío aceptada.
+ * @param id Identificador del mensaje encolado (message-id AMQP)
+ */
+public record PublishResponseDTO(
+        String id
+) {}
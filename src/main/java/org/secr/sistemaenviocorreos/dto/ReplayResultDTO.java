@@ -0,0 +1,11 @@
+package org.secr.sistemaenviocorreos.dto;
+
+/**
+ * Resultado de la reinyección de correos fallidos.
+ * @param replayed  Correos devueltos a la cola de envío y confirmados por el broker
+ * @param failed    Correos que siguen en la cola de fallidos
+ */
+public record ReplayResultDTO(
+        int replayed,
+        int failed
+) {}
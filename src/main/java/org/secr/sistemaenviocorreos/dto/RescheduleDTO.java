@@ -0,0 +1,13 @@
+package org.secr.sistemaenviocorreos.dto;
+
+import jakarta.validation.constraints.NotNull;
+
+import java.time.LocalDateTime;
+
+/**
+ * Nueva fecha de envío de un correo programado.
+ */
+public record RescheduleDTO(
+        @NotNull(message = "Scheduled is required")
+        LocalDateTime scheduled
+) {}
@@ -2,7 +2,16 @@ package org.secr.sistemaenviocorreos.dto;
 
 import jakarta.validation.Valid;
 import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Pattern;
 
 import java.time.LocalDateTime;
 
-public record ScheduledEmailDTO (@NotNull @Valid EmailDTO email, @NotNull LocalDateTime scheduled){}
+/**
+ * @param tag Etiqueta opcional (campaña, lote...) para cancelar en bloque con {@code DELETE /email/scheduled?tag=}
+ */
+public record ScheduledEmailDTO (@NotNull @Valid EmailDTO email, @NotNull LocalDateTime scheduled,
+                                 @Pattern(regexp = "[A-Za-z0-9._-]{1,64}", message = "Tag is wrong") String tag){
+    public ScheduledEmailDTO(EmailDTO email, LocalDateTime scheduled) {
+        this(email, scheduled, null);
+    }
+}
@@ -0,0 +1,13 @@
+package org.secr.sistemaenviocorreos.dto;
+
+/**
+ * Adjunto guardado en el almacén.
+ * @param id            Hash SHA-256 del contenido, con el que se referencia en los correos
+ * @param size          Tamaño en bytes
+ * @param deduplicated  Si el contenido ya estaba guardado
+ */
+public record StoredAttachmentDTO(
+        String id,
+        long size,
+        boolean deduplicated
+) {}
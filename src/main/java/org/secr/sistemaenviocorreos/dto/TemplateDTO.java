@@ -0,0 +1,14 @@
+package org.secr.sistemaenviocorreos.dto;
+
+/**
+ * Versión en uso de una plantilla.
+ * @param version       0 para la plantilla incluida en la aplicación
+ * @param dataType      DTO con el que se renderiza
+ * @param precompiled   Si se renderiza con un plan precompilado o con Thymeleaf
+ */
+public record TemplateDTO(
+        String name,
+        long version,
+        String dataType,
+        boolean precompiled
+) {}
@@ -0,0 +1,10 @@
+package org.secr.sistemaenviocorreos.enums;
+
+/**
+ * Estado de una campaña. Una campaña cancelada no se puede reanudar.
+ */
+public enum CampaignStatus {
+    ACTIVE,
+    PAUSED,
+    CANCELLED
+}
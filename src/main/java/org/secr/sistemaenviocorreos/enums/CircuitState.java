@@ -0,0 +1,17 @@
+package org.secr.sistemaenviocorreos.enums;
+
+/**
+ * Estado del circuito del servidor SMTP. Con el circuito abierto no se consume de las colas; al reanudar se pasa por
+ * {@code HALF_OPEN}, con un límite de envíos simultáneos que crece hasta cerrarse.
+ */
+public enum CircuitState {
+    CLOSED,
+    HALF_OPEN,
+    OPEN;
+
+    private final String tag = name().toLowerCase();
+
+    public String tag() {
+        return tag;
+    }
+}
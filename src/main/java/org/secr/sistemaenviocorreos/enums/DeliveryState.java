@@ -0,0 +1,23 @@
+package org.secr.sistemaenviocorreos.enums;
+
+/**
+ * Estado de entrega de un correo consultable con {@code GET /email/{id}/status}.
+ */
+public enum DeliveryState {
+    QUEUED,
+    SCHEDULED,
+    SENDING,
+    FAILED, //intento fallido, pendiente de reintento
+    SENT,
+    EXHAUSTED,
+    CANCELLED,
+    UNKNOWN;
+
+    /**
+     * Estados que ya no cambian. Un correo con los reintentos agotados puede volver a enviarse desde la cola de
+     * fallidos, por lo que no es final.
+     */
+    public boolean isFinal() {
+        return this == SENT || this == CANCELLED;
+    }
+}
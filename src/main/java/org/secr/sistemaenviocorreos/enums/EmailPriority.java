@@ -0,0 +1,24 @@
+package org.secr.sistemaenviocorreos.enums;
+
+/**
+ * Carril de envío. Cada carril tiene su propia cola en el broker y en el pipeline, para que los correos
+ * transaccionales (altas, recuperación de contraseña...) no esperen detrás de un envío masivo.
+ */
+public enum EmailPriority {
+    TRANSACTIONAL,
+    BULK;
+
+    /**
+     * Carril de un correo, transaccional si no se indica.
+     */
+    public static EmailPriority of(EmailPriority priority) {
+        return priority == null ? TRANSACTIONAL : priority;
+    }
+
+    /**
+     * Nombre para etiquetas de métricas.
+     */
+    public String tag() {
+        return name().toLowerCase();
+    }
+}
@@ -0,0 +1,20 @@
+package org.secr.sistemaenviocorreos.enums;
+
+/**
+ * Etapa del envío de un correo registrada en el log de eventos.
+ */
+public enum SendStage {
+    PUBLISHED,
+    DUPLICATE,
+    SCHEDULED,
+    SENT,
+    REQUEUED,
+    FAILED,
+    EXHAUSTED;
+
+    private final String tag = name().toLowerCase();
+
+    public String tag() {
+        return tag;
+    }
+}
@@ -0,0 +1,209 @@
+package org.secr.sistemaenviocorreos.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.validation.ConstraintViolation;
+import jakarta.validation.Validator;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.BatchItemResultDTO;
+import org.secr.sistemaenviocorreos.dto.EmailDTO;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.attachment.AttachmentStore;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Ingesta masiva de correos. El cuerpo (array JSON o NDJSON) se lee como stream elemento a elemento, cada correo se
+ * valida y se publica sin esperar su confirmación; al completar un lote se esperan todas las confirmaciones del broker
+ * y se escriben los resultados. Solo se mantiene en memoria el lote en curso. Los correos sin prioridad van al carril
+ * masivo.
+ * <p>
+ * Los correos con clave de idempotencia se publican con el id derivado de la clave; si la clave ya se publicó no se
+ * vuelven a encolar y se responden como aceptados con ese mismo id, igual que en {@code /email/send}. Un correo que
+ * referencia un adjunto desconocido se rechaza en su resultado en lugar de fallar en cada intento de envío.
+ */
+@Service
+public class EmailBatchPublisher {
+
+    private static final Logger logger = Logger.getLogger(EmailBatchPublisher.class.getName());
+    private static final byte[] NEW_LINE = {'\n'};
+
+    @Autowired
+    private EmailPublisher emailPublisher;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private Validator validator;
+
+    @Autowired
+    private DeduplicationService deduplication;
+
+    @Autowired
+    private AttachmentStore attachmentStore;
+
+    @Autowired
+    private EmailMetrics metrics;
+
+    @Value("${email.batch.size:500}")
+    private Integer batchSize = 500;
+
+    @Value("${email.batch.confirm-timeout:10}")
+    private Integer confirmTimeout = 10; //seconds
+
+    /**
+     * Procesa un cuerpo con correos y escribe un resultado NDJSON por elemento en el orden de entrada.
+     * @param body          Array JSON o NDJSON con objetos {@link EmailDTO}
+     * @param results       Salida donde se escribe el resultado de cada elemento
+     * @throws IOException  Error de lectura del cuerpo o escritura de la respuesta
+     */
+    public void publish(InputStream body, OutputStream results) throws IOException {
+        List<PendingItem> batch = new ArrayList<>(batchSize);
+        int index = 0;
+        try (JsonParser parser = objectMapper.getFactory().createParser(body)) {
+            JsonToken first = parser.nextToken();
+            boolean array = first == JsonToken.START_ARRAY;
+            JsonToken token = array ? parser.nextToken() : first;
+
+            while (token != null && token != JsonToken.END_ARRAY) {
+                JsonNode node = parser.readValueAsTree();
+                batch.add(publishItem(index++, node));
+                if (batch.size() >= batchSize) flush(batch, results);
+                token = parser.nextToken();
+            }
+        } catch (JsonProcessingException e) {
+            flush(batch, results);
+            logger.warning("Cuerpo del lote mal formado: " + e.getMessage());
+            write(BatchItemResultDTO.rejected(index, null, "JSON mal formado: " + e.getOriginalMessage()), results);
+            results.flush();
+            return;
+        }
+        flush(batch, results);
+        logger.info("Lote procesado: " + index + " correos");
+    }
+
+    private PendingItem publishItem(int index, JsonNode node) {
+        EmailDTO emailDTO;
+        try {
+            emailDTO = objectMapper.treeToValue(node, EmailDTO.class);
+        } catch (IOException | IllegalArgumentException e) {
+            return PendingItem.rejected(index, null, "Elemento no válido");
+        }
+        Set<ConstraintViolation<EmailDTO>> violations = validator.validate(emailDTO);
+        if (!violations.isEmpty()) {
+            String error = violations.stream().map(ConstraintViolation::getMessage).sorted()
+                    .collect(Collectors.joining(", "));
+            return PendingItem.rejected(index, emailDTO.email(), error);
+        }
+        String missing = missingAttachment(emailDTO.attachments());
+        if (missing != null) return PendingItem.rejected(index, emailDTO.email(), "Adjunto no encontrado: " + missing);
+
+        String idempotencyKey = emailDTO.idempotencyKey();
+        CorrelationData correlationData = idempotencyKey == null ? new CorrelationData()
+                : new CorrelationData(DeduplicationService.messageIdFor(idempotencyKey));
+        if (idempotencyKey != null && !deduplication.acceptPublish(idempotencyKey)) {
+            //Elemento repetido: se responde con el mismo id sin volver a encolar
+            metrics.recordDuplicate("publish");
+            return PendingItem.duplicate(index, emailDTO.email(), correlationData.getId());
+        }
+        try {
+            emailPublisher.publishConfirmed(emailPublisher.toMessage(emailDTO, EmailPriority.BULK), correlationData);
+        } catch (AmqpException e) {
+            if (idempotencyKey != null) deduplication.releasePublish(idempotencyKey);
+            return PendingItem.rejected(index, emailDTO.email(), "Error al encolar el correo");
+        }
+        return new PendingItem(index, emailDTO.email(), idempotencyKey, correlationData, null);
+    }
+
+    /**
+     * @return Id del primer adjunto que no está en el {@link AttachmentStore}, o {@code null} si están todos
+     */
+    private String missingAttachment(List<AttachmentDTO> attachments) {
+        if (attachments == null) return null;
+        for (AttachmentDTO attachment : attachments) {
+            if (!attachmentStore.exists(attachment.id())) return attachment.id();
+        }
+        return null;
+    }
+
+    /**
+     * Espera las confirmaciones pendientes del lote y escribe sus resultados. Las claves de los correos que el broker
+     * no confirma se olvidan para que el cliente los pueda reintentar.
+     */
+    private void flush(List<PendingItem> batch, OutputStream results) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(confirmTimeout);
+        for (PendingItem item : batch) {
+            BatchItemResultDTO result = item.await(deadline);
+            if (!result.accepted() && item.idempotencyKey() != null) {
+                deduplication.releasePublish(item.idempotencyKey());
+            }
+            write(result, results);
+        }
+        results.flush();
+        batch.clear();
+    }
+
+    private void write(BatchItemResultDTO result, OutputStream results) throws IOException {
+        results.write(objectMapper.writeValueAsBytes(result));
+        results.write(NEW_LINE);
+    }
+
+    /**
+     * @param idempotencyKey    Clave aceptada al publicar, que se libera si el broker no confirma el correo
+     */
+    private record PendingItem(int index, String email, String idempotencyKey, CorrelationData correlationData,
+                               String error) {
+
+        static PendingItem rejected(int index, String email, String error) {
+            return new PendingItem(index, email, null, null, error);
+        }
+
+        /**
+         * Correo ya publicado antes: aceptado con el id de la publicación original.
+         */
+        static PendingItem duplicate(int index, String email, String id) {
+            CorrelationData original = new CorrelationData(id);
+            original.getFuture().complete(new CorrelationData.Confirm(true, null));
+            return new PendingItem(index, email, null, original, null);
+        }
+
+        BatchItemResultDTO await(long deadline) {
+            if (correlationData == null) return BatchItemResultDTO.rejected(index, email, error);
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                CorrelationData.Confirm confirm = correlationData.getFuture().get(remaining, TimeUnit.NANOSECONDS);
+                return confirm.isAck()
+                        ? BatchItemResultDTO.accepted(index, email, correlationData.getId())
+                        : BatchItemResultDTO.rejected(index, email, "Rechazado por el broker: " + confirm.getReason());
+            } catch (TimeoutException e) {
+                return BatchItemResultDTO.rejected(index, email, "Sin confirmación del broker");
+            } catch (ExecutionException e) {
+                return BatchItemResultDTO.rejected(index, email, "Error al encolar el correo");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return BatchItemResultDTO.rejected(index, email, "Interrumpido");
+            }
+        }
+    }
+}
@@ -1,27 +1,68 @@
 package org.secr.sistemaenviocorreos.service;
 
+import com.rabbitmq.client.Channel;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.Address;
 import jakarta.mail.AuthenticationFailedException;
 import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
+import org.eclipse.angus.mail.smtp.SMTPAddressFailedException;
+import org.eclipse.angus.mail.smtp.SMTPSendFailedException;
 import org.eclipse.angus.mail.util.MailConnectException;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
 import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
 import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.secr.sistemaenviocorreos.enums.SendStage;
+import org.secr.sistemaenviocorreos.service.campaign.CampaignStore;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
 import org.secr.sistemaenviocorreos.service.interfaces.ConsumerInterface;
+import org.secr.sistemaenviocorreos.service.logging.SendEventLog;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.mime.MimeMessageFactory;
+import org.secr.sistemaenviocorreos.service.partition.PartitionRouter;
+import org.secr.sistemaenviocorreos.service.pipeline.Coalescer;
+import org.secr.sistemaenviocorreos.service.pipeline.DeliveryAck;
+import org.secr.sistemaenviocorreos.service.pipeline.EmailPipeline;
+import org.secr.sistemaenviocorreos.service.retry.DeadLetterService;
+import org.secr.sistemaenviocorreos.service.scheduled.ScheduledEmailStore;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpCircuitBreaker;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpCircuitOpenException;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpPoolExhaustedException;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpTransportPool;
+import org.secr.sistemaenviocorreos.service.status.DeliveryStatusStore;
+import org.secr.sistemaenviocorreos.service.throttling.DomainRateLimiter;
+import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessagePostProcessor;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.AmqpHeaders;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.mail.MailAuthenticationException;
-import org.springframework.mail.MailSendException;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.JavaMailSenderImpl;
-import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.messaging.handler.annotation.Header;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
@@ -31,114 +72,491 @@ import java.util.logging.Level;
 public class EmailConsumer implements ConsumerInterface {
 
     private static final Logger logger = Logger.getLogger(EmailConsumer.class.getName());
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
 
-    @Autowired
-    private JavaMailSender mailSender;
     @Autowired
     private EmailTemplateRenderer renderer;
-
     @Autowired
-    private RabbitTemplate rabbitTemplate;
+    private MimeMessageFactory mimeMessageFactory;
+    @Autowired
+    private SmtpTransportPool transportPool;
+    @Autowired
+    private SmtpCircuitBreaker circuitBreaker;
+    @Autowired
+    private ScheduledEmailStore scheduledEmailStore;
+    @Autowired
+    private EmailPipeline pipeline;
+    @Autowired
+    private EmailMetrics metrics;
+    @Autowired
+    private SendEventLog events;
+    @Autowired
+    private DeliveryStatusStore statusStore;
+    @Autowired
+    private DomainRateLimiter rateLimiter;
 
-    @Value("${rabbitmq.exchange}")
-    private String exchange;
+    @Autowired
+    private RetryPolicy retryPolicy;
+    @Autowired
+    private DeadLetterService deadLetterService;
+    @Autowired
+    private DeduplicationService deduplication;
+    @Autowired
+    private PartitionRouter partitionRouter;
+    @Autowired
+    private EmailPublisher emailPublisher;
+    @Autowired
+    private CampaignStore campaignStore;
 
-    @Value("${rabbitmq.routing-key}")
-    private String routingKey;
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
 
     @Value("${spring.mail.sender}")
     private String sender;
 
-    @Value("${spring.retry.send.delay}")
-    private Integer delay;
+    @Value("${email.publish.confirm-timeout:10}")
+    private Integer confirmTimeout = 10; //seconds
+
+    @Value("${email.coalescing.enabled:false}")
+    private Boolean coalescingEnabled = false;
+
+    @Value("${email.coalescing.window:200}")
+    private Integer coalescingWindow = 200; //milliseconds
+
+    @Value("${email.coalescing.max-recipients:50}")
+    private Integer maxRecipients = 50;
+
+    private Coalescer<SharedContent, PendingDelivery> coalescer;
 
     /**
-     * Lectura de correos de una cola de RabbitMQ. Estos correos se envian por un SMTP, en caso de que haya cualquier error
-     * se reintentará el envio haciendo uso de un Scheduler.
+     * Envíos retrasados por la limitación de ritmo; la entrega sigue sin confirmar hasta que se envía. Hay un hilo por
+     * carril porque pasar el correo al pipeline bloquea con el carril lleno, y un carril masivo lleno no debe retrasar
+     * los envíos transaccionales.
+     */
+    private final Map<EmailPriority, ScheduledExecutorService> throttled = throttledSchedulers();
+
+    private static Map<EmailPriority, ScheduledExecutorService> throttledSchedulers() {
+        Map<EmailPriority, ScheduledExecutorService> schedulers = new EnumMap<>(EmailPriority.class);
+        for (EmailPriority priority : EmailPriority.values()) {
+            String name = "email-throttled-" + priority.name().toLowerCase(Locale.ROOT);
+            schedulers.put(priority, Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }));
+        }
+        return schedulers;
+    }
+
+    @PostConstruct
+    void startCoalescing() {
+        if (coalescingEnabled) coalescer = new Coalescer<>(coalescingWindow, maxRecipients, this::sendCoalesced);
+    }
+
+    @PreDestroy
+    void stopCoalescing() {
+        throttled.values().forEach(ScheduledExecutorService::shutdownNow);
+        if (coalescer != null) coalescer.close();
+    }
+
+    /**
+     * Entrega el correo al pipeline, que lo renderiza y envía de forma asíncrona, sin confirmación AMQP asociada.
      * @param rMQMessage Correo que se desea mandar
      */
     @Override
-    @RabbitListener(queues = "${rabbitmq.queue}")
     public void consumer(PublishRabbitMQDTO rMQMessage) {
+        consumer(rMQMessage, DeliveryAck.NONE);
+    }
+
+    /**
+     * Lectura de correos de una cola de RabbitMQ. El hilo del listener solo reparte el mensaje: el envío se hace en el
+     * {@link EmailPipeline} y la entrega se confirma cuando termina la etapa SMTP.
+     * @param rMQMessage    Correo que se desea mandar
+     * @param channel       Canal de la entrega
+     * @param deliveryTag   Identificador de la entrega en el canal
+     * @param enqueuedAt    Instante de encolado estampado por el publicador, para medir la espera en la cola
+     */
+    @RabbitListener(id = SmtpCircuitBreaker.TRANSACTIONAL_LISTENER, queues = "${rabbitmq.queue}", ackMode = "MANUAL",
+            concurrency = "${email.pipeline.listener-concurrency:1}")
+    public void onDelivery(PublishRabbitMQDTO rMQMessage, Channel channel,
+                           @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                           @Header(name = EmailMetrics.ENQUEUED_AT_HEADER, required = false) Long enqueuedAt) {
+        receive(rMQMessage, EmailPriority.TRANSACTIONAL, enqueuedAt, DeliveryAck.of(channel, deliveryTag));
+    }
+
+    /**
+     * Lectura de la cola de envíos masivos. Tiene sus propios consumidores, así que su cola en el broker no retrasa a
+     * la transaccional; en el pipeline comparte hilos con ella según {@code email.pipeline.transactional-weight}.
+     */
+    @RabbitListener(id = SmtpCircuitBreaker.BULK_LISTENER, queues = "${rabbitmq.bulk-queue}", ackMode = "MANUAL",
+            concurrency = "${email.pipeline.bulk-listener-concurrency:1}")
+    public void onBulkDelivery(PublishRabbitMQDTO rMQMessage, Channel channel,
+                               @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag,
+                               @Header(name = EmailMetrics.ENQUEUED_AT_HEADER, required = false) Long enqueuedAt) {
+        receive(rMQMessage, EmailPriority.BULK, enqueuedAt, DeliveryAck.of(channel, deliveryTag));
+    }
+
+    /**
+     * Con particiones, las colas de los carriles solo reciben reintentos y mensajes anteriores a activarlas: se
+     * reenvían a la partición de su dominio en lugar de enviarse desde cualquier nodo. La entrega original solo se
+     * confirma cuando el broker confirma el reenvío; si lo rechaza o no responde se devuelve a la cola.
+     */
+    private void receive(PublishRabbitMQDTO rMQMessage, EmailPriority lane, Long enqueuedAt, DeliveryAck ack) {
+        if (!partitionRouter.isEnabled()) {
+            consume(rMQMessage, lane, enqueuedAt, ack);
+            return;
+        }
+        CorrelationData correlationData = rMQMessage.id() != null
+                ? new CorrelationData(rMQMessage.id()) : new CorrelationData();
+        try {
+            emailPublisher.publishConfirmed(rMQMessage, correlationData);
+        } catch (AmqpException e) {
+            logger.log(Level.SEVERE, "No se pudo reenviar el correo a su partición: ", e);
+            ack.reject(true);
+            return;
+        }
+        correlationData.getFuture().orTimeout(confirmTimeout, TimeUnit.SECONDS).whenComplete((confirm, error) -> {
+            if (error == null && confirm.isAck()) {
+                ack.ack();
+                return;
+            }
+            logger.warning("El broker no confirmó el reenvío a la partición de " + correlationData.getId()
+                    + (error != null ? ": " + error : ": " + confirm.getReason()) + ", se devuelve a la cola");
+            ack.reject(true);
+        });
+    }
+
+    /**
+     * Procesa una entrega de la cola de un carril o de una de sus particiones.
+     * @param lane          Carril de la cola de la que se ha leído
+     * @param enqueuedAt    Instante de encolado estampado por el publicador, para medir la espera en la cola
+     */
+    public void consume(PublishRabbitMQDTO rMQMessage, EmailPriority lane, Long enqueuedAt, DeliveryAck ack) {
+        metrics.recordQueueResidency(enqueuedAt, lane);
+        consumer(rMQMessage, ack);
+    }
+
+    /**
+     * Estos correos se envian por un SMTP, en caso de que haya cualquier error se reintentará el envio. Los correos con
+     * fecha futura se guardan en el almacén persistente de programados, desde donde se vuelven a encolar al vencer.
+     * @param rMQMessage    Correo que se desea mandar
+     * @param ack           Confirmación de la entrega, se llama al terminar el procesamiento
+     */
+    public void consumer(PublishRabbitMQDTO rMQMessage, DeliveryAck ack) {
         if (rMQMessage.retry() <= 0){
-            logger.warning("Se agotaron los reintentos para: " + rMQMessage.email());
+            events.failure(SendStage.EXHAUSTED, rMQMessage, Level.WARNING, "Se agotaron los reintentos", null);
+            statusStore.record(rMQMessage.id(), DeliveryState.EXHAUSTED, 0);
+            metrics.recordRetriesExhausted();
+            deadLetter(rMQMessage, null, ack);
             return;
         }
-        if (rMQMessage.sendDate() == null)sendEmail(rMQMessage);
+        if (rMQMessage.sendDate() == null)throttledSend(rMQMessage, ack);
         else {
 
             LocalDateTime scheduledTime = rMQMessage.sendDate();
             long delayMillis = Duration.between(LocalDateTime.now(), scheduledTime).toMillis();
 
-            if (delayMillis <= 0) sendEmail(rMQMessage);
+            if (delayMillis <= 0) throttledSend(rMQMessage, ack);
             else {
-                logger.info("Correo programado para: " + rMQMessage.email() + " a las " + scheduledTime);
+                try {
+                    scheduledEmailStore.schedule(rMQMessage);
+                    events.success(SendStage.SCHEDULED, rMQMessage, 0);
+                    statusStore.record(rMQMessage.id(), DeliveryState.SCHEDULED, rMQMessage.retry());
+                    ack.ack();
+                } catch (IOException e) {
+                    //Se devuelve al broker para no perderlo
+                    logger.log(Level.SEVERE, "No se pudo guardar el correo programado: ", e);
+                    ack.reject(true);
+                }
+            }
+        }
+    }
 
-                scheduler.schedule(() -> {
-                    logger.info("Ejecutando envío programado a: " + rMQMessage.email());
-                    sendEmail(rMQMessage);
-                }, delayMillis, TimeUnit.MILLISECONDS);
+    /**
+     * Aplica el límite de ritmo del dominio del destinatario antes de enviar. Si el hueco está cerca se espera en el
+     * consumidor; si no, el correo se reencola con el retardo calculado sin gastar un reintento.
+     */
+    private void throttledSend(PublishRabbitMQDTO rMQMessage, DeliveryAck ack) {
+        if (deduplication.isSent(rMQMessage.idempotencyKey())) {
+            //Entrega repetida de un correo ya enviado (caída antes del ack o petición duplicada)
+            events.success(SendStage.DUPLICATE, rMQMessage, 0);
+            metrics.recordDuplicate("send");
+            ack.ack();
+            return;
+        }
+        DomainRateLimiter.Permit permit = rateLimiter.acquire(rMQMessage.email());
+        if (permit.delayNanos() == 0) {
+            sendEmail(rMQMessage, ack);
+            return;
+        }
+        String limit = rateLimiter.limitKey(rMQMessage.email());
+        if (permit.reserved()) {
+            metrics.recordThrottled(limit, "delayed");
+            try {
+                throttled.get(rMQMessage.lane()).schedule(() -> sendEmail(rMQMessage, ack), permit.delayNanos(),
+                        TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                ack.reject(true);
             }
+            return;
+        }
+        metrics.recordThrottled(limit, "requeued");
+        long delayMillis = TimeUnit.NANOSECONDS.toMillis(permit.delayNanos());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine("Límite de envío alcanzado para " + limit + ", se reencola en " + delayMillis + " ms");
+        }
+        int level = retryPolicy.throttleLevelFor(delayMillis);
+        try {
+            rabbitTemplate.convertAndSend("", retryPolicy.throttleQueue(rMQMessage.lane(), level), rMQMessage,
+                    throttled(retryPolicy.throttleDelay(level)));
+            ack.ack();
+        } catch (AmqpException e) {
+            logger.log(Level.SEVERE, "No se pudo reencolar el correo retrasado: ", e);
+            ack.reject(true);
+        }
+    }
+
+    private void sendEmail(PublishRabbitMQDTO rMQMessage, DeliveryAck ack) {
+        if (coalescer != null && isCoalescable()) {
+            coalescer.offer(new SharedContent(rMQMessage.lane(), rMQMessage.subject(), rMQMessage.message(),
+                            rMQMessage.attachments()),
+                    new PendingDelivery(rMQMessage, ack));
+            return;
+        }
+        sendSingle(rMQMessage, ack);
+    }
+
+    private void sendSingle(PublishRabbitMQDTO rMQMessage, DeliveryAck ack) {
+        try {
+            pipeline.submit(rMQMessage.lane(), () -> prepare(rMQMessage),
+                    mimeMessage -> deliver(rMQMessage, mimeMessage),
+                    error -> complete(rMQMessage, error, ack));
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, "Pipeline detenido, se devuelve el correo al broker: ", e);
+            ack.reject(true);
         }
     }
 
-    private void sendEmail(PublishRabbitMQDTO rMQMessage) {
-        JavaMailSenderImpl mailSenderImpl = (JavaMailSenderImpl) mailSender;
+    /**
+     * Solo se agrupan correos si el resultado de la plantilla no depende del destinatario.
+     */
+    private boolean isCoalescable() {
+        return renderer.planFor(EmailTemplateType.WELCOME).map(plan -> !plan.usesField("email")).orElse(false);
+    }
+
+    /**
+     * Envío de un grupo de correos con el mismo contenido: se renderiza una vez y se manda en una única transacción
+     * SMTP con un RCPT TO por destinatario. Cada entrega se confirma o se reintenta de forma individual.
+     */
+    private void sendCoalesced(List<PendingDelivery> batch) {
+        if (batch.size() == 1) {
+            sendSingle(batch.get(0).message(), batch.get(0).ack());
+            return;
+        }
+        metrics.recordCoalescedBatch(batch.size());
         try {
-            mailSenderImpl.testConnection(); //Prueba de conexion con el servidor SMTP
-            logger.info("Conexión SMTP exitosa.");
+            pipeline.submit(batch.get(0).message().lane(), () -> prepare(batch.get(0).message(), true),
+                    mimeMessage -> deliverShared(batch, mimeMessage),
+                    error -> {
+                        //Solo llegan errores de la preparación, las entregas las completa deliverShared
+                        if (error != null) batch.forEach(d -> complete(d.message(), error, d.ack()));
+                    });
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.WARNING, "Pipeline detenido, se devuelven los correos al broker: ", e);
+            batch.forEach(d -> d.ack().reject(true));
+        }
+    }
 
-            //Preparamos el mail
-            String message = renderer.render(EmailTemplateType.WELCOME, rMQMessage);
-            MimeMessage mimeMessage = mailSenderImpl.createMimeMessage();
-            MimeMessageHelper helper = new MimeMessageHelper(mimeMessage, true,"UTF-8");
+    /**
+     * Etapa de CPU: renderizado de la plantilla y construcción del mensaje MIME.
+     */
+    private MimeMessage prepare(PublishRabbitMQDTO rMQMessage) throws MessagingException {
+        return prepare(rMQMessage, false);
+    }
 
-            helper.setFrom(sender);
-            helper.setTo(rMQMessage.email());
-            helper.setSubject(rMQMessage.subject());
-            helper.setText(message, true);
+    /**
+     * @param shared    Mensaje común a varios destinatarios: no lleva el destinatario en la cabecera To
+     */
+    private MimeMessage prepare(PublishRabbitMQDTO rMQMessage, boolean shared) throws MessagingException {
+        return mimeMessageFactory.create(EmailTemplateType.WELCOME, rMQMessage, sender, shared);
+    }
 
-            logger.info("Enviando correo a: " + rMQMessage.email());
-            mailSender.send(mimeMessage);
-            logger.info("Correo enviado exitosamente a: " + rMQMessage.email());
+    /**
+     * Etapa de E/S: envío SMTP bloqueante, protegido por el {@link SmtpCircuitBreaker}.
+     */
+    private void deliver(PublishRabbitMQDTO rMQMessage, MimeMessage mimeMessage) throws MessagingException {
+        circuitBreaker.execute(() -> {
+            statusStore.record(rMQMessage.id(), DeliveryState.SENDING, rMQMessage.retry());
+            long start = System.nanoTime();
+            transportPool.send(mimeMessage); //Conexión SMTP reutilizada del pool
+            events.success(SendStage.SENT, rMQMessage, System.nanoTime() - start);
+        });
+    }
 
-        }catch (MailConnectException e){
-            logger.log(Level.SEVERE, "No se pudo conectar con el host SMTP: ", e);
-            rePublishInCaseOfException(rMQMessage);
-        }catch (AuthenticationFailedException e){
-            logger.log(Level.SEVERE, "Autenticación fallida: ", e);
-            rePublishInCaseOfException(rMQMessage);
-        } catch (MessagingException e) {
-            logger.log(Level.WARNING, "No se pudo conectar al servidor SMTP: ", e);
-            rePublishInCaseOfException(rMQMessage);
-        } catch (MailAuthenticationException e) {
-            logger.log(Level.SEVERE, "Error de autenticación al enviar el correo: ", e);
-            rePublishInCaseOfException(rMQMessage);
-        } catch (MailSendException e) {
-            logger.log(Level.SEVERE, "Error al enviar el correo: ", e);
-            rePublishInCaseOfException(rMQMessage);
-        } catch (Exception e) {
-            logger.log(Level.SEVERE, "Ocurrió un error inesperado al enviar el correo: ", e);
+    /**
+     * Etapa de E/S de un grupo. Cada entrega se completa aquí: si el servidor rechaza parte de los destinatarios solo
+     * se reintentan esos y cualquier otro error reintenta cada correo del grupo por separado.
+     */
+    private void deliverShared(List<PendingDelivery> batch, MimeMessage mimeMessage) {
+        List<PendingDelivery> deliveries = new ArrayList<>(batch.size());
+        List<Address> recipients = new ArrayList<>(batch.size());
+        for (PendingDelivery delivery : batch) {
+            try {
+                recipients.add(new InternetAddress(delivery.message().email(), true));
+                deliveries.add(delivery);
+            } catch (AddressException e) {
+                complete(delivery.message(), e, delivery.ack());
+            }
+        }
+        if (recipients.isEmpty()) return;
+
+        long start = System.nanoTime();
+        try {
+            circuitBreaker.execute(() -> {
+                for (PendingDelivery delivery : deliveries) {
+                    statusStore.record(delivery.message().id(), DeliveryState.SENDING, delivery.message().retry());
+                }
+                transportPool.send(mimeMessage, recipients.toArray(new Address[0]));
+            });
+        } catch (SmtpCircuitOpenException | SmtpPoolExhaustedException e) {
+            deliveries.forEach(d -> d.ack().reject(true));
+            return;
+        } catch (SendFailedException e) {
+            Set<Address> sent = e.getValidSentAddresses() == null
+                    ? Set.of() : new HashSet<>(Arrays.asList(e.getValidSentAddresses()));
+            for (int i = 0; i < deliveries.size(); i++) {
+                complete(deliveries.get(i).message(), sent.contains(recipients.get(i)) ? null : e,
+                        deliveries.get(i).ack());
+            }
+            return;
+        } catch (MessagingException | RuntimeException e) {
+            deliveries.forEach(d -> complete(d.message(), e, d.ack()));
+            return;
+        }
+        deliveries.forEach(d -> complete(d.message(), null, d.ack()));
+        events.success(SendStage.SENT, deliveries.get(0).message(), System.nanoTime() - start, recipients.size());
+    }
+
+    /**
+     * Fin del pipeline: si hubo error se reencola el correo en la cola de reintento que le toca, o en la de fallidos si
+     * era su último intento, y en cualquier caso se confirma la entrega original. Si no se puede reencolar se devuelve
+     * la entrega al broker.
+     */
+    private void complete(PublishRabbitMQDTO rMQMessage, Throwable error, DeliveryAck ack) {
+        if (error == null) {
+            deduplication.markSent(rMQMessage.idempotencyKey());
+            statusStore.record(rMQMessage.id(), DeliveryState.SENT, rMQMessage.retry());
+            campaignStore.recordOutcome(rMQMessage.idempotencyKey(), true);
+            ack.ack();
+            return;
+        }
+        if (error instanceof SmtpCircuitOpenException || error instanceof SmtpPoolExhaustedException) {
+            //No se ha intentado: vuelve a la cola sin gastar un reintento
+            ack.reject(true);
+            return;
+        }
+        logFailure(rMQMessage, error);
+        metrics.recordRetry(error);
+        if (isTransientSmtpFailure(error)) rateLimiter.penalize(rMQMessage.email());
+        if (rMQMessage.retry() <= 1) {
+            events.failure(SendStage.EXHAUSTED, rMQMessage, Level.WARNING, "Se agotaron los reintentos", null);
+            statusStore.record(rMQMessage.id(), DeliveryState.EXHAUSTED, 0);
+            metrics.recordRetriesExhausted();
+            deadLetter(rMQMessage, error, ack);
+            return;
+        }
+        try {
             rePublishInCaseOfException(rMQMessage);
+            statusStore.record(rMQMessage.id(), DeliveryState.FAILED, rMQMessage.retry() - 1);
+            metrics.recordRePublish(error, true);
+            ack.ack();
+        } catch (AmqpException e) {
+            metrics.recordRePublish(error, false);
+            logger.log(Level.SEVERE, "No se pudo reencolar el correo: ", e);
+            ack.reject(true);
         }
     }
 
-    private void rePublishInCaseOfException(PublishRabbitMQDTO rMQMessage) {
-        logger.info("Rencolando correo...");
-        PublishRabbitMQDTO publishRabbitMQDTO = new PublishRabbitMQDTO(rMQMessage.email(),
-                rMQMessage.subject(),
-                rMQMessage.message(),
-                rMQMessage.sendDate(),
-                rMQMessage.retry()-1);
-
-        rabbitTemplate.convertAndSend(exchange, routingKey, publishRabbitMQDTO, message -> {
+    private void logFailure(PublishRabbitMQDTO rMQMessage, Throwable error) {
+        if (error instanceof MailConnectException) {
+            events.failure(SendStage.FAILED, rMQMessage, Level.SEVERE, "No se pudo conectar con el host SMTP", error);
+        } else if (error instanceof AuthenticationFailedException) {
+            events.failure(SendStage.FAILED, rMQMessage, Level.SEVERE, "Autenticación fallida", error);
+        } else if (error instanceof MessagingException) {
+            events.failure(SendStage.FAILED, rMQMessage, Level.WARNING, "No se pudo conectar al servidor SMTP", error);
+        } else {
+            events.failure(SendStage.FAILED, rMQMessage, Level.SEVERE,
+                    "Ocurrió un error inesperado al enviar el correo", error);
+        }
+    }
+
+    /**
+     * Respuesta 4xx del servidor (421, greylisting, límite superado): el dominio pide que se envíe más despacio.
+     */
+    private static boolean isTransientSmtpFailure(Throwable error) {
+        while (error != null) {
+            int code = -1;
+            if (error instanceof SMTPSendFailedException e) code = e.getReturnCode();
+            else if (error instanceof SMTPAddressFailedException e) code = e.getReturnCode();
+            if (code >= 400 && code < 500) return true;
+            error = error instanceof MessagingException e && e.getNextException() != null
+                    ? e.getNextException() : error.getCause();
+        }
+        return false;
+    }
+
+    private void deadLetter(PublishRabbitMQDTO rMQMessage, Throwable error, DeliveryAck ack) {
+        try {
+            deadLetterService.deadLetter(rMQMessage, error);
+            campaignStore.recordOutcome(rMQMessage.idempotencyKey(), false);
+            ack.ack();
+        } catch (AmqpException e) {
+            logger.log(Level.SEVERE, "No se pudo mover el correo a la cola de fallidos: ", e);
+            ack.reject(true);
+        }
+    }
+
+    /**
+     * Mensaje persistente para una cola de reintento, que lo devuelve a la cola de envío al expirar. La expiración
+     * propia debe ser menor o igual que el TTL de la cola.
+     */
+    private static MessagePostProcessor delayed(long delayMillis) {
+        return message -> {
             message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
-            message.getMessageProperties().setHeader("x-delay", delay*1000); //seconds
+            message.getMessageProperties().setExpiration(String.valueOf(delayMillis));
+            //Disponible para el consumidor al terminar el retardo
+            message.getMessageProperties().setHeader(EmailMetrics.ENQUEUED_AT_HEADER,
+                    System.currentTimeMillis() + delayMillis);
             return message;
-        });
+        };
+    }
 
+    /**
+     * Mensaje persistente para una cola de retardo del límite de ritmo. Sin expiración propia: espera el TTL de la
+     * cola.
+     */
+    private static MessagePostProcessor throttled(long ttlMillis) {
+        return message -> {
+            message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+            message.getMessageProperties().setHeader(EmailMetrics.ENQUEUED_AT_HEADER,
+                    System.currentTimeMillis() + ttlMillis);
+            return message;
+        };
+    }
 
-        logger.info("Correo " + rMQMessage.email() + " rencolado correctamente. Intentos restantes: " + rMQMessage.retry());
+    /**
+     * Reencola el correo con backoff exponencial: cada fallo lo lleva a una cola de reintento con más espera.
+     */
+    private void rePublishInCaseOfException(PublishRabbitMQDTO rMQMessage) {
+        int tier = retryPolicy.tierFor(rMQMessage.retry());
+        PublishRabbitMQDTO publishRabbitMQDTO = rMQMessage.withRetry(rMQMessage.retry()-1);
+
+        rabbitTemplate.convertAndSend("", retryPolicy.tierQueue(rMQMessage.lane(), tier), publishRabbitMQDTO,
+                delayed(retryPolicy.backoffMillis(tier)));
+        events.success(SendStage.REQUEUED, publishRabbitMQDTO, 0);
     }
+
+    private record SharedContent(EmailPriority priority, String subject, String message,
+                                 List<AttachmentDTO> attachments) {}
+
+    private record PendingDelivery(PublishRabbitMQDTO message, DeliveryAck ack) {}
 }
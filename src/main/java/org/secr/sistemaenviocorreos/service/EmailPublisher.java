@@ -1,16 +1,41 @@
 package org.secr.sistemaenviocorreos.service;
 
+import jakarta.annotation.PostConstruct;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
 import org.secr.sistemaenviocorreos.dto.EmailDTO;
 import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
 import org.secr.sistemaenviocorreos.dto.ScheduledEmailDTO;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.enums.SendStage;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
+import org.secr.sistemaenviocorreos.service.interfaces.PublishOutcomeListener;
 import org.secr.sistemaenviocorreos.service.interfaces.PublisherInterface;
+import org.secr.sistemaenviocorreos.service.logging.SendEventLog;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.outbox.OutboxJournal;
+import org.secr.sistemaenviocorreos.service.partition.PartitionRouter;
+import org.secr.sistemaenviocorreos.service.scheduled.ScheduledEmailStore;
+import org.secr.sistemaenviocorreos.service.status.DeliveryStatusStore;
 import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.AmqpIOException;
+import org.springframework.amqp.core.Message;
 import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @Service
@@ -19,6 +44,33 @@ public class EmailPublisher implements PublisherInterface {
     @Autowired
     private RabbitTemplate rabbitTemplate;
 
+    @Autowired
+    private EmailMetrics metrics;
+
+    @Autowired
+    private SendEventLog events;
+
+    @Autowired
+    private DeduplicationService deduplication;
+
+    @Autowired
+    private PartitionRouter partitionRouter;
+
+    @Autowired
+    private OutboxJournal outbox;
+
+    @Autowired
+    private ScheduledEmailStore scheduledEmailStore;
+
+    @Autowired
+    private DeliveryStatusStore statusStore;
+
+    @Autowired
+    private RetryPolicy retryPolicy;
+
+    @Autowired(required = false)
+    private List<PublishOutcomeListener> outcomeListeners = List.of();
+
     private static final Logger logger = Logger.getLogger(EmailPublisher.class.getName());
 
     @Value("${rabbitmq.exchange}")
@@ -27,6 +79,29 @@ public class EmailPublisher implements PublisherInterface {
     @Value("${rabbitmq.routing-key}")
     private String routingKey;
 
+    @Value("${rabbitmq.bulk-routing-key}")
+    private String bulkRoutingKey;
+
+    /**
+     * {@code confirm}: el futuro de {@link #publishAsync} se completa con la confirmación del broker;
+     * {@code fire-and-forget}: se completa al enviar y la confirmación solo se sigue en métricas y listeners.
+     */
+    @Value("${email.publish.mode:confirm}")
+    private String mode = "confirm";
+
+    @Value("${email.publish.confirm-timeout:10}")
+    private Integer confirmTimeout = 10; //seconds
+
+    @Value("${email.publish.max-in-flight:1000}")
+    private Integer maxInFlight = 1000;
+
+    private Semaphore inFlight;
+
+    @PostConstruct
+    void init() {
+        inFlight = new Semaphore(maxInFlight);
+    }
+
     /**
      * Publicación de un mensaje a una cola RabbitMQ. El mensaje se guarda de manera persistente para que en caso de caida
      * se recupere.
@@ -35,36 +110,221 @@ public class EmailPublisher implements PublisherInterface {
      */
     @Override
     public void publish(PublishRabbitMQDTO publishRabbitMQDTO) throws AmqpException {
-        logger.info("Encolando correo...");
-        rabbitTemplate.convertAndSend(exchange, routingKey, publishRabbitMQDTO, message -> {
-            message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
-            return message;
+        rabbitTemplate.convertAndSend(exchange, routingKeyFor(publishRabbitMQDTO), publishRabbitMQDTO, this::persistent);
+        events.success(SendStage.PUBLISHED, publishRabbitMQDTO, 0);
+    }
+
+    /**
+     * Publicación sin bloqueo con confirmación del broker. La confirmación llega de forma asíncrona a través del futuro
+     * de {@link CorrelationData}, lo que permite encadenar varias publicaciones antes de esperar sus confirmaciones.
+     * @param publishRabbitMQDTO    Objeto de transferencia. Si no trae id se publica con el de la correlación
+     * @param correlationData       Correlación cuyo futuro se completa con el ack/nack del broker
+     * @throws AmqpException        Excepción lanzada cuando hay un problema con el encolamiento de un mensaje
+     */
+    public void publishConfirmed(PublishRabbitMQDTO publishRabbitMQDTO, CorrelationData correlationData) throws AmqpException {
+        String id = correlationData.getId();
+        PublishRabbitMQDTO message = publishRabbitMQDTO.id() != null ? publishRabbitMQDTO : publishRabbitMQDTO.withId(id);
+        rabbitTemplate.convertAndSend(exchange, routingKeyFor(message), message, amqpMessage -> {
+            amqpMessage.getMessageProperties().setMessageId(id);
+            return persistent(amqpMessage);
+        }, correlationData);
+        correlationData.getFuture().thenAccept(confirm -> {
+            if (confirm.isAck()) statusStore.record(message.id(), DeliveryState.QUEUED, message.retry());
         });
-        logger.info("Correo " + publishRabbitMQDTO.email() + " encolado correctamente");
     }
 
+    /**
+     * Publicación con confirmación del broker sin bloquear el hilo que llama. Las publicaciones pendientes de
+     * confirmar están limitadas por {@code email.publish.max-in-flight}; si la ventana está llena se rechaza la
+     * publicación en lugar de esperar. Si el broker no está disponible, o quedan correos en el outbox local por
+     * delante, el correo se guarda en el {@link OutboxJournal} y se publica más tarde con el mismo id.
+     * @param request               Objeto de transferencia. Si trae id se publica con él; si no, con el asignado
+     * @return                      Futuro con el message-id, completado según {@code email.publish.mode}. Falla con
+     *                              {@link PublishConfirmException} si no se confirma
+     * @throws AmqpException        Error al enviar el mensaje al broker
+     */
+    public CompletableFuture<String> publishAsync(PublishRabbitMQDTO request) throws AmqpException {
+        String idempotencyKey = request.idempotencyKey();
+        CorrelationData correlationData = request.id() != null ? new CorrelationData(request.id())
+                : idempotencyKey == null ? new CorrelationData()
+                : new CorrelationData(DeduplicationService.messageIdFor(idempotencyKey));
+        String id = correlationData.getId();
+        //El id viaja con el correo para registrar su estado de entrega en cada etapa
+        PublishRabbitMQDTO publishRabbitMQDTO = request.id() != null ? request : request.withId(id);
+        if (idempotencyKey != null && !deduplication.acceptPublish(idempotencyKey)) {
+            //Petición repetida: se responde con el mismo id sin volver a encolar
+            events.success(SendStage.DUPLICATE, publishRabbitMQDTO, 0);
+            metrics.recordDuplicate("publish");
+            return CompletableFuture.completedFuture(id);
+        }
+        if (outbox.isEnabled() && outbox.hasPending()) return journal(id, publishRabbitMQDTO, null);
+        if (!inFlight.tryAcquire()) {
+            if (idempotencyKey != null) deduplication.releasePublish(idempotencyKey);
+            metrics.recordPublishConfirm("window_full", 0);
+            return CompletableFuture.failedFuture(new PublishConfirmException(id,
+                    PublishConfirmException.Outcome.WINDOW_FULL, "Demasiadas publicaciones pendientes de confirmar"));
+        }
+        long start = System.nanoTime();
+        try {
+            rabbitTemplate.convertAndSend(exchange, routingKeyFor(publishRabbitMQDTO), publishRabbitMQDTO, message -> {
+                message.getMessageProperties().setMessageId(id);
+                return persistent(message);
+            }, correlationData);
+        } catch (RuntimeException e) {
+            inFlight.release();
+            if (e instanceof AmqpException amqpException && outbox.isEnabled()) {
+                return journal(id, publishRabbitMQDTO, amqpException);
+            }
+            if (idempotencyKey != null) deduplication.releasePublish(idempotencyKey);
+            throw e;
+        }
+
+        CompletableFuture<String> confirmed = new CompletableFuture<>();
+        correlationData.getFuture().orTimeout(confirmTimeout, TimeUnit.SECONDS).whenComplete((confirm, error) -> {
+            inFlight.release();
+            if ((error != null || !confirm.isAck()) && idempotencyKey != null) {
+                deduplication.releasePublish(idempotencyKey);
+            }
+            long elapsed = System.nanoTime() - start;
+            if (error != null) {
+                metrics.recordPublishConfirm("timeout", elapsed);
+                logger.warning("Sin confirmación del broker para el correo " + id);
+                notifyListeners(l -> l.onTimeout(id, publishRabbitMQDTO));
+                confirmed.completeExceptionally(new PublishConfirmException(id,
+                        PublishConfirmException.Outcome.TIMEOUT, "Sin confirmación del broker"));
+            } else if (!confirm.isAck()) {
+                metrics.recordPublishConfirm("nack", elapsed);
+                logger.warning("El broker rechazó el correo " + id + ": " + confirm.getReason());
+                notifyListeners(l -> l.onNack(id, publishRabbitMQDTO, confirm.getReason()));
+                confirmed.completeExceptionally(new PublishConfirmException(id,
+                        PublishConfirmException.Outcome.NACK, "Rechazado por el broker: " + confirm.getReason()));
+            } else {
+                metrics.recordPublishConfirm("ack", elapsed);
+                statusStore.record(id, DeliveryState.QUEUED, publishRabbitMQDTO.retry());
+                events.success(SendStage.PUBLISHED, publishRabbitMQDTO, elapsed);
+                notifyListeners(l -> l.onAck(id, publishRabbitMQDTO));
+                confirmed.complete(id);
+            }
+        });
+        return "fire-and-forget".equalsIgnoreCase(mode) ? CompletableFuture.completedFuture(id) : confirmed;
+    }
+
+    /**
+     * Guarda el correo en el outbox local. El futuro se completa con el id cuando el registro está en disco, por lo
+     * que la respuesta al cliente no depende de la disponibilidad del broker.
+     * @param cause     Error del broker que obliga a guardarlo, o {@code null} si va detrás de otros guardados
+     * @throws AmqpException Si tampoco se puede guardar en el outbox
+     */
+    private CompletableFuture<String> journal(String id, PublishRabbitMQDTO publishRabbitMQDTO, AmqpException cause) {
+        try {
+            CompletableFuture<String> journaled = outbox.append(id, publishRabbitMQDTO).thenApply(synced -> {
+                statusStore.record(id, DeliveryState.QUEUED, publishRabbitMQDTO.retry());
+                return id;
+            });
+            if (cause != null) logger.warning("Broker no disponible, correo " + id + " guardado en el outbox: "
+                    + cause.getMessage());
+            return journaled;
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "No se pudo guardar el correo " + id + " en el outbox: ", e);
+            if (publishRabbitMQDTO.idempotencyKey() != null) {
+                deduplication.releasePublish(publishRabbitMQDTO.idempotencyKey());
+            }
+            if (cause == null) throw new AmqpIOException(e);
+            cause.addSuppressed(e);
+            throw cause;
+        }
+    }
+
+    private void notifyListeners(Consumer<PublishOutcomeListener> event) {
+        for (PublishOutcomeListener listener : outcomeListeners) {
+            try {
+                event.accept(listener);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Error en el listener de confirmaciones: ", e);
+            }
+        }
+    }
+
+    /**
+     * Cada carril se publica con su clave de enrutado, que lo lleva a su propia cola o, con particiones, a la de la
+     * partición del dominio del destinatario.
+     */
+    private String routingKeyFor(PublishRabbitMQDTO publishRabbitMQDTO) {
+        String laneRoutingKey = publishRabbitMQDTO.lane() == EmailPriority.BULK ? bulkRoutingKey : routingKey;
+        return partitionRouter.routingKey(laneRoutingKey, publishRabbitMQDTO.email());
+    }
+
+    /**
+     * Publicaciones enviadas pendientes de confirmar por el broker.
+     */
+    public int getInFlight() {
+        return inFlight == null ? 0 : maxInFlight - inFlight.availablePermits();
+    }
+
+    /**
+     * Mensaje persistente con el instante de encolado, que el consumidor usa para medir el tiempo de espera en cola.
+     */
+    private Message persistent(Message message) {
+        message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+        message.getMessageProperties().setHeader(EmailMetrics.ENQUEUED_AT_HEADER, System.currentTimeMillis());
+        return message;
+    }
 
-    public void send(EmailDTO emailDTO) {
-        PublishRabbitMQDTO message = new PublishRabbitMQDTO(emailDTO.email(),
+    public CompletableFuture<String> send(EmailDTO emailDTO) {
+        return publishAsync(toMessage(emailDTO));
+    }
+
+    /**
+     * Conversión de la petición de envío inmediato al objeto que se encola.
+     * @param emailDTO  Correo a enviar
+     * @return          Mensaje listo para publicar
+     */
+    public PublishRabbitMQDTO toMessage(EmailDTO emailDTO) {
+        return toMessage(emailDTO, EmailPriority.TRANSACTIONAL);
+    }
+
+    /**
+     * @param defaultPriority   Carril si la petición no lo indica
+     */
+    public PublishRabbitMQDTO toMessage(EmailDTO emailDTO, EmailPriority defaultPriority) {
+        return new PublishRabbitMQDTO(emailDTO.email(),
                 emailDTO.subject(),
                 emailDTO.message(),
                 null,
-                3);
-        publish(message);
+                retryPolicy.getMaxAttempts(),
+                emailDTO.idempotencyKey(),
+                emailDTO.priority() != null ? emailDTO.priority() : defaultPriority,
+                emailDTO.attachments());
     }
 
     /**
      * Publicación de envío de mensajes programados. Se controla el caso en el que el mensaje se tenga que enviar
-     * direcamente.
+     * direcamente. Los correos con fecha futura reciben un id de {@link ScheduledEmailStore} con el que se pueden
+     * cancelar o reprogramar.
      * @param scheduledEmailDTO Objeto de transferencia de Correo y Tiempo programado
+     * @throws IllegalStateException Si la etiqueta del correo ya se ha cancelado
      */
-    public void sendLater(ScheduledEmailDTO scheduledEmailDTO) {
+    public CompletableFuture<String> sendLater(ScheduledEmailDTO scheduledEmailDTO) {
+        String tag = scheduledEmailDTO.tag();
+        if (tag != null && scheduledEmailStore.isTagCancelled(tag)) {
+            throw new IllegalStateException("Etiqueta cancelada: " + tag);
+        }
+        String idempotencyKey = scheduledEmailDTO.email().idempotencyKey();
+        String id = scheduledEmailDTO.scheduled().isAfter(LocalDateTime.now())
+                ? scheduledEmailStore.newId(scheduledEmailDTO.scheduled(), idempotencyKey == null
+                        ? UUID.randomUUID().toString() : DeduplicationService.messageIdFor(idempotencyKey))
+                : null;
         PublishRabbitMQDTO message = new PublishRabbitMQDTO(scheduledEmailDTO.email().email(),
                 scheduledEmailDTO.email().subject(),
                 scheduledEmailDTO.email().message(),
                 scheduledEmailDTO.scheduled(),
-                3);
-        publish(message);
+                retryPolicy.getMaxAttempts(),
+                idempotencyKey,
+                EmailPriority.of(scheduledEmailDTO.email().priority()),
+                scheduledEmailDTO.email().attachments(),
+                id,
+                tag);
+        return publishAsync(message);
     }
 
 
@@ -1,18 +1,35 @@
 package org.secr.sistemaenviocorreos.service;
 
-import lombok.AllArgsConstructor;
+import lombok.RequiredArgsConstructor;
 import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.secr.sistemaenviocorreos.service.template.TemplateRegistry;
+import org.secr.sistemaenviocorreos.service.template.TemplateRenderPlan;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.thymeleaf.context.Context;
 import org.thymeleaf.TemplateEngine;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
+import java.util.Optional;
 
-@AllArgsConstructor
+@RequiredArgsConstructor
 @Service
 public class EmailTemplateRenderer {
 
     private final TemplateEngine templateEngine;
+    private final TemplateRegistry registry;
+
+    /**
+     * Motor de renderizado: {@code precompiled} usa planes precompilados cuando la plantilla lo permite y Thymeleaf en
+     * caso contrario; {@code thymeleaf} usa siempre Thymeleaf.
+     */
+    @Value("${email.template.engine:precompiled}")
+    private String engine = "precompiled";
 
     public String render(EmailTemplateType templateType, Object data) {
         // Validar tipo del DTO
@@ -20,8 +37,49 @@ public class EmailTemplateRenderer {
             throw new IllegalArgumentException("DTO incorrecto para " + templateType);
         }
 
+        TemplateRegistry.Entry template = registry.get(templateType.getTemplateName());
+        Optional<TemplateRenderPlan> plan = planFor(template);
+        if (plan.isPresent()) {
+            String rendered = plan.get().render(data);
+            if (rendered != null) return rendered;
+        }
+
+        Context context = new Context();
+        context.setVariables(Map.of("data", data));
+        return templateEngine.process(template.resolvedName(), context);
+    }
+
+    /**
+     * Renderiza la plantilla codificada en UTF-8 directamente en un stream, sin construir el resultado como
+     * {@link String} cuando hay plan precompilado.
+     */
+    public void renderTo(EmailTemplateType templateType, Object data, OutputStream out) throws IOException {
+        if (!templateType.getDtoClass().isInstance(data)) {
+            throw new IllegalArgumentException("DTO incorrecto para " + templateType);
+        }
+
+        TemplateRegistry.Entry template = registry.get(templateType.getTemplateName());
+        Optional<TemplateRenderPlan> plan = planFor(template);
+        if (plan.isPresent() && plan.get().writeTo(data, out)) return;
+
         Context context = new Context();
         context.setVariables(Map.of("data", data));
-        return templateEngine.process(templateType.getTemplateName(), context);
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        templateEngine.process(template.resolvedName(), context, writer);
+        writer.flush();
+    }
+
+    /**
+     * Plan precompilado de la versión en uso de una plantilla, preparado por el {@link TemplateRegistry}.
+     * @param templateType  Plantilla
+     * @return              Plan, o vacío si la plantilla se renderiza con Thymeleaf
+     */
+    public Optional<TemplateRenderPlan> planFor(EmailTemplateType templateType) {
+        return planFor(registry.get(templateType.getTemplateName()));
+    }
+
+    private Optional<TemplateRenderPlan> planFor(TemplateRegistry.Entry template) {
+        if (!"precompiled".equalsIgnoreCase(engine)) return Optional.empty();
+        return template.plan();
     }
 }
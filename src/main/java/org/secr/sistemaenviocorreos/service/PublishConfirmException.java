@@ -0,0 +1,23 @@
+package org.secr.sistemaenviocorreos.service;
+
+import lombok.Getter;
+import org.springframework.amqp.AmqpException;
+
+/**
+ * Publicación que el broker no ha confirmado: rechazada (nack), sin confirmación a tiempo o no enviada porque la
+ * ventana de publicaciones pendientes de confirmar estaba llena.
+ */
+@Getter
+public class PublishConfirmException extends AmqpException {
+
+    public enum Outcome { NACK, TIMEOUT, WINDOW_FULL }
+
+    private final String messageId;
+    private final Outcome outcome;
+
+    public PublishConfirmException(String messageId, Outcome outcome, String message) {
+        super(message);
+        this.messageId = messageId;
+        this.outcome = outcome;
+    }
+}
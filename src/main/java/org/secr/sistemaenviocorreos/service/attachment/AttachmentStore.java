@@ -0,0 +1,185 @@
+package org.secr.sistemaenviocorreos.service.attachment;
+
+import jakarta.activation.DataSource;
+import jakarta.annotation.PostConstruct;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.StoredAttachmentDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Almacén de adjuntos por contenido ({@code <dir>/<ab>/<sha-256>}). Los adjuntos se suben una vez y los correos solo
+ * llevan su hash, de modo que el mensaje encolado no crece con el adjunto y un mismo fichero enviado a muchos
+ * destinatarios se guarda una sola vez. La subida se copia por bloques a un temporal mientras se calcula el hash y se
+ * mueve a su sitio al terminar; el envío lo lee también por bloques desde un {@link FileChannel}.
+ */
+@Service
+public class AttachmentStore {
+
+    private static final Logger logger = Logger.getLogger(AttachmentStore.class.getName());
+    private static final Pattern ID_PATTERN = Pattern.compile("[0-9a-f]{64}");
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Value("${email.attachments.dir:./data/attachments}")
+    private String directory;
+
+    @Value("${email.attachments.max-size:26214400}")
+    private Long maxSize = 25L * 1024 * 1024; //bytes
+
+    @Value("${email.attachments.fsync:true}")
+    private Boolean fsync = true;
+
+    @Value("${email.attachments.ttl:0}")
+    private Integer ttl = 0; //hours, 0 = sin caducidad
+
+    private Path root;
+
+    @PostConstruct
+    void init() throws IOException {
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+    }
+
+    /**
+     * Guarda un adjunto. Si ya existe uno con el mismo contenido no se vuelve a escribir, solo se renueva su fecha.
+     * @return Identificador (SHA-256 del contenido), tamaño y si ya existía
+     * @throws IllegalArgumentException Si el adjunto supera {@code email.attachments.max-size}
+     */
+    public StoredAttachmentDTO store(InputStream content) throws IOException {
+        MessageDigest digest = sha256();
+        Path temp = Files.createTempFile(root, "upload-", TEMP_SUFFIX);
+        long size = 0;
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                int read;
+                while ((read = content.read(chunk)) != -1) {
+                    size += read;
+                    if (size > maxSize) throw new IllegalArgumentException("El adjunto supera " + maxSize + " bytes");
+                    digest.update(chunk, 0, read);
+                    ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                }
+                if (fsync) channel.force(false);
+            }
+
+            String id = HexFormat.of().formatHex(digest.digest());
+            Path target = path(id);
+            if (Files.exists(target)) {
+                Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+                return new StoredAttachmentDTO(id, size, true);
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException e) {
+                return new StoredAttachmentDTO(id, size, true); //Subida simultánea del mismo contenido
+            }
+            return new StoredAttachmentDTO(id, size, false);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public boolean exists(String id) {
+        return isValidId(id) && Files.isRegularFile(path(id));
+    }
+
+    /**
+     * Fuente de datos de un adjunto para la parte MIME. Cada lectura abre el fichero y lo recorre por bloques, así
+     * que el adjunto nunca está entero en memoria aunque se envíe a muchos destinatarios.
+     * @throws IllegalArgumentException Si el identificador no es válido
+     */
+    public DataSource dataSource(AttachmentDTO attachment) {
+        if (!isValidId(attachment.id())) throw new IllegalArgumentException("Adjunto no válido: " + attachment.id());
+        Path path = path(attachment.id());
+        String contentType = attachment.contentType() != null ? attachment.contentType() : DEFAULT_CONTENT_TYPE;
+        return new DataSource() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return Channels.newInputStream(FileChannel.open(path, StandardOpenOption.READ));
+            }
+
+            @Override
+            public OutputStream getOutputStream() {
+                throw new UnsupportedOperationException("Adjunto de solo lectura");
+            }
+
+            @Override
+            public String getContentType() {
+                return contentType;
+            }
+
+            @Override
+            public String getName() {
+                return attachment.filename();
+            }
+        };
+    }
+
+    /**
+     * Borra los adjuntos que no se han subido ni reutilizado en {@code email.attachments.ttl} horas. Los correos
+     * pendientes que los referencian fallarán al enviarse, así que la caducidad debe cubrir los reintentos.
+     */
+    @Scheduled(fixedDelayString = "${email.attachments.cleanup-interval:3600000}")
+    public void cleanup() {
+        if (ttl <= 0) return;
+        long expiresBefore = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(ttl);
+        int removed = 0;
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(root, Files::isDirectory)) {
+            for (Path shard : shards) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(shard)) {
+                    for (Path file : files) {
+                        if (Files.getLastModifiedTime(file).toMillis() < expiresBefore && Files.deleteIfExists(file)) {
+                            removed++;
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No se pudieron limpiar los adjuntos caducados: ", e);
+        }
+        if (removed > 0) logger.info("Borrados " + removed + " adjuntos caducados");
+    }
+
+    Path path(String id) {
+        return root.resolve(id.substring(0, 2)).resolve(id);
+    }
+
+    private static boolean isValidId(String id) {
+        return id != null && ID_PATTERN.matcher(id).matches();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
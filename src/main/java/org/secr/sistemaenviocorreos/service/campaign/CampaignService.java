@@ -0,0 +1,269 @@
+package org.secr.sistemaenviocorreos.service.campaign;
+
+import com.rabbitmq.client.Channel;
+import jakarta.mail.internet.AddressException;
+import jakarta.mail.internet.InternetAddress;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.dto.CampaignChunkDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignProgressDTO;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.CampaignStatus;
+import org.secr.sistemaenviocorreos.service.EmailConsumer;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
+import org.secr.sistemaenviocorreos.service.pipeline.DeliveryAck;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpCircuitBreaker;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.rabbit.annotation.RabbitListener;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.AmqpHeaders;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Campañas: un mismo contenido para muchos destinatarios. El contenido se guarda una vez en el {@link CampaignStore}
+ * y la lista de destinatarios se recibe como stream, se guarda por tramos y por cada tramo se encola un descriptor
+ * ({@link CampaignChunkDTO}) de unos bytes en lugar de un mensaje completo por destinatario. El consumidor expande
+ * cada tramo al recibirlo y entrega sus correos al camino de envío normal; el tramo se confirma cuando terminan todos.
+ */
+@Service
+public class CampaignService {
+
+    private static final Logger logger = Logger.getLogger(CampaignService.class.getName());
+
+    @Autowired
+    private CampaignStore store;
+
+    @Autowired
+    private EmailConsumer emailConsumer;
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private RetryPolicy retryPolicy;
+
+    @Value("${rabbitmq.campaign-queue}")
+    private String campaignQueue;
+
+    @Value("${email.campaigns.chunk-size:500}")
+    private Integer chunkSize = 500;
+
+    @Value("${email.batch.confirm-timeout:10}")
+    private Integer confirmTimeout = 10; //seconds
+
+    public CampaignProgressDTO create(CampaignDTO campaignDTO) throws IOException {
+        CampaignStore.Campaign campaign = store.create(campaignDTO);
+        logger.info("Campaña " + campaign.id() + " creada");
+        return store.progress(campaign.id());
+    }
+
+    public CampaignProgressDTO progress(String id) throws IOException {
+        return store.progress(id);
+    }
+
+    /**
+     * Añade destinatarios a una campaña. El cuerpo se lee línea a línea (una dirección por línea) y cada tramo se
+     * guarda y se encola antes de leer el siguiente, por lo que solo hay un tramo en memoria. Las líneas vacías o con
+     * direcciones no válidas se ignoran. Si el broker falla a mitad, lo encolado hasta entonces queda en el progreso.
+     * @return Progreso tras encolar, o {@code null} si la campaña no existe
+     * @throws IllegalStateException    Si la campaña está cancelada
+     * @throws AmqpException            Si no se puede encolar un tramo
+     */
+    public CampaignProgressDTO addRecipients(String id, InputStream body) throws IOException {
+        CampaignStatus status = store.status(id);
+        if (status == null) return null;
+        if (status == CampaignStatus.CANCELLED) throw new IllegalStateException("Campaña cancelada");
+
+        List<String> chunk = new ArrayList<>(chunkSize);
+        long rejected = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String recipient = line.trim();
+            if (recipient.isEmpty()) continue;
+            if (!isValidAddress(recipient)) {
+                rejected++;
+                continue;
+            }
+            chunk.add(recipient);
+            if (chunk.size() >= chunkSize) enqueue(id, chunk);
+        }
+        enqueue(id, chunk);
+        if (rejected > 0) logger.warning("Campaña " + id + ": " + rejected + " destinatarios no válidos ignorados");
+        return store.progress(id);
+    }
+
+    private void enqueue(String id, List<String> chunk) throws IOException {
+        if (chunk.isEmpty()) return;
+        long offset = store.appendRecipients(id, chunk);
+        CorrelationData correlationData = new CorrelationData();
+        rabbitTemplate.convertAndSend("", campaignQueue, new CampaignChunkDTO(id, offset, chunk.size()), message -> {
+            message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+            return message;
+        }, correlationData);
+        try {
+            CorrelationData.Confirm confirm = correlationData.getFuture().get(confirmTimeout, TimeUnit.SECONDS);
+            if (!confirm.isAck()) throw new AmqpException("Tramo rechazado por el broker: " + confirm.getReason());
+        } catch (TimeoutException | ExecutionException e) {
+            throw new AmqpException("Sin confirmación del broker para el tramo", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AmqpException("Interrumpido", e);
+        }
+        store.recordEnqueued(id, chunk.size());
+        chunk.clear();
+    }
+
+    private static boolean isValidAddress(String recipient) {
+        try {
+            new InternetAddress(recipient, true);
+            return recipient.indexOf('@') > 0;
+        } catch (AddressException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Cambia el estado de una campaña. Los tramos ya en curso terminan; los siguientes ven el estado nuevo.
+     * @return Progreso con el estado nuevo, o {@code null} si la campaña no existe
+     * @throws IllegalStateException Si la campaña está cancelada
+     */
+    public CampaignProgressDTO changeStatus(String id, CampaignStatus status) throws IOException {
+        CampaignStatus current = store.status(id);
+        if (current == null) return null;
+        if (current == CampaignStatus.CANCELLED && status != CampaignStatus.CANCELLED) {
+            throw new IllegalStateException("Campaña cancelada");
+        }
+        store.setStatus(id, status);
+        logger.info("Campaña " + id + ": " + current + " -> " + status);
+        return store.progress(id);
+    }
+
+    /**
+     * Expande un tramo de una campaña. Con la campaña en pausa el tramo se aparca en la cola de espera, que lo
+     * devuelve pasado {@code email.campaigns.pause-recheck}; con la campaña cancelada se descarta. Se detiene con el
+     * circuito SMTP abierto.
+     */
+    @RabbitListener(id = SmtpCircuitBreaker.CAMPAIGN_LISTENER, queues = "${rabbitmq.campaign-queue}",
+            ackMode = "MANUAL", concurrency = "${email.campaigns.listener-concurrency:1}")
+    public void onChunk(CampaignChunkDTO chunk, Channel channel, @Header(AmqpHeaders.DELIVERY_TAG) long deliveryTag) {
+        expand(chunk, DeliveryAck.of(channel, deliveryTag));
+    }
+
+    void expand(CampaignChunkDTO chunk, DeliveryAck ack) {
+        String id = chunk.campaignId();
+        CampaignStore.Campaign campaign;
+        List<String> recipients;
+        try {
+            CampaignStatus status = store.status(id);
+            campaign = store.find(id);
+            if (status == null || campaign == null) {
+                logger.warning("Tramo de una campaña inexistente: " + id);
+                ack.ack();
+                return;
+            }
+            if (status == CampaignStatus.CANCELLED) {
+                store.recordSkipped(id, chunk.count());
+                ack.ack();
+                return;
+            }
+            if (status == CampaignStatus.PAUSED) {
+                park(chunk, ack);
+                return;
+            }
+            recipients = store.readRecipients(id, chunk.offset(), chunk.count());
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "No se pudo leer el tramo de la campaña " + id + ": ", e);
+            ack.reject(true);
+            return;
+        }
+
+        ChunkAck chunkAck = new ChunkAck(ack, recipients.size());
+        for (int i = 0; i < recipients.size(); i++) {
+            String idempotencyKey = CampaignStore.keyFor(id, chunk.offset(), i);
+            //Id derivado de la clave: el mismo en cada reentrega del tramo, para seguir el estado de entrega
+            PublishRabbitMQDTO rMQMessage = new PublishRabbitMQDTO(recipients.get(i),
+                    campaign.subject(),
+                    campaign.message(),
+                    null,
+                    retryPolicy.getMaxAttempts(),
+                    idempotencyKey,
+                    campaign.priority()).withId(DeduplicationService.messageIdFor(idempotencyKey));
+            emailConsumer.consumer(rMQMessage, chunkAck.part());
+        }
+    }
+
+    private void park(CampaignChunkDTO chunk, DeliveryAck ack) {
+        try {
+            rabbitTemplate.convertAndSend("", campaignQueue + ".paused", chunk, message -> {
+                message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+                return message;
+            });
+            ack.ack();
+        } catch (AmqpException e) {
+            logger.log(Level.SEVERE, "No se pudo aparcar el tramo de la campaña pausada: ", e);
+            ack.reject(true);
+        }
+    }
+
+    /**
+     * Confirmación de un tramo a partir de las de sus correos: se confirma cuando todos terminan. Si alguno se ha
+     * devuelto al broker, se devuelve el tramo entero; los correos ya enviados no se repiten gracias a su clave de
+     * idempotencia.
+     */
+    static final class ChunkAck {
+
+        private final DeliveryAck delivery;
+        private final AtomicInteger remaining;
+        private final AtomicBoolean requeue = new AtomicBoolean();
+
+        ChunkAck(DeliveryAck delivery, int parts) {
+            this.delivery = delivery;
+            this.remaining = new AtomicInteger(parts);
+            if (parts == 0) delivery.ack();
+        }
+
+        DeliveryAck part() {
+            AtomicBoolean done = new AtomicBoolean();
+            return new DeliveryAck() {
+                @Override
+                public void ack() {
+                    if (done.compareAndSet(false, true)) completed();
+                }
+
+                @Override
+                public void reject(boolean requeue) {
+                    if (!done.compareAndSet(false, true)) return;
+                    if (requeue) ChunkAck.this.requeue.set(true);
+                    completed();
+                }
+            };
+        }
+
+        private void completed() {
+            if (remaining.decrementAndGet() != 0) return;
+            if (requeue.get()) delivery.reject(true);
+            else delivery.ack();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package org.secr.sistemaenviocorreos.service.campaign;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.secr.sistemaenviocorreos.config.NodeIdentity;
+import org.secr.sistemaenviocorreos.dto.CampaignDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignProgressDTO;
+import org.secr.sistemaenviocorreos.enums.CampaignStatus;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Almacén de campañas en disco ({@code <dir>/<campaña>/}). El contenido se guarda una vez en {@code campaign.json} y
+ * los destinatarios, uno por línea, en {@code recipients}; los tramos encolados solo llevan la posición y el número de
+ * líneas. El progreso lo lleva cada nodo en memoria y lo vuelca periódicamente a {@code progress.<nodo>}, de modo
+ * que varios nodos comparten el mismo directorio sin pisarse.
+ */
+@Service
+public class CampaignStore {
+
+    private static final Logger logger = Logger.getLogger(CampaignStore.class.getName());
+    private static final String CONTENT_FILE = "campaign.json";
+    private static final String RECIPIENTS_FILE = "recipients";
+    private static final String STATUS_FILE = "status";
+    private static final String PROGRESS_PREFIX = "progress.";
+    private static final String KEY_PREFIX = "campaign:";
+    private static final long STATUS_TTL_MILLIS = 1000;
+    private static final int LOCK_STRIPES = 64;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private NodeIdentity nodeIdentity;
+
+    @Value("${email.campaigns.dir:./data/campaigns}")
+    private String directory;
+
+    @Value("${email.campaigns.fsync:true}")
+    private Boolean fsync = true;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Map<String, Campaign> contents = new ConcurrentHashMap<>();
+    private final Map<String, CachedStatus> statuses = new ConcurrentHashMap<>();
+    private final Map<String, Counters> progress = new ConcurrentHashMap<>();
+    private Path root;
+
+    public CampaignStore() {
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+    }
+
+    /**
+     * Guarda el contenido de una campaña nueva, activa y sin destinatarios.
+     * @return Campaña creada
+     */
+    public Campaign create(CampaignDTO campaignDTO) throws IOException {
+        Campaign campaign = new Campaign(UUID.randomUUID().toString(), campaignDTO.subject(), campaignDTO.message(),
+                campaignDTO.priority() != null ? campaignDTO.priority() : EmailPriority.BULK, LocalDateTime.now());
+        Path campaignDir = root.resolve(campaign.id());
+        Files.createDirectories(campaignDir);
+        Files.write(campaignDir.resolve(CONTENT_FILE), objectMapper.writeValueAsBytes(campaign));
+        Files.createFile(campaignDir.resolve(RECIPIENTS_FILE));
+        setStatus(campaign.id(), CampaignStatus.ACTIVE);
+        contents.put(campaign.id(), campaign);
+        return campaign;
+    }
+
+    /**
+     * Contenido de una campaña. No cambia, así que se lee de disco una vez por nodo.
+     * @return Campaña o {@code null} si no existe
+     */
+    public Campaign find(String id) throws IOException {
+        if (!isValidId(id)) return null;
+        Campaign cached = contents.get(id);
+        if (cached != null) return cached;
+        try {
+            Campaign campaign = objectMapper.readValue(root.resolve(id).resolve(CONTENT_FILE).toFile(), Campaign.class);
+            contents.put(id, campaign);
+            return campaign;
+        } catch (NoSuchFileException | FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Estado de una campaña. Se relee del disco como mucho una vez por segundo, por lo que una pausa o cancelación
+     * hecha en otro nodo tarda hasta un segundo en verse.
+     * @return Estado o {@code null} si la campaña no existe
+     */
+    public CampaignStatus status(String id) throws IOException {
+        if (!isValidId(id)) return null;
+        CachedStatus cached = statuses.get(id);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.readAt() < STATUS_TTL_MILLIS) return cached.status();
+        try {
+            CampaignStatus status = CampaignStatus.valueOf(
+                    Files.readString(root.resolve(id).resolve(STATUS_FILE), StandardCharsets.UTF_8).trim());
+            statuses.put(id, new CachedStatus(status, now));
+            return status;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    public void setStatus(String id, CampaignStatus status) throws IOException {
+        Path statusFile = root.resolve(id).resolve(STATUS_FILE);
+        Path temporary = statusFile.resolveSibling(STATUS_FILE + ".tmp");
+        Files.writeString(temporary, status.name(), StandardCharsets.UTF_8);
+        Files.move(temporary, statusFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        statuses.put(id, new CachedStatus(status, System.currentTimeMillis()));
+    }
+
+    /**
+     * Añade un tramo de destinatarios al final del fichero de la campaña. Al volver están en disco.
+     * @param recipients    Direcciones, sin saltos de línea
+     * @return              Posición en bytes del primer destinatario del tramo
+     */
+    public long appendRecipients(String id, List<String> recipients) throws IOException {
+        StringBuilder lines = new StringBuilder(recipients.size() * 32);
+        for (String recipient : recipients) lines.append(recipient).append('\n');
+        ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+
+        synchronized (locks[Math.floorMod(id.hashCode(), LOCK_STRIPES)]) {
+            try (FileChannel channel = FileChannel.open(root.resolve(id).resolve(RECIPIENTS_FILE),
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                long offset = channel.size();
+                while (buffer.hasRemaining()) channel.write(buffer);
+                if (fsync) channel.force(false);
+                return offset;
+            }
+        }
+    }
+
+    /**
+     * Lee un tramo de destinatarios.
+     * @param offset    Posición en bytes del primer destinatario
+     * @param count     Número de destinatarios
+     */
+    public List<String> readRecipients(String id, long offset, int count) throws IOException {
+        List<String> recipients = new ArrayList<>(count);
+        try (FileChannel channel = FileChannel.open(root.resolve(id).resolve(RECIPIENTS_FILE), StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     Channels.newInputStream(channel.position(offset)), StandardCharsets.UTF_8))) {
+            String line;
+            while (recipients.size() < count && (line = reader.readLine()) != null) recipients.add(line);
+        }
+        return recipients;
+    }
+
+    /**
+     * Clave de idempotencia de un destinatario de la campaña: si el tramo se vuelve a entregar, los correos ya
+     * enviados no se repiten.
+     */
+    public static String keyFor(String id, long offset, int index) {
+        return KEY_PREFIX + id + ":" + offset + ":" + index;
+    }
+
+    /**
+     * @return Campaña de una clave de idempotencia, o {@code null} si no es de una campaña
+     */
+    static String campaignOf(String idempotencyKey) {
+        if (idempotencyKey == null || !idempotencyKey.startsWith(KEY_PREFIX)) return null;
+        int end = idempotencyKey.indexOf(':', KEY_PREFIX.length());
+        return end < 0 ? null : idempotencyKey.substring(KEY_PREFIX.length(), end);
+    }
+
+    public void recordEnqueued(String id, long count) {
+        counters(id).enqueued.add(count);
+    }
+
+    public void recordSkipped(String id, long count) {
+        counters(id).skipped.add(count);
+    }
+
+    /**
+     * Resultado final de un correo. Los que no son de una campaña se ignoran.
+     * @param idempotencyKey    Clave del correo
+     * @param sent              Enviado o agotados los reintentos
+     */
+    public void recordOutcome(String idempotencyKey, boolean sent) {
+        String id = campaignOf(idempotencyKey);
+        if (id == null) return;
+        Counters counters = counters(id);
+        (sent ? counters.sent : counters.failed).add(1);
+    }
+
+    /**
+     * Contadores del nodo para una campaña. La primera vez se cargan los que el nodo volcó antes de reiniciarse.
+     */
+    private Counters counters(String id) {
+        return progress.computeIfAbsent(id, key -> {
+            Counters counters = new Counters();
+            try {
+                long[] saved = readProgress(root.resolve(key).resolve(PROGRESS_PREFIX + nodeIdentity.getId()));
+                counters.enqueued.add(saved[0]);
+                counters.sent.add(saved[1]);
+                counters.failed.add(saved[2]);
+                counters.skipped.add(saved[3]);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "No se pudo leer el progreso de la campaña " + key, e);
+            }
+            return counters;
+        });
+    }
+
+    /**
+     * Vuelca a disco el progreso de este nodo.
+     */
+    @Scheduled(fixedDelayString = "${email.campaigns.progress-interval:5000}")
+    @PreDestroy
+    public void flushProgress() {
+        progress.forEach((id, counters) -> {
+            try {
+                flushProgress(id, counters);
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "No se pudo guardar el progreso de la campaña " + id, e);
+            }
+        });
+    }
+
+    private void flushProgress(String id, Counters counters) throws IOException {
+        Path file = root.resolve(id).resolve(PROGRESS_PREFIX + nodeIdentity.getId());
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.writeString(temporary, counters.enqueued.sum() + " " + counters.sent.sum() + " "
+                + counters.failed.sum() + " " + counters.skipped.sum(), StandardCharsets.UTF_8);
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Progreso de una campaña sumando el de todos los nodos.
+     * @return Progreso o {@code null} si la campaña no existe
+     */
+    public CampaignProgressDTO progress(String id) throws IOException {
+        CampaignStatus status = status(id);
+        if (status == null) return null;
+        Counters own = progress.get(id);
+        if (own != null) flushProgress(id, own);
+
+        long[] total = new long[4];
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(root.resolve(id), PROGRESS_PREFIX + "*")) {
+            for (Path file : files) {
+                if (file.getFileName().toString().endsWith(".tmp")) continue;
+                long[] node = readProgress(file);
+                for (int i = 0; i < total.length; i++) total[i] += node[i];
+            }
+        }
+        return new CampaignProgressDTO(id, status, total[0], total[1], total[2], total[3]);
+    }
+
+    private static long[] readProgress(Path file) throws IOException {
+        long[] values = new long[4];
+        try {
+            String[] parts = Files.readString(file, StandardCharsets.UTF_8).trim().split(" ");
+            for (int i = 0; i < values.length && i < parts.length; i++) values[i] = Long.parseLong(parts[i]);
+        } catch (NoSuchFileException e) {
+            //Sin progreso de este nodo
+        } catch (NumberFormatException e) {
+            logger.warning("Fichero de progreso corrupto: " + file);
+        }
+        return values;
+    }
+
+    /**
+     * El identificador llega en la URL: solo se aceptan UUID para no salir del directorio.
+     */
+    private static boolean isValidId(String id) {
+        try {
+            return id != null && UUID.fromString(id).toString().equals(id);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Contenido guardado de una campaña.
+     */
+    public record Campaign(String id, String subject, String message, EmailPriority priority,
+                           LocalDateTime createdAt) {}
+
+    private record CachedStatus(CampaignStatus status, long readAt) {}
+
+    private static final class Counters {
+        private final LongAdder enqueued = new LongAdder();
+        private final LongAdder sent = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+    }
+}
@@ -0,0 +1,89 @@
+package org.secr.sistemaenviocorreos.service.dedup;
+
+import org.secr.sistemaenviocorreos.service.interfaces.DedupStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deduplicación por clave de idempotencia en dos puntos: al publicar, para que los reintentos del cliente no encolen
+ * el correo dos veces, y al enviar, para que una entrega repetida por el broker (caída entre el envío SMTP y el ack) no
+ * lo mande dos veces. Cada punto usa su propio hash de la clave sobre el mismo {@link DedupStore}.
+ */
+@Service
+public class DeduplicationService {
+
+    private static final long PUBLISH_SEED = 0x9E3779B97F4A7C15L;
+    private static final long SEND_SEED = 0xC2B2AE3D27D4EB4FL;
+
+    @Autowired
+    private DedupStore store;
+
+    @Value("${email.dedup.enabled:true}")
+    private Boolean enabled = true;
+
+    @Value("${email.dedup.ttl:24}")
+    private Integer ttl = 24; //hours
+
+    /**
+     * Registra la publicación de una clave.
+     * @param idempotencyKey    Clave del cliente, puede ser {@code null}
+     * @return                  {@code false} si la clave ya se publicó dentro de la ventana
+     */
+    public boolean acceptPublish(String idempotencyKey) {
+        if (!active(idempotencyKey)) return true;
+        return store.putIfAbsent(hash(PUBLISH_SEED, idempotencyKey), ttlMillis());
+    }
+
+    /**
+     * Olvida una publicación que el broker no ha confirmado, para que el cliente la pueda reintentar.
+     */
+    public void releasePublish(String idempotencyKey) {
+        if (active(idempotencyKey)) store.remove(hash(PUBLISH_SEED, idempotencyKey));
+    }
+
+    public boolean isSent(String idempotencyKey) {
+        return active(idempotencyKey) && store.contains(hash(SEND_SEED, idempotencyKey));
+    }
+
+    public void markSent(String idempotencyKey) {
+        if (active(idempotencyKey)) store.putIfAbsent(hash(SEND_SEED, idempotencyKey), ttlMillis());
+    }
+
+    /**
+     * Identificador de mensaje derivado de la clave, igual en todas las peticiones repetidas.
+     */
+    public static String messageIdFor(String idempotencyKey) {
+        return UUID.nameUUIDFromBytes(idempotencyKey.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    private boolean active(String idempotencyKey) {
+        return enabled && idempotencyKey != null && !idempotencyKey.isEmpty();
+    }
+
+    private long ttlMillis() {
+        return TimeUnit.HOURS.toMillis(ttl);
+    }
+
+    /**
+     * FNV-1a de 64 bits sobre los caracteres con mezcla final de MurmurHash3, para que todos los bits dependan de la
+     * clave entera.
+     */
+    static long hash(long seed, String key) {
+        long h = 0xCBF29CE484222325L ^ seed;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001B3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
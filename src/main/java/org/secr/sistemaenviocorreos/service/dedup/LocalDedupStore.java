@@ -0,0 +1,120 @@
+package org.secr.sistemaenviocorreos.service.dedup;
+
+import org.secr.sistemaenviocorreos.service.interfaces.DedupStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Almacén de deduplicación en memoria de tamaño fijo. Cada entrada es un único {@code long}: 40 bits de huella del
+ * hash y 24 bits con el minuto de caducidad, por lo que 8 millones de claves ocupan 64 MB. La tabla se divide en
+ * buckets de 16 entradas (dos líneas de caché) elegidos por los bits bajos del hash; si un bucket está lleno se
+ * reemplaza la entrada que antes caduca, de modo que la memoria no crece aunque la ventana se quede corta.
+ */
+@Component
+@ConditionalOnProperty(name = "email.dedup.store", havingValue = "local", matchIfMissing = true)
+public class LocalDedupStore implements DedupStore {
+
+    private static final int WAYS = 16;
+    private static final int LOCKS = 1024;
+    private static final int MAX_BUCKETS = 1 << 24;
+    private static final int EXPIRY_BITS = 24;
+    private static final long EXPIRY_MASK = (1L << EXPIRY_BITS) - 1;
+    private static final long EPOCH_MINUTE = TimeUnit.SECONDS.toMinutes(Instant.parse("2024-01-01T00:00:00Z").getEpochSecond());
+
+    private final long[] entries;
+    private final int bucketMask;
+    private final Object[] locks = new Object[LOCKS];
+    private final LongSupplier clock;
+
+    @Autowired
+    public LocalDedupStore(@Value("${email.dedup.capacity:8388608}") int capacity) {
+        this(capacity, System::currentTimeMillis);
+    }
+
+    LocalDedupStore(int capacity, LongSupplier clock) {
+        int buckets = Integer.highestOneBit(Math.max(1, Math.min(MAX_BUCKETS, capacity / WAYS)));
+        this.entries = new long[buckets * WAYS];
+        this.bucketMask = buckets - 1;
+        this.clock = clock;
+        for (int i = 0; i < LOCKS; i++) locks[i] = new Object();
+    }
+
+    @Override
+    public boolean putIfAbsent(long key, long ttlMillis) {
+        long fingerprint = fingerprint(key);
+        long now = minute(clock.getAsLong());
+        long expiry = Math.min(EXPIRY_MASK, minute(clock.getAsLong() + ttlMillis + TimeUnit.MINUTES.toMillis(1) - 1));
+        int base = bucket(key);
+        synchronized (lock(base)) {
+            int victim = base;
+            long victimExpiry = Long.MAX_VALUE;
+            for (int i = base; i < base + WAYS; i++) {
+                long entry = entries[i];
+                long entryExpiry = entry & EXPIRY_MASK;
+                if (entry != 0 && entryExpiry > now && entry >>> EXPIRY_BITS == fingerprint) return false;
+                long rank = entry == 0 || entryExpiry <= now ? -1 : entryExpiry; //Libres y caducadas primero
+                if (rank < victimExpiry) {
+                    victim = i;
+                    victimExpiry = rank;
+                }
+            }
+            entries[victim] = fingerprint << EXPIRY_BITS | expiry;
+            return true;
+        }
+    }
+
+    @Override
+    public boolean contains(long key) {
+        long fingerprint = fingerprint(key);
+        long now = minute(clock.getAsLong());
+        int base = bucket(key);
+        synchronized (lock(base)) {
+            for (int i = base; i < base + WAYS; i++) {
+                long entry = entries[i];
+                if (entry != 0 && (entry & EXPIRY_MASK) > now && entry >>> EXPIRY_BITS == fingerprint) return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public void remove(long key) {
+        long fingerprint = fingerprint(key);
+        int base = bucket(key);
+        synchronized (lock(base)) {
+            for (int i = base; i < base + WAYS; i++) {
+                if (entries[i] != 0 && entries[i] >>> EXPIRY_BITS == fingerprint) entries[i] = 0;
+            }
+        }
+    }
+
+    public int capacity() {
+        return entries.length;
+    }
+
+    private int bucket(long key) {
+        return ((int) key & bucketMask) * WAYS;
+    }
+
+    private Object lock(int base) {
+        return locks[(base / WAYS) & (LOCKS - 1)];
+    }
+
+    /**
+     * Bits altos del hash, independientes de los que eligen el bucket. Nunca es 0, que marca una entrada libre.
+     */
+    private static long fingerprint(long key) {
+        long fingerprint = key >>> EXPIRY_BITS;
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private static long minute(long epochMillis) {
+        return TimeUnit.MILLISECONDS.toMinutes(epochMillis) - EPOCH_MINUTE;
+    }
+}
@@ -0,0 +1,21 @@
+package org.secr.sistemaenviocorreos.service.interfaces;
+
+/**
+ * Almacén de claves de deduplicación con caducidad. Las claves son hashes de 64 bits de la clave de idempotencia, no
+ * la clave original. La implementación local solo deduplica dentro de un nodo; para compartir la ventana entre nodos
+ * basta con registrar otro bean que la respalde en un almacén común.
+ */
+public interface DedupStore {
+
+    /**
+     * Registra la clave si no existe o ha caducado.
+     * @param key       Hash de la clave
+     * @param ttlMillis Tiempo que la clave se considera vista
+     * @return          {@code true} si se ha registrado, {@code false} si ya estaba
+     */
+    boolean putIfAbsent(long key, long ttlMillis);
+
+    boolean contains(long key);
+
+    void remove(long key);
+}
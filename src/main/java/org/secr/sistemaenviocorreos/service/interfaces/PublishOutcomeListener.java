@@ -0,0 +1,19 @@
+package org.secr.sistemaenviocorreos.service.interfaces;
+
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+
+/**
+ * Recibe el resultado de las publicaciones confirmadas de {@code EmailPublisher}. Se llama desde el hilo de
+ * confirmaciones del broker, por lo que las implementaciones no deben bloquear.
+ */
+public interface PublishOutcomeListener {
+
+    default void onAck(String messageId, PublishRabbitMQDTO publishRabbitMQDTO) {
+    }
+
+    default void onNack(String messageId, PublishRabbitMQDTO publishRabbitMQDTO, String reason) {
+    }
+
+    default void onTimeout(String messageId, PublishRabbitMQDTO publishRabbitMQDTO) {
+    }
+}
@@ -0,0 +1,199 @@
+package org.secr.sistemaenviocorreos.service.logging;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.SendStage;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Log estructurado del camino de envío. Los hilos de envío no formatean ni escriben: reservan una posición de un buffer
+ * circular sin bloqueos, guardan la etapa, el correo y la duración en arrays preasignados y siguen. Un hilo de fondo
+ * recorre el buffer y escribe cada evento como una línea {@code clave=valor} en el logger {@code email.events}.
+ * <p>
+ * Los eventos de éxito se muestrean con {@code email.logging.sample-rate} y se descartan si el buffer está lleno. Los
+ * errores se registran siempre: si no caben en el buffer se escriben en el hilo que los produce. Con
+ * {@code email.logging.async=false} todo se escribe en el hilo que lo produce.
+ */
+@Service
+public class SendEventLog {
+
+    static final String LOGGER_NAME = "email.events";
+    private static final Logger logger = Logger.getLogger(LOGGER_NAME);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Value("${email.logging.async:true}")
+    private Boolean async = true;
+
+    @Value("${email.logging.buffer-size:8192}")
+    private Integer bufferSize = 8192;
+
+    @Value("${email.logging.sample-rate:0.01}")
+    private Double sampleRate = 0.01; //fracción de los eventos de éxito que se escriben
+
+    private int mask;
+    private AtomicLongArray published;
+    private SendStage[] stages;
+    private PublishRabbitMQDTO[] messages;
+    private long[] durations;
+    private int[] recipients;
+    private Level[] levels;
+    private String[] descriptions;
+    private Throwable[] errors;
+
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail;
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder line = new StringBuilder(256);
+    private volatile boolean running;
+    private Thread appender;
+
+    @PostConstruct
+    void init() {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize - 1)) << 1;
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1);
+        stages = new SendStage[capacity];
+        messages = new PublishRabbitMQDTO[capacity];
+        durations = new long[capacity];
+        recipients = new int[capacity];
+        levels = new Level[capacity];
+        descriptions = new String[capacity];
+        errors = new Throwable[capacity];
+
+        if (!async) return;
+        running = true;
+        appender = new Thread(this::run, "email-event-log");
+        appender.setDaemon(true);
+        appender.start();
+    }
+
+    @PreDestroy
+    void shutdown() throws InterruptedException {
+        running = false;
+        if (appender == null) return;
+        LockSupport.unpark(appender);
+        appender.join(TimeUnit.SECONDS.toMillis(5));
+        while (drain()); //Publicados después de que el hilo de fondo terminase
+    }
+
+    /**
+     * Evento de éxito de un correo, sujeto al muestreo.
+     */
+    public void success(SendStage stage, PublishRabbitMQDTO message, long durationNanos) {
+        success(stage, message, durationNanos, 1);
+    }
+
+    /**
+     * @param recipientCount Destinatarios de un envío agrupado
+     */
+    public void success(SendStage stage, PublishRabbitMQDTO message, long durationNanos, int recipientCount) {
+        if (!logger.isLoggable(Level.INFO) || !sampled()) return;
+        if (!async) write(stage, message, durationNanos, recipientCount, Level.INFO, null, null);
+        else if (!offer(stage, message, durationNanos, recipientCount, Level.INFO, null, null)) dropped.increment();
+    }
+
+    /**
+     * Evento de error. Se registra siempre.
+     * @param description   Texto fijo del error, sin concatenar datos del correo
+     */
+    public void failure(SendStage stage, PublishRabbitMQDTO message, Level level, String description, Throwable error) {
+        if (!logger.isLoggable(level)) return;
+        if (!offer(stage, message, 0, 1, level, description, error)) {
+            write(stage, message, 0, 1, level, description, error);
+        }
+    }
+
+    /**
+     * Eventos de éxito descartados por tener el buffer lleno.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    private boolean sampled() {
+        if (sampleRate >= 1) return true;
+        return sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+    }
+
+    private boolean offer(SendStage stage, PublishRabbitMQDTO message, long durationNanos, int recipientCount,
+                          Level level, String description, Throwable error) {
+        if (!running) return false;
+        long sequence;
+        do {
+            sequence = head.get();
+            if (sequence - tail > mask) return false;
+        } while (!head.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) (sequence & mask);
+        stages[index] = stage;
+        messages[index] = message;
+        durations[index] = durationNanos;
+        recipients[index] = recipientCount;
+        levels[index] = level;
+        descriptions[index] = description;
+        errors[index] = error;
+        published.set(index, sequence);
+        return true;
+    }
+
+    private void run() {
+        while (running || tail != head.get()) {
+            if (!drain()) {
+                if (!running) break;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Escribe los eventos publicados en orden. Solo lo llama el hilo de fondo.
+     * @return {@code false} si no había ninguno
+     */
+    boolean drain() {
+        long next = tail;
+        int index = (int) (next & mask);
+        if (published.get(index) != next) return false;
+        do {
+            write(stages[index], messages[index], durations[index], recipients[index], levels[index],
+                    descriptions[index], errors[index]);
+            messages[index] = null;
+            errors[index] = null;
+            tail = ++next;
+            index = (int) (next & mask);
+        } while (published.get(index) == next);
+        return true;
+    }
+
+    private void write(SendStage stage, PublishRabbitMQDTO message, long durationNanos, int recipientCount,
+                       Level level, String description, Throwable error) {
+        StringBuilder builder = Thread.currentThread() == appender ? line : new StringBuilder(128);
+        builder.setLength(0);
+        builder.append("stage=").append(stage.tag());
+        if (message != null) {
+            builder.append(" id=").append(message.id() != null ? message.id() : "-");
+            builder.append(" to=").append(message.email());
+            if (message.retry() != null) builder.append(" retry=").append(message.retry());
+        }
+        if (recipientCount > 1) builder.append(" recipients=").append(recipientCount);
+        if (durationNanos > 0) builder.append(" durationMicros=").append(durationNanos / 1000);
+        if (description != null) builder.append(" msg=\"").append(description).append('"');
+
+        LogRecord record = new LogRecord(level, builder.toString());
+        record.setLoggerName(LOGGER_NAME);
+        record.setThrown(error);
+        logger.log(record);
+    }
+}
@@ -0,0 +1,129 @@
+package org.secr.sistemaenviocorreos.service.metrics;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.secr.sistemaenviocorreos.enums.CircuitState;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.secr.sistemaenviocorreos.service.logging.SendEventLog;
+import org.secr.sistemaenviocorreos.service.mime.MimeMessageFactory;
+import org.secr.sistemaenviocorreos.service.outbox.OutboxJournal;
+import org.secr.sistemaenviocorreos.service.pipeline.EmailPipeline;
+import org.secr.sistemaenviocorreos.service.scheduled.ScheduledEmailStore;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpCircuitBreaker;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpTransportPool;
+import org.secr.sistemaenviocorreos.service.status.DeliveryStatusStore;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Gauges del estado interno del servicio: correos programados pendientes, ocupación de las colas del pipeline, outbox
+ * local, caché de cuerpos codificados y estado del pool SMTP. Se leen en cada scrape, sin coste en el camino de
+ * envío.
+ */
+@Component
+public class EmailGauges implements MeterBinder {
+
+    @Autowired
+    private ScheduledEmailStore scheduledEmailStore;
+
+    @Autowired
+    private EmailPipeline pipeline;
+
+    @Autowired
+    private SmtpTransportPool transportPool;
+
+    @Autowired
+    private EmailPublisher emailPublisher;
+
+    @Autowired
+    private OutboxJournal outbox;
+
+    @Autowired
+    private MimeMessageFactory mimeMessageFactory;
+
+    @Autowired
+    private SendEventLog events;
+
+    @Autowired
+    private DeliveryStatusStore statusStore;
+
+    @Autowired
+    private SmtpCircuitBreaker circuitBreaker;
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("email.scheduled.pending", scheduledEmailStore, ScheduledEmailStore::getPendingCount)
+                .description("Correos programados pendientes de liberar")
+                .register(registry);
+
+        Gauge.builder("email.publish.in-flight", emailPublisher, EmailPublisher::getInFlight)
+                .description("Publicaciones pendientes de confirmar por el broker")
+                .register(registry);
+
+        for (EmailPriority priority : EmailPriority.values()) {
+            Gauge.builder("email.pipeline.queued", pipeline, p -> p.renderQueueSize(priority))
+                    .tags("stage", "render", "lane", priority.tag())
+                    .description("Mensajes esperando en la cola de la etapa")
+                    .register(registry);
+            Gauge.builder("email.pipeline.queued", pipeline, p -> p.smtpQueueSize(priority))
+                    .tags("stage", "smtp", "lane", priority.tag())
+                    .description("Mensajes esperando en la cola de la etapa")
+                    .register(registry);
+        }
+
+        Gauge.builder("email.outbox.depth", outbox, OutboxJournal::getDepth)
+                .description("Correos guardados en el outbox local pendientes de publicar")
+                .register(registry);
+        FunctionCounter.builder("email.outbox.appended", outbox, OutboxJournal::getAppended)
+                .description("Correos guardados en el outbox por no poder publicarlos")
+                .register(registry);
+        FunctionCounter.builder("email.outbox.drained", outbox, OutboxJournal::getDrained)
+                .description("Correos del outbox publicados y confirmados por el broker")
+                .register(registry);
+
+        FunctionCounter.builder("email.log.dropped", events, SendEventLog::getDropped)
+                .description("Eventos de éxito del log de envío descartados por tener el buffer lleno")
+                .register(registry);
+
+        Gauge.builder("email.mime.cache.size", mimeMessageFactory, MimeMessageFactory::getCachedBytes)
+                .baseUnit("bytes")
+                .description("Cuerpos codificados guardados para reutilizarlos")
+                .register(registry);
+        FunctionCounter.builder("email.mime.cache.lookups", mimeMessageFactory, MimeMessageFactory::getCacheHits)
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("email.mime.cache.lookups", mimeMessageFactory, MimeMessageFactory::getCacheMisses)
+                .tag("result", "miss")
+                .register(registry);
+
+        Gauge.builder("email.status.tracked", statusStore, DeliveryStatusStore::getTracked)
+                .description("Ids con estado de entrega en memoria")
+                .register(registry);
+
+        Gauge.builder("email.smtp.pool.idle", transportPool, pool -> pool.getStats().idleConnections())
+                .description("Conexiones SMTP abiertas sin usar")
+                .register(registry);
+        FunctionCounter.builder("email.smtp.pool.borrows", transportPool, pool -> pool.getStats().hits())
+                .tag("result", "hit")
+                .register(registry);
+        FunctionCounter.builder("email.smtp.pool.borrows", transportPool, pool -> pool.getStats().misses())
+                .tag("result", "miss")
+                .register(registry);
+
+        for (CircuitState state : CircuitState.values()) {
+            Gauge.builder("email.smtp.circuit.state", circuitBreaker, b -> b.getState() == state ? 1 : 0)
+                    .tag("state", state.tag())
+                    .description("1 si el circuito del servidor SMTP está en este estado")
+                    .register(registry);
+        }
+        Gauge.builder("email.smtp.circuit.concurrency", circuitBreaker, SmtpCircuitBreaker::getConcurrencyLimit)
+                .description("Envíos SMTP simultáneos permitidos por el circuito")
+                .register(registry);
+        FunctionCounter.builder("email.smtp.circuit.opened", circuitBreaker, SmtpCircuitBreaker::getOpenedCount)
+                .description("Veces que se ha abierto el circuito SMTP")
+                .register(registry);
+    }
+}
@@ -0,0 +1,168 @@
+package org.secr.sistemaenviocorreos.service.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Métricas del camino de envío. Cada etapa tiene su propio histograma de latencia para poder distinguir si la lentitud
+ * viene de la espera en la cola del broker, del renderizado, de la construcción MIME, del handshake SMTP o del DATA.
+ * Los histogramas con percentiles se activan por configuración ({@code management.metrics.distribution.*}).
+ */
+@Component
+public class EmailMetrics {
+
+    /**
+     * Cabecera AMQP con el instante (epoch millis) a partir del cual el mensaje está disponible para el consumidor.
+     */
+    public static final String ENQUEUED_AT_HEADER = "x-enqueued-at";
+
+    private final MeterRegistry registry;
+    private final Map<EmailPriority, Timer> queueResidency = new EnumMap<>(EmailPriority.class);
+    private final Timer render;
+    private final Timer mimeBuild;
+    private final Timer smtpConnect;
+    private final Timer smtpSend;
+    private final Counter retriesExhausted;
+    private final DistributionSummary coalescedBatch;
+
+    public EmailMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        for (EmailPriority priority : EmailPriority.values()) {
+            queueResidency.put(priority, Timer.builder("email.queue.residency")
+                    .tag("lane", priority.tag())
+                    .description("Tiempo desde que el mensaje se encola hasta que lo recibe el consumidor")
+                    .register(registry));
+        }
+        this.render = Timer.builder("email.render")
+                .description("Renderizado de la plantilla")
+                .register(registry);
+        this.mimeBuild = Timer.builder("email.mime.build")
+                .description("Construcción del mensaje MIME")
+                .register(registry);
+        this.smtpConnect = Timer.builder("email.smtp.connect")
+                .description("Apertura de conexión SMTP (TCP + STARTTLS + AUTH)")
+                .register(registry);
+        this.smtpSend = Timer.builder("email.smtp.send")
+                .description("Transacción SMTP de un mensaje sobre una conexión abierta")
+                .register(registry);
+        this.retriesExhausted = Counter.builder("email.retries.exhausted")
+                .description("Correos que agotan los reintentos")
+                .register(registry);
+        this.coalescedBatch = DistributionSummary.builder("email.coalescing.recipients")
+                .description("Destinatarios por transacción SMTP agrupada")
+                .register(registry);
+    }
+
+    /**
+     * @param enqueuedAt Valor de la cabecera {@link #ENQUEUED_AT_HEADER}, o {@code null} si el mensaje no la trae
+     * @param priority   Carril de la cola de la que se ha leído
+     */
+    public void recordQueueResidency(Long enqueuedAt, EmailPriority priority) {
+        if (enqueuedAt == null) return;
+        queueResidency.get(priority).record(Math.max(0, System.currentTimeMillis() - enqueuedAt), TimeUnit.MILLISECONDS);
+    }
+
+    public void recordRender(long nanos) {
+        render.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordMimeBuild(long nanos) {
+        mimeBuild.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordConnect(long nanos) {
+        smtpConnect.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void recordSend(long nanos) {
+        smtpSend.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Intento de envío fallido que consume un reintento.
+     * @param error Causa del fallo
+     */
+    public void recordRetry(Throwable error) {
+        registry.counter("email.retries", "exception", exceptionName(error)).increment();
+    }
+
+    /**
+     * Llamada a la republicación de un correo fallido.
+     * @param error     Causa del fallo que provoca la republicación
+     * @param success   Si el correo se pudo volver a encolar
+     */
+    public void recordRePublish(Throwable error, boolean success) {
+        registry.counter("email.republish", "exception", exceptionName(error),
+                "outcome", success ? "success" : "error").increment();
+    }
+
+    public void recordRetriesExhausted() {
+        retriesExhausted.increment();
+    }
+
+    /**
+     * Correo enviado a la cola de fallidos.
+     * @param error Último error, o {@code null} si llegó sin reintentos
+     */
+    public void recordDeadLettered(Throwable error) {
+        registry.counter("email.dead-lettered", "exception", exceptionName(error)).increment();
+    }
+
+    /**
+     * Resultado de una reinyección de la cola de fallidos.
+     */
+    public void recordReplay(int replayed, int failed) {
+        registry.counter("email.dead-letter.replayed", "outcome", "success").increment(replayed);
+        registry.counter("email.dead-letter.replayed", "outcome", "error").increment(failed);
+    }
+
+    /**
+     * Resultado de una publicación confirmada.
+     * @param outcome   {@code ack}, {@code nack}, {@code timeout} o {@code window_full}
+     * @param nanos     Tiempo hasta la confirmación
+     */
+    public void recordPublishConfirm(String outcome, long nanos) {
+        Timer.builder("email.publish.confirm").tag("outcome", outcome).register(registry)
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Correo frenado por la limitación de ritmo.
+     * @param limit     Dominio con límite propio o {@code default}
+     * @param action    {@code delayed} si se espera en el consumidor, {@code requeued} si se reencola
+     */
+    public void recordThrottled(String limit, String action) {
+        registry.counter("email.throttled", "limit", limit, "action", action).increment();
+    }
+
+    /**
+     * Correo repetido descartado por su clave de idempotencia.
+     * @param stage {@code publish} si se descarta al publicar, {@code send} si se descarta antes del envío SMTP
+     */
+    public void recordDuplicate(String stage) {
+        registry.counter("email.duplicates", "stage", stage).increment();
+    }
+
+    /**
+     * Línea ilegible de un bucket de correos programados, apartada para no bloquear el bucket.
+     */
+    public void recordScheduledQuarantined() {
+        registry.counter("email.scheduled.quarantined").increment();
+    }
+
+    public void recordCoalescedBatch(int recipients) {
+        coalescedBatch.record(recipients);
+    }
+
+    private static String exceptionName(Throwable error) {
+        return error == null ? "none" : error.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,64 @@
+package org.secr.sistemaenviocorreos.service.mime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Cuerpo de un correo ya codificado para el transporte (quoted-printable), listo para escribirse tal cual en el
+ * stream SMTP. Es inmutable, así que se puede compartir entre varios mensajes y entre hilos.
+ */
+public final class EncodedBody {
+
+    private final byte[] bytes;
+    private final int length;
+    private final String contentType;
+    private final String transferEncoding;
+
+    private EncodedBody(byte[] bytes, int length, String contentType, String transferEncoding) {
+        this.bytes = bytes;
+        this.length = length;
+        this.contentType = contentType;
+        this.transferEncoding = transferEncoding;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public String contentType() {
+        return contentType;
+    }
+
+    public String transferEncoding() {
+        return transferEncoding;
+    }
+
+    /**
+     * Escribe el cuerpo sin copiarlo.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    public InputStream newInputStream() {
+        return new ByteArrayInputStream(bytes, 0, length);
+    }
+
+    /**
+     * Buffer en el que se escribe el cuerpo codificado. {@link #toBody()} se queda con el array interno en lugar de
+     * copiarlo, por lo que el buffer no se debe volver a usar después.
+     */
+    static final class Buffer extends ByteArrayOutputStream {
+
+        Buffer(int size) {
+            super(size);
+        }
+
+        EncodedBody toBody(String contentType, String transferEncoding) {
+            return new EncodedBody(buf, count, contentType, transferEncoding);
+        }
+    }
+}
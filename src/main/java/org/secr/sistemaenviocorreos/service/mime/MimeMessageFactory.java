@@ -0,0 +1,224 @@
+package org.secr.sistemaenviocorreos.service.mime;
+
+import jakarta.activation.DataHandler;
+import jakarta.activation.DataSource;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import jakarta.mail.internet.MimeUtility;
+import jakarta.mail.internet.PreencodedMimeBodyPart;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.secr.sistemaenviocorreos.service.EmailTemplateRenderer;
+import org.secr.sistemaenviocorreos.service.attachment.AttachmentStore;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.template.TemplateRenderPlan;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Construcción de los mensajes MIME. La plantilla se renderiza directamente sobre un codificador quoted-printable y el
+ * resultado ({@link EncodedBody}) se escribe tal cual en el stream SMTP, sin pasar por {@link String} ni por la
+ * recodificación de {@link MimeMessage}. Los correos sin adjuntos van en una sola parte {@code text/html}; los que
+ * llevan adjuntos van en un {@code multipart/mixed} cuyo cuerpo es ese mismo {@link EncodedBody} y cuyos adjuntos se
+ * leen del {@link AttachmentStore} por bloques y se codifican en base64 al escribirse en el stream SMTP.
+ * <p>
+ * Si el resultado de la plantilla solo depende del asunto y del mensaje, el cuerpo codificado se guarda en una caché
+ * LRU limitada en bytes y los correos con el mismo contenido (campañas, reintentos) reutilizan los mismos bytes.
+ */
+@Service
+public class MimeMessageFactory {
+
+    static final String CONTENT_TYPE = "text/html; charset=UTF-8";
+    static final String TRANSFER_ENCODING = "quoted-printable";
+
+    private static final Set<String> CACHEABLE_FIELDS = Set.of("subject", "message");
+
+    @Autowired
+    private JavaMailSender mailSender;
+
+    @Autowired
+    private EmailTemplateRenderer renderer;
+
+    @Autowired
+    private EmailMetrics metrics;
+
+    @Autowired
+    private AttachmentStore attachmentStore;
+
+    @Value("${email.mime.cache.enabled:true}")
+    private Boolean cacheEnabled = true;
+
+    @Value("${email.mime.cache.max-bytes:16777216}")
+    private Long cacheMaxBytes = 16L * 1024 * 1024;
+
+    private final Map<CacheKey, EncodedBody> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /**
+     * @param shared    Mensaje común a varios destinatarios: no lleva el destinatario en la cabecera To
+     */
+    public MimeMessage create(EmailTemplateType templateType, PublishRabbitMQDTO rMQMessage, String sender,
+                              boolean shared) throws MessagingException {
+        EncodedBody body = body(templateType, rMQMessage);
+
+        long start = System.nanoTime();
+        MimeMessage mimeMessage = rMQMessage.hasAttachments()
+                ? withAttachments(body, rMQMessage)
+                : new PreEncodedMimeMessage(((JavaMailSenderImpl) mailSender).getSession(), body);
+        mimeMessage.setFrom(sender);
+        if (shared) mimeMessage.setHeader("To", "undisclosed-recipients:;");
+        else mimeMessage.setRecipients(Message.RecipientType.TO, rMQMessage.email());
+        mimeMessage.setSubject(rMQMessage.subject(), "UTF-8");
+        metrics.recordMimeBuild(System.nanoTime() - start);
+        return mimeMessage;
+    }
+
+    /**
+     * Mensaje {@code multipart/mixed}. El cuerpo va ya codificado y la codificación de los adjuntos se fija a base64
+     * de antemano para que JavaMail no tenga que leer el fichero entero para elegirla.
+     */
+    private MimeMessage withAttachments(EncodedBody body, PublishRabbitMQDTO rMQMessage) throws MessagingException {
+        MimeMultipart multipart = new MimeMultipart("mixed");
+        MimeBodyPart bodyPart = new PreencodedMimeBodyPart(body.transferEncoding());
+        bodyPart.setDataHandler(new DataHandler(new EncodedBodyDataSource(body)));
+        bodyPart.setHeader("Content-Type", body.contentType());
+        multipart.addBodyPart(bodyPart);
+
+        for (AttachmentDTO attachment : rMQMessage.attachments()) {
+            if (!attachmentStore.exists(attachment.id())) {
+                throw new MessagingException("Adjunto no encontrado: " + attachment.id());
+            }
+            MimeBodyPart attachmentPart = new MimeBodyPart();
+            attachmentPart.setDataHandler(new DataHandler(attachmentStore.dataSource(attachment)));
+            attachmentPart.setFileName(attachment.filename());
+            attachmentPart.setDisposition(MimeBodyPart.ATTACHMENT);
+            attachmentPart.setHeader("Content-Transfer-Encoding", "base64");
+            multipart.addBodyPart(attachmentPart);
+        }
+
+        MimeMessage mimeMessage = new MimeMessage(((JavaMailSenderImpl) mailSender).getSession());
+        mimeMessage.setContent(multipart);
+        return mimeMessage;
+    }
+
+    /**
+     * Cuerpo codificado del correo, de la caché si el contenido ya se ha codificado antes.
+     */
+    EncodedBody body(EmailTemplateType templateType, PublishRabbitMQDTO rMQMessage) throws MessagingException {
+        TemplateRenderPlan plan = cacheablePlan(templateType);
+        CacheKey key = plan != null ? new CacheKey(plan, rMQMessage.subject(), rMQMessage.message()) : null;
+        if (key != null) {
+            EncodedBody cached = cached(key);
+            if (cached != null) {
+                cacheHits.incrementAndGet();
+                return cached;
+            }
+            cacheMisses.incrementAndGet();
+        }
+
+        long start = System.nanoTime();
+        EncodedBody body = encode(templateType, rMQMessage);
+        metrics.recordRender(System.nanoTime() - start);
+        if (key != null) put(key, body);
+        return body;
+    }
+
+    private EncodedBody encode(EmailTemplateType templateType, PublishRabbitMQDTO rMQMessage)
+            throws MessagingException {
+        int estimated = renderer.planFor(templateType).map(TemplateRenderPlan::estimatedLength).orElse(4096);
+        EncodedBody.Buffer buffer = new EncodedBody.Buffer(estimated + estimated / 8);
+        try {
+            OutputStream encoder = MimeUtility.encode(buffer, TRANSFER_ENCODING);
+            renderer.renderTo(templateType, rMQMessage, encoder);
+            encoder.flush();
+        } catch (IOException e) {
+            throw new MessagingException("No se pudo codificar el cuerpo del correo", e);
+        }
+        return buffer.toBody(CONTENT_TYPE, TRANSFER_ENCODING);
+    }
+
+    /**
+     * El cuerpo solo se puede reutilizar si la plantilla no lee campos distintos del asunto y el mensaje. Con el motor
+     * Thymeleaf no se sabe qué campos se usan, así que no se guarda.
+     * @return Plan de la versión en uso, o {@code null} si el cuerpo no se puede reutilizar
+     */
+    private TemplateRenderPlan cacheablePlan(EmailTemplateType templateType) {
+        if (!cacheEnabled) return null;
+        return renderer.planFor(templateType).filter(plan -> CACHEABLE_FIELDS.containsAll(plan.fields())).orElse(null);
+    }
+
+    private synchronized EncodedBody cached(CacheKey key) {
+        return cache.get(key);
+    }
+
+    private synchronized void put(CacheKey key, EncodedBody body) {
+        if (body.length() > cacheMaxBytes / 4) return;
+        EncodedBody previous = cache.put(key, body);
+        cachedBytes += body.length() - (previous == null ? 0 : previous.length());
+        Iterator<EncodedBody> eldest = cache.values().iterator();
+        while (cachedBytes > cacheMaxBytes && eldest.hasNext()) {
+            cachedBytes -= eldest.next().length();
+            eldest.remove();
+        }
+    }
+
+    public long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.get();
+    }
+
+    public synchronized long getCachedBytes() {
+        return cachedBytes;
+    }
+
+    private record EncodedBodyDataSource(EncodedBody body) implements DataSource {
+
+        @Override
+        public InputStream getInputStream() {
+            return body.newInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            throw new UnsupportedOperationException("Cuerpo de solo lectura");
+        }
+
+        @Override
+        public String getContentType() {
+            return body.contentType();
+        }
+
+        @Override
+        public String getName() {
+            return null;
+        }
+    }
+
+    /**
+     * Cada versión de una plantilla tiene su propio plan, así que al publicar una versión nueva los cuerpos de la
+     * anterior dejan de usarse y salen de la caché por antigüedad.
+     */
+    private record CacheKey(TemplateRenderPlan plan, String subject, String message) {
+    }
+}
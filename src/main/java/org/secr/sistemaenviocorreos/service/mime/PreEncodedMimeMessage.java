@@ -0,0 +1,64 @@
+package org.secr.sistemaenviocorreos.service.mime;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Enumeration;
+
+/**
+ * Mensaje de una sola parte cuyo cuerpo ya está codificado. Al enviarlo se escriben las cabeceras y a continuación el
+ * {@link EncodedBody} directamente en el stream SMTP, sin el árbol de partes ni la recodificación de
+ * {@link MimeMessage}.
+ */
+public class PreEncodedMimeMessage extends MimeMessage {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final EncodedBody body;
+
+    public PreEncodedMimeMessage(Session session, EncodedBody body) throws MessagingException {
+        super(session);
+        this.body = body;
+        setHeader("Content-Type", body.contentType());
+        setHeader("Content-Transfer-Encoding", body.transferEncoding());
+    }
+
+    /**
+     * Solo se actualizan las cabeceras del mensaje: las del contenido ya son las del cuerpo codificado.
+     */
+    @Override
+    protected void updateHeaders() throws MessagingException {
+        setHeader("MIME-Version", "1.0");
+        if (getHeader("Date") == null) setSentDate(new Date());
+        updateMessageID();
+    }
+
+    @Override
+    public int getSize() {
+        return body.length();
+    }
+
+    @Override
+    protected InputStream getContentStream() {
+        return body.newInputStream();
+    }
+
+    @Override
+    public void writeTo(OutputStream os, String[] ignoreList) throws IOException, MessagingException {
+        if (!saved) saveChanges();
+        Enumeration<String> headers = getNonMatchingHeaderLines(ignoreList);
+        while (headers.hasMoreElements()) {
+            os.write(headers.nextElement().getBytes(StandardCharsets.UTF_8));
+            os.write(CRLF);
+        }
+        os.write(CRLF);
+        body.writeTo(os);
+        os.flush();
+    }
+}
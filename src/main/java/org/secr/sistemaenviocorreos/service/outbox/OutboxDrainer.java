@@ -0,0 +1,96 @@
+package org.secr.sistemaenviocorreos.service.outbox;
+
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publicación periódica de los correos del {@link OutboxJournal} cuando el broker vuelve a estar disponible. Los
+ * correos se publican por lotes en el orden en que se guardaron y el checkpoint solo avanza hasta el último confirmado
+ * sin huecos; lo que queda detrás de un fallo se reintenta en la siguiente pasada.
+ */
+@Service
+public class OutboxDrainer {
+
+    private static final Logger logger = Logger.getLogger(OutboxDrainer.class.getName());
+
+    @Autowired
+    private OutboxJournal journal;
+
+    @Autowired
+    private EmailPublisher emailPublisher;
+
+    @Value("${email.outbox.drain-batch-size:500}")
+    private Integer drainBatchSize = 500;
+
+    @Value("${email.batch.confirm-timeout:10}")
+    private Integer confirmTimeout = 10; //seconds
+
+    @Scheduled(fixedDelayString = "${email.outbox.drain-interval:1000}")
+    public void drain() {
+        if (!journal.isEnabled() || !journal.hasPending()) return;
+        long drained = 0;
+        try {
+            List<OutboxJournal.Entry> entries;
+            while (!(entries = journal.read(drainBatchSize)).isEmpty()) {
+                int published = publish(entries);
+                drained += published;
+                if (published < entries.size()) break;
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "No se pudo leer el outbox: ", e);
+        }
+        if (drained > 0) logger.info("Publicados " + drained + " correos del outbox");
+    }
+
+    /**
+     * Publica un lote y avanza el checkpoint hasta el último correo confirmado sin huecos.
+     * @return Correos publicados y confirmados
+     */
+    int publish(List<OutboxJournal.Entry> entries) throws IOException {
+        List<CorrelationData> pending = new ArrayList<>(entries.size());
+        try {
+            for (OutboxJournal.Entry entry : entries) {
+                CorrelationData correlationData = new CorrelationData(entry.id());
+                emailPublisher.publishConfirmed(entry.message(), correlationData);
+                pending.add(correlationData);
+            }
+        } catch (AmqpException e) {
+            logger.warning("Broker no disponible, el outbox se publicará más tarde: " + e.getMessage());
+        }
+
+        int confirmed = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(confirmTimeout);
+        try {
+            for (CorrelationData correlationData : pending) {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                CorrelationData.Confirm confirm = correlationData.getFuture().get(remaining, TimeUnit.NANOSECONDS);
+                if (!confirm.isAck()) {
+                    logger.warning("El broker rechazó el correo " + correlationData.getId() + " del outbox: "
+                            + confirm.getReason());
+                    break;
+                }
+                confirmed++;
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            logger.warning("Sin confirmación del broker para el outbox, se reintentará");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (confirmed > 0) journal.commit(entries.get(confirmed - 1).next(), confirmed);
+        return confirmed;
+    }
+}
@@ -0,0 +1,371 @@
+package org.secr.sistemaenviocorreos.service.outbox;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.secr.sistemaenviocorreos.config.codec.BinaryEmailCodec;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Outbox local de los correos aceptados que no se han podido publicar en el broker. Los registros se añaden al final de
+ * segmentos de tamaño fijo mapeados en memoria ({@code <dir>/<segmento>.log}) y se llevan a disco en grupo: un único
+ * hilo hace {@code force()} cada {@code fsync-interval} y completa a la vez todas las escrituras desde el anterior, así
+ * el coste del fsync se reparte entre las peticiones concurrentes. El {@link OutboxDrainer} los publica en orden y
+ * avanza el checkpoint; los segmentos ya publicados se borran.
+ * <pre>
+ * registro: longitud (4 bytes) | crc32 (4 bytes) | longitud del id (2 bytes) | id | correo en binario
+ * </pre>
+ * Una longitud 0 o un crc incorrecto marcan el final de los datos de un segmento. Si al arrancar quedan restos de una
+ * escritura a medias, se continúa en un segmento nuevo para no mezclarlos con los registros siguientes.
+ */
+@Service
+public class OutboxJournal {
+
+    private static final Logger logger = Logger.getLogger(OutboxJournal.class.getName());
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE = "checkpoint";
+    static final int HEADER = 2 * Integer.BYTES;
+
+    @Value("${email.outbox.enabled:true}")
+    private Boolean enabled = true;
+
+    @Value("${email.outbox.dir:./data/outbox}")
+    private String directory = "./data/outbox";
+
+    @Value("${email.outbox.segment-size:67108864}")
+    private Integer segmentSize = 64 * 1024 * 1024; //bytes
+
+    @Value("${email.outbox.fsync-interval:2}")
+    private Integer fsyncInterval = 2; //milliseconds
+
+    private final BinaryEmailCodec codec = new BinaryEmailCodec(1024, 1);
+    private final Object writeLock = new Object();
+    private final AtomicLong depth = new AtomicLong();
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong drained = new AtomicLong();
+    private List<CompletableFuture<Void>> unsynced = new ArrayList<>();
+    private Path root;
+    private long headSegment;
+    private MappedByteBuffer head;
+    private Cursor checkpoint;
+    private ScheduledExecutorService syncer;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) return;
+        root = Paths.get(directory);
+        Files.createDirectories(root);
+        checkpoint = readCheckpoint();
+
+        List<Long> segments = segments();
+        for (long segment : segments) {
+            if (segment < checkpoint.segment()) Files.deleteIfExists(segmentFile(segment));
+        }
+        headSegment = segments.isEmpty() ? checkpoint.segment()
+                : Math.max(checkpoint.segment(), segments.get(segments.size() - 1));
+        recover();
+
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "email-outbox-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cuenta los registros pendientes desde el checkpoint y coloca la escritura tras el último registro válido.
+     */
+    private void recover() throws IOException {
+        long pending = 0;
+        for (long segment = checkpoint.segment(); segment <= headSegment; segment++) {
+            if (!Files.exists(segmentFile(segment))) continue;
+            ByteBuffer buffer = map(segment, FileChannel.MapMode.READ_ONLY);
+            int position = segment == checkpoint.segment() ? checkpoint.position() : 0;
+            int end;
+            while ((end = recordEnd(buffer, position)) >= 0) {
+                pending++;
+                position = end;
+            }
+            if (segment == headSegment) {
+                head = (MappedByteBuffer) map(segment, FileChannel.MapMode.READ_WRITE);
+                head.position(position);
+                if (!isClean(head, position)) {
+                    logger.warning("Restos de una escritura incompleta en el outbox, se continúa en otro segmento");
+                    roll();
+                }
+            }
+        }
+        if (head == null) head = (MappedByteBuffer) map(headSegment, FileChannel.MapMode.READ_WRITE);
+        depth.set(pending);
+        if (pending > 0) logger.info("Outbox con " + pending + " correos pendientes de publicar");
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Si quedan correos en el outbox. Mientras los haya, los correos nuevos también se guardan en él para no
+     * adelantarlos.
+     */
+    public boolean hasPending() {
+        return depth.get() > 0;
+    }
+
+    /**
+     * Correos guardados pendientes de publicar.
+     */
+    public long getDepth() {
+        return depth.get();
+    }
+
+    public long getAppended() {
+        return appended.get();
+    }
+
+    public long getDrained() {
+        return drained.get();
+    }
+
+    /**
+     * Añade un correo al outbox.
+     * @param id            Identificador del mensaje devuelto al cliente, se conserva al publicarlo
+     * @param rMQMessage    Correo aceptado
+     * @return              Futuro completado cuando el registro está en disco
+     * @throws IOException  Si el correo no cabe en un segmento o no se puede crear uno nuevo
+     */
+    public CompletableFuture<Void> append(String id, PublishRabbitMQDTO rMQMessage) throws IOException {
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = codec.encode(rMQMessage);
+        int length = Short.BYTES + idBytes.length + payload.length;
+        if (HEADER + length > segmentSize) {
+            throw new IOException("Correo demasiado grande para el outbox: " + length + " bytes");
+        }
+        byte[] body = ByteBuffer.allocate(length)
+                .putShort((short) idBytes.length)
+                .put(idBytes)
+                .put(payload)
+                .array();
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        CompletableFuture<Void> synced = new CompletableFuture<>();
+        synchronized (writeLock) {
+            if (head.remaining() < HEADER + length) roll();
+            int position = head.position();
+            //La longitud se escribe la última: hasta entonces el registro no existe para el lector
+            head.put(position + HEADER, body);
+            head.putInt(position + Integer.BYTES, (int) crc.getValue());
+            head.putInt(position, length);
+            head.position(position + HEADER + length);
+            unsynced.add(synced);
+            depth.incrementAndGet();
+        }
+        appended.incrementAndGet();
+        return synced;
+    }
+
+    /**
+     * Cierra el segmento actual y abre el siguiente. Se llama con {@code writeLock}.
+     */
+    private void roll() throws IOException {
+        head.force();
+        headSegment++;
+        head = (MappedByteBuffer) map(headSegment, FileChannel.MapMode.READ_WRITE);
+    }
+
+    /**
+     * Commit en grupo: lleva a disco el segmento actual y completa todas las escrituras pendientes.
+     */
+    void sync() {
+        List<CompletableFuture<Void>> batch;
+        MappedByteBuffer buffer;
+        synchronized (writeLock) {
+            if (unsynced.isEmpty()) return;
+            batch = unsynced;
+            unsynced = new ArrayList<>();
+            buffer = head;
+        }
+        try {
+            buffer.force();
+            batch.forEach(future -> future.complete(null));
+        } catch (UncheckedIOException e) {
+            batch.forEach(future -> future.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Lee correos pendientes a partir del checkpoint, en el orden en que se guardaron.
+     * @param max   Número máximo de correos
+     */
+    public synchronized List<Entry> read(int max) throws IOException {
+        long lastSegment;
+        int lastPosition;
+        ByteBuffer headView;
+        synchronized (writeLock) {
+            lastSegment = headSegment;
+            lastPosition = head.position();
+            headView = head.duplicate();
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        long segment = checkpoint.segment();
+        int position = checkpoint.position();
+        ByteBuffer buffer = null;
+        while (entries.size() < max && (segment < lastSegment || (segment == lastSegment && position < lastPosition))) {
+            if (buffer == null) {
+                buffer = segment == lastSegment ? headView : map(segment, FileChannel.MapMode.READ_ONLY);
+            }
+            int end = recordEnd(buffer, position);
+            if (end < 0) {
+                //Fin de un segmento cerrado
+                segment++;
+                position = 0;
+                buffer = null;
+                continue;
+            }
+            entries.add(decode(buffer, position, new Cursor(segment, end)));
+            position = end;
+        }
+        return entries;
+    }
+
+    /**
+     * Marca como publicados los correos hasta {@code cursor} y borra los segmentos que ya no tienen pendientes. Si el
+     * nodo cae antes de guardar el checkpoint, esos correos se vuelven a publicar al arrancar.
+     * @param cursor    Posición tras el último correo publicado
+     * @param count     Correos publicados desde el checkpoint anterior
+     */
+    public synchronized void commit(Cursor cursor, int count) throws IOException {
+        Path temporary = root.resolve(CHECKPOINT_FILE + ".tmp");
+        Files.writeString(temporary, cursor.segment() + " " + cursor.position(), StandardCharsets.UTF_8);
+        Files.move(temporary, root.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        for (long segment = checkpoint.segment(); segment < cursor.segment(); segment++) {
+            Files.deleteIfExists(segmentFile(segment));
+        }
+        checkpoint = cursor;
+        depth.addAndGet(-count);
+        drained.addAndGet(count);
+    }
+
+    @PreDestroy
+    void close() {
+        if (syncer == null) return;
+        syncer.shutdown();
+        sync();
+    }
+
+    private Entry decode(ByteBuffer buffer, int position, Cursor next) {
+        int length = buffer.getInt(position);
+        byte[] body = new byte[length];
+        buffer.get(position + HEADER, body);
+        int idLength = Short.toUnsignedInt(ByteBuffer.wrap(body).getShort());
+        String id = new String(body, Short.BYTES, idLength, StandardCharsets.UTF_8);
+        byte[] payload = new byte[length - Short.BYTES - idLength];
+        System.arraycopy(body, Short.BYTES + idLength, payload, 0, payload.length);
+        return new Entry(id, codec.decode(payload), next);
+    }
+
+    /**
+     * @return Posición tras el registro que empieza en {@code position}, o -1 si ahí no hay un registro completo
+     */
+    static int recordEnd(ByteBuffer buffer, int position) {
+        if (position + HEADER > buffer.capacity()) return -1;
+        int length = buffer.getInt(position);
+        if (length <= 0 || length > buffer.capacity() - position - HEADER) return -1;
+        byte[] body = new byte[length];
+        buffer.get(position + HEADER, body);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        return (int) crc.getValue() == buffer.getInt(position + Integer.BYTES) ? position + HEADER + length : -1;
+    }
+
+    private static boolean isClean(ByteBuffer buffer, int position) {
+        for (int i = position; i < buffer.capacity(); i++) {
+            if (buffer.get(i) != 0) return false;
+        }
+        return true;
+    }
+
+    private ByteBuffer map(long segment, FileChannel.MapMode mode) throws IOException {
+        Path file = segmentFile(segment);
+        if (mode == FileChannel.MapMode.READ_ONLY) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                return channel.map(mode, 0, channel.size());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return channel.map(mode, 0, segmentSize);
+        }
+    }
+
+    private Path segmentFile(long segment) {
+        return root.resolve(String.format("%020d", segment) + SEGMENT_SUFFIX);
+    }
+
+    private List<Long> segments() throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(root, "*" + SEGMENT_SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    //Fichero ajeno al outbox
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private Cursor readCheckpoint() throws IOException {
+        try {
+            String[] parts = Files.readString(root.resolve(CHECKPOINT_FILE), StandardCharsets.UTF_8).trim().split(" ");
+            return new Cursor(Long.parseLong(parts[0]), Integer.parseInt(parts[1]));
+        } catch (NoSuchFileException e) {
+            return new Cursor(0, 0);
+        }
+    }
+
+    /**
+     * Posición en el outbox.
+     */
+    public record Cursor(long segment, int position) {}
+
+    /**
+     * Correo guardado en el outbox.
+     * @param id        Identificador del mensaje devuelto al cliente
+     * @param message   Correo
+     * @param next      Posición tras este correo, para el checkpoint
+     */
+    public record Entry(String id, PublishRabbitMQDTO message, Cursor next) {}
+}
@@ -0,0 +1,221 @@
+package org.secr.sistemaenviocorreos.service.partition;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.secr.sistemaenviocorreos.config.NodeIdentity;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.EmailConsumer;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.pipeline.DeliveryAck;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpCircuitBreaker;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageBuilder;
+import org.springframework.amqp.core.Queue;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reparto de las particiones entre los nodos consumidores. Cada nodo anuncia que está vivo con latidos periódicos en
+ * un exchange fanout y lleva la lista de nodos vivos; las particiones se asignan con rendezvous hashing, de modo que
+ * todos los nodos llegan a la misma asignación sin coordinarse y, cuando un nodo entra o sale, solo cambian de dueño
+ * las particiones que le tocan a ese nodo. Cada nodo se suscribe solo a las colas de sus particiones.
+ */
+@Component
+@ConditionalOnProperty(name = "email.partitions.enabled", havingValue = "true")
+public class PartitionCoordinator {
+
+    private static final Logger logger = Logger.getLogger(PartitionCoordinator.class.getName());
+
+    static final String NODE_EVENT_HEADER = "x-node-event";
+    static final String LEAVE = "leave";
+
+    @Autowired
+    private ConnectionFactory connectionFactory;
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+    @Autowired
+    private EmailConsumer emailConsumer;
+    @Autowired
+    private PartitionRouter partitionRouter;
+    @Autowired
+    private NodeIdentity nodeIdentity;
+    @Autowired
+    private SmtpCircuitBreaker circuitBreaker;
+    @Autowired
+    @Qualifier("nodeEventsQueue")
+    private Queue nodeEventsQueue;
+
+    @Value("${rabbitmq.exchange}")
+    private String exchange;
+
+    @Value("${email.partitions.member-timeout:15000}")
+    private Long memberTimeout = 15000L; //milliseconds
+
+    @Value("${spring.rabbitmq.listener.simple.prefetch:250}")
+    private Integer prefetch = 250;
+
+    private final Map<String, Long> members = new ConcurrentHashMap<>();
+    private final Map<String, EmailPriority> queueLanes = new ConcurrentHashMap<>();
+    private Set<Integer> owned = new TreeSet<>();
+    private DirectMessageListenerContainer partitions;
+    private DirectMessageListenerContainer nodeEvents;
+
+    @PostConstruct
+    void start() {
+        members.put(nodeIdentity.getId(), System.currentTimeMillis());
+
+        partitions = new DirectMessageListenerContainer(connectionFactory);
+        partitions.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        partitions.setPrefetchCount(prefetch);
+        partitions.setMessageListener((ChannelAwareMessageListener) (message, channel) -> onPartitionMessage(message,
+                DeliveryAck.of(channel, message.getMessageProperties().getDeliveryTag())));
+        partitions.start();
+        circuitBreaker.register(partitions); //Se detiene con el circuito SMTP abierto
+
+        nodeEvents = new DirectMessageListenerContainer(connectionFactory);
+        nodeEvents.setQueueNames(nodeEventsQueue.getName());
+        nodeEvents.setMessageListener(this::onNodeEvent);
+        nodeEvents.start();
+
+        rebalance();
+        heartbeat();
+    }
+
+    @PreDestroy
+    void stop() {
+        nodeEvents.stop();
+        partitions.stop();
+        try {
+            announce(LEAVE);
+        } catch (AmqpException e) {
+            logger.log(Level.WARNING, "No se pudo anunciar la salida del nodo: ", e);
+        }
+    }
+
+    /**
+     * Latido periódico y expiración de los nodos que han dejado de anunciarse.
+     */
+    @Scheduled(fixedDelayString = "${email.partitions.heartbeat-interval:5000}")
+    public void heartbeat() {
+        try {
+            announce("heartbeat");
+        } catch (AmqpException e) {
+            logger.log(Level.WARNING, "No se pudo enviar el latido del nodo: ", e);
+        }
+        long now = System.currentTimeMillis();
+        members.put(nodeIdentity.getId(), now);
+        if (members.entrySet().removeIf(member -> now - member.getValue() > memberTimeout)) rebalance();
+    }
+
+    private void announce(String event) {
+        rabbitTemplate.send(exchange + ".nodes", "", MessageBuilder
+                .withBody(nodeIdentity.getId().getBytes(StandardCharsets.UTF_8))
+                .setHeader(NODE_EVENT_HEADER, event)
+                .build());
+    }
+
+    void onNodeEvent(Message message) {
+        String node = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (node.equals(nodeIdentity.getId())) return;
+        boolean changed = LEAVE.equals(message.getMessageProperties().getHeader(NODE_EVENT_HEADER))
+                ? members.remove(node) != null
+                : members.put(node, System.currentTimeMillis()) == null;
+        if (changed) rebalance();
+    }
+
+    /**
+     * Ajusta las suscripciones a la asignación actual. Las colas que se dejan se cancelan después de suscribirse a las
+     * nuevas; las entregas sin confirmar de una partición cedida vuelven al broker y las recibe el nuevo dueño.
+     */
+    synchronized void rebalance() {
+        Set<Integer> assigned = assign(members.keySet(), partitionRouter.getCount(), nodeIdentity.getId());
+        if (assigned.equals(owned)) return;
+
+        List<String> added = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        for (EmailPriority priority : EmailPriority.values()) {
+            for (int partition = 0; partition < partitionRouter.getCount(); partition++) {
+                String queue = partitionRouter.queueName(priority, partition);
+                queueLanes.put(queue, priority);
+                if (assigned.contains(partition) && !owned.contains(partition)) added.add(queue);
+                if (!assigned.contains(partition) && owned.contains(partition)) removed.add(queue);
+            }
+        }
+        if (!added.isEmpty()) partitions.addQueueNames(added.toArray(new String[0]));
+        if (!removed.isEmpty()) partitions.removeQueueNames(removed.toArray(new String[0]));
+        owned = assigned;
+        logger.info("Particiones asignadas a " + nodeIdentity.getId() + " (" + members.size() + " nodos): " + owned);
+    }
+
+    private void onPartitionMessage(Message message, DeliveryAck ack) {
+        EmailPriority lane = queueLanes.getOrDefault(message.getMessageProperties().getConsumerQueue(),
+                EmailPriority.TRANSACTIONAL);
+        PublishRabbitMQDTO rMQMessage;
+        try {
+            rMQMessage = (PublishRabbitMQDTO) rabbitTemplate.getMessageConverter().fromMessage(message);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Mensaje ilegible en la partición, se manda a la cola de fallidos: ", e);
+            ack.reject(false);
+            return;
+        }
+        emailConsumer.consume(rMQMessage, lane,
+                message.getMessageProperties().getHeader(EmailMetrics.ENQUEUED_AT_HEADER), ack);
+    }
+
+    public Set<Integer> getOwned() {
+        return Set.copyOf(owned);
+    }
+
+    /**
+     * Rendezvous hashing: cada partición es del nodo con mayor puntuación para ella.
+     * @return Particiones de {@code self}
+     */
+    static Set<Integer> assign(Collection<String> nodes, int count, String self) {
+        Set<Integer> assigned = new TreeSet<>();
+        for (int partition = 0; partition < count; partition++) {
+            String owner = null;
+            long best = Long.MIN_VALUE;
+            for (String node : nodes) {
+                long score = score(node, partition);
+                if (owner == null || score > best || (score == best && node.compareTo(owner) < 0)) {
+                    owner = node;
+                    best = score;
+                }
+            }
+            if (self.equals(owner)) assigned.add(partition);
+        }
+        return assigned;
+    }
+
+    private static long score(String node, int partition) {
+        long h = node.hashCode() * 0x9E3779B97F4A7C15L + partition;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,88 @@
+package org.secr.sistemaenviocorreos.service.partition;
+
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Locale;
+
+/**
+ * Reparto de los correos en particiones por dominio del destinatario. Todos los correos de un dominio van a la misma
+ * partición y cada partición la consume un único nodo, que así reutiliza sus conexiones SMTP y lleva la cuenta exacta
+ * de la limitación de ritmo del dominio. Con {@code email.partitions.enabled=false} no hay particiones y todo va a la
+ * cola de cada carril como hasta ahora.
+ */
+@Component
+public class PartitionRouter {
+
+    private final boolean enabled;
+    private final int count;
+    private final String queue;
+    private final String bulkQueue;
+
+    @Autowired
+    public PartitionRouter(@Value("${email.partitions.enabled:false}") boolean enabled,
+                           @Value("${email.partitions.count:16}") int count,
+                           @Value("${rabbitmq.queue}") String queue,
+                           @Value("${rabbitmq.bulk-queue}") String bulkQueue) {
+        this.enabled = enabled && count > 0;
+        this.count = Math.max(0, count);
+        this.queue = queue;
+        this.bulkQueue = bulkQueue;
+    }
+
+    /**
+     * Router sin particiones. Útil en tests.
+     */
+    public static PartitionRouter disabled() {
+        return new PartitionRouter(false, 0, null, null);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Partición de un destinatario. El hash de {@link String} está especificado, así que todos los nodos y
+     * publicadores calculan la misma partición.
+     */
+    public int partitionOf(String recipient) {
+        return Math.floorMod(mix(domainOf(recipient).hashCode()), count);
+    }
+
+    /**
+     * Clave de enrutado de un destinatario a partir de la del carril.
+     */
+    public String routingKey(String laneRoutingKey, String recipient) {
+        return enabled ? laneRoutingKey + suffix(partitionOf(recipient)) : laneRoutingKey;
+    }
+
+    public String queueName(EmailPriority priority, int partition) {
+        return (priority == EmailPriority.BULK ? bulkQueue : queue) + suffix(partition);
+    }
+
+    /**
+     * Sufijo de la cola y de la clave de enrutado de una partición.
+     */
+    public static String suffix(int partition) {
+        return ".p." + partition;
+    }
+
+    private static String domainOf(String recipient) {
+        if (recipient == null) return "";
+        int at = recipient.lastIndexOf('@');
+        return recipient.substring(at + 1).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash;
+    }
+}
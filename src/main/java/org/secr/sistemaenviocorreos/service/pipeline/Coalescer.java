@@ -0,0 +1,107 @@
+package org.secr.sistemaenviocorreos.service.pipeline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Agrupa elementos con la misma clave durante una ventana de tiempo. Un grupo se entrega cuando alcanza el tamaño
+ * máximo, en el hilo que añade el último elemento, o cuando vence la ventana, en el hilo del temporizador.
+ * @param <K>   Clave de agrupación
+ * @param <T>   Elemento agrupado
+ */
+public class Coalescer<K, T> implements AutoCloseable {
+
+    private static final Logger logger = Logger.getLogger(Coalescer.class.getName());
+
+    private final long windowNanos;
+    private final int maxSize;
+    private final Consumer<List<T>> flush;
+    private final Map<K, Batch<T>> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "email-coalescer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param windowMillis  Tiempo máximo que un elemento espera a otros con la misma clave
+     * @param maxSize       Tamaño máximo de un grupo
+     * @param flush         Recibe cada grupo cerrado
+     */
+    public Coalescer(long windowMillis, int maxSize, Consumer<List<T>> flush) {
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.maxSize = maxSize;
+        this.flush = flush;
+        long period = Math.max(5, windowMillis / 2);
+        timer.scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void offer(K key, T item) {
+        while (true) {
+            Batch<T> batch = batches.computeIfAbsent(key, k -> new Batch<>());
+            List<T> full = null;
+            synchronized (batch) {
+                if (batch.closed) continue; //Se acaba de entregar, se abre otro grupo
+                batch.items.add(item);
+                if (batch.items.size() >= maxSize) full = close(key, batch);
+            }
+            if (full != null) deliver(full);
+            return;
+        }
+    }
+
+    void flushExpired() {
+        long now = System.nanoTime();
+        batches.forEach((key, batch) -> {
+            List<T> expired = null;
+            synchronized (batch) {
+                if (!batch.closed && now - batch.createdNanos >= windowNanos) expired = close(key, batch);
+            }
+            if (expired != null) deliver(expired);
+        });
+    }
+
+    private List<T> close(K key, Batch<T> batch) {
+        batch.closed = true;
+        batches.remove(key, batch);
+        return batch.items;
+    }
+
+    private void deliver(List<T> items) {
+        try {
+            flush.accept(items);
+        } catch (RuntimeException e) {
+            logger.log(Level.SEVERE, "Error entregando un grupo de " + items.size() + " elementos: ", e);
+        }
+    }
+
+    /**
+     * Detiene el temporizador y entrega los grupos abiertos.
+     */
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        batches.forEach((key, batch) -> {
+            List<T> remaining;
+            synchronized (batch) {
+                if (batch.closed) return;
+                remaining = close(key, batch);
+            }
+            deliver(remaining);
+        });
+    }
+
+    private static final class Batch<T> {
+        private final List<T> items = new ArrayList<>();
+        private final long createdNanos = System.nanoTime();
+        private boolean closed;
+    }
+}
@@ -0,0 +1,67 @@
+package org.secr.sistemaenviocorreos.service.pipeline;
+
+import com.rabbitmq.client.Channel;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Confirmación diferida de una entrega AMQP. Permite confirmar el mensaje desde el hilo de la etapa que termina su
+ * procesamiento en lugar de desde el hilo del listener. Solo la primera llamada tiene efecto.
+ */
+public interface DeliveryAck {
+
+    DeliveryAck NONE = new DeliveryAck() {
+        @Override
+        public void ack() {
+        }
+
+        @Override
+        public void reject(boolean requeue) {
+        }
+    };
+
+    void ack();
+
+    void reject(boolean requeue);
+
+    static DeliveryAck of(Channel channel, long deliveryTag) {
+        return new ChannelDeliveryAck(channel, deliveryTag);
+    }
+
+    final class ChannelDeliveryAck implements DeliveryAck {
+
+        private static final Logger logger = Logger.getLogger(ChannelDeliveryAck.class.getName());
+
+        private final Channel channel;
+        private final long deliveryTag;
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        private ChannelDeliveryAck(Channel channel, long deliveryTag) {
+            this.channel = channel;
+            this.deliveryTag = deliveryTag;
+        }
+
+        @Override
+        public void ack() {
+            if (!done.compareAndSet(false, true)) return;
+            try {
+                channel.basicAck(deliveryTag, false);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "No se pudo confirmar la entrega " + deliveryTag + ": ", e);
+            }
+        }
+
+        @Override
+        public void reject(boolean requeue) {
+            if (!done.compareAndSet(false, true)) return;
+            try {
+                channel.basicNack(deliveryTag, false, requeue);
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.WARNING, "No se pudo rechazar la entrega " + deliveryTag + ": ", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.secr.sistemaenviocorreos.service.pipeline;
+
+import jakarta.annotation.PostConstruct;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * Pipeline por etapas del consumidor. El hilo del listener AMQP solo entrega el mensaje; el renderizado y la
+ * construcción MIME se ejecutan en una etapa acotada al número de núcleos y el envío SMTP, bloqueante, en una etapa
+ * con muchos más hilos. Las colas entre etapas son acotadas y, cuando se llenan, bloquean a la etapa anterior hasta
+ * llegar al listener, que deja de confirmar mensajes y el broker deja de entregar al alcanzar el prefetch. Cada etapa
+ * tiene un carril por prioridad ({@link LaneQueue}), de modo que un envío masivo no llena la cola por delante de los
+ * correos transaccionales.
+ * <p>
+ * La etapa de renderizado tiene además un grupo de hilos por carril: un hilo que ha preparado un correo espera a que
+ * haya hueco en su carril de la etapa SMTP, y con un único grupo un carril masivo lleno acabaría dejando a todos los
+ * hilos de renderizado esperando y a los correos transaccionales sin renderizar.
+ */
+@Service
+public class EmailPipeline implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(EmailPipeline.class.getName());
+
+    @Value("${email.pipeline.render-threads:0}")
+    private Integer renderThreads = 0; //por carril, 0 = núcleos disponibles
+
+    @Value("${email.pipeline.render-queue-capacity:256}")
+    private Integer renderQueueCapacity = 256;
+
+    @Value("${email.pipeline.smtp-threads:16}")
+    private Integer smtpThreads = 16;
+
+    @Value("${email.pipeline.smtp-queue-capacity:256}")
+    private Integer smtpQueueCapacity = 256;
+
+    @Value("${email.pipeline.transactional-weight:8}")
+    private Integer transactionalWeight = 8; //transaccionales por cada masivo cuando compiten
+
+    private final Map<EmailPriority, Executor> renderStages = new EnumMap<>(EmailPriority.class);
+    private Executor smtpStage;
+
+    public EmailPipeline() {
+    }
+
+    EmailPipeline(Executor renderStage, Executor smtpStage) {
+        for (EmailPriority priority : EmailPriority.values()) renderStages.put(priority, renderStage);
+        this.smtpStage = smtpStage;
+    }
+
+    /**
+     * Pipeline que ejecuta todas las etapas en el hilo que llama. Útil en tests.
+     */
+    public static EmailPipeline direct() {
+        return new EmailPipeline(Runnable::run, Runnable::run);
+    }
+
+    @PostConstruct
+    void start() {
+        int render = renderThreads > 0 ? renderThreads : Runtime.getRuntime().availableProcessors();
+        for (EmailPriority priority : EmailPriority.values()) {
+            renderStages.put(priority, boundedExecutor("email-render-" + priority.name().toLowerCase(Locale.ROOT),
+                    render, renderQueueCapacity, transactionalWeight));
+        }
+        smtpStage = boundedExecutor("email-smtp", smtpThreads, smtpQueueCapacity, transactionalWeight);
+        logger.info("Pipeline de envío iniciado: " + render + " hilos de renderizado por carril, " + smtpThreads
+                + " hilos SMTP");
+    }
+
+    /**
+     * Encola un mensaje en el carril transaccional del pipeline.
+     */
+    public <T> void submit(RenderStage<T> render, SendStage<T> send, Consumer<Throwable> completion) {
+        submit(EmailPriority.TRANSACTIONAL, render, send, completion);
+    }
+
+    /**
+     * Encola un mensaje en el pipeline. Bloquea si la cola de renderizado de su carril está llena.
+     * @param priority      Carril del mensaje en las dos etapas
+     * @param render        Etapa de CPU: renderizado y construcción del mensaje
+     * @param send          Etapa de E/S: envío SMTP del mensaje preparado
+     * @param completion    Se llama una única vez al terminar, con {@code null} si todo fue bien o con el error
+     * @param <T>           Tipo del mensaje preparado
+     */
+    public <T> void submit(EmailPriority priority, RenderStage<T> render, SendStage<T> send,
+                           Consumer<Throwable> completion) {
+        renderStages.get(priority).execute(new LaneQueue.LaneTask(priority, () -> {
+            T prepared;
+            try {
+                prepared = render.render();
+            } catch (Throwable e) {
+                completion.accept(e);
+                return;
+            }
+            try {
+                smtpStage.execute(new LaneQueue.LaneTask(priority, () -> {
+                    try {
+                        send.send(prepared);
+                    } catch (Throwable e) {
+                        completion.accept(e);
+                        return;
+                    }
+                    completion.accept(null);
+                }));
+            } catch (RejectedExecutionException e) {
+                completion.accept(e);
+            }
+        }));
+    }
+
+    /**
+     * Mensajes de un carril esperando en la cola de la etapa de renderizado.
+     */
+    public int renderQueueSize(EmailPriority priority) {
+        return queueSize(renderStages.get(priority), priority);
+    }
+
+    /**
+     * Mensajes preparados de un carril esperando un hilo SMTP.
+     */
+    public int smtpQueueSize(EmailPriority priority) {
+        return queueSize(smtpStage, priority);
+    }
+
+    private static int queueSize(Executor executor, EmailPriority priority) {
+        return executor instanceof ThreadPoolExecutor pool && pool.getQueue() instanceof LaneQueue queue
+                ? queue.size(priority) : 0;
+    }
+
+    @Override
+    public void destroy() throws InterruptedException {
+        for (Executor renderStage : renderStages.values()) shutdown(renderStage);
+        shutdown(smtpStage);
+    }
+
+    private static void shutdown(Executor executor) throws InterruptedException {
+        if (executor instanceof ExecutorService service) {
+            service.shutdown();
+            if (!service.awaitTermination(30, TimeUnit.SECONDS)) service.shutdownNow();
+        }
+    }
+
+    private static ThreadPoolExecutor boundedExecutor(String name, int threads, int capacity, int weight) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LaneQueue(capacity, weight), namedThreads(name), BLOCK_WHEN_FULL);
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Contrapresión: en lugar de rechazar la tarea cuando la cola está llena, el productor espera a que haya hueco.
+     */
+    private static final RejectedExecutionHandler BLOCK_WHEN_FULL = (task, executor) -> {
+        if (executor.isShutdown()) throw new RejectedExecutionException("Pipeline detenido");
+        try {
+            executor.getQueue().put(task);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrumpido esperando hueco en el pipeline", e);
+        }
+    };
+
+    @FunctionalInterface
+    public interface RenderStage<T> {
+        T render() throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface SendStage<T> {
+        void send(T prepared) throws Exception;
+    }
+}
@@ -0,0 +1,254 @@
+package org.secr.sistemaenviocorreos.service.pipeline;
+
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola de tareas de una etapa del pipeline con un carril por prioridad. Cada carril tiene su propia capacidad, así que
+ * un carril lleno solo bloquea a sus productores. Cuando hay tareas en los dos carriles se sacan
+ * {@code transactionalWeight} transaccionales por cada masiva: el carril transaccional nunca espera detrás del masivo
+ * y el masivo sigue avanzando aunque no deje de llegar tráfico transaccional.
+ * Las tareas que no son {@link LaneTask} van al carril transaccional.
+ */
+public class LaneQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    private final ArrayDeque<Runnable> transactional;
+    private final ArrayDeque<Runnable> bulk;
+    private final int capacity;
+    private final int transactionalWeight;
+    private int streak; //transaccionales seguidas con masivas esperando
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition transactionalNotFull = lock.newCondition();
+    private final Condition bulkNotFull = lock.newCondition();
+
+    /**
+     * @param capacity              Capacidad de cada carril
+     * @param transactionalWeight   Tareas transaccionales por cada masiva cuando hay de los dos tipos
+     */
+    public LaneQueue(int capacity, int transactionalWeight) {
+        this.capacity = capacity;
+        this.transactionalWeight = Math.max(1, transactionalWeight);
+        this.transactional = new ArrayDeque<>(capacity);
+        this.bulk = new ArrayDeque<>(capacity);
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        lock.lock();
+        try {
+            ArrayDeque<Runnable> lane = laneOf(task);
+            if (lane.size() >= capacity) return false;
+            lane.addLast(task);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Runnable> lane = laneOf(task);
+            while (lane.size() >= capacity) {
+                if (nanos <= 0) return false;
+                nanos = notFull(lane).awaitNanos(nanos);
+            }
+            lane.addLast(task);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            ArrayDeque<Runnable> lane = laneOf(task);
+            while (lane.size() >= capacity) notFull(lane).await();
+            lane.addLast(task);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (transactional.isEmpty() && bulk.isEmpty()) notEmpty.await();
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (transactional.isEmpty() && bulk.isEmpty()) {
+                if (nanos <= 0) return null;
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return transactional.isEmpty() && bulk.isEmpty() ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            return transactional.isEmpty() ? bulk.peekFirst() : transactional.peekFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Runnable dequeue() {
+        Runnable task;
+        if (bulk.isEmpty() || (!transactional.isEmpty() && streak < transactionalWeight)) {
+            task = transactional.pollFirst();
+            streak = bulk.isEmpty() ? 0 : streak + 1;
+            transactionalNotFull.signal();
+        } else {
+            task = bulk.pollFirst();
+            streak = 0;
+            bulkNotFull.signal();
+        }
+        return task;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            return transactional.size() + bulk.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Tareas esperando en un carril.
+     */
+    public int size(EmailPriority priority) {
+        lock.lock();
+        try {
+            return priority == EmailPriority.BULK ? bulk.size() : transactional.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        lock.lock();
+        try {
+            return 2 * capacity - transactional.size() - bulk.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object task) {
+        lock.lock();
+        try {
+            if (transactional.remove(task)) {
+                transactionalNotFull.signal();
+                return true;
+            }
+            if (bulk.remove(task)) {
+                bulkNotFull.signal();
+                return true;
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target) {
+        return drainTo(target, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> target, int maxElements) {
+        lock.lock();
+        try {
+            int drained = 0;
+            while (drained < maxElements && !(transactional.isEmpty() && bulk.isEmpty())) {
+                target.add(dequeue());
+                drained++;
+            }
+            return drained;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copia de las tareas en espera; no refleja cambios posteriores.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        lock.lock();
+        try {
+            List<Runnable> snapshot = new ArrayList<>(transactional);
+            snapshot.addAll(bulk);
+            return snapshot.iterator();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ArrayDeque<Runnable> laneOf(Runnable task) {
+        return task instanceof LaneTask laneTask && laneTask.priority() == EmailPriority.BULK ? bulk : transactional;
+    }
+
+    private Condition notFull(ArrayDeque<Runnable> lane) {
+        return lane == bulk ? bulkNotFull : transactionalNotFull;
+    }
+
+    /**
+     * Tarea con el carril al que pertenece.
+     */
+    public record LaneTask(EmailPriority priority, Runnable task) implements Runnable {
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package org.secr.sistemaenviocorreos.service.retry;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.GetResponse;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.dto.ReplayResultDTO;
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Cola de correos fallidos. Los correos que agotan los reintentos se guardan con el motivo del último fallo y se pueden
+ * devolver a la cola de envío en bloque, por ejemplo tras corregir las credenciales SMTP.
+ */
+@Service
+public class DeadLetterService {
+
+    private static final Logger logger = Logger.getLogger(DeadLetterService.class.getName());
+
+    public static final String FAILURE_REASON_HEADER = "x-failure-reason";
+    public static final String FAILURE_EXCEPTION_HEADER = "x-failure-exception";
+    public static final String FAILED_AT_HEADER = "x-failed-at";
+    public static final String ATTEMPTS_HEADER = "x-attempts";
+
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+
+    @Autowired
+    private RabbitTemplate rabbitTemplate;
+
+    @Autowired
+    private EmailPublisher emailPublisher;
+
+    @Autowired
+    private RetryPolicy retryPolicy;
+
+    @Autowired
+    private EmailMetrics metrics;
+
+    @Value("${email.batch.size:500}")
+    private Integer batchSize = 500;
+
+    @Value("${email.batch.confirm-timeout:10}")
+    private Integer confirmTimeout = 10; //seconds
+
+    /**
+     * Manda un correo a la cola de fallidos con los metadatos del fallo en cabeceras.
+     * @param rMQMessage    Correo fallido
+     * @param error         Último error, o {@code null} si llegó sin reintentos
+     * @throws AmqpException Error al publicar en el broker
+     */
+    public void deadLetter(PublishRabbitMQDTO rMQMessage, Throwable error) throws AmqpException {
+        int attempts = retryPolicy.getMaxAttempts() - Math.max(1, rMQMessage.retry()) + 1;
+        rabbitTemplate.convertAndSend("", retryPolicy.deadLetterQueue(), rMQMessage, message -> {
+            MessageProperties properties = message.getMessageProperties();
+            properties.setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+            properties.setHeader(FAILURE_REASON_HEADER, reasonOf(error));
+            if (error != null) properties.setHeader(FAILURE_EXCEPTION_HEADER, error.getClass().getName());
+            properties.setHeader(FAILED_AT_HEADER, System.currentTimeMillis());
+            properties.setHeader(ATTEMPTS_HEADER, attempts);
+            return message;
+        });
+        metrics.recordDeadLettered(error);
+        logger.warning("Correo a " + rMQMessage.email() + " enviado a la cola de fallidos: " + reasonOf(error));
+    }
+
+    /**
+     * Devuelve correos de la cola de fallidos a la cola de envío con los reintentos completos. Cada correo se retira
+     * de la cola de fallidos solo después de que el broker confirme su nueva publicación; los que no se confirman o no
+     * se pueden leer vuelven a la cola de fallidos.
+     * @param limit Número máximo de correos a procesar
+     * @return      Correos reinyectados y fallidos
+     */
+    public ReplayResultDTO replay(int limit) throws AmqpException {
+        ReplayResultDTO result = rabbitTemplate.execute(channel -> {
+            List<Replay> pending = new ArrayList<>(Math.min(limit, batchSize));
+            List<Long> unreadable = new ArrayList<>();
+            List<Long> unconfirmed = new ArrayList<>();
+            int published = 0;
+            int replayed = 0;
+            try {
+                while (published + unreadable.size() < limit) {
+                    GetResponse response = channel.basicGet(retryPolicy.deadLetterQueue(), false);
+                    if (response == null) break;
+                    long deliveryTag = response.getEnvelope().getDeliveryTag();
+
+                    PublishRabbitMQDTO dead;
+                    try {
+                        Message message = new Message(response.getBody(), propertiesConverter.toMessageProperties(
+                                response.getProps(), response.getEnvelope(), "UTF-8"));
+                        dead = (PublishRabbitMQDTO) rabbitTemplate.getMessageConverter().fromMessage(message);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Correo fallido ilegible, se deja en la cola: ", e);
+                        unreadable.add(deliveryTag);
+                        continue;
+                    }
+                    CorrelationData correlationData = new CorrelationData();
+                    emailPublisher.publishConfirmed(dead.withRetry(retryPolicy.getMaxAttempts()),
+                            correlationData);
+                    pending.add(new Replay(deliveryTag, correlationData));
+                    published++;
+                    if (pending.size() >= batchSize) replayed += confirm(channel, pending, unconfirmed);
+                }
+                replayed += confirm(channel, pending, unconfirmed);
+            } finally {
+                //Nada puede quedar sin confirmar en un canal que vuelve a la caché
+                for (Replay replay : pending) channel.basicNack(replay.deliveryTag(), false, true);
+                for (long deliveryTag : unreadable) channel.basicNack(deliveryTag, false, true);
+                for (long deliveryTag : unconfirmed) channel.basicNack(deliveryTag, false, true);
+            }
+            return new ReplayResultDTO(replayed, published - replayed + unreadable.size());
+        });
+        metrics.recordReplay(result.replayed(), result.failed());
+        logger.info("Reinyectados " + result.replayed() + " correos fallidos, " + result.failed() + " sin reinyectar");
+        return result;
+    }
+
+    /**
+     * Espera las confirmaciones de un lote: los confirmados se retiran de la cola de fallidos. El resto no se devuelve
+     * hasta terminar, para no volver a leerlos y publicarlos dos veces en la misma llamada si su publicación llega a
+     * confirmarse tarde.
+     * @param unconfirmed   Etiquetas de los correos sin confirmar, que vuelven a la cola de fallidos al terminar
+     * @return              Correos confirmados
+     */
+    private int confirm(Channel channel, List<Replay> pending, List<Long> unconfirmed) throws IOException {
+        int acked = 0;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(confirmTimeout);
+        for (Replay replay : pending) {
+            boolean ack;
+            try {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                ack = replay.correlationData().getFuture().get(remaining, TimeUnit.NANOSECONDS).isAck();
+            } catch (TimeoutException | ExecutionException e) {
+                ack = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                ack = false;
+            }
+            if (ack) {
+                channel.basicAck(replay.deliveryTag(), false);
+                acked++;
+            } else {
+                unconfirmed.add(replay.deliveryTag());
+            }
+        }
+        pending.clear();
+        return acked;
+    }
+
+    private static String reasonOf(Throwable error) {
+        if (error == null) return "Reintentos agotados";
+        return error.getMessage() != null ? error.getMessage() : error.getClass().getSimpleName();
+    }
+
+    private record Replay(long deliveryTag, CorrelationData correlationData) {}
+}
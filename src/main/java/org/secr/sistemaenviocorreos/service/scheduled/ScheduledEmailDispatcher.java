@@ -0,0 +1,169 @@
+package org.secr.sistemaenviocorreos.service.scheduled;
+
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Liberación periódica de los correos programados vencidos. Reclama los buckets vencidos del
+ * {@link ScheduledEmailStore} y publica sus correos en la cola de envío por lotes, esperando las confirmaciones del
+ * broker antes de registrar el progreso. Los correos cancelados, por id o por etiqueta, se saltan. Las líneas que no
+ * se pueden leer se apartan en cuarentena y cuentan como liberadas, para que no bloqueen el resto del bucket.
+ */
+@Service
+public class ScheduledEmailDispatcher {
+
+    private static final Logger logger = Logger.getLogger(ScheduledEmailDispatcher.class.getName());
+
+    @Autowired
+    private ScheduledEmailStore store;
+
+    @Autowired
+    private EmailPublisher emailPublisher;
+
+    @Autowired
+    private EmailMetrics metrics;
+
+    @Value("${email.scheduled.release-batch-size:500}")
+    private Integer releaseBatchSize = 500;
+
+    @Value("${email.scheduled.grace:2}")
+    private Integer grace = 2; //seconds
+
+    @Value("${email.batch.confirm-timeout:10}")
+    private Integer confirmTimeout = 10; //seconds
+
+    @Scheduled(fixedDelayString = "${email.scheduled.poll-interval:1000}")
+    public void dispatchDue() {
+        List<ScheduledEmailStore.ClaimedBucket> buckets;
+        try {
+            buckets = store.claimDue(LocalDateTime.now(), grace);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "No se pudieron leer los correos programados: ", e);
+            return;
+        }
+        for (ScheduledEmailStore.ClaimedBucket bucket : buckets) {
+            dispatch(bucket);
+        }
+    }
+
+    /**
+     * Publica un bucket reclamado. Si el broker falla, el bucket se libera con el progreso guardado para reintentarlo
+     * en la siguiente pasada sin duplicar lo ya confirmado.
+     */
+    void dispatch(ScheduledEmailStore.ClaimedBucket bucket) {
+        long released = bucket.releasedLines();
+        long cancelled = 0;
+        try (BufferedReader reader = store.open(bucket)) {
+            Set<String> cancelledIds = store.cancelledIds(bucket);
+            //Solo se consultan las etiquetas que aparecen en el bucket, una vez cada una
+            Map<String, Boolean> cancelledTags = new HashMap<>();
+            for (long skipped = 0; skipped < released; skipped++) {
+                if (reader.readLine() == null) break;
+            }
+
+            List<CorrelationData> pending = new ArrayList<>(releaseBatchSize);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                CorrelationData correlationData = new CorrelationData();
+                PublishRabbitMQDTO rMQMessage = line.isBlank() ? null : parse(bucket, line);
+                if (rMQMessage == null) {
+                    correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+                } else if (isCancelled(rMQMessage, cancelledIds, cancelledTags)) {
+                    cancelled++;
+                    correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+                } else {
+                    emailPublisher.publishConfirmed(rMQMessage, correlationData);
+                }
+                pending.add(correlationData);
+                if (pending.size() >= releaseBatchSize) {
+                    released = confirm(bucket, pending, released);
+                }
+            }
+            released = confirm(bucket, pending, released);
+            store.complete(bucket);
+            logger.info("Liberados " + (released - cancelled) + " correos programados de " + bucket.file().getFileName()
+                    + (cancelled > 0 ? " (" + cancelled + " cancelados)" : ""));
+        } catch (IOException | AmqpException | ConfirmException e) {
+            logger.log(Level.WARNING, "Error liberando correos programados, se reintentará: ", e);
+            try {
+                store.release(bucket);
+            } catch (IOException ex) {
+                logger.log(Level.SEVERE, "No se pudo liberar el bucket " + bucket.file(), ex);
+            }
+        }
+    }
+
+    /**
+     * @return Correo de la línea, o {@code null} si no se puede leer y se ha apartado en cuarentena
+     * @throws IOException Si no se ha podido apartar; el bucket se libera para reintentarlo
+     */
+    private PublishRabbitMQDTO parse(ScheduledEmailStore.ClaimedBucket bucket, String line) throws IOException {
+        try {
+            return store.parse(line);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Correo programado ilegible en " + bucket.file().getFileName()
+                    + ", se aparta en cuarentena: ", e);
+            store.quarantine(bucket, line);
+            metrics.recordScheduledQuarantined();
+            return null;
+        }
+    }
+
+    private boolean isCancelled(PublishRabbitMQDTO rMQMessage, Set<String> cancelledIds,
+                                Map<String, Boolean> cancelledTags) {
+        return (rMQMessage.id() != null && cancelledIds.contains(rMQMessage.id()))
+                || (rMQMessage.tag() != null && cancelledTags.computeIfAbsent(rMQMessage.tag(), store::isTagCancelled));
+    }
+
+    private long confirm(ScheduledEmailStore.ClaimedBucket bucket, List<CorrelationData> pending, long released)
+            throws IOException, ConfirmException {
+        if (pending.isEmpty()) return released;
+        long before = released;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(confirmTimeout);
+        try {
+            for (CorrelationData correlationData : pending) {
+                long remaining = Math.max(0, deadline - System.nanoTime());
+                CorrelationData.Confirm confirm = correlationData.getFuture().get(remaining, TimeUnit.NANOSECONDS);
+                if (!confirm.isAck()) throw new ConfirmException("Rechazado por el broker: " + confirm.getReason());
+                released++;
+            }
+        } catch (TimeoutException | ExecutionException e) {
+            throw new ConfirmException("Sin confirmación del broker");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ConfirmException("Interrumpido");
+        } finally {
+            store.saveProgress(bucket, released);
+            store.markReleased(released - before);
+        }
+        pending.clear();
+        return released;
+    }
+
+    private static class ConfirmException extends Exception {
+        ConfirmException(String message) {
+            super(message);
+        }
+    }
+}
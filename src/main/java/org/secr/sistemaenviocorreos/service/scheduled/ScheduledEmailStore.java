@@ -0,0 +1,546 @@
+package org.secr.sistemaenviocorreos.service.scheduled;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
+import org.secr.sistemaenviocorreos.config.NodeIdentity;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Almacén persistente de correos programados indexado por tiempo. Cada correo se añade como una línea JSON al fichero
+ * de su bucket temporal ({@code <dir>/<hora>/<bucket>.<nodo>.jsonl}), por lo que la memoria usada no depende del número
+ * de correos pendientes. Los buckets vencidos se reclaman renombrando el fichero de forma atómica, lo que permite que
+ * varios nodos compartan el mismo directorio sin enviar dos veces el mismo bucket.
+ * <p>
+ * El identificador de un correo programado empieza por su bucket ({@code <bucket>-<id>}), así que se localiza sin
+ * índices en memoria. Cancelar no toca el fichero del bucket: se comprueba que el correo está en él, se añade el id a
+ * {@code <bucket>.cancelled} y se salta al liberarlo. Las etiquetas canceladas se marcan con un fichero en
+ * {@code <dir>/tags/}, por lo que cancelar una etiqueta no recorre sus correos por muchos que sean; al liberar un
+ * bucket solo se comprueban las etiquetas que aparecen en él, sin listar el directorio.
+ */
+@Service
+public class ScheduledEmailStore {
+
+    private static final Logger logger = Logger.getLogger(ScheduledEmailStore.class.getName());
+    private static final String DATA_SUFFIX = ".jsonl";
+    private static final String CLAIM_SUFFIX = ".claimed";
+    private static final String PROGRESS_SUFFIX = ".progress";
+    private static final String CANCELLED_SUFFIX = ".cancelled";
+    private static final String TAGS_DIR = "tags";
+    private static final String QUARANTINE_DIR = "quarantine";
+    private static final String QUARANTINE_SUFFIX = ".quarantined";
+    private static final Pattern ID_PATTERN = Pattern.compile("(\\d{1,12})-[A-Za-z0-9._:-]{1,128}");
+    private static final Pattern TAG_PATTERN = Pattern.compile("[A-Za-z0-9._-]{1,64}");
+    private static final int LOCK_STRIPES = 64;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private NodeIdentity nodeIdentity;
+
+    @Value("${email.scheduled.dir:./data/scheduled}")
+    private String directory;
+
+    @Value("${email.scheduled.bucket-size:10}")
+    private Integer bucketSize = 10; //seconds
+
+    @Value("${email.scheduled.claim-timeout:300}")
+    private Integer claimTimeout = 300; //seconds
+
+    @Value("${email.scheduled.fsync:true}")
+    private Boolean fsync = true;
+
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final AtomicLong pending = new AtomicLong();
+    private Path root;
+    CompletableFuture<Void> pendingCounted;
+
+    public ScheduledEmailStore() {
+        for (int i = 0; i < LOCK_STRIPES; i++) locks[i] = new Object();
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        root = Paths.get(directory);
+        Files.createDirectories(root.resolve(TAGS_DIR));
+        pendingCounted = CompletableFuture.runAsync(this::seedPending, runnable -> {
+            Thread thread = new Thread(runnable, "scheduled-pending-count");
+            thread.setDaemon(true);
+            thread.start();
+        });
+    }
+
+    /**
+     * Suma a los pendientes los correos que ya había en el directorio. Recorrer todos los buckets puede tardar con
+     * muchos correos programados, así que se hace en segundo plano sin retrasar el arranque.
+     */
+    private void seedPending() {
+        try {
+            long start = System.nanoTime();
+            long count = countPending();
+            pending.addAndGet(count);
+            logger.info(count + " correos programados pendientes contados en "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No se pudieron contar los correos programados pendientes: ", e);
+        }
+    }
+
+    /**
+     * Correos programados pendientes de liberar. Se cuenta en segundo plano al arrancar a partir de los ficheros del
+     * directorio y después se mantiene con lo que este nodo programa y libera, por lo que con el directorio compartido
+     * es aproximado y justo después de arrancar puede quedarse corto.
+     */
+    public long getPendingCount() {
+        return Math.max(0, pending.get());
+    }
+
+    /**
+     * Descuenta correos liberados de los pendientes.
+     * @param count Correos publicados y confirmados por el broker
+     */
+    public void markReleased(long count) {
+        pending.addAndGet(-count);
+    }
+
+    private long countPending() throws IOException {
+        long count = 0;
+        for (Path hourDir : sortedChildren(root)) {
+            for (Path file : sortedChildren(hourDir)) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(DATA_SUFFIX)) count += countLines(file);
+                else if (name.endsWith(CLAIM_SUFFIX)) count += Math.max(0, countLines(file) - readProgress(file));
+            }
+        }
+        return count;
+    }
+
+    private static long countLines(Path file) throws IOException {
+        long lines = 0;
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++) if (buffer[i] == '\n') lines++;
+            }
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+        return lines;
+    }
+
+    /**
+     * Guarda un correo programado en el bucket correspondiente a su fecha de envío. Al volver el correo está en disco.
+     * @param rMQMessage    Correo con fecha de envío futura
+     * @throws IOException  Error de escritura
+     */
+    public void schedule(PublishRabbitMQDTO rMQMessage) throws IOException {
+        long idBucket = bucketOfId(rMQMessage.id());
+        long bucket = idBucket >= 0 ? idBucket : bucketOf(rMQMessage.sendDate());
+        Path file = hourDirectory(bucket).resolve(fileName(bucket, nodeIdentity.getId()));
+        append(bucket, file, objectMapper.writeValueAsString(rMQMessage));
+        pending.incrementAndGet();
+    }
+
+    private void append(long bucket, Path file, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        synchronized (locks[(int) Math.floorMod(bucket, (long) LOCK_STRIPES)]) {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                if (fsync) channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Identificador de un correo programado para {@code sendDate}. Lleva delante el bucket para localizarlo después.
+     * @param base  Parte única del identificador
+     */
+    public String newId(LocalDateTime sendDate, String base) {
+        return bucketOf(sendDate) + "-" + base;
+    }
+
+    /**
+     * Cancela un correo programado. Solo se escribe el id en la lista de cancelados de su bucket.
+     * <p>
+     * Quien libera un bucket lee la lista después de reclamarlo, así que si tras escribir el id el bucket sigue sin
+     * reclamar el correo no se enviará. Si se ha reclamado entre medias no se puede asegurar y se avisa como si ya se
+     * estuviera enviando.
+     * @return {@code false} si el id no es de un correo pendiente o su bucket ya se ha liberado
+     * @throws IllegalStateException Si el bucket se está liberando en este momento
+     */
+    public boolean cancel(String id) throws IOException {
+        long bucket = bucketOfId(id);
+        if (bucket < 0) return false;
+        BucketFiles files = bucketFiles(bucket);
+        if (files.claimed()) throw new IllegalStateException("El correo " + id + " se está enviando");
+        if (cancelledIds(bucket).contains(id)) return false;
+        Path file = locate(id, files.data());
+        if (file == null) return false;
+        append(bucket, cancelledFile(bucket), id);
+        BucketFiles after = bucketFiles(bucket);
+        if (after.claimed() || !after.data().contains(file)) {
+            throw new IllegalStateException("El correo " + id + " se está enviando");
+        }
+        return true;
+    }
+
+    /**
+     * Busca un correo pendiente. Solo se recorren los ficheros de su bucket.
+     * @return Correo o {@code null} si no está pendiente
+     */
+    public PublishRabbitMQDTO find(String id) throws IOException {
+        long bucket = bucketOfId(id);
+        if (bucket < 0) return null;
+        BucketFiles files = bucketFiles(bucket);
+        if (cancelledIds(bucket).contains(id)) return null;
+        Path file = locate(id, files.data());
+        return file != null ? read(id, file) : null;
+    }
+
+    /**
+     * Fichero del bucket que contiene el correo, o {@code null} si no está en ninguno.
+     */
+    private Path locate(String id, List<Path> data) throws IOException {
+        for (Path file : data) {
+            if (read(id, file) != null) return file;
+        }
+        return null;
+    }
+
+    private PublishRabbitMQDTO read(String id, Path file) throws IOException {
+        String quoted = "\"" + id + "\"";
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.contains(quoted)) continue;
+                PublishRabbitMQDTO rMQMessage = parse(line);
+                if (id.equals(rMQMessage.id())) return rMQMessage;
+            }
+        } catch (NoSuchFileException e) {
+            //Reclamado mientras tanto
+        }
+        return null;
+    }
+
+    /**
+     * Cambia la fecha de un correo pendiente. Se programa una copia con un id nuevo y se cancela el original; si no se
+     * puede cancelar se cancela también la copia, de modo que el correo solo sale una vez.
+     * @return Id nuevo, o {@code null} si el correo no está pendiente
+     * @throws IllegalStateException Si el bucket se está liberando en este momento
+     */
+    public String reschedule(String id, LocalDateTime sendDate) throws IOException {
+        if (bucketOfId(id) == bucketOf(sendDate)) return find(id) != null ? id : null;
+        PublishRabbitMQDTO rMQMessage = find(id);
+        if (rMQMessage == null) return null;
+        String newId = newId(sendDate, UUID.randomUUID().toString());
+        schedule(rMQMessage.rescheduled(newId, sendDate));
+        boolean cancelled;
+        try {
+            cancelled = cancel(id);
+        } catch (IOException | RuntimeException e) {
+            discard(newId);
+            throw e;
+        }
+        if (cancelled) return newId;
+        discard(newId);
+        return null;
+    }
+
+    /**
+     * Cancela la copia de una reprogramación que no se ha completado.
+     */
+    private void discard(String id) {
+        try {
+            if (cancel(id)) return;
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "No se pudo descartar la copia reprogramada " + id + ": ", e);
+            return;
+        }
+        logger.severe("No se pudo descartar la copia reprogramada " + id + ", el correo puede enviarse dos veces");
+    }
+
+    /**
+     * Cancela todos los correos programados con una etiqueta, pendientes o por llegar. No se puede deshacer.
+     */
+    public void cancelTag(String tag) throws IOException {
+        if (!isValidTag(tag)) throw new IllegalArgumentException("Etiqueta no válida: " + tag);
+        try {
+            Files.createFile(root.resolve(TAGS_DIR).resolve(tag));
+        } catch (FileAlreadyExistsException e) {
+            //Ya cancelada
+        }
+    }
+
+    public boolean isTagCancelled(String tag) {
+        return isValidTag(tag) && Files.exists(root.resolve(TAGS_DIR).resolve(tag));
+    }
+
+    /**
+     * Ids cancelados del bucket de un fichero reclamado.
+     */
+    public Set<String> cancelledIds(ClaimedBucket bucket) throws IOException {
+        String name = bucket.file().getFileName().toString();
+        return cancelledIds(parseLong(name.substring(0, name.indexOf('.'))));
+    }
+
+    private Set<String> cancelledIds(long bucket) throws IOException {
+        try {
+            return new HashSet<>(Files.readAllLines(cancelledFile(bucket), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return Collections.emptySet();
+        }
+    }
+
+    private BucketFiles bucketFiles(long bucket) throws IOException {
+        String prefix = String.format("%012d", bucket) + ".";
+        List<Path> data = new ArrayList<>();
+        boolean claimed = false;
+        for (Path file : sortedChildren(hourDirectory(bucket))) {
+            String name = file.getFileName().toString();
+            if (!name.startsWith(prefix)) continue;
+            if (name.endsWith(DATA_SUFFIX)) data.add(file);
+            else if (name.endsWith(CLAIM_SUFFIX)) claimed = true;
+        }
+        return new BucketFiles(data, claimed);
+    }
+
+    private Path cancelledFile(long bucket) {
+        return hourDirectory(bucket).resolve(String.format("%012d", bucket) + CANCELLED_SUFFIX);
+    }
+
+    static long bucketOfId(String id) {
+        if (id == null) return -1;
+        Matcher matcher = ID_PATTERN.matcher(id);
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+    }
+
+    private static boolean isValidTag(String tag) {
+        return tag != null && TAG_PATTERN.matcher(tag).matches();
+    }
+
+    /**
+     * Reclama los ficheros de los buckets vencidos. Solo se recorren los directorios horarios hasta la hora actual,
+     * por lo que el coste depende del número de buckets vencidos y no del total de correos programados.
+     * @param now       Instante actual
+     * @param grace     Margen en segundos tras el fin del bucket antes de reclamarlo
+     * @return          Ficheros reclamados por este nodo, en orden temporal
+     */
+    public List<ClaimedBucket> claimDue(LocalDateTime now, int grace) throws IOException {
+        long nowSeconds = epochSeconds(now);
+        long currentHour = nowSeconds / 3600;
+        List<ClaimedBucket> claimed = new ArrayList<>();
+
+        for (Path hourDir : sortedChildren(root)) {
+            long hour = parseLong(hourDir.getFileName().toString());
+            if (hour < 0 || hour > currentHour) continue;
+
+            List<Path> files = sortedChildren(hourDir);
+            if (hour < currentHour && files.stream().allMatch(f -> f.toString().endsWith(CANCELLED_SUFFIX))) {
+                files.forEach(ScheduledEmailStore::deleteQuietly);
+                deleteQuietly(hourDir);
+                continue;
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(CLAIM_SUFFIX)) {
+                    releaseIfStale(file);
+                    continue;
+                }
+                if (!name.endsWith(DATA_SUFFIX)) continue;
+                long bucket = parseLong(name.substring(0, name.indexOf('.')));
+                if (bucket < 0 || bucket + bucketSize + grace > nowSeconds) continue;
+
+                ClaimedBucket claim = claim(file);
+                if (claim != null) claimed.add(claim);
+            }
+        }
+        return claimed;
+    }
+
+    private ClaimedBucket claim(Path file) throws IOException {
+        Path claimedFile = file.resolveSibling(file.getFileName() + CLAIM_SUFFIX);
+        try {
+            Files.move(file, claimedFile, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException | FileAlreadyExistsException e) {
+            return null; //Otro nodo lo ha reclamado antes
+        } catch (AtomicMoveNotSupportedException e) {
+            logger.severe("El directorio de programados no soporta renombrado atómico: " + root);
+            throw e;
+        }
+        Files.setLastModifiedTime(claimedFile, FileTime.fromMillis(System.currentTimeMillis()));
+        return new ClaimedBucket(claimedFile, readProgress(claimedFile));
+    }
+
+    /**
+     * Devuelve a su nombre original los ficheros reclamados por un nodo que no ha renovado la reclamación (caída).
+     */
+    private void releaseIfStale(Path claimedFile) {
+        try {
+            long age = System.currentTimeMillis() - Files.getLastModifiedTime(claimedFile).toMillis();
+            if (age > claimTimeout * 1000L) {
+                logger.warning("Liberando bucket programado abandonado: " + claimedFile);
+                release(claimedFile);
+            }
+        } catch (NoSuchFileException e) {
+            //Terminado por su propietario mientras tanto
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No se pudo liberar el bucket " + claimedFile, e);
+        }
+    }
+
+    /**
+     * Abre un lector sobre un bucket reclamado.
+     */
+    public BufferedReader open(ClaimedBucket bucket) throws IOException {
+        return Files.newBufferedReader(bucket.file(), StandardCharsets.UTF_8);
+    }
+
+    public PublishRabbitMQDTO parse(String line) throws IOException {
+        return objectMapper.readValue(line, PublishRabbitMQDTO.class);
+    }
+
+    /**
+     * Aparta una línea que no se puede leer en {@code <dir>/quarantine/} para revisarla a mano, de modo que el resto
+     * del bucket se pueda liberar.
+     */
+    public void quarantine(ClaimedBucket bucket, String line) throws IOException {
+        String name = bucket.file().getFileName().toString();
+        String base = name.endsWith(CLAIM_SUFFIX) ? name.substring(0, name.length() - CLAIM_SUFFIX.length()) : name;
+        long idBucket = parseLong(base.substring(0, base.indexOf('.')));
+        append(idBucket, root.resolve(QUARANTINE_DIR).resolve(base + QUARANTINE_SUFFIX), line);
+    }
+
+    /**
+     * Registra cuántas líneas del bucket se han liberado ya, para no reenviarlas si otro nodo lo retoma, y renueva la
+     * reclamación.
+     */
+    public void saveProgress(ClaimedBucket bucket, long lines) throws IOException {
+        Path progress = progressFile(bucket.file());
+        Files.writeString(progress, Long.toString(lines), StandardCharsets.UTF_8);
+        Files.setLastModifiedTime(bucket.file(), FileTime.fromMillis(System.currentTimeMillis()));
+    }
+
+    /**
+     * Elimina un bucket completamente liberado.
+     */
+    public void complete(ClaimedBucket bucket) throws IOException {
+        Files.deleteIfExists(bucket.file());
+        Files.deleteIfExists(progressFile(bucket.file()));
+    }
+
+    /**
+     * Devuelve un bucket reclamado para que se vuelva a procesar más tarde (este nodo u otro).
+     */
+    public void release(ClaimedBucket bucket) throws IOException {
+        release(bucket.file());
+    }
+
+    private void release(Path claimedFile) throws IOException {
+        String name = claimedFile.getFileName().toString();
+        Path original = claimedFile.resolveSibling(name.substring(0, name.length() - CLAIM_SUFFIX.length()));
+        Files.move(claimedFile, original, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private long readProgress(Path claimedFile) throws IOException {
+        Path progress = progressFile(claimedFile);
+        if (!Files.exists(progress)) return 0;
+        return Math.max(0, parseLong(Files.readString(progress, StandardCharsets.UTF_8).trim()));
+    }
+
+    private Path progressFile(Path claimedFile) {
+        String name = claimedFile.getFileName().toString();
+        String base = name.endsWith(CLAIM_SUFFIX) ? name.substring(0, name.length() - CLAIM_SUFFIX.length()) : name;
+        return claimedFile.resolveSibling(base + PROGRESS_SUFFIX);
+    }
+
+    long bucketOf(LocalDateTime sendDate) {
+        long seconds = epochSeconds(sendDate);
+        return seconds - Math.floorMod(seconds, (long) bucketSize);
+    }
+
+    private Path hourDirectory(long bucket) {
+        return root.resolve(String.format("%010d", bucket / 3600));
+    }
+
+    private static String fileName(long bucket, String nodeId) {
+        return String.format("%012d", bucket) + "." + nodeId + DATA_SUFFIX;
+    }
+
+    private static long epochSeconds(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toEpochSecond();
+    }
+
+    private static List<Path> sortedChildren(Path dir) throws IOException {
+        List<Path> children = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            stream.forEach(children::add);
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        }
+        Collections.sort(children);
+        return children;
+    }
+
+    private static void deleteQuietly(Path dir) {
+        try {
+            Files.deleteIfExists(dir);
+        } catch (IOException e) {
+            //Otro nodo ha escrito en él mientras tanto
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Bucket reclamado por este nodo.
+     * @param file          Fichero reclamado
+     * @param releasedLines Líneas ya liberadas en un intento anterior
+     */
+    public record ClaimedBucket(Path file, long releasedLines) {}
+
+    private record BucketFiles(List<Path> data, boolean claimed) {}
+}
@@ -0,0 +1,291 @@
+package org.secr.sistemaenviocorreos.service.smtp;
+
+import jakarta.annotation.PreDestroy;
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.MessagingException;
+import org.eclipse.angus.mail.util.MailConnectException;
+import org.secr.sistemaenviocorreos.enums.CircuitState;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuito del servidor SMTP. Tras {@code email.smtp.circuit-breaker.failure-threshold} fallos seguidos de conexión o
+ * autenticación se abre: se detienen los consumidores de las colas de envío y de campañas, de modo que los correos
+ * esperan en el broker sin gastar reintentos, y los envíos que ya estaban en el pipeline se devuelven a la cola.
+ * Mientras está abierto se prueba el host con una conexión, con esperas que se duplican hasta {@code max-backoff}.
+ * <p>
+ * Cuando la prueba tiene éxito se vuelven a arrancar los consumidores con el circuito medio abierto: solo se permite un
+ * envío simultáneo y el límite se duplica cada {@code ramp-interval} hasta llegar a los hilos SMTP del pipeline, momento
+ * en el que se cierra. Un fallo de conexión durante la subida lo vuelve a abrir.
+ */
+@Service
+public class SmtpCircuitBreaker {
+
+    public static final String TRANSACTIONAL_LISTENER = "email-transactional";
+    public static final String BULK_LISTENER = "email-bulk";
+    public static final String CAMPAIGN_LISTENER = "email-campaigns";
+
+    private static final Logger logger = Logger.getLogger(SmtpCircuitBreaker.class.getName());
+    private static final List<String> LISTENERS = List.of(TRANSACTIONAL_LISTENER, BULK_LISTENER, CAMPAIGN_LISTENER);
+    private static final long ADMIT_POLL_MILLIS = 100;
+
+    @Autowired
+    private SmtpTransportPool transportPool;
+
+    @Autowired(required = false)
+    private RabbitListenerEndpointRegistry listenerRegistry;
+
+    @Value("${email.smtp.circuit-breaker.enabled:true}")
+    private Boolean enabled = true;
+
+    @Value("${email.smtp.circuit-breaker.failure-threshold:5}")
+    private Integer failureThreshold = 5;
+
+    @Value("${email.smtp.circuit-breaker.initial-backoff:5}")
+    private Integer initialBackoff = 5; //seconds
+
+    @Value("${email.smtp.circuit-breaker.max-backoff:300}")
+    private Integer maxBackoff = 300; //seconds
+
+    @Value("${email.smtp.circuit-breaker.ramp-interval:5}")
+    private Integer rampInterval = 5; //seconds
+
+    @Value("${email.pipeline.smtp-threads:16}")
+    private Integer maxConcurrency = 16;
+
+    private final AtomicReference<CircuitState> state = new AtomicReference<>(CircuitState.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder opened = new LongAdder();
+    private final List<MessageListenerContainer> containers = new CopyOnWriteArrayList<>();
+    private volatile Semaphore ramp;
+    private volatile int rampLimit;
+    private volatile long backoffMillis;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "smtp-circuit-breaker");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Contenedor creado fuera de los {@code @RabbitListener}, como el de las particiones, que también se detiene con
+     * el circuito abierto.
+     */
+    public void register(MessageListenerContainer container) {
+        containers.add(container);
+    }
+
+    /**
+     * Envío SMTP protegido por el circuito.
+     */
+    @FunctionalInterface
+    public interface SmtpCall {
+        void run() throws MessagingException;
+    }
+
+    /**
+     * Ejecuta un envío si el circuito lo permite y registra su resultado. Con el circuito medio abierto espera a que
+     * haya hueco en el límite de envíos simultáneos.
+     * @throws SmtpCircuitOpenException Si el circuito está abierto; el envío no se ha intentado
+     * @throws MessagingException       Error del propio envío
+     */
+    public void execute(SmtpCall call) throws MessagingException {
+        if (!enabled) {
+            call.run();
+            return;
+        }
+        Semaphore permits = admit();
+        try {
+            call.run();
+            consecutiveFailures.set(0);
+        } catch (MessagingException | RuntimeException e) {
+            onFailure(e);
+            throw e;
+        } finally {
+            if (permits != null) permits.release();
+        }
+    }
+
+    /**
+     * @return  Semáforo del que se ha tomado un permiso, o {@code null} con el circuito cerrado
+     */
+    private Semaphore admit() throws SmtpCircuitOpenException {
+        for (;;) {
+            CircuitState current = state.get();
+            if (current == CircuitState.CLOSED) return null;
+            if (current == CircuitState.OPEN) throw new SmtpCircuitOpenException();
+            Semaphore permits = ramp;
+            try {
+                if (permits.tryAcquire(ADMIT_POLL_MILLIS, TimeUnit.MILLISECONDS)) return permits;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SmtpCircuitOpenException();
+            }
+        }
+    }
+
+    /**
+     * Solo cuentan los errores que indican que el host no está disponible; un rechazo del servidor demuestra que sí lo
+     * está y reinicia la cuenta. Esperar una conexión libre del pool no llega al host y no cambia nada.
+     */
+    private void onFailure(Throwable error) {
+        if (error instanceof SmtpPoolExhaustedException) return;
+        if (!isConnectionFailure(error)) {
+            consecutiveFailures.set(0);
+            return;
+        }
+        CircuitState current = state.get();
+        if (current == CircuitState.HALF_OPEN) open(CircuitState.HALF_OPEN);
+        else if (current == CircuitState.CLOSED && consecutiveFailures.incrementAndGet() >= failureThreshold) {
+            open(CircuitState.CLOSED);
+        }
+    }
+
+    private void open(CircuitState from) {
+        if (!state.compareAndSet(from, CircuitState.OPEN)) return;
+        opened.increment();
+        backoffMillis = from == CircuitState.CLOSED ? TimeUnit.SECONDS.toMillis(initialBackoff) : nextBackoff();
+        logger.warning("Circuito SMTP abierto tras fallos de conexión, se detiene el consumo. Próxima prueba en "
+                + backoffMillis + " ms");
+        try {
+            scheduler.execute(() -> containers().forEach(this::stopContainer));
+            scheduler.schedule(this::probe, backoffMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.log(Level.FINE, "Circuito SMTP detenido: ", e);
+        }
+    }
+
+    /**
+     * Prueba de conexión con el host. Si responde se reanuda el consumo con el circuito medio abierto; si no, se
+     * vuelve a probar con el doble de espera.
+     */
+    void probe() {
+        if (state.get() != CircuitState.OPEN) return;
+        try {
+            transportPool.probe();
+        } catch (MessagingException | RuntimeException e) {
+            backoffMillis = nextBackoff();
+            logger.info("El host SMTP sigue sin responder, próxima prueba en " + backoffMillis + " ms");
+            scheduler.schedule(this::probe, backoffMillis, TimeUnit.MILLISECONDS);
+            return;
+        }
+        Semaphore permits = new Semaphore(1);
+        ramp = permits;
+        rampLimit = 1;
+        consecutiveFailures.set(0);
+        state.set(CircuitState.HALF_OPEN);
+        logger.info("El host SMTP vuelve a responder, se reanuda el consumo de forma gradual");
+        containers().forEach(this::startContainer);
+        scheduler.schedule(() -> rampUp(permits), rampInterval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Duplica el límite de envíos simultáneos mientras no haya fallos de conexión y cierra el circuito al alcanzar los
+     * hilos SMTP del pipeline.
+     * @param permits   Semáforo de la reanudación que lo programó; si el circuito se ha vuelto a abrir no hace nada
+     */
+    void rampUp(Semaphore permits) {
+        if (state.get() != CircuitState.HALF_OPEN || ramp != permits) return;
+        int previous = rampLimit;
+        int next = previous * 2;
+        if (next >= maxConcurrency) {
+            if (state.compareAndSet(CircuitState.HALF_OPEN, CircuitState.CLOSED)) {
+                rampLimit = maxConcurrency;
+                logger.info("Circuito SMTP cerrado");
+            }
+            return;
+        }
+        rampLimit = next;
+        permits.release(next - previous);
+        scheduler.schedule(() -> rampUp(permits), rampInterval, TimeUnit.SECONDS);
+    }
+
+    private long nextBackoff() {
+        return Math.min(TimeUnit.SECONDS.toMillis(maxBackoff), Math.max(1, backoffMillis) * 2);
+    }
+
+    private List<MessageListenerContainer> containers() {
+        List<MessageListenerContainer> all = new ArrayList<>(containers);
+        if (listenerRegistry != null) {
+            for (String id : LISTENERS) {
+                MessageListenerContainer container = listenerRegistry.getListenerContainer(id);
+                if (container != null) all.add(container);
+            }
+        }
+        return all;
+    }
+
+    private void stopContainer(MessageListenerContainer container) {
+        try {
+            if (container.isRunning()) container.stop();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "No se pudo detener el consumidor: ", e);
+        }
+    }
+
+    private void startContainer(MessageListenerContainer container) {
+        try {
+            if (!container.isRunning()) container.start();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "No se pudo reanudar el consumidor: ", e);
+        }
+    }
+
+    /**
+     * Fallo de conexión, autenticación o tiempo de espera agotado con el host.
+     */
+    static boolean isConnectionFailure(Throwable error) {
+        while (error != null) {
+            if (error instanceof MailConnectException || error instanceof AuthenticationFailedException
+                    || error instanceof ConnectException || error instanceof UnknownHostException
+                    || error instanceof SocketTimeoutException) return true;
+            error = error instanceof MessagingException e && e.getNextException() != null
+                    ? e.getNextException() : error.getCause();
+        }
+        return false;
+    }
+
+    public CircuitState getState() {
+        return state.get();
+    }
+
+    /**
+     * Envíos simultáneos permitidos: 0 con el circuito abierto y los hilos SMTP con el circuito cerrado.
+     */
+    public int getConcurrencyLimit() {
+        return switch (state.get()) {
+            case CLOSED -> maxConcurrency;
+            case HALF_OPEN -> rampLimit;
+            case OPEN -> 0;
+        };
+    }
+
+    public long getOpenedCount() {
+        return opened.sum();
+    }
+}
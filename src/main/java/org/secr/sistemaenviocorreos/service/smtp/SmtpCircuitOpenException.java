@@ -0,0 +1,14 @@
+package org.secr.sistemaenviocorreos.service.smtp;
+
+import jakarta.mail.MessagingException;
+
+/**
+ * Envío no intentado porque el circuito del servidor SMTP está abierto. El correo se devuelve a la cola sin gastar un
+ * reintento.
+ */
+public class SmtpCircuitOpenException extends MessagingException {
+
+    public SmtpCircuitOpenException() {
+        super("Circuito SMTP abierto");
+    }
+}
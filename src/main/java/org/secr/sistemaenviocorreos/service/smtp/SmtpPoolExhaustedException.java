@@ -0,0 +1,15 @@
+package org.secr.sistemaenviocorreos.service.smtp;
+
+import jakarta.mail.MessagingException;
+
+/**
+ * Envío no intentado porque no quedó libre ninguna conexión del pool del host dentro de
+ * {@code email.smtp.pool.borrow-timeout}. No dice nada del host, así que el circuito no la cuenta, y el correo se
+ * devuelve a la cola sin gastar un reintento.
+ */
+public class SmtpPoolExhaustedException extends MessagingException {
+
+    public SmtpPoolExhaustedException() {
+        super("No hay conexiones SMTP disponibles en el pool");
+    }
+}
@@ -0,0 +1,264 @@
+package org.secr.sistemaenviocorreos.service.smtp;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.stereotype.Service;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool de conexiones SMTP autenticadas. Cada conexión se abre una única vez (TCP + STARTTLS + AUTH) y se reutiliza
+ * para varios envíos, evitando el handshake por correo. Las conexiones se agrupan por host/puerto/usuario, se limita
+ * el número de conexiones por host y se reciclan tras un número máximo de mensajes o un tiempo de inactividad.
+ */
+@Service
+public class SmtpTransportPool implements DisposableBean {
+
+    private static final Logger logger = Logger.getLogger(SmtpTransportPool.class.getName());
+    private static final String DEFAULT_PROTOCOL = "smtp";
+
+    @Autowired
+    private JavaMailSender mailSender;
+
+    @Autowired
+    private EmailMetrics metrics;
+
+    @Value("${email.smtp.pool.max-connections-per-host:4}")
+    private Integer maxConnectionsPerHost = 4;
+
+    @Value("${email.smtp.pool.max-messages-per-connection:100}")
+    private Integer maxMessagesPerConnection = 100;
+
+    @Value("${email.smtp.pool.idle-timeout:60}")
+    private Integer idleTimeout = 60; //seconds
+
+    @Value("${email.smtp.pool.validation-interval:2}")
+    private Integer validationInterval = 2; //seconds
+
+    @Value("${email.smtp.pool.borrow-timeout:30}")
+    private Integer borrowTimeout = 30; //seconds
+
+    private final ConcurrentHashMap<PoolKey, HostPool> pools = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "smtp-pool-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+    private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+    @PostConstruct
+    void startEvictor() {
+        long period = Math.max(1, idleTimeout / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Envía un mensaje a los destinatarios indicados en sus cabeceras usando una conexión del pool.
+     * @param mimeMessage           Mensaje a enviar
+     * @throws MessagingException   Error de conexión, autenticación o envío
+     */
+    public void send(MimeMessage mimeMessage) throws MessagingException {
+        send(mimeMessage, mimeMessage.getAllRecipients());
+    }
+
+    /**
+     * Envía un mensaje a una lista explícita de destinatarios (RCPT TO) usando una conexión del pool. Si el envío falla
+     * la conexión se descarta en lugar de devolverse al pool.
+     * @param mimeMessage           Mensaje a enviar
+     * @param recipients            Destinatarios de la transacción SMTP
+     * @throws MessagingException   Error de conexión, autenticación o envío
+     */
+    public void send(MimeMessage mimeMessage, Address[] recipients) throws MessagingException {
+        JavaMailSenderImpl mailSenderImpl = (JavaMailSenderImpl) mailSender;
+        HostPool pool = pools.computeIfAbsent(keyOf(mailSenderImpl), k -> new HostPool(maxConnectionsPerHost));
+        pool.acquire(borrowTimeout);
+        PooledTransport pooled = null;
+        try {
+            pooled = borrow(pool, mailSenderImpl);
+            if (mimeMessage.getSentDate() == null) mimeMessage.setSentDate(new Date());
+            mimeMessage.saveChanges();
+            long start = System.nanoTime();
+            pooled.transport.sendMessage(mimeMessage, recipients);
+            metrics.recordSend(System.nanoTime() - start);
+            pooled.messagesSent++;
+            giveBack(pool, pooled);
+        } catch (MessagingException | RuntimeException e) {
+            if (pooled != null) close(pooled);
+            throw e;
+        } finally {
+            pool.permits.release();
+        }
+    }
+
+    /**
+     * Abre y cierra una conexión con el host configurado para comprobar que acepta conexiones y credenciales.
+     * @throws MessagingException   Error de conexión o autenticación
+     */
+    public void probe() throws MessagingException {
+        close(connect((JavaMailSenderImpl) mailSender));
+    }
+
+    /**
+     * Obtiene una conexión del pool. Las conexiones caducadas o que han alcanzado el máximo de mensajes se cierran; las
+     * que llevan inactivas más del intervalo de validación se comprueban con un NOOP antes de reutilizarse.
+     */
+    private PooledTransport borrow(HostPool pool, JavaMailSenderImpl mailSenderImpl) throws MessagingException {
+        PooledTransport pooled;
+        while ((pooled = pool.idle.pollFirst()) != null) {
+            long idleNanos = System.nanoTime() - pooled.lastUsedNanos;
+            if (idleNanos > TimeUnit.SECONDS.toNanos(idleTimeout) || pooled.messagesSent >= maxMessagesPerConnection) {
+                close(pooled);
+                continue;
+            }
+            if (idleNanos > TimeUnit.SECONDS.toNanos(validationInterval) && !pooled.transport.isConnected()) {
+                close(pooled);
+                continue;
+            }
+            hits.increment();
+            return pooled;
+        }
+        misses.increment();
+        return connect(mailSenderImpl);
+    }
+
+    private PooledTransport connect(JavaMailSenderImpl mailSenderImpl) throws MessagingException {
+        Session session = mailSenderImpl.getSession();
+        String protocol = mailSenderImpl.getProtocol();
+        if (protocol == null) {
+            protocol = session.getProperty("mail.transport.protocol");
+            if (protocol == null) protocol = DEFAULT_PROTOCOL;
+        }
+        Transport transport = session.getTransport(protocol);
+        long start = System.nanoTime();
+        transport.connect(mailSenderImpl.getHost(), mailSenderImpl.getPort(),
+                mailSenderImpl.getUsername(), mailSenderImpl.getPassword());
+        long elapsed = System.nanoTime() - start;
+        handshakes.increment();
+        handshakeNanos.add(elapsed);
+        maxHandshakeNanos.accumulateAndGet(elapsed, Math::max);
+        metrics.recordConnect(elapsed);
+        return new PooledTransport(transport);
+    }
+
+    private void giveBack(HostPool pool, PooledTransport pooled) {
+        if (pooled.messagesSent >= maxMessagesPerConnection) {
+            close(pooled);
+            return;
+        }
+        pooled.lastUsedNanos = System.nanoTime();
+        pool.idle.offerFirst(pooled);
+    }
+
+    /**
+     * Cierra las conexiones que superan el tiempo de inactividad para no mantener sockets que el servidor ya habrá
+     * cerrado por su lado.
+     */
+    void evictIdle() {
+        long limit = TimeUnit.SECONDS.toNanos(idleTimeout);
+        for (HostPool pool : pools.values()) {
+            Iterator<PooledTransport> iterator = pool.idle.descendingIterator();
+            while (iterator.hasNext()) {
+                PooledTransport pooled = iterator.next();
+                if (System.nanoTime() - pooled.lastUsedNanos > limit && pool.idle.removeFirstOccurrence(pooled)) {
+                    close(pooled);
+                }
+            }
+        }
+    }
+
+    private void close(PooledTransport pooled) {
+        try {
+            pooled.transport.close();
+        } catch (MessagingException e) {
+            logger.log(Level.FINE, "Error al cerrar la conexión SMTP: ", e);
+        }
+    }
+
+    private static PoolKey keyOf(JavaMailSenderImpl mailSenderImpl) {
+        return new PoolKey(mailSenderImpl.getHost(), mailSenderImpl.getPort(), mailSenderImpl.getUsername());
+    }
+
+    /**
+     * Estadísticas acumuladas del pool para dimensionarlo.
+     * @return Aciertos, fallos y latencia de handshake
+     */
+    public PoolStats getStats() {
+        int idle = pools.values().stream().mapToInt(p -> p.idle.size()).sum();
+        return new PoolStats(hits.sum(), misses.sum(), handshakes.sum(), handshakeNanos.sum(),
+                maxHandshakeNanos.get(), idle);
+    }
+
+    @Override
+    public void destroy() {
+        evictor.shutdownNow();
+        pools.values().forEach(pool -> {
+            PooledTransport pooled;
+            while ((pooled = pool.idle.pollFirst()) != null) close(pooled);
+        });
+    }
+
+    public record PoolStats(long hits, long misses, long handshakes, long handshakeNanos, long maxHandshakeNanos,
+                            int idleConnections) {
+        public double averageHandshakeMillis() {
+            return handshakes == 0 ? 0 : handshakeNanos / (double) handshakes / 1_000_000;
+        }
+    }
+
+    private record PoolKey(String host, int port, String username) {}
+
+    private static final class HostPool {
+        private final Semaphore permits;
+        private final ConcurrentLinkedDeque<PooledTransport> idle = new ConcurrentLinkedDeque<>();
+
+        private HostPool(int maxConnections) {
+            this.permits = new Semaphore(maxConnections);
+        }
+
+        private void acquire(int timeoutSeconds) throws MessagingException {
+            try {
+                if (!permits.tryAcquire(timeoutSeconds, TimeUnit.SECONDS)) {
+                    throw new SmtpPoolExhaustedException();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrumpido esperando una conexión SMTP", e);
+            }
+        }
+    }
+
+    private static final class PooledTransport {
+        private final Transport transport;
+        private int messagesSent;
+        private long lastUsedNanos = System.nanoTime();
+
+        private PooledTransport(Transport transport) {
+            this.transport = transport;
+        }
+    }
+}
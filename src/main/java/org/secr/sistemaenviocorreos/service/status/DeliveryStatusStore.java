@@ -0,0 +1,360 @@
+package org.secr.sistemaenviocorreos.service.status;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.secr.sistemaenviocorreos.dto.DeliveryStatusDTO;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Estado de entrega de cada correo por id. Cada entrada son dos {@code long}: un hash de 64 bits del id y el estado
+ * empaquetado con los reintentos restantes y el instante del cambio, 16 bytes por id más el hueco libre de la tabla. Los
+ * ids se reparten en {@value #SHARDS} tablas de direccionamiento abierto; una entrada se reserva con un CAS sobre la
+ * clave y su estado se actualiza con otro CAS, sin bloqueos entre los hilos de los consumidores.
+ * <p>
+ * Cada tabla tiene dos generaciones. Las escrituras van a la actual y las lecturas miran también la anterior; cuando
+ * la actual cumple la mitad de {@code email.status.ttl}, o se llena, pasa a ser la anterior y la que había se descarta
+ * entera. Un estado se conserva así entre la mitad del TTL y el TTL completo sin recorrer las entradas una a una.
+ * <p>
+ * El almacén es local a cada nodo: solo conoce los cambios que registra este nodo. Con {@code email.status.dir} se
+ * guarda una copia periódica en disco que se carga al arrancar.
+ */
+@Service
+public class DeliveryStatusStore {
+
+    private static final Logger logger = Logger.getLogger(DeliveryStatusStore.class.getName());
+
+    static final int SHARDS = 64;
+    private static final int SHARD_SHIFT = Long.SIZE - Integer.numberOfTrailingZeros(SHARDS);
+    private static final DeliveryState[] STATES = DeliveryState.values();
+    private static final int NO_RETRIES = 0xFF;
+    private static final String SNAPSHOT_FILE = "status.bin";
+    private static final int SNAPSHOT_MAGIC = 0x45535431; //"EST1"
+
+    @Value("${email.status.enabled:true}")
+    private Boolean enabled = true;
+
+    @Value("${email.status.capacity:1048576}")
+    private Integer capacity = 1_048_576; //ids por generación
+
+    @Value("${email.status.ttl:24}")
+    private Integer ttl = 24; //hours
+
+    @Value("${email.status.dir:}")
+    private String directory = ""; //vacío = solo en memoria
+
+    LongSupplier clock = System::currentTimeMillis;
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private int shardSlots;
+
+    @PostConstruct
+    void init() throws IOException {
+        if (!enabled) return;
+        int perShard = Math.max(16, capacity / SHARDS);
+        shardSlots = Integer.highestOneBit(perShard * 4 / 3 - 1) << 1;
+        for (int i = 0; i < SHARDS; i++) shards[i] = new Shard(new Table(shardSlots, clock.getAsLong()));
+        if (!directory.isBlank()) {
+            Files.createDirectories(Paths.get(directory));
+            load();
+        }
+    }
+
+    @PreDestroy
+    void close() {
+        snapshot();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Registra un cambio de estado. Los estados finales no se sobrescriben y {@link DeliveryState#QUEUED} solo se
+     * registra si el id no tenía estado, ya que la confirmación del broker puede llegar después de que el consumidor
+     * haya empezado a enviarlo.
+     * @param retriesLeft   Intentos restantes, o {@code null} si no aplica
+     */
+    public void record(String id, DeliveryState state, Integer retriesLeft) {
+        if (!enabled || id == null) return;
+        long key = keyOf(id);
+        Shard shard = shards[(int) (key >>> SHARD_SHIFT)];
+        long now = clock.getAsLong();
+        long packed = pack(state, retriesLeft, now);
+
+        Table table = shard.current;
+        if (now - table.createdAt >= generationMillis()) table = shard.rotate(table, now, shardSlots);
+        int slot = table.slotFor(key);
+        if (slot < 0) {
+            table = shard.rotate(table, now, shardSlots);
+            slot = table.slotFor(key);
+            if (slot < 0) return;
+        }
+        Table previous = shard.previous;
+        for (;;) {
+            long current = table.states.get(slot);
+            long from = current != 0 || previous == null ? current : previous.get(key);
+            if (!allowed(from, state)) {
+                //Se conserva el estado al pasar de generación para que no caduque antes de tiempo
+                if (current == 0 && from != 0 && table.states.compareAndSet(slot, 0, from)) return;
+                if (current != 0) return;
+                continue;
+            }
+            if (table.states.compareAndSet(slot, current, packed)) return;
+        }
+    }
+
+    /**
+     * @return  Estado del correo, o {@code null} si no se conoce o ya ha caducado
+     */
+    public DeliveryStatusDTO get(String id) {
+        if (!enabled || id == null) return null;
+        long key = keyOf(id);
+        Shard shard = shards[(int) (key >>> SHARD_SHIFT)];
+        long packed = shard.current.get(key);
+        if (packed == 0) {
+            Table previous = shard.previous;
+            if (previous != null) packed = previous.get(key);
+        }
+        if (packed == 0 || clock.getAsLong() - updatedAt(packed) > TimeUnit.HOURS.toMillis(ttl)) return null;
+        int retries = (int) (packed >>> 8) & 0xFF;
+        return new DeliveryStatusDTO(id, STATES[(int) (packed & 0xFF) - 1], retries == NO_RETRIES ? null : retries,
+                LocalDateTime.ofInstant(Instant.ofEpochMilli(updatedAt(packed)), ZoneId.systemDefault()));
+    }
+
+    /**
+     * @return  Estado del correo, o {@link DeliveryState#UNKNOWN} si no se conoce
+     */
+    public DeliveryStatusDTO getOrUnknown(String id) {
+        DeliveryStatusDTO status = get(id);
+        return status != null ? status : DeliveryStatusDTO.unknown(id);
+    }
+
+    /**
+     * Ids con estado en las dos generaciones, incluidos los repetidos entre ambas.
+     */
+    public long getTracked() {
+        if (!enabled) return 0;
+        long tracked = 0;
+        for (Shard shard : shards) {
+            tracked += shard.current.size.get();
+            Table previous = shard.previous;
+            if (previous != null) tracked += previous.size.get();
+        }
+        return tracked;
+    }
+
+    /**
+     * Pasa de generación las tablas que no reciben escrituras, para que sus estados caduquen igualmente.
+     */
+    @Scheduled(fixedDelayString = "${email.status.eviction-interval:60000}")
+    public void evict() {
+        if (!enabled) return;
+        long now = clock.getAsLong();
+        for (Shard shard : shards) {
+            Table current = shard.current;
+            if (now - current.createdAt >= generationMillis()) shard.rotate(current, now, shardSlots);
+            Table previous = shard.previous;
+            if (previous != null && now - previous.createdAt >= 2 * generationMillis()) shard.dropPrevious(previous);
+        }
+    }
+
+    /**
+     * Copia en disco de los estados sin caducar. Se escribe en un fichero temporal que reemplaza al anterior, de modo
+     * que una caída a mitad deja la copia previa.
+     */
+    @Scheduled(fixedDelayString = "${email.status.snapshot-interval:60000}")
+    public void snapshot() {
+        if (!enabled || directory.isBlank()) return;
+        Path target = Paths.get(directory, SNAPSHOT_FILE);
+        Path temp = Paths.get(directory, SNAPSHOT_FILE + ".tmp");
+        long oldest = clock.getAsLong() - TimeUnit.HOURS.toMillis(ttl);
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp),
+                    1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                for (Shard shard : shards) {
+                    Table previous = shard.previous;
+                    if (previous != null) previous.writeTo(out, oldest);
+                    shard.current.writeTo(out, oldest);
+                }
+                out.writeLong(0);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No se pudo guardar la copia de los estados de entrega: ", e);
+        }
+    }
+
+    private void load() {
+        Path file = Paths.get(directory, SNAPSHOT_FILE);
+        if (!Files.exists(file)) return;
+        long oldest = clock.getAsLong() - TimeUnit.HOURS.toMillis(ttl);
+        int loaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                logger.warning("Copia de los estados de entrega con formato desconocido: " + file);
+                return;
+            }
+            for (long key = in.readLong(); key != 0; key = in.readLong()) {
+                long packed = in.readLong();
+                if (updatedAt(packed) < oldest) continue;
+                Table table = shards[(int) (key >>> SHARD_SHIFT)].current;
+                int slot = table.slotFor(key);
+                if (slot < 0) continue;
+                long current = table.states.get(slot);
+                if (current == 0 || updatedAt(current) < updatedAt(packed)) table.states.set(slot, packed);
+                loaded++;
+            }
+        } catch (EOFException e) {
+            logger.warning("Copia de los estados de entrega incompleta, se cargan " + loaded + " estados");
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No se pudo leer la copia de los estados de entrega: ", e);
+        }
+    }
+
+    private long generationMillis() {
+        return Math.max(1, TimeUnit.HOURS.toMillis(ttl) / 2);
+    }
+
+    private static boolean allowed(long from, DeliveryState to) {
+        if (from == 0) return true;
+        DeliveryState current = STATES[(int) (from & 0xFF) - 1];
+        return !current.isFinal() && to != DeliveryState.QUEUED;
+    }
+
+    private static long pack(DeliveryState state, Integer retriesLeft, long millis) {
+        long retries = retriesLeft == null ? NO_RETRIES : Math.max(0, Math.min(NO_RETRIES - 1, retriesLeft));
+        return millis << 16 | retries << 8 | (state.ordinal() + 1);
+    }
+
+    private static long updatedAt(long packed) {
+        return packed >>> 16;
+    }
+
+    /**
+     * Hash de 64 bits del id (FNV-1a con mezcla final de MurmurHash3). El 0 marca las posiciones libres.
+     */
+    static long keyOf(String id) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            hash ^= id.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Generaciones de una parte de los ids. Solo el cambio de generación se sincroniza.
+     */
+    private static final class Shard {
+        private volatile Table current;
+        private volatile Table previous;
+
+        private Shard(Table current) {
+            this.current = current;
+        }
+
+        private synchronized Table rotate(Table expected, long now, int slots) {
+            if (current == expected) {
+                previous = expected;
+                current = new Table(slots, now);
+            }
+            return current;
+        }
+
+        private synchronized void dropPrevious(Table expected) {
+            if (previous == expected) previous = null;
+        }
+    }
+
+    /**
+     * Tabla de direccionamiento abierto con sondeo lineal. Las claves no se borran: la tabla entera se descarta al
+     * caducar su generación.
+     */
+    private static final class Table {
+        private final AtomicLongArray keys;
+        private final AtomicLongArray states;
+        private final AtomicInteger size = new AtomicInteger();
+        private final int mask;
+        private final int limit;
+        private final long createdAt;
+
+        private Table(int slots, long createdAt) {
+            this.keys = new AtomicLongArray(slots);
+            this.states = new AtomicLongArray(slots);
+            this.mask = slots - 1;
+            this.limit = slots / 4 * 3;
+            this.createdAt = createdAt;
+        }
+
+        /**
+         * @return  Posición de la clave, reservándola si no estaba, o -1 si la tabla está llena
+         */
+        private int slotFor(long key) {
+            int slot = (int) key & mask;
+            for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+                long existing = keys.get(slot);
+                if (existing == key) return slot;
+                if (existing != 0) continue;
+                if (size.get() >= limit) return -1;
+                if (keys.compareAndSet(slot, 0, key)) {
+                    size.incrementAndGet();
+                    return slot;
+                }
+                if (keys.get(slot) == key) return slot;
+            }
+            return -1;
+        }
+
+        /**
+         * @return  Estado empaquetado de la clave, o 0 si no está
+         */
+        private long get(long key) {
+            int slot = (int) key & mask;
+            for (int probes = 0; probes <= mask; probes++, slot = (slot + 1) & mask) {
+                long existing = keys.get(slot);
+                if (existing == key) return states.get(slot);
+                if (existing == 0) return 0;
+            }
+            return 0;
+        }
+
+        private void writeTo(DataOutputStream out, long oldest) throws IOException {
+            for (int slot = 0; slot <= mask; slot++) {
+                long key = keys.get(slot);
+                long packed = states.get(slot);
+                if (key == 0 || packed == 0 || updatedAt(packed) < oldest) continue;
+                out.writeLong(key);
+                out.writeLong(packed);
+            }
+        }
+    }
+}
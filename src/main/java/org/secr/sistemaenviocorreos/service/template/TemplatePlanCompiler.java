@@ -0,0 +1,193 @@
+package org.secr.sistemaenviocorreos.service.template;
+
+import org.springframework.core.io.ClassPathResource;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.RecordComponent;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compila plantillas Thymeleaf a {@link TemplateRenderPlan}. Solo se admiten plantillas cuyas únicas expresiones son
+ * {@code th:text}/{@code th:utext} sobre un campo {@code String} de un DTO record ({@code ${data.campo}}). El plan se
+ * obtiene renderizando la plantilla con el propio motor usando marcadores como valores, de modo que los segmentos
+ * estáticos son exactamente los que produce Thymeleaf; después se comprueba con valores reales que el resultado es
+ * idéntico. Si algo no cuadra se devuelve vacío y se sigue usando Thymeleaf.
+ */
+public class TemplatePlanCompiler {
+
+    private static final Logger logger = Logger.getLogger(TemplatePlanCompiler.class.getName());
+    private static final Pattern TH_ATTRIBUTE = Pattern.compile("(?<![\\w:-])(?:data-)?th[:-]([A-Za-z-]+)\\s*=\\s*(\"[^\"]*\"|'[^']*')");
+    private static final Pattern DATA_FIELD = Pattern.compile("\\$\\{\\s*data\\.(\\w+)\\s*}");
+    private static final String VERIFY_VALUE = "<a href=\"x\">Tom & 'Jerry'</a> ñ €";
+
+    private final TemplateEngine templateEngine;
+    private final String prefix;
+    private final String suffix;
+
+    public TemplatePlanCompiler(TemplateEngine templateEngine, String prefix, String suffix) {
+        this.templateEngine = templateEngine;
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    public Optional<TemplateRenderPlan> compile(String templateName, Class<?> dtoClass) {
+        return compile(templateName, dtoClass, null);
+    }
+
+    /**
+     * @param source    Fuente de la plantilla, o {@code null} para leerla del classpath con el prefijo y sufijo
+     */
+    public Optional<TemplateRenderPlan> compile(String templateName, Class<?> dtoClass, String source) {
+        try {
+            return Optional.ofNullable(tryCompile(templateName, dtoClass, source));
+        } catch (Exception e) {
+            logger.warning("No se pudo precompilar la plantilla " + templateName + ": " + e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * DTO de ejemplo con todos los campos informados, para renderizar una plantilla sin datos reales.
+     */
+    static Object sampleData(Class<?> dtoClass) throws Exception {
+        return instantiate(dtoClass, dtoClass.getRecordComponents(), i -> "ejemplo", 1);
+    }
+
+    private TemplateRenderPlan tryCompile(String templateName, Class<?> dtoClass, String source) throws Exception {
+        if (!dtoClass.isRecord()) return unsupported(templateName, "el DTO no es un record");
+        if (source == null) {
+            source = new ClassPathResource(prefix + templateName + suffix).getContentAsString(StandardCharsets.UTF_8);
+        }
+        if (source.contains("[[") || source.contains("[(")) return unsupported(templateName, "expresiones en línea");
+
+        RecordComponent[] components = dtoClass.getRecordComponents();
+        Matcher attributes = TH_ATTRIBUTE.matcher(source);
+        while (attributes.find()) {
+            String name = attributes.group(1);
+            String value = attributes.group(2);
+            if (!name.equals("text") && !name.equals("utext")) return unsupported(templateName, "th:" + name);
+            Matcher field = DATA_FIELD.matcher(value.substring(1, value.length() - 1).trim());
+            if (!field.matches() || !isStringComponent(components, field.group(1))) {
+                return unsupported(templateName, "expresión " + value);
+            }
+        }
+
+        Probe first = probe(templateName, dtoClass, components, 0);
+        Probe second = probe(templateName, dtoClass, components, 1);
+        if (first == null || second == null || !first.segments.equals(second.segments)
+                || !first.slotKeys().equals(second.slotKeys())) {
+            return unsupported(templateName, "el resultado depende de valores no String");
+        }
+
+        TemplateRenderPlan plan = new TemplateRenderPlan(templateName, first.segments, first.slots);
+        Object verifyData = instantiate(dtoClass, components, i -> VERIFY_VALUE, 0);
+        if (!render(templateName, verifyData).equals(plan.render(verifyData))) {
+            return unsupported(templateName, "el escapado no coincide con Thymeleaf");
+        }
+        logger.info("Plantilla " + templateName + " precompilada con " + first.slots.size() + " huecos");
+        return plan;
+    }
+
+    private Probe probe(String templateName, Class<?> dtoClass, RecordComponent[] components, int variant)
+            throws Exception {
+        String markerStart = "tplslot" + UUID.randomUUID().toString().replace("-", "") + "x";
+        Object data = instantiate(dtoClass, components, i -> markerStart + i + "&", variant);
+        String output = render(templateName, data);
+
+        List<String> segments = new ArrayList<>();
+        List<TemplateRenderPlan.Slot> slots = new ArrayList<>();
+        int position = 0;
+        int found;
+        while ((found = output.indexOf(markerStart, position)) >= 0) {
+            int indexEnd = found + markerStart.length();
+            while (indexEnd < output.length() && Character.isDigit(output.charAt(indexEnd))) indexEnd++;
+            int component = Integer.parseInt(output.substring(found + markerStart.length(), indexEnd));
+            boolean escaped;
+            if (output.startsWith("&amp;", indexEnd)) {
+                escaped = true;
+                indexEnd += "&amp;".length();
+            } else if (output.startsWith("&", indexEnd)) {
+                escaped = false;
+                indexEnd += 1;
+            } else {
+                return null; //Valor transformado por una expresión
+            }
+            segments.add(output.substring(position, found));
+            RecordComponent recordComponent = components[component];
+            MethodHandle accessor = MethodHandles.publicLookup().unreflect(recordComponent.getAccessor());
+            slots.add(new TemplateRenderPlan.Slot(recordComponent.getName(), accessor, escaped));
+            position = indexEnd;
+        }
+        segments.add(output.substring(position));
+        return new Probe(segments, slots);
+    }
+
+    private String render(String templateName, Object data) {
+        Context context = new Context();
+        context.setVariables(Map.of("data", data));
+        return templateEngine.process(templateName, context);
+    }
+
+    private static boolean isStringComponent(RecordComponent[] components, String name) {
+        for (RecordComponent component : components) {
+            if (component.getName().equals(name)) return component.getType() == String.class;
+        }
+        return false;
+    }
+
+    /**
+     * Crea un DTO de prueba. Los campos String llevan el valor indicado para su posición (marcador o valor de
+     * verificación) y el resto un valor que cambia con la variante, para detectar plantillas que dependen de ellos.
+     */
+    private static Object instantiate(Class<?> dtoClass, RecordComponent[] components, IntFunction<String> stringValue,
+                                      int variant) throws Exception {
+        Class<?>[] types = new Class<?>[components.length];
+        Object[] args = new Object[components.length];
+        for (int i = 0; i < components.length; i++) {
+            Class<?> type = components[i].getType();
+            types[i] = type;
+            if (type == String.class) {
+                args[i] = stringValue.apply(i);
+            } else {
+                args[i] = sample(type, variant);
+            }
+        }
+        Constructor<?> constructor = dtoClass.getDeclaredConstructor(types);
+        return constructor.newInstance(args);
+    }
+
+    private static Object sample(Class<?> type, int variant) {
+        if (type == Integer.class || type == int.class) return variant == 0 ? 3 : 1;
+        if (type == Long.class || type == long.class) return variant == 0 ? 3L : 1L;
+        if (type == Boolean.class || type == boolean.class) return variant == 0;
+        if (type == LocalDateTime.class) return variant == 0 ? null : LocalDateTime.of(2000, 1, 1, 0, 0);
+        if (type.isPrimitive()) throw new IllegalArgumentException("Tipo no soportado: " + type);
+        return null;
+    }
+
+    private static TemplateRenderPlan unsupported(String templateName, String reason) {
+        logger.info("Plantilla " + templateName + " no precompilable (" + reason + "), se usará Thymeleaf");
+        return null;
+    }
+
+    private record Probe(List<String> segments, List<TemplateRenderPlan.Slot> slots) {
+        List<String> slotKeys() {
+            return slots.stream().map(slot -> slot.field() + ":" + slot.escaped()).toList();
+        }
+    }
+}
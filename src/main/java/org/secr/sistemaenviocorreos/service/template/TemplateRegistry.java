@@ -0,0 +1,236 @@
+package org.secr.sistemaenviocorreos.service.template;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.dto.TemplateDTO;
+import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Registro de las plantillas de correo. Al arrancar descubre las plantillas de {@code templates/} y las versiones
+ * publicadas en {@code email.templates.dir}, y en paralelo las analiza, las precompila y hace una serie de renderizados
+ * de calentamiento, de modo que el primer correo tras un despliegue no paga la carga de la plantilla ni el JIT. Como se
+ * inicializa antes que el consumidor, los listeners no empiezan a consumir hasta que ha terminado.
+ * <p>
+ * Las versiones nuevas se guardan como ficheros inmutables {@code <nombre>.v<N>.html} y se preparan por completo antes
+ * de sustituir a la actual en una sola operación: cada renderizado usa la versión anterior o la nueva, nunca una mezcla.
+ * El directorio se puede compartir entre nodos; cada nodo incorpora las versiones que publican los demás al revisarlo.
+ */
+@RequiredArgsConstructor
+@Service
+public class TemplateRegistry {
+
+    private static final Logger logger = Logger.getLogger(TemplateRegistry.class.getName());
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9][A-Za-z0-9_-]*");
+    private static final Pattern VERSIONED_FILE = Pattern.compile("(" + NAME.pattern() + ")\\.v(\\d+)\\.html");
+    private static final String CLASSPATH_PATTERN = "classpath*:templates/*.html";
+
+    private final TemplateEngine templateEngine;
+
+    @Value("${email.templates.dir:./data/templates}")
+    private String dir = "./data/templates";
+
+    @Value("${email.templates.warmup-iterations:200}")
+    private Integer warmupIterations = 200;
+
+    @Value("${email.templates.install-enabled:false}")
+    private Boolean installEnabled = false;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Versión cargada de una plantilla.
+     * @param name          Nombre lógico, el de {@link EmailTemplateType#getTemplateName()}
+     * @param resolvedName  Nombre con el que la resuelve Thymeleaf: el propio nombre o {@code <nombre>.v<N>}
+     * @param version       0 para la plantilla del classpath
+     * @param plan          Plan precompilado, o vacío si se renderiza con Thymeleaf
+     */
+    public record Entry(String name, String resolvedName, long version, Class<?> dtoClass,
+                        Optional<TemplateRenderPlan> plan) {
+    }
+
+    @PostConstruct
+    void init() throws IOException {
+        Map<String, Long> names = new HashMap<>();
+        for (Resource resource : new PathMatchingResourcePatternResolver().getResources(CLASSPATH_PATTERN)) {
+            String filename = resource.getFilename();
+            if (filename == null) continue;
+            String name = filename.substring(0, filename.length() - ".html".length());
+            if (NAME.matcher(name).matches()) names.put(name, 0L);
+        }
+        names.putAll(latestVersions());
+
+        long start = System.nanoTime();
+        names.entrySet().parallelStream().forEach(name -> {
+            try {
+                entries.put(name.getKey(), load(name.getKey(), name.getValue()));
+            } catch (RuntimeException e) {
+                logger.log(Level.SEVERE, "No se pudo cargar la plantilla " + name.getKey() + ": ", e);
+            }
+        });
+        logger.info(entries.size() + " plantillas cargadas y calentadas en "
+                + (System.nanoTime() - start) / 1_000_000 + " ms");
+    }
+
+    /**
+     * Versión actual de una plantilla. Las que no se han descubierto al arrancar se cargan la primera vez.
+     */
+    public Entry get(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry : entries.computeIfAbsent(name, n -> load(n, 0));
+    }
+
+    public List<TemplateDTO> list() {
+        return entries.values().stream()
+                .sorted(Comparator.comparing(Entry::name))
+                .map(TemplateRegistry::toDTO)
+                .toList();
+    }
+
+    /**
+     * Publica una versión nueva de una plantilla y la pone en uso cuando está precompilada y calentada. Solo se
+     * admite con {@code email.templates.install-enabled}, ya que cambia el contenido de todos los correos de la
+     * plantilla.
+     * @param installedBy   Quién la publica, para el registro
+     * @throws IllegalStateException    Si la publicación de plantillas está desactivada
+     * @throws IllegalArgumentException Si el nombre no es válido o la plantilla no se puede renderizar
+     */
+    public synchronized TemplateDTO install(String name, String source, String installedBy) throws IOException {
+        if (!installEnabled) {
+            logger.warning("Publicación de la plantilla " + name + " rechazada, desactivada: " + installedBy);
+            throw new IllegalStateException("Publicación de plantillas desactivada");
+        }
+        if (!NAME.matcher(name).matches()) throw new IllegalArgumentException("Nombre de plantilla no válido");
+        Entry current = entries.get(name);
+        long version = Math.max(current == null ? 0 : current.version(), latestVersions().getOrDefault(name, 0L)) + 1;
+
+        Path directory = Path.of(dir);
+        Files.createDirectories(directory);
+        Path file = directory.resolve(name + ".v" + version + ".html");
+        Path tmp = Files.createTempFile(directory, name, ".tmp");
+        Files.writeString(tmp, source, StandardCharsets.UTF_8);
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+
+        Entry entry;
+        try {
+            entry = load(name, version);
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw new IllegalArgumentException("Plantilla no válida: " + e.getMessage(), e);
+        }
+        entries.put(name, entry);
+        logger.info("Plantilla " + name + " actualizada a la versión " + version + " por " + installedBy);
+        return toDTO(entry);
+    }
+
+    /**
+     * Incorpora las versiones publicadas por otros nodos en el directorio compartido.
+     */
+    @Scheduled(fixedDelayString = "${email.templates.refresh-interval:10000}")
+    public void refresh() {
+        try {
+            latestVersions().forEach((name, version) -> {
+                Entry current = entries.get(name);
+                if (current != null && current.version() >= version) return;
+                try {
+                    entries.merge(name, load(name, version),
+                            (old, loaded) -> old.version() >= loaded.version() ? old : loaded);
+                    logger.info("Plantilla " + name + " actualizada a la versión " + version + " de otro nodo");
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "No se pudo cargar la versión " + version + " de " + name + ": ", e);
+                }
+            });
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "No se pudo revisar el directorio de plantillas: ", e);
+        }
+    }
+
+    /**
+     * Última versión publicada de cada plantilla en el directorio.
+     */
+    private Map<String, Long> latestVersions() throws IOException {
+        Map<String, Long> versions = new HashMap<>();
+        Path directory = Path.of(dir);
+        if (!Files.isDirectory(directory)) return versions;
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(file -> {
+                Matcher matcher = VERSIONED_FILE.matcher(file.getFileName().toString());
+                if (matcher.matches()) versions.merge(matcher.group(1), Long.parseLong(matcher.group(2)), Math::max);
+            });
+        }
+        return versions;
+    }
+
+    /**
+     * Analiza, precompila y calienta una versión. El primer renderizado con Thymeleaf deja la plantilla analizada en
+     * su caché y valida que se puede renderizar.
+     */
+    private Entry load(String name, long version) {
+        String resolvedName = version == 0 ? name : name + ".v" + version;
+        Class<?> dtoClass = dtoClassFor(name);
+        String source = null;
+        try {
+            if (version > 0) source = Files.readString(Path.of(dir, resolvedName + ".html"), StandardCharsets.UTF_8);
+            Object sample = TemplatePlanCompiler.sampleData(dtoClass);
+            Context context = new Context();
+            context.setVariables(Map.of("data", sample));
+            templateEngine.process(resolvedName, context, Writer.nullWriter());
+
+            Optional<TemplateRenderPlan> plan = new TemplatePlanCompiler(templateEngine, "templates/", ".html")
+                    .compile(resolvedName, dtoClass, source);
+            for (int i = 0; i < warmupIterations; i++) {
+                if (plan.isEmpty() || !plan.get().writeTo(sample, OutputStream.nullOutputStream())) {
+                    templateEngine.process(resolvedName, context, Writer.nullWriter());
+                }
+            }
+            return new Entry(name, resolvedName, version, dtoClass, plan);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("No se pudo preparar la plantilla " + resolvedName, e);
+        }
+    }
+
+    /**
+     * DTO de la plantilla según {@link EmailTemplateType}; las que no están en el enum reciben el mensaje de la cola.
+     */
+    private static Class<?> dtoClassFor(String name) {
+        for (EmailTemplateType type : EmailTemplateType.values()) {
+            if (type.getTemplateName().equals(name)) return type.getDtoClass();
+        }
+        return PublishRabbitMQDTO.class;
+    }
+
+    private static TemplateDTO toDTO(Entry entry) {
+        return new TemplateDTO(entry.name(), entry.version(), entry.dtoClass().getSimpleName(), entry.plan().isPresent());
+    }
+}
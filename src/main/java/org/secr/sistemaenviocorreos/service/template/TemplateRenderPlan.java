@@ -0,0 +1,133 @@
+package org.secr.sistemaenviocorreos.service.template;
+
+import org.unbescape.html.HtmlEscape;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Plantilla precompilada: segmentos estáticos ya codificados y huecos para las variables. Renderizar consiste en
+ * escribir los segmentos en orden intercalando el valor de cada hueco, sin volver a procesar la plantilla.
+ */
+public final class TemplateRenderPlan {
+
+    private static final ThreadLocal<StringBuilder> BUFFER = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+
+    private final String templateName;
+    private final String[] segments;
+    private final byte[][] encodedSegments;
+    private final Slot[] slots;
+    private final int staticLength;
+
+    TemplateRenderPlan(String templateName, List<String> segments, List<Slot> slots) {
+        if (segments.size() != slots.size() + 1) {
+            throw new IllegalArgumentException("Debe haber un segmento más que huecos");
+        }
+        this.templateName = templateName;
+        this.segments = segments.toArray(String[]::new);
+        this.slots = slots.toArray(Slot[]::new);
+        this.encodedSegments = new byte[this.segments.length][];
+        int length = 0;
+        for (int i = 0; i < this.segments.length; i++) {
+            encodedSegments[i] = this.segments[i].getBytes(StandardCharsets.UTF_8);
+            length += this.segments[i].length();
+        }
+        this.staticLength = length;
+    }
+
+    public String getTemplateName() {
+        return templateName;
+    }
+
+    /**
+     * Indica si alguna variable de la plantilla procede del campo indicado, por ejemplo para saber si el contenido
+     * depende del destinatario.
+     */
+    public boolean usesField(String field) {
+        for (Slot slot : slots) {
+            if (slot.field().equals(field)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Campos del DTO que lee la plantilla: dos datos que coinciden en ellos producen el mismo resultado.
+     */
+    public Set<String> fields() {
+        return Stream.of(slots).map(Slot::field).collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Renderiza la plantilla en un buffer reutilizado por hilo.
+     * @param data  Objeto de datos de la plantilla
+     * @return      Resultado, o {@code null} si algún valor es nulo y debe usarse el motor completo
+     */
+    public String render(Object data) {
+        String[] values = values(data);
+        if (values == null) return null;
+        StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        for (int i = 0; i < slots.length; i++) {
+            buffer.append(segments[i]).append(values[i]);
+        }
+        buffer.append(segments[slots.length]);
+        String result = buffer.toString();
+        if (buffer.capacity() > 1 << 20) BUFFER.remove();
+        return result;
+    }
+
+    /**
+     * Escribe la plantilla codificada en UTF-8 directamente en un stream, copiando los segmentos estáticos ya
+     * codificados.
+     * @return  {@code false} si algún valor es nulo y debe usarse el motor completo
+     */
+    public boolean writeTo(Object data, OutputStream out) throws IOException {
+        String[] values = values(data);
+        if (values == null) return false;
+        for (int i = 0; i < slots.length; i++) {
+            out.write(encodedSegments[i]);
+            out.write(values[i].getBytes(StandardCharsets.UTF_8));
+        }
+        out.write(encodedSegments[slots.length]);
+        return true;
+    }
+
+    /**
+     * Tamaño aproximado del resultado, útil para dimensionar buffers.
+     */
+    public int estimatedLength() {
+        return staticLength + slots.length * 32;
+    }
+
+    private String[] values(Object data) {
+        String[] values = new String[slots.length];
+        for (int i = 0; i < slots.length; i++) {
+            String value = slots[i].read(data);
+            if (value == null) return null;
+            values[i] = slots[i].escaped() ? HtmlEscape.escapeHtml4Xml(value) : value;
+        }
+        return values;
+    }
+
+    /**
+     * Hueco de la plantilla.
+     * @param field     Campo del DTO del que sale el valor
+     * @param accessor  Accesor del campo
+     * @param escaped   Si el valor se escapa como en {@code th:text} o se escribe tal cual como en {@code th:utext}
+     */
+    record Slot(String field, MethodHandle accessor, boolean escaped) {
+        String read(Object data) {
+            try {
+                return (String) accessor.invoke(data);
+            } catch (Throwable e) {
+                throw new IllegalStateException("No se pudo leer el campo " + field, e);
+            }
+        }
+    }
+}
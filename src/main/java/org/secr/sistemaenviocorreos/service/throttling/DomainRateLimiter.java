@@ -0,0 +1,145 @@
+package org.secr.sistemaenviocorreos.service.throttling;
+
+import org.secr.sistemaenviocorreos.config.ThrottlingProperties;
+import org.springframework.stereotype.Service;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limitación de envíos por dominio del destinatario y por remitente con token buckets en forma GCRA: cada bucket es un
+ * único {@code long} con el instante teórico de la siguiente llegada, que se actualiza con CAS sin bloqueos. Los
+ * dominios configurados tienen su propio bucket; el resto se reparten por hash entre una tabla fija de buckets con el
+ * límite por defecto, por lo que la memoria no crece con el número de dominios. Cada bucket ocupa su propia línea de
+ * caché para que los hilos que envían a dominios distintos no compitan entre sí.
+ */
+@Service
+public class DomainRateLimiter {
+
+    private static final int SHARED_STRIPES = 1024;
+    private static final int PADDING = 8; //longs por bucket, 64 bytes
+    private static final int SENDER_SLOT = 0;
+    private static final String DEFAULT_KEY = "default";
+
+    private final boolean enabled;
+    private final long maxLocalDelayNanos;
+    private final long penaltyNanos;
+    private final Map<String, Integer> domainSlots = new HashMap<>();
+    private final int firstSharedSlot;
+    private final long[] intervals;
+    private final long[] tolerances;
+    private final AtomicLongArray theoreticalArrivals;
+    private final long origin = System.nanoTime();
+
+    public DomainRateLimiter(ThrottlingProperties properties) {
+        this.enabled = properties.enabled();
+        this.maxLocalDelayNanos = TimeUnit.MILLISECONDS.toNanos(properties.maxLocalDelay());
+        this.penaltyNanos = TimeUnit.SECONDS.toNanos(properties.transientFailurePenalty());
+
+        Map<String, ThrottlingProperties.Limit> domains = properties.domains();
+        this.firstSharedSlot = 1 + domains.size();
+        int slots = firstSharedSlot + SHARED_STRIPES;
+        this.intervals = new long[slots];
+        this.tolerances = new long[slots];
+        this.theoreticalArrivals = new AtomicLongArray(slots * PADDING);
+
+        configure(SENDER_SLOT, properties.sender());
+        int slot = 1;
+        for (Map.Entry<String, ThrottlingProperties.Limit> domain : domains.entrySet()) {
+            domainSlots.put(domain.getKey().toLowerCase(Locale.ROOT), slot);
+            configure(slot++, domain.getValue());
+        }
+        for (int i = firstSharedSlot; i < slots; i++) configure(i, properties.defaultLimit());
+    }
+
+    private void configure(int slot, ThrottlingProperties.Limit limit) {
+        if (limit == null || limit.rate() <= 0) return;
+        intervals[slot] = (long) (TimeUnit.SECONDS.toNanos(1) / limit.rate());
+        tolerances[slot] = intervals[slot] * Math.max(1, limit.burst());
+    }
+
+    /**
+     * Pide permiso para enviar un correo. Si hay que esperar poco (hasta {@code max-local-delay}) se reserva el hueco
+     * y el correo se debe enviar pasado el retardo; si hay que esperar más no se reserva nada y el correo se debe
+     * reencolar con ese retardo.
+     * @param recipient Dirección del destinatario
+     * @return          Retardo y si el hueco ha quedado reservado
+     */
+    public Permit acquire(String recipient) {
+        if (!enabled) return Permit.NOW;
+        long now = System.nanoTime() - origin;
+        int domainSlot = slotOf(recipient);
+
+        long domainWait = reserve(domainSlot, now);
+        if (domainWait > maxLocalDelayNanos) return new Permit(domainWait, false);
+        long senderWait = reserve(SENDER_SLOT, now);
+        if (senderWait > maxLocalDelayNanos) {
+            release(domainSlot);
+            return new Permit(senderWait, false);
+        }
+        long wait = Math.max(domainWait, senderWait);
+        return wait == 0 ? Permit.NOW : new Permit(wait, true);
+    }
+
+    /**
+     * Frena un dominio que ha respondido con un error temporal (421, greylisting...): no se le vuelve a enviar hasta
+     * pasada la penalización.
+     */
+    public void penalize(String recipient) {
+        if (!enabled) return;
+        int slot = slotOf(recipient);
+        if (intervals[slot] == 0) return;
+        long until = System.nanoTime() - origin + penaltyNanos + tolerances[slot];
+        theoreticalArrivals.accumulateAndGet(slot * PADDING, until, Math::max);
+    }
+
+    /**
+     * Nombre del límite aplicado a un destinatario, para métricas: el dominio si tiene límite propio o
+     * {@code default}.
+     */
+    public String limitKey(String recipient) {
+        String domain = domainOf(recipient);
+        return domainSlots.containsKey(domain) ? domain : DEFAULT_KEY;
+    }
+
+    private long reserve(int slot, long now) {
+        long interval = intervals[slot];
+        if (interval == 0) return 0;
+        int index = slot * PADDING;
+        while (true) {
+            long current = theoreticalArrivals.get(index);
+            long next = Math.max(current, now) + interval;
+            long wait = Math.max(0, next - now - tolerances[slot]);
+            if (wait > maxLocalDelayNanos) return wait;
+            if (theoreticalArrivals.compareAndSet(index, current, next)) return wait;
+        }
+    }
+
+    private void release(int slot) {
+        if (intervals[slot] != 0) theoreticalArrivals.addAndGet(slot * PADDING, -intervals[slot]);
+    }
+
+    private int slotOf(String recipient) {
+        String domain = domainOf(recipient);
+        Integer slot = domainSlots.get(domain);
+        if (slot != null) return slot;
+        return firstSharedSlot + Math.floorMod(domain.hashCode(), SHARED_STRIPES);
+    }
+
+    private static String domainOf(String recipient) {
+        if (recipient == null) return "";
+        int at = recipient.lastIndexOf('@');
+        return recipient.substring(at + 1).trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @param delayNanos    Tiempo que hay que esperar antes de enviar
+     * @param reserved      Si el hueco está reservado (enviar tras el retardo) o no (reencolar con el retardo)
+     */
+    public record Permit(long delayNanos, boolean reserved) {
+        static final Permit NOW = new Permit(0, true);
+    }
+}
@@ -0,0 +1,117 @@
+package org.secr.sistemaenviocorreos.config.codec;
+
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailMessageConverterTest {
+
+    private final BinaryEmailCodec codec = new BinaryEmailCodec(1024, 1);
+    private final EmailMessageConverter converter = new EmailMessageConverter(new Jackson2JsonMessageConverter(),
+            codec, true);
+
+    @Test
+    void binaryRoundTripTest() {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Asunto con ñ", "Cuerpo de prueba",
+                LocalDateTime.of(2030, 5, 17, 10, 30, 15, 123_000_000), 3);
+
+        //Act
+        Message message = converter.toMessage(payload, new MessageProperties());
+
+        //Assert
+        assertEquals(EmailMessageConverter.BINARY_CONTENT_TYPE, message.getMessageProperties().getContentType());
+        assertEquals(payload, converter.fromMessage(message));
+    }
+
+    @Test
+    void nullFieldsRoundTripTest() {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", null, null, null, 3);
+
+        //Act & Assert
+        assertEquals(payload, codec.decode(codec.encode(payload)));
+    }
+
+    @Test
+    void optionalFieldsRoundTripTest() {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3, "pedido-42",
+                EmailPriority.BULK);
+
+        //Act & Assert
+        assertEquals(payload, codec.decode(codec.encode(payload)));
+    }
+
+    @Test
+    void attachmentsAndIdsRoundTripTest() {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3, null,
+                EmailPriority.TRANSACTIONAL, List.of(new AttachmentDTO("a".repeat(64), "factura.pdf", "application/pdf"),
+                new AttachmentDTO("b".repeat(64), "logo ñ.png", null)), "id-1", "promo-marzo");
+
+        //Act & Assert
+        assertEquals(payload, codec.decode(codec.encode(payload)));
+    }
+
+    @Test
+    void compressLargeBodiesTest() {
+        //Arrange
+        String body = "<p>Lorem ipsum dolor sit amet</p>".repeat(500);
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", body, null, 3);
+
+        //Act
+        byte[] encoded = codec.encode(payload);
+
+        //Assert
+        assertEquals(BinaryEmailCodec.FLAG_DEFLATE, encoded[1]);
+        assertTrue(encoded.length < body.length() / 10);
+        assertEquals(payload, codec.decode(encoded));
+    }
+
+    @Test
+    void skipUnknownFieldsTest() {
+        //Arrange: campo 30 de una versión futura seguido del email
+        byte[] email = "test@test.com".getBytes(StandardCharsets.UTF_8);
+        byte[] encoded = new byte[2 + 3 + 2 + email.length];
+        encoded[0] = BinaryEmailCodec.VERSION;
+        encoded[2] = 30;
+        encoded[3] = 1;
+        encoded[4] = 42;
+        encoded[5] = BinaryEmailCodec.TAG_EMAIL;
+        encoded[6] = (byte) email.length;
+        System.arraycopy(email, 0, encoded, 7, email.length);
+
+        //Act
+        PublishRabbitMQDTO decoded = codec.decode(encoded);
+
+        //Assert
+        assertEquals("test@test.com", decoded.email());
+    }
+
+    @Test
+    void rejectUnknownVersionTest() {
+        assertThrows(MessageConversionException.class, () -> codec.decode(new byte[]{9, 0}));
+    }
+
+    @Test
+    void readJsonProducersTest() {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+        Message json = new Jackson2JsonMessageConverter().toMessage(payload, new MessageProperties());
+
+        //Act & Assert
+        assertEquals(payload, converter.fromMessage(json));
+    }
+}
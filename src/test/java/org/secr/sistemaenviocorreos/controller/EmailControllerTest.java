@@ -4,22 +4,55 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignProgressDTO;
+import org.secr.sistemaenviocorreos.dto.DeliveryStatusDTO;
 import org.secr.sistemaenviocorreos.dto.EmailDTO;
+import org.secr.sistemaenviocorreos.dto.ReplayResultDTO;
+import org.secr.sistemaenviocorreos.dto.RescheduleDTO;
 import org.secr.sistemaenviocorreos.dto.ScheduledEmailDTO;
+import org.secr.sistemaenviocorreos.dto.StoredAttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.TemplateDTO;
+import org.secr.sistemaenviocorreos.enums.CampaignStatus;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+import org.secr.sistemaenviocorreos.service.EmailBatchPublisher;
 import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.secr.sistemaenviocorreos.service.PublishConfirmException;
+import org.secr.sistemaenviocorreos.service.attachment.AttachmentStore;
+import org.secr.sistemaenviocorreos.service.campaign.CampaignService;
+import org.secr.sistemaenviocorreos.service.retry.DeadLetterService;
+import org.secr.sistemaenviocorreos.service.scheduled.ScheduledEmailStore;
+import org.secr.sistemaenviocorreos.service.status.DeliveryStatusStore;
+import org.secr.sistemaenviocorreos.service.template.TemplateRegistry;
 import org.springframework.amqp.AmqpException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
 import org.springframework.http.MediaType;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 import org.springframework.test.web.servlet.ResultActions;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.patch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @ExtendWith(MockitoExtension.class)
@@ -28,6 +61,20 @@ public class EmailControllerTest {
 
     @MockitoBean
     private EmailPublisher emailPublisher;
+    @MockitoBean
+    private EmailBatchPublisher emailBatchPublisher;
+    @MockitoBean
+    private DeadLetterService deadLetterService;
+    @MockitoBean
+    private CampaignService campaignService;
+    @MockitoBean
+    private TemplateRegistry templateRegistry;
+    @MockitoBean
+    private AttachmentStore attachmentStore;
+    @MockitoBean
+    private ScheduledEmailStore scheduledEmailStore;
+    @MockitoBean
+    private DeliveryStatusStore deliveryStatusStore;
 
     @Autowired
     private MockMvc mockMvc;
@@ -42,15 +89,15 @@ public class EmailControllerTest {
         String body = "Test";
         EmailDTO emailDTO = new EmailDTO(email, subject, body);
 
-        doNothing().when(emailPublisher).send(any(EmailDTO.class));
+        when(emailPublisher.send(any(EmailDTO.class))).thenReturn(CompletableFuture.completedFuture("id-1"));
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/send")
+        ResultActions resp = perform(post("/email/send")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(emailDTO)));
 
         //Assert
-        resp.andExpect(status().isOk());
+        resp.andExpect(status().isAccepted()).andExpect(jsonPath("$.id").value("id-1"));
         verify(emailPublisher,times(1)).send(any(EmailDTO.class));
     }
 
@@ -63,7 +110,7 @@ public class EmailControllerTest {
         EmailDTO emailDTO = new EmailDTO(email, subject, body);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/send")
+        ResultActions resp = perform(post("/email/send")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(emailDTO)));
 
@@ -79,7 +126,7 @@ public class EmailControllerTest {
         EmailDTO emailDTO = new EmailDTO(email, subject, body);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/send")
+        ResultActions resp = perform(post("/email/send")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(emailDTO)));
 
@@ -95,7 +142,7 @@ public class EmailControllerTest {
         EmailDTO emailDTO = new EmailDTO(email, subject, body);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/send")
+        ResultActions resp = perform(post("/email/send")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(emailDTO)));
 
@@ -112,7 +159,7 @@ public class EmailControllerTest {
         EmailDTO emailDTO = new EmailDTO(email, subject, body);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/send")
+        ResultActions resp = perform(post("/email/send")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(emailDTO)));
 
@@ -132,7 +179,7 @@ public class EmailControllerTest {
         doThrow(AmqpException.class).when(emailPublisher).send(any(EmailDTO.class));
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/send")
+        ResultActions resp = perform(post("/email/send")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(emailDTO)));
 
@@ -141,6 +188,23 @@ public class EmailControllerTest {
         verify(emailPublisher,times(1)).send(any(EmailDTO.class));
     }
 
+    @Test
+    void sendEmailWhenNotConfirmedTest() throws Exception {
+        //Arrange
+        EmailDTO emailDTO = new EmailDTO("test@test.com", "Test", "Test");
+
+        when(emailPublisher.send(any(EmailDTO.class))).thenReturn(CompletableFuture.failedFuture(
+                new PublishConfirmException("id-1", PublishConfirmException.Outcome.NACK, "Rechazado por el broker")));
+
+        //Act
+        ResultActions resp = perform(post("/email/send")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(emailDTO)));
+
+        //Assert
+        resp.andExpect(status().isServiceUnavailable());
+    }
+
     @Test
     void sendEmailLaterTest() throws Exception {
         //Arrange
@@ -151,15 +215,15 @@ public class EmailControllerTest {
         LocalDateTime timestamp = LocalDateTime.now();
         ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(emailDTO,timestamp);
 
-        doNothing().when(emailPublisher).sendLater(any(ScheduledEmailDTO.class));
+        when(emailPublisher.sendLater(any(ScheduledEmailDTO.class))).thenReturn(CompletableFuture.completedFuture("id-1"));
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/sendLater")
+        ResultActions resp = perform(post("/email/sendLater")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(scheduledEmailDTO)));
 
         //Assert
-        resp.andExpect(status().isOk());
+        resp.andExpect(status().isAccepted());
         verify(emailPublisher,times(1)).sendLater(any(ScheduledEmailDTO.class));
     }
 
@@ -174,7 +238,7 @@ public class EmailControllerTest {
         ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(emailDTO,timestamp);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/sendLater")
+        ResultActions resp = perform(post("/email/sendLater")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(scheduledEmailDTO)));
 
@@ -192,7 +256,7 @@ public class EmailControllerTest {
         ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(emailDTO,timestamp);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/sendLater")
+        ResultActions resp = perform(post("/email/sendLater")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(scheduledEmailDTO)));
 
@@ -210,7 +274,7 @@ public class EmailControllerTest {
         ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(emailDTO,timestamp);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/sendLater")
+        ResultActions resp = perform(post("/email/sendLater")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(scheduledEmailDTO)));
 
@@ -229,7 +293,7 @@ public class EmailControllerTest {
         ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(emailDTO,timestamp);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/sendLater")
+        ResultActions resp = perform(post("/email/sendLater")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(scheduledEmailDTO)));
 
@@ -248,7 +312,7 @@ public class EmailControllerTest {
         ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(emailDTO,timestamp);
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/sendLater")
+        ResultActions resp = perform(post("/email/sendLater")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(scheduledEmailDTO)));
 
@@ -271,7 +335,7 @@ public class EmailControllerTest {
         doThrow(AmqpException.class).when(emailPublisher).sendLater(any(ScheduledEmailDTO.class));
 
         //Act
-        ResultActions resp = mockMvc.perform(post("/email/sendLater")
+        ResultActions resp = perform(post("/email/sendLater")
                 .contentType(MediaType.APPLICATION_JSON)
                 .content(objectMapper.writeValueAsString(scheduledEmailDTO)));
 
@@ -280,4 +344,288 @@ public class EmailControllerTest {
         verify(emailPublisher,times(1)).sendLater(any(ScheduledEmailDTO.class));
     }
 
+    @Test
+    void sendBatchTest() throws Exception {
+        //Arrange
+        String body = "[{\"email\":\"test@test.com\",\"subject\":\"Test\",\"message\":\"Test\"}]";
+
+        doNothing().when(emailBatchPublisher).publish(any(InputStream.class), any(OutputStream.class));
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/sendBatch")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(body));
+
+        //Assert
+        resp.andExpect(status().isOk());
+        verify(emailBatchPublisher,times(1)).publish(any(InputStream.class), any(OutputStream.class));
+    }
+
+    @Test
+    void sendBatchWhenContentTypeIsWrongTest() throws Exception {
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/sendBatch")
+                .contentType(MediaType.TEXT_PLAIN)
+                .content("test"));
+
+        //Assert
+        resp.andExpect(status().is(415));
+        verify(emailBatchPublisher,times(0)).publish(any(InputStream.class), any(OutputStream.class));
+    }
+
+    @Test
+    void replayDeadLettersTest() throws Exception {
+        //Arrange
+        when(deadLetterService.replay(50)).thenReturn(new ReplayResultDTO(48, 2));
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/deadLetters/replay").param("limit", "50"));
+
+        //Assert
+        resp.andExpect(status().isOk())
+                .andExpect(jsonPath("$.replayed").value(48))
+                .andExpect(jsonPath("$.failed").value(2));
+        verify(deadLetterService,times(1)).replay(50);
+    }
+
+    @Test
+    void replayDeadLettersWhenAmqpExceptionTest() throws Exception {
+        //Arrange
+        doThrow(AmqpException.class).when(deadLetterService).replay(anyInt());
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/deadLetters/replay"));
+
+        //Assert
+        resp.andExpect(status().isServiceUnavailable());
+        verify(deadLetterService,times(1)).replay(1000);
+    }
+
+    @Test
+    void createCampaignTest() throws Exception {
+        //Arrange
+        CampaignDTO campaignDTO = new CampaignDTO("Novedades", "<p>Hola</p>", null);
+        when(campaignService.create(campaignDTO))
+                .thenReturn(new CampaignProgressDTO("c-1", CampaignStatus.ACTIVE, 0, 0, 0, 0));
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/campaigns")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(campaignDTO)));
+
+        //Assert
+        resp.andExpect(status().isCreated())
+                .andExpect(jsonPath("$.id").value("c-1"))
+                .andExpect(jsonPath("$.status").value("ACTIVE"));
+    }
+
+    @Test
+    void addRecipientsToUnknownCampaignTest() throws Exception {
+        //Arrange
+        when(campaignService.addRecipients(eq("c-1"), any(InputStream.class))).thenReturn(null);
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/campaigns/c-1/recipients")
+                .contentType(MediaType.TEXT_PLAIN)
+                .content("a@test.com\nb@test.com\n"));
+
+        //Assert
+        resp.andExpect(status().isNotFound());
+    }
+
+    @Test
+    void resumeCancelledCampaignTest() throws Exception {
+        //Arrange
+        when(campaignService.changeStatus("c-1", CampaignStatus.ACTIVE))
+                .thenThrow(new IllegalStateException("Campaña cancelada"));
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/campaigns/c-1/resume"));
+
+        //Assert
+        resp.andExpect(status().isConflict());
+    }
+
+    @Test
+    void installTemplateTest() throws Exception {
+        //Arrange
+        String source = "<html><body><p th:text=\"${data.message}\"></p></body></html>";
+        when(templateRegistry.install("welcome-email", source, "127.0.0.1"))
+                .thenReturn(new TemplateDTO("welcome-email", 2, "PublishRabbitMQDTO", true));
+
+        //Act
+        ResultActions resp = mockMvc.perform(put("/email/templates/welcome-email")
+                .contentType(MediaType.TEXT_HTML)
+                .content(source));
+
+        //Assert
+        resp.andExpect(status().isOk())
+                .andExpect(jsonPath("$.version").value(2))
+                .andExpect(jsonPath("$.precompiled").value(true));
+    }
+
+    @Test
+    void installInvalidTemplateTest() throws Exception {
+        //Arrange
+        when(templateRegistry.install(eq("welcome-email"), any(), any()))
+                .thenThrow(new IllegalArgumentException("Plantilla no válida"));
+
+        //Act
+        ResultActions resp = mockMvc.perform(put("/email/templates/welcome-email")
+                .contentType(MediaType.TEXT_HTML)
+                .content("<p th:text=\"${data.nope}\"></p>"));
+
+        //Assert
+        resp.andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void installTemplateDisabledTest() throws Exception {
+        //Arrange
+        when(templateRegistry.install(eq("welcome-email"), any(), any()))
+                .thenThrow(new IllegalStateException("Publicación de plantillas desactivada"));
+
+        //Act
+        ResultActions resp = mockMvc.perform(put("/email/templates/welcome-email")
+                .contentType(MediaType.TEXT_HTML)
+                .content("<p th:text=\"${data.message}\"></p>"));
+
+        //Assert
+        resp.andExpect(status().isForbidden());
+    }
+
+    @Test
+    void uploadAttachmentTest() throws Exception {
+        //Arrange
+        String id = "a".repeat(64);
+        when(attachmentStore.store(any(InputStream.class))).thenReturn(new StoredAttachmentDTO(id, 3, false));
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/attachments")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(new byte[]{1, 2, 3}));
+
+        //Assert
+        resp.andExpect(status().isCreated())
+                .andExpect(jsonPath("$.id").value(id))
+                .andExpect(jsonPath("$.size").value(3));
+    }
+
+    @Test
+    void uploadOversizedAttachmentTest() throws Exception {
+        //Arrange
+        when(attachmentStore.store(any(InputStream.class)))
+                .thenThrow(new IllegalArgumentException("El adjunto es demasiado grande"));
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/attachments")
+                .contentType(MediaType.APPLICATION_OCTET_STREAM)
+                .content(new byte[]{1, 2, 3}));
+
+        //Assert
+        resp.andExpect(status().isPayloadTooLarge());
+    }
+
+    @Test
+    void sendEmailWithMissingAttachmentTest() throws Exception {
+        //Arrange
+        String id = "c".repeat(64);
+        EmailDTO emailDTO = new EmailDTO("test@test.com", "Test", "Test", null, null,
+                List.of(new AttachmentDTO(id, "factura.pdf", "application/pdf")));
+        when(attachmentStore.exists(id)).thenReturn(false);
+
+        //Act
+        ResultActions resp = perform(post("/email/send")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(emailDTO)));
+
+        //Assert
+        resp.andExpect(status().isBadRequest());
+        verify(emailPublisher, never()).send(any(EmailDTO.class));
+    }
+
+    @Test
+    void cancelScheduledTest() throws Exception {
+        //Arrange
+        when(scheduledEmailStore.cancel("1700000000-abc")).thenReturn(true);
+        when(scheduledEmailStore.cancel("1600000000-abc")).thenReturn(false);
+        when(scheduledEmailStore.cancel("1800000000-abc")).thenThrow(new IllegalStateException("Liberando"));
+
+        //Act & Assert
+        mockMvc.perform(delete("/email/scheduled/1700000000-abc")).andExpect(status().isNoContent());
+        mockMvc.perform(delete("/email/scheduled/1600000000-abc")).andExpect(status().isNotFound());
+        mockMvc.perform(delete("/email/scheduled/1800000000-abc")).andExpect(status().isConflict());
+        verify(deliveryStatusStore, times(1)).record("1700000000-abc", DeliveryState.CANCELLED, null);
+        verify(deliveryStatusStore, times(1)).record(anyString(), any(), any());
+    }
+
+    @Test
+    void cancelScheduledTagTest() throws Exception {
+        //Act
+        ResultActions resp = mockMvc.perform(delete("/email/scheduled").param("tag", "promo-marzo"));
+
+        //Assert
+        resp.andExpect(status().isNoContent());
+        verify(scheduledEmailStore, times(1)).cancelTag("promo-marzo");
+    }
+
+    @Test
+    void rescheduleTest() throws Exception {
+        //Arrange
+        LocalDateTime scheduled = LocalDateTime.of(2030, 1, 1, 10, 0);
+        when(scheduledEmailStore.reschedule("1700000000-abc", scheduled)).thenReturn("1893488400-def");
+
+        //Act
+        ResultActions resp = mockMvc.perform(patch("/email/scheduled/1700000000-abc")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(new RescheduleDTO(scheduled))));
+
+        //Assert
+        resp.andExpect(status().isOk())
+                .andExpect(jsonPath("$.id").value("1893488400-def"));
+        verify(deliveryStatusStore, times(1)).record("1700000000-abc", DeliveryState.CANCELLED, null);
+        verify(deliveryStatusStore, times(1)).record("1893488400-def", DeliveryState.SCHEDULED, null);
+    }
+
+    @Test
+    void deliveryStatusTest() throws Exception {
+        //Arrange
+        LocalDateTime updatedAt = LocalDateTime.of(2030, 1, 1, 10, 0);
+        when(deliveryStatusStore.get("id-1")).thenReturn(new DeliveryStatusDTO("id-1", DeliveryState.FAILED, 2, updatedAt));
+
+        //Act & Assert
+        mockMvc.perform(get("/email/id-1/status"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.state").value("FAILED"))
+                .andExpect(jsonPath("$.retriesLeft").value(2));
+        mockMvc.perform(get("/email/id-2/status")).andExpect(status().isNotFound());
+    }
+
+    @Test
+    void bulkDeliveryStatusTest() throws Exception {
+        //Arrange
+        when(deliveryStatusStore.getOrUnknown("id-1")).thenReturn(new DeliveryStatusDTO("id-1", DeliveryState.SENT, 3,
+                LocalDateTime.of(2030, 1, 1, 10, 0)));
+        when(deliveryStatusStore.getOrUnknown("id-2")).thenReturn(DeliveryStatusDTO.unknown("id-2"));
+
+        //Act
+        ResultActions resp = mockMvc.perform(post("/email/status")
+                .contentType(MediaType.APPLICATION_JSON)
+                .content(objectMapper.writeValueAsString(List.of("id-1", "id-2"))));
+
+        //Assert
+        resp.andExpect(status().isOk())
+                .andExpect(jsonPath("$[0].state").value("SENT"))
+                .andExpect(jsonPath("$[1].id").value("id-2"))
+                .andExpect(jsonPath("$[1].state").value("UNKNOWN"));
+    }
+
+    /**
+     * Ejecuta la petición y, si el controlador responde de forma asíncrona, espera al resultado.
+     */
+    private ResultActions perform(MockHttpServletRequestBuilder request) throws Exception {
+        ResultActions actions = mockMvc.perform(request);
+        MvcResult result = actions.andReturn();
+        return result.getRequest().isAsyncStarted() ? mockMvc.perform(asyncDispatch(result)) : actions;
+    }
 }
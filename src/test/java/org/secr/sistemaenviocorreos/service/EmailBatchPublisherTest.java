@@ -0,0 +1,204 @@
+package org.secr.sistemaenviocorreos.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.validation.Validation;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.dto.EmailDTO;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.attachment.AttachmentStore;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class EmailBatchPublisherTest {
+    @Mock
+    private EmailPublisher emailPublisher;
+    @Mock
+    private DeduplicationService deduplication;
+    @Mock
+    private EmailMetrics metrics;
+    @Mock
+    private AttachmentStore attachmentStore;
+    @InjectMocks
+    private EmailBatchPublisher emailBatchPublisher;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(emailBatchPublisher, "objectMapper", new ObjectMapper());
+        ReflectionTestUtils.setField(emailBatchPublisher, "validator",
+                Validation.buildDefaultValidatorFactory().getValidator());
+        ReflectionTestUtils.setField(emailBatchPublisher, "batchSize", 2);
+        lenient().when(emailPublisher.toMessage(any(EmailDTO.class), eq(EmailPriority.BULK)))
+                .thenAnswer(inv -> {
+                    EmailDTO emailDTO = inv.getArgument(0);
+                    return new PublishRabbitMQDTO(emailDTO.email(), emailDTO.subject(), emailDTO.message(), null, 3,
+                            emailDTO.idempotencyKey(), EmailPriority.BULK);
+                });
+    }
+
+    @Test
+    void publishJsonArrayTest() throws IOException {
+        //Arrange
+        String body = "[{\"email\":\"a@test.com\",\"subject\":\"Test\",\"message\":\"Test\"},"
+                + "{\"email\":\"wrong\",\"subject\":\"Test\",\"message\":\"Test\"},"
+                + "{\"email\":\"c@test.com\",\"subject\":\"Test\",\"message\":\"Test\"}]";
+        ackAll();
+
+        //Act
+        String[] results = publish(body);
+
+        //Assert
+        assertEquals(3, results.length);
+        assertTrue(results[0].contains("\"accepted\":true"));
+        assertTrue(results[1].contains("\"accepted\":false"));
+        assertTrue(results[2].contains("\"accepted\":true"));
+        verify(emailPublisher, times(2)).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+    }
+
+    @Test
+    void publishNdjsonTest() throws IOException {
+        //Arrange
+        String body = "{\"email\":\"a@test.com\",\"subject\":\"Test\",\"message\":\"Test\"}\n"
+                + "{\"email\":\"b@test.com\",\"subject\":\"Test\",\"message\":\"Test\"}\n";
+        ackAll();
+
+        //Act
+        String[] results = publish(body);
+
+        //Assert
+        assertEquals(2, results.length);
+        verify(emailPublisher, times(2)).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+    }
+
+    @Test
+    void publishWhenBrokerNacksTest() throws IOException {
+        //Arrange
+        String body = "[{\"email\":\"a@test.com\",\"subject\":\"Test\",\"message\":\"Test\"}]";
+        doAnswer(inv -> {
+            CorrelationData correlationData = inv.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(false, "nack"));
+            return null;
+        }).when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        String[] results = publish(body);
+
+        //Assert
+        assertEquals(1, results.length);
+        assertTrue(results[0].contains("\"accepted\":false"));
+    }
+
+    @Test
+    void resubmittedItemsAreNotEnqueuedAgainTest() throws IOException {
+        //Arrange
+        String body = "{\"email\":\"a@test.com\",\"subject\":\"Test\",\"message\":\"Test\","
+                + "\"idempotencyKey\":\"k-1\"}\n"
+                + "{\"email\":\"b@test.com\",\"subject\":\"Test\",\"message\":\"Test\","
+                + "\"idempotencyKey\":\"k-2\"}\n";
+        String id = DeduplicationService.messageIdFor("k-1");
+        when(deduplication.acceptPublish("k-1")).thenReturn(false);
+        when(deduplication.acceptPublish("k-2")).thenReturn(true);
+        ackAll();
+
+        //Act
+        String[] results = publish(body);
+
+        //Assert
+        assertTrue(results[0].contains("\"accepted\":true"));
+        assertTrue(results[0].contains(id));
+        assertTrue(results[1].contains(DeduplicationService.messageIdFor("k-2")));
+        verify(emailPublisher, times(1)).publishConfirmed(any(PublishRabbitMQDTO.class),
+                argThat(correlationData -> DeduplicationService.messageIdFor("k-2").equals(correlationData.getId())));
+        verify(metrics, times(1)).recordDuplicate("publish");
+    }
+
+    @Test
+    void releaseKeyWhenBrokerNacksTest() throws IOException {
+        //Arrange
+        String body = "[{\"email\":\"a@test.com\",\"subject\":\"Test\",\"message\":\"Test\","
+                + "\"idempotencyKey\":\"k-1\"}]";
+        when(deduplication.acceptPublish("k-1")).thenReturn(true);
+        doAnswer(inv -> {
+            CorrelationData correlationData = inv.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(false, "nack"));
+            return null;
+        }).when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        String[] results = publish(body);
+
+        //Assert
+        assertTrue(results[0].contains("\"accepted\":false"));
+        verify(deduplication, times(1)).releasePublish("k-1");
+    }
+
+    @Test
+    void rejectItemWithUnknownAttachmentTest() throws IOException {
+        //Arrange
+        String uploaded = "a".repeat(64);
+        String unknown = "b".repeat(64);
+        String body = "{\"email\":\"a@test.com\",\"subject\":\"Test\",\"message\":\"Test\","
+                + "\"attachments\":[{\"id\":\"" + uploaded + "\",\"filename\":\"a.pdf\"}]}\n"
+                + "{\"email\":\"b@test.com\",\"subject\":\"Test\",\"message\":\"Test\","
+                + "\"attachments\":[{\"id\":\"" + unknown + "\",\"filename\":\"b.pdf\"}]}\n";
+        when(attachmentStore.exists(uploaded)).thenReturn(true);
+        when(attachmentStore.exists(unknown)).thenReturn(false);
+        ackAll();
+
+        //Act
+        String[] results = publish(body);
+
+        //Assert
+        assertTrue(results[0].contains("\"accepted\":true"));
+        assertTrue(results[1].contains("\"accepted\":false"));
+        assertTrue(results[1].contains("Adjunto no encontrado: " + unknown));
+        verify(emailPublisher, times(1)).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+    }
+
+    @Test
+    void publishWhenJsonIsMalformedTest() throws IOException {
+        //Arrange
+        String body = "[{\"email\":\"a@test.com\",\"subject\":\"Test\",\"message\":\"Test\"}, {";
+        ackAll();
+
+        //Act
+        String[] results = publish(body);
+
+        //Assert
+        assertEquals(2, results.length);
+        assertTrue(results[0].contains("\"accepted\":true"));
+        assertTrue(results[1].contains("JSON mal formado"));
+    }
+
+    private void ackAll() {
+        doAnswer(inv -> {
+            CorrelationData correlationData = inv.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+            return null;
+        }).when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+    }
+
+    private String[] publish(String body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        emailBatchPublisher.publish(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), out);
+        return out.toString(StandardCharsets.UTF_8).split("\n");
+    }
+}
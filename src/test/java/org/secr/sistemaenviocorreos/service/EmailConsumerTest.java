@@ -1,27 +1,56 @@
 package org.secr.sistemaenviocorreos.service;
 
+import com.rabbitmq.client.Channel;
+import jakarta.mail.Address;
 import jakarta.mail.AuthenticationFailedException;
 import jakarta.mail.MessagingException;
+import jakarta.mail.internet.InternetAddress;
 import jakarta.mail.internet.MimeMessage;
 import org.eclipse.angus.mail.util.MailConnectException;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
-import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.config.ThrottlingProperties;
 import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.campaign.CampaignStore;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
+import org.secr.sistemaenviocorreos.service.logging.SendEventLog;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.mime.MimeMessageFactory;
+import org.secr.sistemaenviocorreos.service.partition.PartitionRouter;
+import org.secr.sistemaenviocorreos.service.pipeline.DeliveryAck;
+import org.secr.sistemaenviocorreos.service.pipeline.EmailPipeline;
+import org.secr.sistemaenviocorreos.service.retry.DeadLetterService;
+import org.secr.sistemaenviocorreos.service.scheduled.ScheduledEmailStore;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpCircuitBreaker;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpCircuitOpenException;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpPoolExhaustedException;
+import org.secr.sistemaenviocorreos.service.smtp.SmtpTransportPool;
+import org.secr.sistemaenviocorreos.service.status.DeliveryStatusStore;
+import org.secr.sistemaenviocorreos.service.template.TemplateRenderPlan;
+import org.secr.sistemaenviocorreos.service.throttling.DomainRateLimiter;
+import org.springframework.amqp.AmqpException;
 import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.mail.MailAuthenticationException;
-import org.springframework.mail.MailSendException;
-import org.springframework.mail.javamail.JavaMailSenderImpl;
+import jakarta.mail.SendFailedException;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.io.IOException;
 import java.time.LocalDateTime;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.*;
 
@@ -30,16 +59,49 @@ public class EmailConsumerTest {
     @Mock
     private RabbitTemplate rabbitTemplate;
     @Mock
-    private JavaMailSenderImpl mailSenderImpl;
+    private MimeMessageFactory mimeMessageFactory;
     @Mock
     private EmailTemplateRenderer emailTemplateRenderer;
     @Mock
+    private SmtpTransportPool transportPool;
+    @Mock
+    private ScheduledEmailStore scheduledEmailStore;
+    @Mock
     private MimeMessage mimeMessage;
+    @Mock
+    private DeliveryAck ack;
+    @Mock
+    private EmailMetrics metrics;
+    @Mock
+    private SendEventLog events;
+    @Mock
+    private DeliveryStatusStore statusStore;
+    @Mock
+    private DeadLetterService deadLetterService;
+    @Mock
+    private DeduplicationService deduplication;
+    @Mock
+    private CampaignStore campaignStore;
+    @Mock
+    private EmailPublisher emailPublisher;
+    @Mock
+    private Channel channel;
     @InjectMocks
     private EmailConsumer emailConsumer;
 
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(emailConsumer, "pipeline", EmailPipeline.direct());
+        ReflectionTestUtils.setField(emailConsumer, "rateLimiter",
+                new DomainRateLimiter(new ThrottlingProperties(false, 2000, 30, null, null, null)));
+        ReflectionTestUtils.setField(emailConsumer, "partitionRouter", PartitionRouter.disabled());
+        ReflectionTestUtils.setField(emailConsumer, "circuitBreaker", new SmtpCircuitBreaker());
+        ReflectionTestUtils.setField(emailConsumer, "retryPolicy",
+                new RetryPolicy("email_queue", "email_queue.bulk", 30, 4, 3600, 5, 0.2, 3));
+    }
+
     @Test
-    void sendEmailNowTest(){
+    void sendEmailNowTest() throws MessagingException {
         //Arrange
         String email = "test@test.com";
         String subject = "Test";
@@ -51,27 +113,22 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        String renderedMessage = "<html>Email Body</html>";
 
-        when(emailTemplateRenderer.render(any(), eq(payload))).thenReturn(renderedMessage);
-        when(mailSenderImpl.createMimeMessage()).thenReturn(mimeMessage);
-        doNothing().when(mailSenderImpl).send(any(MimeMessage.class));
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doNothing().when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).send(any(MimeMessage.class));
-        verify(mailSenderImpl, times(1)).createMimeMessage();
-        verify(emailTemplateRenderer, times(1)).render(any(), eq(payload));
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
+        verify(mimeMessageFactory, times(1)).create(any(), eq(payload), any(), anyBoolean());
     }
 
     @Test
-    void sendEmailWhenTimeStampIsNullTest(){
+    void sendEmailWhenTimeStampIsNullTest() throws MessagingException {
         //Arrange
         String email = "test@test.com";
         String subject = "Test";
@@ -83,27 +140,22 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        String renderedMessage = "<html>Email Body</html>";
 
-        when(emailTemplateRenderer.render(any(), eq(payload))).thenReturn(renderedMessage);
-        when(mailSenderImpl.createMimeMessage()).thenReturn(mimeMessage);
-        doNothing().when(mailSenderImpl).send(any(MimeMessage.class));
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doNothing().when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).send(any(MimeMessage.class));
-        verify(mailSenderImpl, times(1)).createMimeMessage();
-        verify(emailTemplateRenderer, times(1)).render(any(), eq(payload));
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
+        verify(mimeMessageFactory, times(1)).create(any(), eq(payload), any(), anyBoolean());
     }
 
     @Test
-    void sendEmailLaterTest(){
+    void sendEmailLaterTest() throws MessagingException, IOException {
         //Arrange
         String email = "test@test.com";
         String subject = "Test";
@@ -115,39 +167,157 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        String renderedMessage = "<html>Email Body</html>";
+        doNothing().when(scheduledEmailStore).schedule(payload);
 
+        //Act
+        emailConsumer.consumer(payload);
 
+        //Assert
+        verify(scheduledEmailStore, times(1)).schedule(payload);
+        verify(transportPool, times(0)).send(any(MimeMessage.class));
+        verify(mimeMessageFactory, times(0)).create(any(), eq(payload), any(), anyBoolean());
+    }
 
-        ArgumentCaptor<Runnable> captor = ArgumentCaptor.forClass(Runnable.class);
-        ScheduledExecutorService schedulerMock = mock(ScheduledExecutorService.class);
-        ReflectionTestUtils.setField(emailConsumer, "scheduler", schedulerMock); // solo si no puedes usar constructor
+    @Test
+    void sendEmailLaterWhenStoreFailsTest() throws IOException {
+        //Arrange
+        LocalDateTime date = LocalDateTime.now().plusMinutes(2);
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", date, 3);
+
+        doThrow(IOException.class).when(scheduledEmailStore).schedule(payload);
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        verify(ack, times(1)).reject(true);
+        verify(ack, times(0)).ack();
+    }
+
+    @Test
+    void coalesceIdenticalMessagesTest(@Mock TemplateRenderPlan plan) throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO first = new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo de prueba", null, 3);
+        PublishRabbitMQDTO second = new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo de prueba", null, 3);
+        DeliveryAck secondAck = mock(DeliveryAck.class);
+        enableCoalescing(plan);
+
+        when(mimeMessageFactory.create(any(), eq(first), any(), anyBoolean())).thenReturn(mimeMessage);
 
-        ScheduledFuture<?> futureMock = mock(ScheduledFuture.class);
+        //Act
+        emailConsumer.consumer(first, ack);
+        emailConsumer.consumer(second, secondAck);
 
-        when(schedulerMock.schedule(captor.capture(), anyLong(), any()))
-                .thenReturn((ScheduledFuture) futureMock);
-        when(emailTemplateRenderer.render(any(), eq(payload))).thenReturn(renderedMessage);
-        when(mailSenderImpl.createMimeMessage()).thenReturn(mimeMessage);
-        doNothing().when(mailSenderImpl).send(any(MimeMessage.class));
+        //Assert
+        verify(mimeMessageFactory, times(1)).create(any(), any(), any(), anyBoolean());
+        verify(transportPool, times(1)).send(eq(mimeMessage), argThat(recipients -> recipients.length == 2));
+        verify(ack, times(1)).ack();
+        verify(secondAck, times(1)).ack();
+        emailConsumer.stopCoalescing();
+    }
+
+    @Test
+    void retryOnlyRejectedRecipientsTest(@Mock TemplateRenderPlan plan) throws Exception {
+        //Arrange
+        PublishRabbitMQDTO first = new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo de prueba", null, 3);
+        PublishRabbitMQDTO second = new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo de prueba", null, 3);
+        DeliveryAck secondAck = mock(DeliveryAck.class);
+        enableCoalescing(plan);
+
+        when(mimeMessageFactory.create(any(), eq(first), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(new SendFailedException("Destinatario rechazado", null,
+                new Address[]{new InternetAddress("a@test.com")},
+                new Address[0],
+                new Address[]{new InternetAddress("b@test.com")}))
+                .when(transportPool).send(eq(mimeMessage), any());
 
         //Act
-        emailConsumer.consumer(payload);
-        captor.getValue().run();
+        emailConsumer.consumer(first, ack);
+        emailConsumer.consumer(second, secondAck);
 
         //Assert
-        verify(mailSenderImpl, times(1)).send(any(MimeMessage.class));
-        verify(mailSenderImpl, times(1)).createMimeMessage();
-        verify(emailTemplateRenderer, times(1)).render(any(), eq(payload));
-        verify(schedulerMock, times(1)).schedule(captor.capture(), anyLong(), any());
+        verify(rabbitTemplate, times(1)).convertAndSend(eq(""), eq("email_queue.retry.0"),
+                eq(new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo de prueba", null, 2)),
+                any(MessagePostProcessor.class));
+        verify(ack, times(1)).ack();
+        verify(secondAck, times(1)).ack();
+        emailConsumer.stopCoalescing();
+    }
+
+    private void enableCoalescing(TemplateRenderPlan plan) {
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+        ReflectionTestUtils.setField(emailConsumer, "coalescingEnabled", true);
+        ReflectionTestUtils.setField(emailConsumer, "coalescingWindow", 60_000);
+        ReflectionTestUtils.setField(emailConsumer, "maxRecipients", 2);
+        when(emailTemplateRenderer.planFor(any())).thenReturn(Optional.of(plan));
+        when(plan.usesField("email")).thenReturn(false);
+        emailConsumer.startCoalescing();
+    }
+
+    @Test
+    void requeueWhenDomainLimitIsReachedTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO first = new PublishRabbitMQDTO("a@gmail.com", "Test", "Cuerpo de prueba", null, 3);
+        PublishRabbitMQDTO second = new PublishRabbitMQDTO("b@gmail.com", "Test", "Cuerpo de prueba", null, 3);
+        DeliveryAck secondAck = mock(DeliveryAck.class);
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+        ReflectionTestUtils.setField(emailConsumer, "rateLimiter", new DomainRateLimiter(new ThrottlingProperties(
+                true, 0, 30, null, null, Map.of("gmail.com", new ThrottlingProperties.Limit(1, 1)))));
+
+        when(mimeMessageFactory.create(any(), eq(first), any(), anyBoolean())).thenReturn(mimeMessage);
+
+        //Act
+        emailConsumer.consumer(first, ack);
+        emailConsumer.consumer(second, secondAck);
+
+        //Assert: el segundo se reencola sin gastar reintento y sin intentar el envío
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
+        verify(rabbitTemplate, times(1)).convertAndSend(eq(""), eq("email_queue.throttle.0"), eq(second),
+                any(MessagePostProcessor.class));
+        verify(metrics, times(1)).recordThrottled("gmail.com", "requeued");
+        verify(secondAck, times(1)).ack();
     }
 
     @Test
-    void sendEmailWhenMailAuthenticationExceptionTest(){
+    void ackAfterSendTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 3);
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
+        verify(ack, times(1)).ack();
+    }
+
+    @Test
+    void rejectWhenRePublishFailsTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 3);
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(MessagingException.class).when(transportPool).send(any(MimeMessage.class));
+        doThrow(AmqpException.class).when(rabbitTemplate).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class));
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        verify(ack, times(1)).reject(true);
+        verify(ack, times(0)).ack();
+        verify(metrics, times(1)).recordRetry(any(MessagingException.class));
+        verify(metrics, times(1)).recordRePublish(any(MessagingException.class), eq(false));
+    }
+
+    @Test
+    void sendEmailWhenSendAuthenticationFailedExceptionTest() throws MessagingException{
         //Arrange
         String email = "test@test.com";
         String subject = "Test";
@@ -159,27 +329,22 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        String renderedMessage = "<html>Email Body</html>";
 
-        when(emailTemplateRenderer.render(any(), eq(payload))).thenReturn(renderedMessage);
-        when(mailSenderImpl.createMimeMessage()).thenReturn(mimeMessage);
-        doThrow(MailAuthenticationException.class).when(mailSenderImpl).send(any(MimeMessage.class));
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(AuthenticationFailedException.class).when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).send(any(MimeMessage.class));
-        verify(mailSenderImpl, times(1)).createMimeMessage();
-        verify(emailTemplateRenderer, times(1)).render(any(), eq(payload));
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
+        verify(mimeMessageFactory, times(1)).create(any(), eq(payload), any(), anyBoolean());
     }
 
     @Test
-    void sendEmailWhenMailSendExceptionTest(){
+    void sendEmailWhenSendFailedExceptionTest() throws MessagingException{
         //Arrange
         String email = "test@test.com";
         String subject = "Test";
@@ -191,23 +356,18 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        String renderedMessage = "<html>Email Body</html>";
 
-        when(emailTemplateRenderer.render(any(), eq(payload))).thenReturn(renderedMessage);
-        when(mailSenderImpl.createMimeMessage()).thenReturn(mimeMessage);
-        doThrow(MailSendException.class).when(mailSenderImpl).send(any(MimeMessage.class));
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(SendFailedException.class).when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).send(any(MimeMessage.class));
-        verify(mailSenderImpl, times(1)).createMimeMessage();
-        verify(emailTemplateRenderer, times(1)).render(any(), eq(payload));
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
+        verify(mimeMessageFactory, times(1)).create(any(), eq(payload), any(), anyBoolean());
     }
 
     @Test
@@ -223,17 +383,16 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        doThrow(MessagingException.class).when(mailSenderImpl).testConnection();
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(MessagingException.class).when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).testConnection();
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
     }
 
     @Test
@@ -249,17 +408,16 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        doThrow(MailConnectException.class).when(mailSenderImpl).testConnection();
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(MailConnectException.class).when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).testConnection();
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
     }
 
     @Test
@@ -275,17 +433,16 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        doThrow(AuthenticationFailedException.class).when(mailSenderImpl).testConnection();
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(AuthenticationFailedException.class).when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).testConnection();
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
     }
 
     @Test
@@ -301,17 +458,16 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
-        doThrow(RuntimeException.class).when(mailSenderImpl).testConnection();
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(RuntimeException.class).when(transportPool).send(any(MimeMessage.class));
 
         //Act
         emailConsumer.consumer(payload);
 
         //Assert
-        verify(mailSenderImpl, times(1)).testConnection();
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
     }
 
     @Test
@@ -326,15 +482,129 @@ public class EmailConsumerTest {
 
 
         String sender = "test@test.com";
-        Integer delay = 30;
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
 
         // Act
         emailConsumer.consumer(payload);
 
         // Assert:
-        verify(mailSenderImpl, times(0)).testConnection();
+        verify(transportPool, times(0)).send(any(MimeMessage.class));
+    }
+
+    @Test
+    void skipAlreadySentDuplicateTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 3,
+                "pedido-42", null);
+        when(deduplication.isSent("pedido-42")).thenReturn(true);
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        verify(transportPool, never()).send(any(MimeMessage.class));
+        verify(metrics, times(1)).recordDuplicate("send");
+        verify(ack, times(1)).ack();
+    }
+
+    @Test
+    void markSentBeforeAckTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 3,
+                "pedido-42", null);
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        InOrder inOrder = inOrder(transportPool, deduplication, ack);
+        inOrder.verify(transportPool).send(any(MimeMessage.class));
+        inOrder.verify(deduplication).markSent("pedido-42");
+        inOrder.verify(ack).ack();
+    }
+
+    @Test
+    void recordDeliveryStatusTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 3,
+                null, null, null, "id-1", null);
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+
+        when(mimeMessageFactory.create(any(), any(PublishRabbitMQDTO.class), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(new MessagingException("Buzón lleno")).doNothing().when(transportPool).send(any(MimeMessage.class));
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+        emailConsumer.consumer(payload.withRetry(2), ack);
+
+        //Assert
+        InOrder inOrder = inOrder(statusStore);
+        inOrder.verify(statusStore).record("id-1", DeliveryState.SENDING, 3);
+        inOrder.verify(statusStore).record("id-1", DeliveryState.FAILED, 2);
+        inOrder.verify(statusStore).record("id-1", DeliveryState.SENDING, 2);
+        inOrder.verify(statusStore).record("id-1", DeliveryState.SENT, 2);
+    }
+
+    @Test
+    void requeueWithoutRetryWhenCircuitIsOpenTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 3);
+        SmtpCircuitBreaker circuitBreaker = mock(SmtpCircuitBreaker.class);
+        ReflectionTestUtils.setField(emailConsumer, "circuitBreaker", circuitBreaker);
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(new SmtpCircuitOpenException()).when(circuitBreaker).execute(any());
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        verify(ack, times(1)).reject(true);
+        verify(ack, never()).ack();
+        verifyNoInteractions(transportPool, rabbitTemplate, deadLetterService);
+        verify(metrics, never()).recordRetry(any());
+    }
+
+    @Test
+    void requeueWithoutRetryWhenPoolIsExhaustedTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 3);
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(new SmtpPoolExhaustedException()).when(transportPool).send(any(MimeMessage.class));
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        verify(ack, times(1)).reject(true);
+        verify(ack, never()).ack();
+        verifyNoInteractions(rabbitTemplate, deadLetterService);
+        verify(metrics, never()).recordRetry(any());
+    }
+
+    @Test
+    void deadLetterOnLastAttemptTest() throws MessagingException {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo de prueba", null, 1);
+        MessagingException error = new MessagingException("Buzón lleno");
+        ReflectionTestUtils.setField(emailConsumer, "sender", "test@test.com");
+
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(error).when(transportPool).send(any(MimeMessage.class));
+
+        //Act
+        emailConsumer.consumer(payload, ack);
+
+        //Assert
+        verify(deadLetterService, times(1)).deadLetter(payload, error);
+        verify(rabbitTemplate, never()).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class),
+                any(MessagePostProcessor.class));
+        verify(ack, times(1)).ack();
     }
 
     @Test
@@ -349,23 +619,109 @@ public class EmailConsumerTest {
         PublishRabbitMQDTO payload = new PublishRabbitMQDTO(email, subject, body, date, retry);
 
         String sender = "test@test.com";
-        Integer delay = 30;
-        String exchange = "mi-exchange";
-        String routingKey = "mi-routing-key";
         ReflectionTestUtils.setField(emailConsumer, "sender", sender);
-        ReflectionTestUtils.setField(emailConsumer, "delay", delay);
-        ReflectionTestUtils.setField(emailConsumer, "exchange", exchange);
-        ReflectionTestUtils.setField(emailConsumer, "routingKey", routingKey);
 
-        doThrow(MessagingException.class).when(mailSenderImpl).testConnection();
+        when(mimeMessageFactory.create(any(), eq(payload), any(), anyBoolean())).thenReturn(mimeMessage);
+        doThrow(MessagingException.class).when(transportPool).send(any(MimeMessage.class));
         doNothing().when(rabbitTemplate).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class));
 
         // Act
         emailConsumer.consumer(payload);
 
         // Assert:
-        verify(mailSenderImpl, times(1)).testConnection();
+        verify(transportPool, times(1)).send(any(MimeMessage.class));
         verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class));
     }
 
+    @Test
+    void forwardToPartitionAckAfterConfirmTest() throws IOException {
+        //Arrange
+        ReflectionTestUtils.setField(emailConsumer, "partitionRouter",
+                new PartitionRouter(true, 4, "email_queue", "email_queue.bulk"));
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+        doAnswer(invocation -> {
+            CorrelationData correlationData = invocation.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+            return null;
+        }).when(emailPublisher).publishConfirmed(eq(payload), any(CorrelationData.class));
+
+        //Act
+        emailConsumer.onDelivery(payload, channel, 7L, null);
+
+        //Assert
+        verify(channel, times(1)).basicAck(7L, false);
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+        verifyNoInteractions(transportPool);
+    }
+
+    @Test
+    void forwardToPartitionRequeueOnNackTest() throws IOException {
+        //Arrange
+        ReflectionTestUtils.setField(emailConsumer, "partitionRouter",
+                new PartitionRouter(true, 4, "email_queue", "email_queue.bulk"));
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+        doAnswer(invocation -> {
+            CorrelationData correlationData = invocation.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(false, "nack"));
+            return null;
+        }).when(emailPublisher).publishConfirmed(eq(payload), any(CorrelationData.class));
+
+        //Act
+        emailConsumer.onBulkDelivery(payload, channel, 8L, null);
+
+        //Assert
+        verify(channel, times(1)).basicNack(8L, false, true);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    void forwardToPartitionRequeueOnConfirmTimeoutTest() throws IOException {
+        //Arrange
+        ReflectionTestUtils.setField(emailConsumer, "partitionRouter",
+                new PartitionRouter(true, 4, "email_queue", "email_queue.bulk"));
+        ReflectionTestUtils.setField(emailConsumer, "confirmTimeout", 0);
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+
+        //Act
+        emailConsumer.onDelivery(payload, channel, 9L, null);
+
+        //Assert
+        verify(channel, timeout(1000).times(1)).basicNack(9L, false, true);
+        verify(channel, never()).basicAck(anyLong(), anyBoolean());
+    }
+
+    @Test
+    void fullBulkLaneDoesNotDelayThrottledTransactionalSendsTest() throws InterruptedException {
+        //Arrange
+        EmailPipeline pipeline = mock(EmailPipeline.class);
+        DomainRateLimiter rateLimiter = mock(DomainRateLimiter.class);
+        ReflectionTestUtils.setField(emailConsumer, "pipeline", pipeline);
+        ReflectionTestUtils.setField(emailConsumer, "rateLimiter", rateLimiter);
+        when(rateLimiter.acquire(anyString())).thenReturn(new DomainRateLimiter.Permit(1_000_000, true));
+        when(rateLimiter.limitKey(anyString())).thenReturn("test.com");
+        CountDownLatch bulkBlocked = new CountDownLatch(1);
+        CountDownLatch releaseBulk = new CountDownLatch(1);
+        CountDownLatch transactionalSubmitted = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            bulkBlocked.countDown();
+            releaseBulk.await(5, TimeUnit.SECONDS); //Carril masivo lleno
+            return null;
+        }).when(pipeline).submit(eq(EmailPriority.BULK), any(), any(), any());
+        doAnswer(invocation -> {
+            transactionalSubmitted.countDown();
+            return null;
+        }).when(pipeline).submit(eq(EmailPriority.TRANSACTIONAL), any(), any(), any());
+
+        //Act
+        emailConsumer.consumer(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", null, 3, null,
+                EmailPriority.BULK), ack);
+        assertTrue(bulkBlocked.await(5, TimeUnit.SECONDS));
+        emailConsumer.consumer(new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo", null, 3, null,
+                EmailPriority.TRANSACTIONAL), ack);
+        boolean submitted = transactionalSubmitted.await(1, TimeUnit.SECONDS);
+        releaseBulk.countDown();
+
+        //Assert
+        assertTrue(submitted);
+    }
 }
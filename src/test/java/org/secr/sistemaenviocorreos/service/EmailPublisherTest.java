@@ -1,28 +1,73 @@
 package org.secr.sistemaenviocorreos.service;
 
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.secr.sistemaenviocorreos.dto.EmailDTO;
 import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
 import org.secr.sistemaenviocorreos.dto.ScheduledEmailDTO;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
+import org.secr.sistemaenviocorreos.service.dedup.LocalDedupStore;
+import org.secr.sistemaenviocorreos.service.interfaces.PublishOutcomeListener;
+import org.secr.sistemaenviocorreos.service.logging.SendEventLog;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.outbox.OutboxJournal;
+import org.secr.sistemaenviocorreos.service.partition.PartitionRouter;
+import org.secr.sistemaenviocorreos.service.scheduled.ScheduledEmailStore;
+import org.secr.sistemaenviocorreos.service.status.DeliveryStatusStore;
+import org.springframework.amqp.AmqpConnectException;
 import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.test.util.ReflectionTestUtils;
 
+import java.net.ConnectException;
 import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
+import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.Mockito.*;
 
 @ExtendWith(MockitoExtension.class)
 public class EmailPublisherTest {
     @Mock
     private RabbitTemplate rabbitTemplate;
+    @Mock
+    private EmailMetrics metrics;
+    @Mock
+    private SendEventLog events;
+    @Mock
+    private DeliveryStatusStore statusStore;
+    @Mock
+    private PublishOutcomeListener outcomeListener;
+    @Mock
+    private OutboxJournal outbox;
+    @Mock
+    private ScheduledEmailStore scheduledEmailStore;
     @InjectMocks
     private EmailPublisher emailPublisher;
 
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(emailPublisher, "outcomeListeners", List.of(outcomeListener));
+        DeduplicationService deduplication = new DeduplicationService();
+        ReflectionTestUtils.setField(deduplication, "store", new LocalDedupStore(1024));
+        ReflectionTestUtils.setField(emailPublisher, "deduplication", deduplication);
+        ReflectionTestUtils.setField(emailPublisher, "partitionRouter", PartitionRouter.disabled());
+        ReflectionTestUtils.setField(emailPublisher, "retryPolicy",
+                new RetryPolicy("email_queue", "email_queue.bulk", 30, 4, 3600, 5, 0.2, 3));
+        emailPublisher.init();
+    }
+
     @Test
     void publishTest() {
         // Arrange
@@ -66,13 +111,16 @@ public class EmailPublisherTest {
         ReflectionTestUtils.setField(emailPublisher, "exchange", exchange);
         ReflectionTestUtils.setField(emailPublisher, "routingKey", routingKey);
 
-        doNothing().when(rabbitTemplate).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class));
-
         // Act
-        emailPublisher.send(emailDTO);
+        CompletableFuture<String> id = emailPublisher.send(emailDTO);
+        confirm(true);
 
         // Assert
-        verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class));
+        verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertNotNull(id.getNow(null));
+        verify(outcomeListener, times(1)).onAck(eq(id.getNow(null)), argThat(m -> id.getNow(null).equals(m.id())));
+        verify(statusStore, times(1)).record(id.getNow(null), DeliveryState.QUEUED, 3);
+        assertEquals(0, emailPublisher.getInFlight());
     }
 
     @Test
@@ -92,13 +140,216 @@ public class EmailPublisherTest {
         ReflectionTestUtils.setField(emailPublisher, "exchange", exchange);
         ReflectionTestUtils.setField(emailPublisher, "routingKey", routingKey);
 
-        doNothing().when(rabbitTemplate).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class));
+        // Act
+        CompletableFuture<String> id = emailPublisher.sendLater(scheduledEmailDTO);
+        confirm(true);
+
+        // Assert
+        verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertTrue(id.isDone());
+    }
+
+    @Test
+    void scheduledEmailGetsStoreIdTest() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        ReflectionTestUtils.setField(emailPublisher, "retryPolicy",
+                new RetryPolicy("email_queue", "email_queue.bulk", 30, 4, 3600, 5, 0.2, 5));
+        LocalDateTime date = LocalDateTime.now().plusHours(1);
+        ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(new EmailDTO("test@test.com", "Test", "Cuerpo"),
+                date, "promo");
+        when(scheduledEmailStore.newId(eq(date), anyString())).thenReturn("1700000000-abc");
 
         // Act
-        emailPublisher.sendLater(scheduledEmailDTO);
+        CompletableFuture<String> id = emailPublisher.sendLater(scheduledEmailDTO);
+        confirm(true);
 
         // Assert
-        verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class));
+        assertEquals("1700000000-abc", id.get());
+        ArgumentCaptor<PublishRabbitMQDTO> published = ArgumentCaptor.forClass(PublishRabbitMQDTO.class);
+        verify(rabbitTemplate).convertAndSend(anyString(), anyString(), published.capture(),
+                any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals("1700000000-abc", published.getValue().id());
+        assertEquals("promo", published.getValue().tag());
+        assertEquals(5, published.getValue().retry());
+    }
+
+    @Test
+    void rejectCancelledTagTest() {
+        // Arrange
+        when(scheduledEmailStore.isTagCancelled("promo")).thenReturn(true);
+        ScheduledEmailDTO scheduledEmailDTO = new ScheduledEmailDTO(new EmailDTO("test@test.com", "Test", "Cuerpo"),
+                LocalDateTime.now().plusHours(1), "promo");
+
+        // Act & Assert
+        assertThrows(IllegalStateException.class, () -> emailPublisher.sendLater(scheduledEmailDTO));
+        verifyNoInteractions(rabbitTemplate);
     }
 
+    @Test
+    void nackCompletesExceptionallyTest() {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+
+        // Act
+        CompletableFuture<String> id = emailPublisher.publishAsync(payload);
+        confirm(false);
+
+        // Assert
+        ExecutionException e = assertThrows(ExecutionException.class, id::get);
+        assertEquals(PublishConfirmException.Outcome.NACK, ((PublishConfirmException) e.getCause()).getOutcome());
+        verify(outcomeListener, times(1)).onNack(anyString(),
+                argThat(m -> m.id() != null && m.equals(payload.withId(m.id()))), eq("cola llena"));
+        verifyNoInteractions(statusStore);
+        verify(metrics, times(1)).recordPublishConfirm(eq("nack"), anyLong());
+    }
+
+    @Test
+    void fireAndForgetCompletesBeforeConfirmTest() {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        ReflectionTestUtils.setField(emailPublisher, "mode", "fire-and-forget");
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+
+        // Act
+        CompletableFuture<String> id = emailPublisher.publishAsync(payload);
+
+        // Assert
+        assertTrue(id.isDone());
+        assertEquals(1, emailPublisher.getInFlight());
+        confirm(false);
+        assertEquals(0, emailPublisher.getInFlight());
+        verify(outcomeListener, times(1)).onNack(eq(id.getNow(null)), eq(payload.withId(id.getNow(null))), anyString());
+    }
+
+    @Test
+    void rejectWhenWindowIsFullTest() {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        ReflectionTestUtils.setField(emailPublisher, "maxInFlight", 1);
+        emailPublisher.init();
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+
+        // Act
+        emailPublisher.publishAsync(payload);
+        CompletableFuture<String> rejected = emailPublisher.publishAsync(payload);
+
+        // Assert
+        ExecutionException e = assertThrows(ExecutionException.class, rejected::get);
+        assertEquals(PublishConfirmException.Outcome.WINDOW_FULL, ((PublishConfirmException) e.getCause()).getOutcome());
+        verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    void repeatedIdempotencyKeyIsPublishedOnceTest() {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        EmailDTO emailDTO = new EmailDTO("test@test.com", "Test", "Cuerpo", "pedido-42", null);
+
+        // Act
+        CompletableFuture<String> first = emailPublisher.send(emailDTO);
+        confirm(true);
+        CompletableFuture<String> second = emailPublisher.send(emailDTO);
+
+        // Assert
+        verify(rabbitTemplate, times(1)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+        assertEquals(first.getNow(null), second.getNow(null));
+        verify(metrics, times(1)).recordDuplicate("publish");
+    }
+
+    @Test
+    void nackReleasesIdempotencyKeyTest() {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        EmailDTO emailDTO = new EmailDTO("test@test.com", "Test", "Cuerpo", "pedido-42", null);
+
+        // Act
+        emailPublisher.send(emailDTO);
+        confirm(false);
+        emailPublisher.send(emailDTO);
+
+        // Assert: el cliente puede reintentar una publicación rechazada
+        verify(rabbitTemplate, times(2)).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    void routeBulkToItsOwnQueueTest() {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        ReflectionTestUtils.setField(emailPublisher, "bulkRoutingKey", "mi-routing-key.bulk");
+        EmailDTO emailDTO = new EmailDTO("test@test.com", "Test", "Cuerpo", null, EmailPriority.BULK);
+
+        // Act
+        emailPublisher.send(emailDTO);
+
+        // Assert
+        verify(rabbitTemplate, times(1)).convertAndSend(eq("mi-exchange"), eq("mi-routing-key.bulk"), any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    @Test
+    void journalWhenBrokerIsDownTest() throws Exception {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        when(outbox.isEnabled()).thenReturn(true);
+        when(outbox.append(anyString(), any(PublishRabbitMQDTO.class))).thenReturn(CompletableFuture.completedFuture(null));
+        doThrow(new AmqpConnectException(new ConnectException("Connection refused")))
+                .when(rabbitTemplate).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class),
+                        any(MessagePostProcessor.class), any(CorrelationData.class));
+
+        // Act
+        CompletableFuture<String> id = emailPublisher.send(new EmailDTO("test@test.com", "Test", "Cuerpo"));
+
+        // Assert
+        verify(outbox, times(1)).append(eq(id.get()), any(PublishRabbitMQDTO.class));
+        verify(statusStore, times(1)).record(id.get(), DeliveryState.QUEUED, 3);
+        assertEquals(0, emailPublisher.getInFlight());
+    }
+
+    @Test
+    void keepOrderBehindJournaledEmailsTest() throws Exception {
+        // Arrange
+        when(outbox.isEnabled()).thenReturn(true);
+        when(outbox.hasPending()).thenReturn(true);
+        when(outbox.append(anyString(), any(PublishRabbitMQDTO.class))).thenReturn(CompletableFuture.completedFuture(null));
+
+        // Act
+        CompletableFuture<String> id = emailPublisher.send(new EmailDTO("test@test.com", "Test", "Cuerpo"));
+
+        // Assert
+        assertNotNull(id.get());
+        verifyNoInteractions(rabbitTemplate);
+    }
+
+    @Test
+    void routeToRecipientDomainPartitionTest() {
+        // Arrange
+        ReflectionTestUtils.setField(emailPublisher, "exchange", "mi-exchange");
+        ReflectionTestUtils.setField(emailPublisher, "routingKey", "mi-routing-key");
+        PartitionRouter partitionRouter = new PartitionRouter(true, 8, "email_queue", "email_queue.bulk");
+        ReflectionTestUtils.setField(emailPublisher, "partitionRouter", partitionRouter);
+
+        // Act
+        emailPublisher.send(new EmailDTO("test@Gmail.com", "Test", "Cuerpo"));
+
+        // Assert
+        verify(rabbitTemplate, times(1)).convertAndSend(eq("mi-exchange"),
+                eq("mi-routing-key.p." + partitionRouter.partitionOf("otro@gmail.com")),
+                any(PublishRabbitMQDTO.class), any(MessagePostProcessor.class), any(CorrelationData.class));
+    }
+
+    private void confirm(boolean ack) {
+        ArgumentCaptor<CorrelationData> correlationData = ArgumentCaptor.forClass(CorrelationData.class);
+        verify(rabbitTemplate, atLeastOnce()).convertAndSend(anyString(), anyString(), any(PublishRabbitMQDTO.class),
+                any(MessagePostProcessor.class), correlationData.capture());
+        correlationData.getValue().getFuture().complete(new CorrelationData.Confirm(ack, ack ? null : "cola llena"));
+    }
 }
@@ -0,0 +1,135 @@
+package org.secr.sistemaenviocorreos.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.secr.sistemaenviocorreos.service.template.TemplatePlanCompiler;
+import org.secr.sistemaenviocorreos.service.template.TemplateRegistry;
+import org.secr.sistemaenviocorreos.service.template.TemplateRenderPlan;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thymeleaf.TemplateEngine;
+import org.thymeleaf.context.Context;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailTemplateRendererTest {
+
+    private TemplateEngine templateEngine;
+    private EmailTemplateRenderer renderer;
+
+    @BeforeEach
+    void setUp() {
+        ClassLoaderTemplateResolver resolver = new ClassLoaderTemplateResolver();
+        resolver.setPrefix("templates/");
+        resolver.setSuffix(".html");
+        resolver.setTemplateMode(TemplateMode.HTML);
+        resolver.setCharacterEncoding("UTF-8");
+        templateEngine = new SpringTemplateEngine();
+        ((SpringTemplateEngine) templateEngine).setTemplateResolver(resolver);
+        renderer = new EmailTemplateRenderer(templateEngine, new TemplateRegistry(templateEngine));
+    }
+
+    @Test
+    void precompiledOutputIsIdenticalTest() throws IOException {
+        //Arrange
+        PublishRabbitMQDTO plain = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+        PublishRabbitMQDTO special = new PublishRabbitMQDTO("o'brien&<x>@test.com", "Test", "Cuerpo",
+                LocalDateTime.now(), 1);
+
+        //Act
+        Optional<TemplateRenderPlan> plan = renderer.planFor(EmailTemplateType.WELCOME);
+
+        //Assert
+        assertTrue(plan.isPresent());
+        assertTrue(plan.get().usesField("email"));
+        for (PublishRabbitMQDTO data : new PublishRabbitMQDTO[]{plain, special}) {
+            String expected = thymeleaf(EmailTemplateType.WELCOME.getTemplateName(), data);
+            assertEquals(expected, renderer.render(EmailTemplateType.WELCOME, data));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            assertTrue(plan.get().writeTo(data, out));
+            assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+        }
+    }
+
+    @Test
+    void nullValueFallsBackToThymeleafTest() {
+        //Arrange
+        PublishRabbitMQDTO data = new PublishRabbitMQDTO(null, "Test", "Cuerpo", null, 3);
+
+        //Act
+        String rendered = renderer.render(EmailTemplateType.WELCOME, data);
+
+        //Assert
+        assertEquals(thymeleaf(EmailTemplateType.WELCOME.getTemplateName(), data), rendered);
+    }
+
+    @Test
+    void thymeleafEngineModeTest() {
+        //Arrange
+        ReflectionTestUtils.setField(renderer, "engine", "thymeleaf");
+
+        //Act & Assert
+        assertTrue(renderer.planFor(EmailTemplateType.WELCOME).isEmpty());
+    }
+
+    @Test
+    void renderToStreamTest() throws IOException {
+        //Arrange
+        PublishRabbitMQDTO data = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo con ñ", null, 3);
+        String expected = thymeleaf(EmailTemplateType.WELCOME.getTemplateName(), data);
+        ByteArrayOutputStream precompiled = new ByteArrayOutputStream();
+        ByteArrayOutputStream fallback = new ByteArrayOutputStream();
+
+        //Act
+        renderer.renderTo(EmailTemplateType.WELCOME, data, precompiled);
+        ReflectionTestUtils.setField(renderer, "engine", "thymeleaf");
+        renderer.renderTo(EmailTemplateType.WELCOME, data, fallback);
+
+        //Assert
+        assertEquals(expected, precompiled.toString(StandardCharsets.UTF_8));
+        assertEquals(expected, fallback.toString(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void unescapedSlotTest() {
+        //Arrange
+        TemplatePlanCompiler compiler = new TemplatePlanCompiler(templateEngine, "templates/", ".html");
+        PublishRabbitMQDTO data = new PublishRabbitMQDTO("test@test.com", "<b>Asunto</b>", "<p>Hola & adiós</p>",
+                null, 3);
+
+        //Act
+        Optional<TemplateRenderPlan> plan = compiler.compile("raw-email", PublishRabbitMQDTO.class);
+
+        //Assert
+        assertTrue(plan.isPresent());
+        assertFalse(plan.get().usesField("email"));
+        assertEquals(thymeleaf("raw-email", data), plan.get().render(data));
+    }
+
+    @Test
+    void unsupportedTemplateIsNotCompiledTest() {
+        //Arrange
+        TemplatePlanCompiler compiler = new TemplatePlanCompiler(templateEngine, "templates/", ".html");
+
+        //Act & Assert
+        assertTrue(compiler.compile("conditional-email", PublishRabbitMQDTO.class).isEmpty());
+    }
+
+    private String thymeleaf(String templateName, Object data) {
+        Context context = new Context();
+        context.setVariables(Map.of("data", data));
+        return templateEngine.process(templateName, context);
+    }
+}
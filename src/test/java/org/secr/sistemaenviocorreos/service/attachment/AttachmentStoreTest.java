@@ -0,0 +1,106 @@
+package org.secr.sistemaenviocorreos.service.attachment;
+
+import jakarta.activation.DataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.StoredAttachmentDTO;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AttachmentStoreTest {
+
+    @TempDir
+    private Path directory;
+
+    private AttachmentStore newStore(long maxSize) throws IOException {
+        AttachmentStore store = new AttachmentStore();
+        ReflectionTestUtils.setField(store, "directory", directory.toString());
+        ReflectionTestUtils.setField(store, "maxSize", maxSize);
+        ReflectionTestUtils.setField(store, "fsync", false);
+        store.init();
+        return store;
+    }
+
+    @Test
+    void storeAndReadTest() throws IOException {
+        //Arrange
+        AttachmentStore store = newStore(1024 * 1024);
+        byte[] content = new byte[200_000];
+        Arrays.fill(content, (byte) 'x');
+
+        //Act
+        StoredAttachmentDTO stored = store.store(new ByteArrayInputStream(content));
+        DataSource dataSource = store.dataSource(new AttachmentDTO(stored.id(), "factura.pdf", null));
+
+        //Assert
+        assertEquals(64, stored.id().length());
+        assertEquals(content.length, stored.size());
+        assertFalse(stored.deduplicated());
+        assertTrue(store.exists(stored.id()));
+        assertEquals("application/octet-stream", dataSource.getContentType());
+        assertEquals("factura.pdf", dataSource.getName());
+        try (InputStream in = dataSource.getInputStream()) {
+            assertArrayEquals(content, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void deduplicateByContentTest() throws IOException {
+        //Arrange
+        AttachmentStore store = newStore(1024);
+        byte[] content = "mismo contenido".getBytes();
+
+        //Act
+        StoredAttachmentDTO first = store.store(new ByteArrayInputStream(content));
+        StoredAttachmentDTO second = store.store(new ByteArrayInputStream(content));
+
+        //Assert
+        assertEquals(first.id(), second.id());
+        assertTrue(second.deduplicated());
+        try (Stream<Path> files = Files.walk(directory)) {
+            assertEquals(1, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    void rejectOversizedTest() throws IOException {
+        //Arrange
+        AttachmentStore store = newStore(10);
+
+        //Act & Assert
+        assertThrows(IllegalArgumentException.class, () -> store.store(new ByteArrayInputStream(new byte[11])));
+        try (Stream<Path> files = Files.walk(directory)) {
+            assertEquals(0, files.filter(Files::isRegularFile).count());
+        }
+    }
+
+    @Test
+    void cleanupExpiredTest() throws IOException {
+        //Arrange
+        AttachmentStore store = newStore(1024);
+        ReflectionTestUtils.setField(store, "ttl", 1);
+        String expired = store.store(new ByteArrayInputStream("antiguo".getBytes())).id();
+        String recent = store.store(new ByteArrayInputStream("reciente".getBytes())).id();
+        Files.setLastModifiedTime(store.path(expired),
+                FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(2)));
+
+        //Act
+        store.cleanup();
+
+        //Assert
+        assertFalse(store.exists(expired));
+        assertTrue(store.exists(recent));
+    }
+}
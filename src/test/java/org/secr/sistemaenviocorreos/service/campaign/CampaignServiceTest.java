@@ -0,0 +1,132 @@
+package org.secr.sistemaenviocorreos.service.campaign;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.dto.CampaignChunkDTO;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.CampaignStatus;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.service.EmailConsumer;
+import org.secr.sistemaenviocorreos.service.dedup.DeduplicationService;
+import org.secr.sistemaenviocorreos.service.pipeline.DeliveryAck;
+import org.springframework.amqp.core.MessagePostProcessor;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class CampaignServiceTest {
+
+    private static final String ID = "5f0e8c1a-3b7d-4e2a-9c61-0d4b8a7f2e10";
+
+    @Mock
+    private CampaignStore store;
+    @Mock
+    private EmailConsumer emailConsumer;
+    @Mock
+    private RabbitTemplate rabbitTemplate;
+    @Mock
+    private DeliveryAck ack;
+    @InjectMocks
+    private CampaignService campaignService;
+
+    private final CampaignStore.Campaign campaign = new CampaignStore.Campaign(ID, "Novedades", "<p>Hola</p>",
+            EmailPriority.BULK, LocalDateTime.now());
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(campaignService, "retryPolicy",
+                new RetryPolicy("email_queue", "email_queue.bulk", 30, 4, 3600, 5, 0.2, 5));
+    }
+
+    @Test
+    void expandChunkAndAckWhenAllCompleteTest() throws IOException {
+        //Arrange
+        when(store.status(ID)).thenReturn(CampaignStatus.ACTIVE);
+        when(store.find(ID)).thenReturn(campaign);
+        when(store.readRecipients(ID, 128, 2)).thenReturn(List.of("a@test.com", "b@test.com"));
+        ArgumentCaptor<PublishRabbitMQDTO> messages = ArgumentCaptor.forClass(PublishRabbitMQDTO.class);
+        ArgumentCaptor<DeliveryAck> parts = ArgumentCaptor.forClass(DeliveryAck.class);
+
+        //Act
+        campaignService.expand(new CampaignChunkDTO(ID, 128, 2), ack);
+        verify(emailConsumer, times(2)).consumer(messages.capture(), parts.capture());
+        parts.getAllValues().get(0).ack();
+        verify(ack, never()).ack();
+        parts.getAllValues().get(1).ack();
+
+        //Assert
+        verify(ack, times(1)).ack();
+        assertEquals("b@test.com", messages.getAllValues().get(1).email());
+        assertEquals("Novedades", messages.getAllValues().get(1).subject());
+        assertEquals(CampaignStore.keyFor(ID, 128, 1), messages.getAllValues().get(1).idempotencyKey());
+        assertEquals(DeduplicationService.messageIdFor(CampaignStore.keyFor(ID, 128, 1)),
+                messages.getAllValues().get(1).id());
+        assertEquals(EmailPriority.BULK, messages.getAllValues().get(1).priority());
+        assertEquals(5, messages.getAllValues().get(1).retry());
+    }
+
+    @Test
+    void requeueChunkIfAnyEmailIsRequeuedTest() throws IOException {
+        //Arrange
+        when(store.status(ID)).thenReturn(CampaignStatus.ACTIVE);
+        when(store.find(ID)).thenReturn(campaign);
+        when(store.readRecipients(ID, 0, 2)).thenReturn(List.of("a@test.com", "b@test.com"));
+        ArgumentCaptor<DeliveryAck> parts = ArgumentCaptor.forClass(DeliveryAck.class);
+
+        //Act
+        campaignService.expand(new CampaignChunkDTO(ID, 0, 2), ack);
+        verify(emailConsumer, times(2)).consumer(any(PublishRabbitMQDTO.class), parts.capture());
+        parts.getAllValues().get(0).reject(true);
+        parts.getAllValues().get(1).ack();
+
+        //Assert
+        verify(ack, times(1)).reject(true);
+        verify(ack, never()).ack();
+    }
+
+    @Test
+    void skipChunksOfCancelledCampaignTest() throws IOException {
+        //Arrange
+        when(store.status(ID)).thenReturn(CampaignStatus.CANCELLED);
+        when(store.find(ID)).thenReturn(campaign);
+
+        //Act
+        campaignService.expand(new CampaignChunkDTO(ID, 0, 500), ack);
+
+        //Assert
+        verify(store, times(1)).recordSkipped(ID, 500);
+        verify(ack, times(1)).ack();
+        verifyNoInteractions(emailConsumer);
+    }
+
+    @Test
+    void parkChunksOfPausedCampaignTest() throws IOException {
+        //Arrange
+        ReflectionTestUtils.setField(campaignService, "campaignQueue", "email_queue.campaigns");
+        when(store.status(ID)).thenReturn(CampaignStatus.PAUSED);
+        when(store.find(ID)).thenReturn(campaign);
+        CampaignChunkDTO chunk = new CampaignChunkDTO(ID, 0, 500);
+
+        //Act
+        campaignService.expand(chunk, ack);
+
+        //Assert
+        verify(rabbitTemplate, times(1)).convertAndSend(eq(""), eq("email_queue.campaigns.paused"), eq(chunk),
+                any(MessagePostProcessor.class));
+        verify(ack, times(1)).ack();
+        verifyNoInteractions(emailConsumer);
+    }
+}
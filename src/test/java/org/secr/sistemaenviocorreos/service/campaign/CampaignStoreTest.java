@@ -0,0 +1,99 @@
+package org.secr.sistemaenviocorreos.service.campaign;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.secr.sistemaenviocorreos.config.NodeIdentity;
+import org.secr.sistemaenviocorreos.dto.CampaignDTO;
+import org.secr.sistemaenviocorreos.dto.CampaignProgressDTO;
+import org.secr.sistemaenviocorreos.enums.CampaignStatus;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CampaignStoreTest {
+
+    @TempDir
+    private Path directory;
+
+    private CampaignStore newStore(String nodeId) throws IOException {
+        CampaignStore store = new CampaignStore();
+        ReflectionTestUtils.setField(store, "objectMapper", new ObjectMapper().findAndRegisterModules());
+        ReflectionTestUtils.setField(store, "nodeIdentity", new NodeIdentity(nodeId));
+        ReflectionTestUtils.setField(store, "directory", directory.toString());
+        ReflectionTestUtils.setField(store, "fsync", false);
+        store.init();
+        return store;
+    }
+
+    @Test
+    void createAndReadChunksTest() throws IOException {
+        //Arrange
+        CampaignStore store = newStore("node-a");
+        String id = store.create(new CampaignDTO("Novedades", "<p>Hola</p>", null)).id();
+
+        //Act
+        long first = store.appendRecipients(id, List.of("a@test.com", "b@test.com"));
+        long second = store.appendRecipients(id, List.of("c@test.com", "d@test.com", "e@test.com"));
+
+        //Assert
+        assertEquals(0, first);
+        assertEquals(List.of("c@test.com", "d@test.com", "e@test.com"), store.readRecipients(id, second, 3));
+        assertEquals(List.of("a@test.com"), store.readRecipients(id, first, 1));
+        CampaignStore.Campaign campaign = newStore("node-b").find(id);
+        assertEquals("Novedades", campaign.subject());
+        assertEquals(EmailPriority.BULK, campaign.priority());
+    }
+
+    @Test
+    void sumProgressAcrossNodesTest() throws IOException {
+        //Arrange
+        CampaignStore nodeA = newStore("node-a");
+        CampaignStore nodeB = newStore("node-b");
+        String id = nodeA.create(new CampaignDTO("Novedades", "<p>Hola</p>", null)).id();
+
+        //Act
+        nodeA.recordEnqueued(id, 3);
+        nodeA.recordOutcome(CampaignStore.keyFor(id, 0, 0), true);
+        nodeB.recordOutcome(CampaignStore.keyFor(id, 0, 1), true);
+        nodeB.recordOutcome(CampaignStore.keyFor(id, 0, 2), false);
+        nodeB.recordOutcome("pedido-42", true);
+        nodeB.flushProgress();
+        CampaignProgressDTO progress = nodeA.progress(id);
+
+        //Assert
+        assertEquals(new CampaignProgressDTO(id, CampaignStatus.ACTIVE, 3, 2, 1, 0), progress);
+    }
+
+    @Test
+    void keepProgressAfterRestartTest() throws IOException {
+        //Arrange
+        CampaignStore store = newStore("node-a");
+        String id = store.create(new CampaignDTO("Novedades", "<p>Hola</p>", null)).id();
+        store.recordOutcome(CampaignStore.keyFor(id, 0, 0), true);
+        store.flushProgress();
+
+        //Act
+        CampaignStore restarted = newStore("node-a");
+        restarted.recordOutcome(CampaignStore.keyFor(id, 0, 1), true);
+
+        //Assert
+        assertEquals(2, restarted.progress(id).sent());
+    }
+
+    @Test
+    void rejectUnknownOrInvalidIdsTest() throws IOException {
+        //Arrange
+        CampaignStore store = newStore("node-a");
+
+        //Act & Assert
+        assertNull(store.status("../../etc"));
+        assertNull(store.find("00000000-0000-0000-0000-000000000000"));
+        assertNull(store.progress("00000000-0000-0000-0000-000000000000"));
+    }
+}
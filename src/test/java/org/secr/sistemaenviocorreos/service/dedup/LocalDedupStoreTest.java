@@ -0,0 +1,65 @@
+package org.secr.sistemaenviocorreos.service.dedup;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LocalDedupStoreTest {
+
+    private final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    private final LocalDedupStore store = new LocalDedupStore(1024, now::get);
+
+    @Test
+    void rejectRepeatedKeyUntilExpiryTest() {
+        //Arrange
+        long key = DeduplicationService.hash(1, "pedido-42");
+        long ttl = TimeUnit.MINUTES.toMillis(10);
+
+        //Act & Assert
+        assertTrue(store.putIfAbsent(key, ttl));
+        assertFalse(store.putIfAbsent(key, ttl));
+        assertTrue(store.contains(key));
+        assertFalse(store.contains(DeduplicationService.hash(1, "pedido-43")));
+
+        now.addAndGet(TimeUnit.MINUTES.toMillis(12));
+        assertFalse(store.contains(key));
+        assertTrue(store.putIfAbsent(key, ttl));
+    }
+
+    @Test
+    void removeForgetsKeyTest() {
+        //Arrange
+        long key = DeduplicationService.hash(1, "pedido-42");
+        store.putIfAbsent(key, TimeUnit.HOURS.toMillis(1));
+
+        //Act
+        store.remove(key);
+
+        //Assert
+        assertFalse(store.contains(key));
+    }
+
+    @Test
+    void evictSoonestToExpireWhenBucketIsFullTest() {
+        //Arrange: 17 claves en el mismo bucket (mismos bits bajos), la primera con la caducidad más próxima
+        long first = 1L << 32;
+        store.putIfAbsent(first, TimeUnit.MINUTES.toMillis(5));
+        for (long i = 2; i <= 16; i++) store.putIfAbsent(i << 32, TimeUnit.HOURS.toMillis(1));
+
+        //Act
+        store.putIfAbsent(17L << 32, TimeUnit.HOURS.toMillis(1));
+
+        //Assert
+        assertFalse(store.contains(first));
+        for (long i = 2; i <= 17; i++) assertTrue(store.contains(i << 32));
+    }
+
+    @Test
+    void sizeToPowerOfTwoBucketsTest() {
+        assertEquals(1024, store.capacity());
+        assertEquals(16, new LocalDedupStore(20, now::get).capacity());
+    }
+}
@@ -0,0 +1,108 @@
+package org.secr.sistemaenviocorreos.service.logging;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.SendStage;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SendEventLogTest {
+
+    private final Logger logger = Logger.getLogger(SendEventLog.LOGGER_NAME);
+    private final List<LogRecord> records = new CopyOnWriteArrayList<>();
+    private final Handler handler = new Handler() {
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+    private final PublishRabbitMQDTO message = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3,
+            null, null, null, "id-1", null);
+
+    @BeforeEach
+    void setUp() {
+        logger.addHandler(handler);
+    }
+
+    @AfterEach
+    void tearDown() {
+        logger.removeHandler(handler);
+    }
+
+    private SendEventLog newLog(double sampleRate, int bufferSize) {
+        SendEventLog events = new SendEventLog();
+        ReflectionTestUtils.setField(events, "sampleRate", sampleRate);
+        ReflectionTestUtils.setField(events, "bufferSize", bufferSize);
+        events.init();
+        return events;
+    }
+
+    @Test
+    void writeStructuredEventsInOrderTest() throws InterruptedException {
+        //Arrange
+        SendEventLog events = newLog(1, 128);
+
+        //Act
+        for (int i = 0; i < 100; i++) events.success(SendStage.SENT, message, 1_500_000);
+        events.failure(SendStage.FAILED, message, Level.WARNING, "No se pudo conectar al servidor SMTP",
+                new IllegalStateException("caída"));
+        events.shutdown();
+
+        //Assert
+        assertEquals(101, records.size());
+        assertEquals(0, events.getDropped());
+        assertEquals("stage=sent id=id-1 to=test@test.com retry=3 durationMicros=1500", records.get(0).getMessage());
+        LogRecord failure = records.get(records.size() - 1);
+        assertEquals(Level.WARNING, failure.getLevel());
+        assertEquals("stage=failed id=id-1 to=test@test.com retry=3 msg=\"No se pudo conectar al servidor SMTP\"",
+                failure.getMessage());
+        assertNotNull(failure.getThrown());
+    }
+
+    @Test
+    void sampleSuccessButAlwaysLogErrorsTest() throws InterruptedException {
+        //Arrange
+        SendEventLog events = newLog(0, 16);
+
+        //Act
+        for (int i = 0; i < 10; i++) events.success(SendStage.SENT, message, 1000);
+        events.failure(SendStage.EXHAUSTED, message, Level.WARNING, "Se agotaron los reintentos", null);
+        events.shutdown();
+
+        //Assert
+        assertEquals(1, records.size());
+        assertTrue(records.get(0).getMessage().startsWith("stage=exhausted"));
+    }
+
+    @Test
+    void logErrorsInCallerAfterShutdownTest() throws InterruptedException {
+        //Arrange
+        SendEventLog events = newLog(1, 16);
+        events.shutdown();
+
+        //Act
+        events.failure(SendStage.FAILED, message, Level.SEVERE, "Autenticación fallida", null);
+
+        //Assert
+        assertEquals(1, records.size());
+        assertEquals(Level.SEVERE, records.get(0).getLevel());
+    }
+}
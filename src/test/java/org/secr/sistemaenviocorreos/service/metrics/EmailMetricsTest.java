@@ -0,0 +1,45 @@
+package org.secr.sistemaenviocorreos.service.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jakarta.mail.AuthenticationFailedException;
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class EmailMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final EmailMetrics metrics = new EmailMetrics(registry);
+
+    @Test
+    void queueResidencyTest() {
+        //Act
+        metrics.recordQueueResidency(System.currentTimeMillis() - 1500, EmailPriority.BULK);
+        metrics.recordQueueResidency(null, EmailPriority.TRANSACTIONAL);
+
+        //Assert
+        assertEquals(1, registry.get("email.queue.residency").tag("lane", "bulk").timer().count());
+        assertEquals(0, registry.get("email.queue.residency").tag("lane", "transactional").timer().count());
+        assertTrue(registry.get("email.queue.residency").tag("lane", "bulk").timer()
+                .totalTime(TimeUnit.MILLISECONDS) >= 1500);
+    }
+
+    @Test
+    void countersByExceptionTypeTest() {
+        //Act
+        metrics.recordRetry(new AuthenticationFailedException());
+        metrics.recordRetry(new AuthenticationFailedException());
+        metrics.recordRePublish(new AuthenticationFailedException(), false);
+
+        //Assert
+        assertEquals(2, registry.get("email.retries").tag("exception", "AuthenticationFailedException").counter().count());
+        assertEquals(1, registry.get("email.republish")
+                .tag("exception", "AuthenticationFailedException")
+                .tag("outcome", "error")
+                .counter().count());
+    }
+}
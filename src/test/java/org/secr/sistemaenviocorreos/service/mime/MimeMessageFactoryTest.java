@@ -0,0 +1,190 @@
+package org.secr.sistemaenviocorreos.service.mime;
+
+import jakarta.activation.DataSource;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.dto.AttachmentDTO;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.secr.sistemaenviocorreos.service.EmailTemplateRenderer;
+import org.secr.sistemaenviocorreos.service.attachment.AttachmentStore;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.secr.sistemaenviocorreos.service.template.TemplateRenderPlan;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class MimeMessageFactoryTest {
+
+    private static final String HTML = "<html><body><p>Hola, " + "línea larga ".repeat(20) + "</p></body></html>";
+
+    @Mock
+    private EmailTemplateRenderer renderer;
+    @Mock
+    private EmailMetrics metrics;
+    @Mock
+    private TemplateRenderPlan plan;
+    @Mock
+    private AttachmentStore attachmentStore;
+    @Mock
+    private DataSource attachmentSource;
+
+    @InjectMocks
+    private MimeMessageFactory factory;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        ReflectionTestUtils.setField(factory, "mailSender", new JavaMailSenderImpl());
+        when(renderer.planFor(any())).thenReturn(Optional.of(plan));
+        lenient().when(plan.fields()).thenReturn(Set.of("message"));
+        lenient().doAnswer(invocation -> {
+            invocation.getArgument(2, OutputStream.class).write(HTML.getBytes(StandardCharsets.UTF_8));
+            return null;
+        }).when(renderer).renderTo(any(), any(), any());
+    }
+
+    @Test
+    void singlePartQuotedPrintableTest() throws Exception {
+        //Arrange
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Asunto con ñ", "Cuerpo", null, 3);
+
+        //Act
+        MimeMessage mimeMessage = factory.create(EmailTemplateType.WELCOME, payload, "sender@test.com", false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mimeMessage.writeTo(out);
+
+        //Assert
+        MimeMessage parsed = new MimeMessage(Session.getInstance(new Properties()),
+                new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(parsed.isMimeType("text/html"));
+        assertEquals("quoted-printable", parsed.getEncoding());
+        assertEquals(HTML, parsed.getContent());
+        assertEquals("Asunto con ñ", parsed.getSubject());
+        assertEquals("test@test.com", parsed.getRecipients(Message.RecipientType.TO)[0].toString());
+        assertNotNull(parsed.getMessageID());
+    }
+
+    @Test
+    void reuseEncodedBodyTest() throws MessagingException, IOException {
+        //Arrange
+        PublishRabbitMQDTO first = new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", null, 3);
+        PublishRabbitMQDTO second = new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo", null, 3);
+
+        //Act
+        EncodedBody body = factory.body(EmailTemplateType.WELCOME, first);
+        EncodedBody reused = factory.body(EmailTemplateType.WELCOME, second);
+
+        //Assert
+        assertSame(body, reused);
+        assertEquals(1, factory.getCacheHits());
+        verify(renderer, times(1)).renderTo(any(), any(), any());
+    }
+
+    @Test
+    void newTemplateVersionIsNotServedFromCacheTest() throws MessagingException, IOException {
+        //Arrange
+        TemplateRenderPlan newVersion = mock(TemplateRenderPlan.class);
+        when(newVersion.fields()).thenReturn(Set.of("message"));
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", null, 3);
+        EncodedBody before = factory.body(EmailTemplateType.WELCOME, payload);
+
+        //Act
+        when(renderer.planFor(any())).thenReturn(Optional.of(newVersion));
+        EncodedBody after = factory.body(EmailTemplateType.WELCOME, payload);
+        EncodedBody reused = factory.body(EmailTemplateType.WELCOME, payload);
+
+        //Assert
+        assertNotSame(before, after);
+        assertSame(after, reused);
+        verify(renderer, times(2)).renderTo(any(), any(), any());
+    }
+
+    @Test
+    void recipientDependentBodyIsNotCachedTest() throws MessagingException, IOException {
+        //Arrange
+        when(plan.fields()).thenReturn(Set.of("email", "message"));
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", null, 3);
+
+        //Act
+        factory.body(EmailTemplateType.WELCOME, payload);
+        factory.body(EmailTemplateType.WELCOME, payload);
+
+        //Assert
+        assertEquals(0, factory.getCacheHits());
+        assertEquals(0, factory.getCachedBytes());
+        verify(renderer, times(2)).renderTo(any(), any(), any());
+    }
+
+    @Test
+    void attachmentsAsMultipartTest() throws Exception {
+        //Arrange
+        String id = "a".repeat(64);
+        byte[] pdf = new byte[5000];
+        for (int i = 0; i < pdf.length; i++) pdf[i] = (byte) i;
+        AttachmentDTO attachment = new AttachmentDTO(id, "factura.pdf", "application/pdf");
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Factura", "Cuerpo", null, 3, null,
+                EmailPriority.TRANSACTIONAL, List.of(attachment));
+        when(attachmentStore.exists(id)).thenReturn(true);
+        when(attachmentStore.dataSource(attachment)).thenReturn(attachmentSource);
+        when(attachmentSource.getContentType()).thenReturn("application/pdf");
+        when(attachmentSource.getInputStream()).thenAnswer(invocation -> new ByteArrayInputStream(pdf));
+
+        //Act
+        MimeMessage mimeMessage = factory.create(EmailTemplateType.WELCOME, payload, "sender@test.com", false);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mimeMessage.writeTo(out);
+
+        //Assert
+        MimeMessage parsed = new MimeMessage(Session.getInstance(new Properties()),
+                new ByteArrayInputStream(out.toByteArray()));
+        MimeMultipart multipart = (MimeMultipart) parsed.getContent();
+        assertEquals(2, multipart.getCount());
+        assertEquals(HTML, multipart.getBodyPart(0).getContent());
+        assertEquals("quoted-printable", ((MimeBodyPart) multipart.getBodyPart(0)).getEncoding());
+        Part attached = multipart.getBodyPart(1);
+        assertEquals("factura.pdf", attached.getFileName());
+        assertTrue(attached.isMimeType("application/pdf"));
+        try (InputStream in = attached.getInputStream()) {
+            assertArrayEquals(pdf, in.readAllBytes());
+        }
+    }
+
+    @Test
+    void missingAttachmentTest() {
+        //Arrange
+        AttachmentDTO attachment = new AttachmentDTO("b".repeat(64), "perdido.pdf", null);
+        PublishRabbitMQDTO payload = new PublishRabbitMQDTO("test@test.com", "Factura", "Cuerpo", null, 3, null,
+                EmailPriority.TRANSACTIONAL, List.of(attachment));
+
+        //Act & Assert
+        assertThrows(MessagingException.class,
+                () -> factory.create(EmailTemplateType.WELCOME, payload, "sender@test.com", false));
+    }
+}
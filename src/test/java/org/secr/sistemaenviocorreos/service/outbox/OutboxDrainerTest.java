@@ -0,0 +1,93 @@
+package org.secr.sistemaenviocorreos.service.outbox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.stubbing.Answer;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.springframework.amqp.AmqpConnectException;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class OutboxDrainerTest {
+    @Mock
+    private OutboxJournal journal;
+    @Mock
+    private EmailPublisher emailPublisher;
+    @InjectMocks
+    private OutboxDrainer drainer;
+
+    private final List<OutboxJournal.Entry> entries = List.of(entry(0), entry(1), entry(2));
+
+    private static OutboxJournal.Entry entry(int i) {
+        return new OutboxJournal.Entry("id-" + i,
+                new PublishRabbitMQDTO("test" + i + "@test.com", "Test", "Cuerpo", null, 3),
+                new OutboxJournal.Cursor(0, (i + 1) * 100));
+    }
+
+    private static Answer<Void> confirm(boolean ack) {
+        return invocation -> {
+            invocation.<CorrelationData>getArgument(1).getFuture().complete(new CorrelationData.Confirm(ack, null));
+            return null;
+        };
+    }
+
+    @Test
+    void checkpointOnlyUpToFirstNackTest() throws IOException {
+        //Arrange
+        doAnswer(confirm(true)).doAnswer(confirm(false)).doAnswer(confirm(true))
+                .when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        int published = drainer.publish(entries);
+
+        //Assert
+        assertEquals(1, published);
+        verify(journal, times(1)).commit(entries.get(0).next(), 1);
+    }
+
+    @Test
+    void checkpointOnlyUpToFirstTimeoutTest() throws IOException {
+        //Arrange
+        ReflectionTestUtils.setField(drainer, "confirmTimeout", 0);
+        doAnswer(confirm(true)).doAnswer(confirm(true)).doNothing()
+                .when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        int published = drainer.publish(entries);
+
+        //Assert
+        assertEquals(2, published);
+        verify(journal, times(1)).commit(entries.get(1).next(), 2);
+    }
+
+    @Test
+    void stopDrainingWhenBrokerIsDownTest() throws IOException {
+        //Arrange
+        when(journal.isEnabled()).thenReturn(true);
+        when(journal.hasPending()).thenReturn(true);
+        when(journal.read(anyInt())).thenReturn(entries);
+        doThrow(new AmqpConnectException(new ConnectException("Connection refused")))
+                .when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        drainer.drain();
+
+        //Assert: un único intento por pasada y el checkpoint sin mover
+        verify(journal, times(1)).read(anyInt());
+        verify(emailPublisher, times(1)).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+        verify(journal, never()).commit(any(), anyInt());
+    }
+}
@@ -0,0 +1,149 @@
+package org.secr.sistemaenviocorreos.service.outbox;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OutboxJournalTest {
+
+    @TempDir
+    private Path directory;
+
+    private final List<OutboxJournal> journals = new ArrayList<>();
+
+    private OutboxJournal newJournal(int segmentSize) throws IOException {
+        OutboxJournal journal = new OutboxJournal();
+        ReflectionTestUtils.setField(journal, "directory", directory.toString());
+        ReflectionTestUtils.setField(journal, "segmentSize", segmentSize);
+        journal.init();
+        journals.add(journal);
+        return journal;
+    }
+
+    @AfterEach
+    void tearDown() {
+        journals.forEach(OutboxJournal::close);
+    }
+
+    private static PublishRabbitMQDTO email(int i) {
+        return new PublishRabbitMQDTO("test" + i + "@test.com", "Test", "Cuerpo " + i, null, 3);
+    }
+
+    @Test
+    void appendAndReadInOrderTest() throws Exception {
+        //Arrange
+        OutboxJournal journal = newJournal(4096);
+        List<CompletableFuture<Void>> synced = new ArrayList<>();
+
+        //Act: con segmentos pequeños los registros se reparten entre varios ficheros
+        for (int i = 0; i < 100; i++) synced.add(journal.append("id-" + i, email(i)));
+        CompletableFuture.allOf(synced.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        List<OutboxJournal.Entry> entries = journal.read(1000);
+
+        //Assert
+        assertEquals(100, entries.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("id-" + i, entries.get(i).id());
+            assertEquals(email(i), entries.get(i).message());
+        }
+        assertEquals(100, journal.getDepth());
+        assertTrue(segmentCount() > 1);
+    }
+
+    @Test
+    void commitAdvancesAndDeletesSegmentsTest() throws Exception {
+        //Arrange
+        OutboxJournal journal = newJournal(4096);
+        for (int i = 0; i < 100; i++) journal.append("id-" + i, email(i));
+
+        //Act
+        List<OutboxJournal.Entry> first = journal.read(60);
+        journal.commit(first.get(59).next(), 60);
+        List<OutboxJournal.Entry> rest = journal.read(1000);
+
+        //Assert
+        assertEquals(40, rest.size());
+        assertEquals("id-60", rest.get(0).id());
+        assertEquals(40, journal.getDepth());
+        assertEquals(60, journal.getDrained());
+        assertEquals(first.get(59).next().segment(), firstSegment());
+    }
+
+    @Test
+    void recoverPendingAfterRestartTest() throws Exception {
+        //Arrange
+        OutboxJournal journal = newJournal(4096);
+        for (int i = 0; i < 10; i++) journal.append("id-" + i, email(i));
+        List<OutboxJournal.Entry> first = journal.read(4);
+        journal.commit(first.get(3).next(), 4);
+        journal.close();
+
+        //Act
+        OutboxJournal restarted = newJournal(4096);
+        restarted.append("id-10", email(10));
+        List<OutboxJournal.Entry> entries = restarted.read(1000);
+
+        //Assert
+        assertEquals(7, restarted.getDepth());
+        assertEquals(7, entries.size());
+        assertEquals("id-4", entries.get(0).id());
+        assertEquals("id-10", entries.get(6).id());
+    }
+
+    @Test
+    void discardTornRecordTest() throws Exception {
+        //Arrange: registro con la longitud escrita pero sin datos válidos, como tras una caída a mitad de escritura
+        OutboxJournal journal = newJournal(4096);
+        journal.append("id-0", email(0));
+        int end = journal.read(1).get(0).next().position();
+        journal.close();
+        try (FileChannel channel = FileChannel.open(lastSegmentFile(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(OutboxJournal.HEADER).putInt(0, 100).putInt(4, 42), end);
+        }
+
+        //Act
+        OutboxJournal restarted = newJournal(4096);
+        restarted.append("id-1", email(1));
+        List<OutboxJournal.Entry> entries = restarted.read(1000);
+
+        //Assert
+        assertEquals(2, entries.size());
+        assertEquals("id-0", entries.get(0).id());
+        assertEquals("id-1", entries.get(1).id());
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).count();
+        }
+    }
+
+    private long firstSegment() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString()).filter(name -> name.endsWith(".log")).sorted()
+                    .findFirst().map(name -> Long.parseLong(name.substring(0, name.indexOf('.')))).orElse(-1L);
+        }
+    }
+
+    private Path lastSegmentFile() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.toString().endsWith(".log")).sorted().reduce((a, b) -> b).orElseThrow();
+        }
+    }
+}
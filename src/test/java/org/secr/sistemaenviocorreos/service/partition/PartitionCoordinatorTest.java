@@ -0,0 +1,53 @@
+package org.secr.sistemaenviocorreos.service.partition;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionCoordinatorTest {
+
+    private static final int COUNT = 64;
+
+    @Test
+    void everyPartitionHasOneOwnerTest() {
+        //Arrange
+        List<String> nodes = List.of("nodo-a", "nodo-b", "nodo-c");
+
+        //Act
+        Set<Integer> all = new HashSet<>();
+        int total = 0;
+        for (String node : nodes) {
+            Set<Integer> owned = PartitionCoordinator.assign(nodes, COUNT, node);
+            assertFalse(owned.isEmpty());
+            total += owned.size();
+            all.addAll(owned);
+        }
+
+        //Assert
+        assertEquals(COUNT, total);
+        assertEquals(COUNT, all.size());
+    }
+
+    @Test
+    void joiningNodeOnlyTakesPartitionsTest() {
+        //Arrange
+        List<String> before = List.of("nodo-a", "nodo-b");
+        List<String> after = List.of("nodo-a", "nodo-b", "nodo-c");
+
+        //Act & Assert: los nodos que ya estaban solo pierden particiones, nunca se las intercambian
+        for (String node : before) {
+            Set<Integer> owned = PartitionCoordinator.assign(before, COUNT, node);
+            assertTrue(owned.containsAll(PartitionCoordinator.assign(after, COUNT, node)));
+        }
+    }
+
+    @Test
+    void singleNodeOwnsEverythingTest() {
+        //Act & Assert
+        assertEquals(COUNT, PartitionCoordinator.assign(List.of("nodo-a"), COUNT, "nodo-a").size());
+    }
+}
@@ -0,0 +1,41 @@
+package org.secr.sistemaenviocorreos.service.partition;
+
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PartitionRouterTest {
+
+    private final PartitionRouter router = new PartitionRouter(true, 16, "email_queue", "email_queue.bulk");
+
+    @Test
+    void sameDomainSamePartitionTest() {
+        //Act
+        int partition = router.partitionOf("uno@Example.com");
+
+        //Assert
+        assertEquals(partition, router.partitionOf("dos@example.com"));
+        assertEquals(partition, router.partitionOf(" tres@EXAMPLE.COM "));
+        assertTrue(partition >= 0 && partition < 16);
+    }
+
+    @Test
+    void routingKeyAndQueueNameTest() {
+        //Arrange
+        int partition = router.partitionOf("test@test.com");
+
+        //Act & Assert
+        assertEquals("email_routing_key.bulk.p." + partition,
+                router.routingKey("email_routing_key.bulk", "test@test.com"));
+        assertEquals("email_queue.bulk.p." + partition, router.queueName(EmailPriority.BULK, partition));
+        assertEquals("email_queue.p." + partition, router.queueName(EmailPriority.TRANSACTIONAL, partition));
+    }
+
+    @Test
+    void disabledKeepsLaneRoutingKeyTest() {
+        //Act & Assert
+        assertFalse(PartitionRouter.disabled().isEnabled());
+        assertEquals("email_routing_key", PartitionRouter.disabled().routingKey("email_routing_key", "test@test.com"));
+    }
+}
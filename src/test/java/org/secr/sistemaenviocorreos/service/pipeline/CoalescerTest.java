@@ -0,0 +1,45 @@
+package org.secr.sistemaenviocorreos.service.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class CoalescerTest {
+
+    @Test
+    void flushWhenFullTest() {
+        //Arrange
+        List<List<String>> flushed = new CopyOnWriteArrayList<>();
+        try (Coalescer<String, String> coalescer = new Coalescer<>(60_000, 2, flushed::add)) {
+            //Act
+            coalescer.offer("bienvenida", "a@test.com");
+            coalescer.offer("aviso", "b@test.com");
+            coalescer.offer("bienvenida", "c@test.com");
+
+            //Assert
+            assertEquals(List.of(List.of("a@test.com", "c@test.com")), flushed);
+        }
+        assertEquals(List.of("b@test.com"), flushed.get(1));
+    }
+
+    @Test
+    void flushWhenWindowExpiresTest() throws InterruptedException {
+        //Arrange
+        List<List<String>> flushed = new CopyOnWriteArrayList<>();
+        try (Coalescer<String, String> coalescer = new Coalescer<>(20, 100, flushed::add)) {
+            //Act
+            coalescer.offer("bienvenida", "a@test.com");
+            coalescer.offer("bienvenida", "b@test.com");
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (flushed.isEmpty() && System.nanoTime() < deadline) Thread.sleep(5);
+
+            //Assert
+            assertTrue(flushed.contains(List.of("a@test.com", "b@test.com")));
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.secr.sistemaenviocorreos.service.pipeline;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EmailPipelineTest {
+
+    private EmailPipeline pipeline;
+
+    @BeforeEach
+    void setUp() {
+        pipeline = new EmailPipeline();
+        ReflectionTestUtils.setField(pipeline, "renderThreads", 1);
+        ReflectionTestUtils.setField(pipeline, "renderQueueCapacity", 1);
+        ReflectionTestUtils.setField(pipeline, "smtpThreads", 2);
+        ReflectionTestUtils.setField(pipeline, "smtpQueueCapacity", 1);
+        pipeline.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        pipeline.destroy();
+    }
+
+    @Test
+    void completeAfterSendStageTest() throws Exception {
+        //Arrange
+        CompletableFuture<String> sent = new CompletableFuture<>();
+        CompletableFuture<Throwable> completed = new CompletableFuture<>();
+
+        //Act
+        pipeline.submit(() -> "mensaje", sent::complete, completed::complete);
+
+        //Assert
+        assertEquals("mensaje", sent.get(5, TimeUnit.SECONDS));
+        assertNull(completed.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void completeWithErrorWhenRenderFailsTest() throws Exception {
+        //Arrange
+        CompletableFuture<Throwable> completed = new CompletableFuture<>();
+        IllegalStateException error = new IllegalStateException("render");
+
+        //Act
+        pipeline.submit(() -> { throw error; }, prepared -> fail("No debe enviarse"), completed::complete);
+
+        //Assert
+        assertSame(error, completed.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void backpressureDoesNotDropMessagesTest() throws Exception {
+        //Arrange
+        int messages = 50;
+        CompletableFuture<?>[] completions = new CompletableFuture<?>[messages];
+
+        //Act
+        for (int i = 0; i < messages; i++) {
+            CompletableFuture<Throwable> completed = new CompletableFuture<>();
+            completions[i] = completed;
+            pipeline.submit(() -> "mensaje", prepared -> Thread.sleep(1), completed::complete);
+        }
+
+        //Assert
+        CompletableFuture.allOf(completions).get(10, TimeUnit.SECONDS);
+        for (CompletableFuture<?> completion : completions) assertNull(completion.get());
+    }
+
+    @Test
+    void fullBulkLaneDoesNotStallTransactionalRenderTest() throws Exception {
+        //Arrange: hilos SMTP ocupados, carril SMTP masivo lleno y el hilo de renderizado masivo esperando hueco
+        CountDownLatch smtpBlocked = new CountDownLatch(1);
+        CompletableFuture<String> rendered = new CompletableFuture<>();
+        try {
+            for (int i = 0; i < 5; i++) {
+                pipeline.submit(EmailPriority.BULK, () -> "masivo", prepared -> smtpBlocked.await(), error -> {});
+            }
+
+            //Act
+            pipeline.submit(EmailPriority.TRANSACTIONAL, () -> {
+                rendered.complete("transaccional");
+                return "transaccional";
+            }, prepared -> {}, error -> {});
+
+            //Assert
+            assertEquals("transaccional", rendered.get(5, TimeUnit.SECONDS));
+        } finally {
+            smtpBlocked.countDown();
+        }
+    }
+}
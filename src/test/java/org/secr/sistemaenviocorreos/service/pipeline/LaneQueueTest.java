@@ -0,0 +1,65 @@
+package org.secr.sistemaenviocorreos.service.pipeline;
+
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LaneQueueTest {
+
+    private static LaneQueue.LaneTask task(EmailPriority priority) {
+        return new LaneQueue.LaneTask(priority, () -> { });
+    }
+
+    @Test
+    void weightTransactionalOverBulkTest() {
+        //Arrange
+        LaneQueue queue = new LaneQueue(16, 3);
+        for (int i = 0; i < 4; i++) queue.offer(task(EmailPriority.BULK));
+        for (int i = 0; i < 7; i++) queue.offer(task(EmailPriority.TRANSACTIONAL));
+
+        //Act
+        List<EmailPriority> order = new ArrayList<>();
+        Runnable next;
+        while ((next = queue.poll()) != null) order.add(((LaneQueue.LaneTask) next).priority());
+
+        //Assert: 3 transaccionales por cada masiva mientras compiten, el resto en orden
+        assertEquals(List.of(
+                EmailPriority.TRANSACTIONAL, EmailPriority.TRANSACTIONAL, EmailPriority.TRANSACTIONAL, EmailPriority.BULK,
+                EmailPriority.TRANSACTIONAL, EmailPriority.TRANSACTIONAL, EmailPriority.TRANSACTIONAL, EmailPriority.BULK,
+                EmailPriority.TRANSACTIONAL, EmailPriority.BULK, EmailPriority.BULK), order);
+    }
+
+    @Test
+    void fullBulkLaneDoesNotBlockTransactionalTest() {
+        //Arrange
+        LaneQueue queue = new LaneQueue(2, 8);
+        queue.offer(task(EmailPriority.BULK));
+        queue.offer(task(EmailPriority.BULK));
+
+        //Act & Assert
+        assertFalse(queue.offer(task(EmailPriority.BULK)));
+        assertTrue(queue.offer(task(EmailPriority.TRANSACTIONAL)));
+        assertTrue(queue.offer(() -> { })); //Sin carril: transaccional
+        assertEquals(2, queue.size(EmailPriority.BULK));
+        assertEquals(2, queue.size(EmailPriority.TRANSACTIONAL));
+        assertEquals(0, queue.remainingCapacity());
+    }
+
+    @Test
+    void pipelineRunsTasksFromBothLanesTest() throws Exception {
+        //Arrange
+        EmailPipeline pipeline = EmailPipeline.direct();
+        List<EmailPriority> sent = new ArrayList<>();
+
+        //Act
+        pipeline.submit(EmailPriority.BULK, () -> EmailPriority.BULK, sent::add, error -> assertNull(error));
+        pipeline.submit(() -> EmailPriority.TRANSACTIONAL, sent::add, error -> assertNull(error));
+
+        //Assert
+        assertEquals(List.of(EmailPriority.BULK, EmailPriority.TRANSACTIONAL), sent);
+    }
+}
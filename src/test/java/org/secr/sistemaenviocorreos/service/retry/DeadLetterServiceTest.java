@@ -0,0 +1,86 @@
+package org.secr.sistemaenviocorreos.service.retry;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.GetResponse;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.dto.ReplayResultDTO;
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.core.ChannelCallback;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class DeadLetterServiceTest {
+    @Mock
+    private RabbitTemplate rabbitTemplate;
+    @Mock
+    private EmailPublisher emailPublisher;
+    @Mock
+    private EmailMetrics metrics;
+    @Mock
+    private MessageConverter messageConverter;
+    @Mock
+    private Channel channel;
+    @InjectMocks
+    private DeadLetterService deadLetterService;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(deadLetterService, "retryPolicy",
+                new RetryPolicy("email_queue", "email_queue.bulk", 30, 4, 3600, 5, 0.2, 3));
+        when(rabbitTemplate.execute(any())).thenAnswer(invocation ->
+                invocation.<ChannelCallback<?>>getArgument(0).doInRabbit(channel));
+        when(rabbitTemplate.getMessageConverter()).thenReturn(messageConverter);
+    }
+
+    private static GetResponse deadLetter(long deliveryTag) {
+        return new GetResponse(new Envelope(deliveryTag, false, "", "email_queue.dlq"),
+                new AMQP.BasicProperties(), new byte[0], 0);
+    }
+
+    @Test
+    void returnUnconfirmedOnlyWhenFinishedTest() throws IOException {
+        //Arrange
+        ReflectionTestUtils.setField(deadLetterService, "batchSize", 1);
+        ReflectionTestUtils.setField(deadLetterService, "confirmTimeout", 0);
+        when(channel.basicGet("email_queue.dlq", false)).thenReturn(deadLetter(1), deadLetter(2), null);
+        when(messageConverter.fromMessage(any(Message.class)))
+                .thenReturn(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", null, 0));
+        //El primero no se confirma a tiempo, el segundo sí
+        doNothing().doAnswer(invocation -> invocation.<CorrelationData>getArgument(1).getFuture()
+                        .complete(new CorrelationData.Confirm(true, null)))
+                .when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        ReplayResultDTO result = deadLetterService.replay(10);
+
+        //Assert
+        assertEquals(1, result.replayed());
+        assertEquals(1, result.failed());
+        verify(emailPublisher, times(2)).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+        InOrder inOrder = inOrder(channel);
+        inOrder.verify(channel, times(3)).basicGet("email_queue.dlq", false);
+        inOrder.verify(channel).basicNack(1, false, true);
+        verify(channel, times(1)).basicAck(2, false);
+    }
+}
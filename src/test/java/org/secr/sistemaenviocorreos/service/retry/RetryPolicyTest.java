@@ -0,0 +1,54 @@
+package org.secr.sistemaenviocorreos.service.retry;
+
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.config.RetryPolicy;
+import org.secr.sistemaenviocorreos.enums.EmailPriority;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy("email_queue", "email_queue.bulk", 30, 4, 1800, 5, 0.2, 3);
+
+    @Test
+    void exponentialTiersCappedAtMaxDelayTest() {
+        //Assert
+        assertEquals(30_000, policy.tierDelay(0));
+        assertEquals(120_000, policy.tierDelay(1));
+        assertEquals(480_000, policy.tierDelay(2));
+        assertEquals(1_800_000, policy.tierDelay(3));
+        assertEquals(1_800_000, policy.tierDelay(4));
+        assertEquals("email_queue.retry.2", policy.tierQueue(EmailPriority.TRANSACTIONAL, 2));
+        assertEquals("email_queue.bulk.retry.0", policy.tierQueue(EmailPriority.BULK, 0));
+        assertEquals("email_queue.dlq", policy.deadLetterQueue());
+    }
+
+    @Test
+    void eachFailureMovesToNextTierTest() {
+        //Assert
+        assertEquals(0, policy.tierFor(3));
+        assertEquals(1, policy.tierFor(2));
+        assertEquals(2, policy.tierFor(1));
+        assertEquals(0, policy.tierFor(10)); //Reintentos reinyectados con más intentos de los configurados
+    }
+
+    @Test
+    void jitterStaysBelowQueueTtlTest() {
+        for (int i = 0; i < 1000; i++) {
+            long backoff = policy.backoffMillis(1);
+            assertTrue(backoff <= 120_000);
+            assertTrue(backoff >= 96_000);
+        }
+    }
+
+    @Test
+    void shortestThrottleLevelCoveringDelayTest() {
+        //Assert
+        assertEquals(0, policy.throttleLevelFor(800));
+        assertEquals(2, policy.throttleLevelFor(3_500));
+        assertEquals(4_000, policy.throttleDelay(2));
+        assertEquals(6, policy.throttleLevelFor(10_000_000));
+        assertEquals("email_queue.throttle.2", policy.throttleQueue(EmailPriority.TRANSACTIONAL, 2));
+        assertEquals("email_queue.bulk.throttle.0", policy.throttleQueue(EmailPriority.BULK, 0));
+    }
+}
@@ -0,0 +1,138 @@
+package org.secr.sistemaenviocorreos.service.scheduled;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.service.EmailPublisher;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class ScheduledEmailDispatcherTest {
+    @Mock
+    private ScheduledEmailStore store;
+    @Mock
+    private EmailPublisher emailPublisher;
+    @Mock
+    private EmailMetrics metrics;
+    @InjectMocks
+    private ScheduledEmailDispatcher dispatcher;
+
+    private final ScheduledEmailStore.ClaimedBucket bucket =
+            new ScheduledEmailStore.ClaimedBucket(Path.of("bucket.jsonl.claimed"), 0);
+    private final PublishRabbitMQDTO payload =
+            new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", LocalDateTime.now(), 3);
+
+    @Test
+    void dispatchDueBucketTest() throws IOException {
+        //Arrange
+        when(store.claimDue(any(LocalDateTime.class), anyInt())).thenReturn(List.of(bucket));
+        when(store.open(bucket)).thenReturn(new BufferedReader(new StringReader("a\nb\n")));
+        when(store.parse(anyString())).thenReturn(payload);
+        doAnswer(inv -> {
+            CorrelationData correlationData = inv.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+            return null;
+        }).when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        dispatcher.dispatchDue();
+
+        //Assert
+        verify(emailPublisher, times(2)).publishConfirmed(eq(payload), any(CorrelationData.class));
+        verify(store, times(1)).saveProgress(bucket, 2);
+        verify(store, times(1)).complete(bucket);
+        verify(store, times(0)).release(bucket);
+    }
+
+    @Test
+    void quarantineUnreadableLineTest() throws IOException {
+        //Arrange
+        when(store.claimDue(any(LocalDateTime.class), anyInt())).thenReturn(List.of(bucket));
+        when(store.open(bucket)).thenReturn(new BufferedReader(new StringReader("a\n{roto\nb\n")));
+        when(store.parse(anyString())).thenReturn(payload);
+        when(store.parse("{roto")).thenThrow(new JsonParseException(null, "Línea truncada"));
+        doAnswer(inv -> {
+            CorrelationData correlationData = inv.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+            return null;
+        }).when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        dispatcher.dispatchDue();
+
+        //Assert
+        verify(emailPublisher, times(2)).publishConfirmed(eq(payload), any(CorrelationData.class));
+        verify(store, times(1)).quarantine(bucket, "{roto");
+        verify(metrics, times(1)).recordScheduledQuarantined();
+        verify(store, times(1)).saveProgress(bucket, 3);
+        verify(store, times(1)).complete(bucket);
+        verify(store, times(0)).release(bucket);
+    }
+
+    @Test
+    void releaseBucketWhenBrokerFailsTest() throws IOException {
+        //Arrange
+        when(store.claimDue(any(LocalDateTime.class), anyInt())).thenReturn(List.of(bucket));
+        when(store.open(bucket)).thenReturn(new BufferedReader(new StringReader("a\n")));
+        when(store.parse(anyString())).thenReturn(payload);
+        doThrow(AmqpException.class).when(emailPublisher)
+                .publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        dispatcher.dispatchDue();
+
+        //Assert
+        verify(store, times(0)).complete(bucket);
+        verify(store, times(1)).release(bucket);
+    }
+
+    @Test
+    void skipCancelledTest() throws IOException {
+        //Arrange
+        PublishRabbitMQDTO cancelled = new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", LocalDateTime.now(), 3,
+                null, null, null, "1-uno", null);
+        PublishRabbitMQDTO tagged = new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo", LocalDateTime.now(), 3,
+                null, null, null, "1-dos", "promo");
+        PublishRabbitMQDTO alsoTagged = new PublishRabbitMQDTO("d@test.com", "Test", "Cuerpo", LocalDateTime.now(), 3,
+                null, null, null, "1-tres", "promo");
+        when(store.claimDue(any(LocalDateTime.class), anyInt())).thenReturn(List.of(bucket));
+        when(store.open(bucket)).thenReturn(new BufferedReader(new StringReader("a\nb\nc\nd\n")));
+        when(store.cancelledIds(bucket)).thenReturn(Set.of("1-uno"));
+        when(store.isTagCancelled("promo")).thenReturn(true);
+        when(store.parse("a")).thenReturn(cancelled);
+        when(store.parse("b")).thenReturn(tagged);
+        when(store.parse("c")).thenReturn(payload);
+        when(store.parse("d")).thenReturn(alsoTagged);
+        doAnswer(inv -> {
+            CorrelationData correlationData = inv.getArgument(1);
+            correlationData.getFuture().complete(new CorrelationData.Confirm(true, null));
+            return null;
+        }).when(emailPublisher).publishConfirmed(any(PublishRabbitMQDTO.class), any(CorrelationData.class));
+
+        //Act
+        dispatcher.dispatchDue();
+
+        //Assert
+        verify(emailPublisher, times(1)).publishConfirmed(eq(payload), any(CorrelationData.class));
+        verify(store, times(1)).isTagCancelled("promo");
+        verify(store, times(1)).saveProgress(bucket, 4);
+        verify(store, times(1)).complete(bucket);
+    }
+}
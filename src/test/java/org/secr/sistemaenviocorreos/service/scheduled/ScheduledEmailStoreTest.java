@@ -0,0 +1,197 @@
+package org.secr.sistemaenviocorreos.service.scheduled;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.secr.sistemaenviocorreos.config.NodeIdentity;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.spy;
+
+public class ScheduledEmailStoreTest {
+
+    @TempDir
+    private Path directory;
+
+    private ScheduledEmailStore newStore(String nodeId) throws IOException {
+        ScheduledEmailStore store = new ScheduledEmailStore();
+        ReflectionTestUtils.setField(store, "objectMapper", new ObjectMapper().findAndRegisterModules());
+        ReflectionTestUtils.setField(store, "nodeIdentity", new NodeIdentity(nodeId));
+        ReflectionTestUtils.setField(store, "directory", directory.toString());
+        ReflectionTestUtils.setField(store, "fsync", false);
+        store.init();
+        store.pendingCounted.join(); //Sin escrituras mientras se cuenta
+        return store;
+    }
+
+    @Test
+    void claimOnlyDueBucketsTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore store = newStore("node-a");
+        LocalDateTime now = LocalDateTime.now();
+        PublishRabbitMQDTO due = new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", now.minusMinutes(1), 3);
+        PublishRabbitMQDTO future = new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo", now.plusMinutes(5), 3);
+        store.schedule(due);
+        store.schedule(future);
+
+        //Act
+        List<ScheduledEmailStore.ClaimedBucket> claimed = store.claimDue(now, 2);
+
+        //Assert
+        assertEquals(1, claimed.size());
+        try (BufferedReader reader = store.open(claimed.get(0))) {
+            assertEquals(due, store.parse(reader.readLine()));
+            assertNull(reader.readLine());
+        }
+    }
+
+    @Test
+    void bucketIsClaimedByOneNodeTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore nodeA = newStore("node-a");
+        ScheduledEmailStore nodeB = newStore("node-b");
+        LocalDateTime now = LocalDateTime.now();
+        nodeA.schedule(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", now.minusMinutes(1), 3));
+
+        //Act
+        List<ScheduledEmailStore.ClaimedBucket> claimedByA = nodeA.claimDue(now, 2);
+        List<ScheduledEmailStore.ClaimedBucket> claimedByB = nodeB.claimDue(now, 2);
+
+        //Assert
+        assertEquals(1, claimedByA.size());
+        assertTrue(claimedByB.isEmpty());
+    }
+
+    @Test
+    void releaseKeepsProgressTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore store = newStore("node-a");
+        LocalDateTime now = LocalDateTime.now();
+        store.schedule(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", now.minusMinutes(1), 3));
+        store.schedule(new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo", now.minusMinutes(1), 3));
+        ScheduledEmailStore.ClaimedBucket bucket = store.claimDue(now, 2).get(0);
+
+        //Act
+        store.saveProgress(bucket, 1);
+        store.release(bucket);
+        ScheduledEmailStore.ClaimedBucket retaken = store.claimDue(now, 2).get(0);
+        store.complete(retaken);
+
+        //Assert
+        assertEquals(1, retaken.releasedLines());
+        assertFalse(Files.exists(retaken.file()));
+        assertTrue(store.claimDue(now, 2).isEmpty());
+    }
+
+    @Test
+    void pendingCountSurvivesRestartTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore store = newStore("node-a");
+        LocalDateTime now = LocalDateTime.now();
+        store.schedule(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", now.minusMinutes(1), 3));
+        store.schedule(new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo", now.minusMinutes(1), 3));
+        store.schedule(new PublishRabbitMQDTO("c@test.com", "Test", "Cuerpo", now.plusMinutes(5), 3));
+        ScheduledEmailStore.ClaimedBucket bucket = store.claimDue(now, 2).get(0);
+        store.saveProgress(bucket, 1);
+        store.markReleased(1);
+
+        //Act
+        ScheduledEmailStore restarted = newStore("node-a");
+
+        //Assert
+        assertEquals(2, store.getPendingCount());
+        assertEquals(2, restarted.getPendingCount());
+    }
+
+    @Test
+    void cancelAndRescheduleByIdTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore store = newStore("node-a");
+        LocalDateTime sendDate = LocalDateTime.now().plusMinutes(5);
+        String first = store.newId(sendDate, "uno");
+        String second = store.newId(sendDate, "dos");
+        store.schedule(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", sendDate, 3, null, null, null, first, null));
+        store.schedule(new PublishRabbitMQDTO("b@test.com", "Test", "Cuerpo", sendDate, 3, null, null, null, second, null));
+
+        //Act
+        boolean cancelled = store.cancel(first);
+        String moved = store.reschedule(second, sendDate.plusHours(1));
+
+        //Assert
+        assertTrue(cancelled);
+        assertNull(store.find(first));
+        assertNull(store.find(second));
+        PublishRabbitMQDTO rescheduled = store.find(moved);
+        assertEquals("b@test.com", rescheduled.email());
+        assertEquals(sendDate.plusHours(1), rescheduled.sendDate());
+        assertNull(store.reschedule("no-es-un-id", sendDate));
+        assertFalse(store.cancel(store.newId(LocalDateTime.now().minusHours(1), "liberado")));
+    }
+
+    @Test
+    void cancelOnlyPendingIdsTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore store = newStore("node-a");
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime farAway = now.plusYears(5);
+        String due = store.newId(now.minusMinutes(1), "vencido");
+        store.schedule(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", now.minusMinutes(1), 3, null, null, null, due, null));
+        store.claimDue(now, 2);
+
+        //Act
+        boolean unknown = store.cancel(store.newId(farAway, "inventado"));
+
+        //Assert
+        assertFalse(unknown);
+        assertFalse(Files.exists(directory.resolve(String.format("%010d", store.bucketOf(farAway) / 3600))));
+        assertThrows(IllegalStateException.class, () -> store.cancel(due));
+    }
+
+    @Test
+    void rescheduleDiscardsCopyWhenOriginalIsBeingSentTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore store = spy(newStore("node-a"));
+        LocalDateTime sendDate = LocalDateTime.now().plusHours(1);
+        String id = store.newId(sendDate, "original");
+        store.schedule(new PublishRabbitMQDTO("a@test.com", "Test", "Cuerpo", sendDate, 3, null, null, null, id, null));
+        doThrow(new IllegalStateException("El correo " + id + " se está enviando")).when(store).cancel(id);
+
+        //Act
+        assertThrows(IllegalStateException.class, () -> store.reschedule(id, sendDate.plusHours(1)));
+
+        //Assert: la copia está en su bucket pero cancelada
+        List<ScheduledEmailStore.ClaimedBucket> claimed = store.claimDue(sendDate.plusHours(2), 0);
+        assertEquals(2, claimed.size());
+        ScheduledEmailStore.ClaimedBucket copy = claimed.get(1);
+        try (BufferedReader reader = store.open(copy)) {
+            PublishRabbitMQDTO rMQMessage = new ObjectMapper().findAndRegisterModules()
+                    .readValue(reader.readLine(), PublishRabbitMQDTO.class);
+            assertTrue(store.cancelledIds(copy).contains(rMQMessage.id()));
+        }
+    }
+
+    @Test
+    void cancelTagTest() throws IOException {
+        //Arrange
+        ScheduledEmailStore store = newStore("node-a");
+
+        //Act
+        store.cancelTag("promo-marzo");
+
+        //Assert
+        assertTrue(store.isTagCancelled("promo-marzo"));
+        assertFalse(store.isTagCancelled("promo-abril"));
+        assertTrue(newStore("node-b").isTagCancelled("promo-marzo"));
+        assertThrows(IllegalArgumentException.class, () -> store.cancelTag("../fuera"));
+    }
+}
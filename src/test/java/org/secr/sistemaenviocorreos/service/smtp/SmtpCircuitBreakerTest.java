@@ -0,0 +1,178 @@
+package org.secr.sistemaenviocorreos.service.smtp;
+
+import jakarta.mail.MessagingException;
+import org.eclipse.angus.mail.util.MailConnectException;
+import org.eclipse.angus.mail.util.SocketConnectException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.enums.CircuitState;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.net.ConnectException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class SmtpCircuitBreakerTest {
+    @Mock
+    private SmtpTransportPool transportPool;
+    @Mock
+    private RabbitListenerEndpointRegistry listenerRegistry;
+    @Mock
+    private MessageListenerContainer container;
+    @InjectMocks
+    private SmtpCircuitBreaker circuitBreaker;
+
+    @BeforeEach
+    void setUp() {
+        ReflectionTestUtils.setField(circuitBreaker, "failureThreshold", 3);
+        ReflectionTestUtils.setField(circuitBreaker, "initialBackoff", 3600); //Las pruebas se lanzan a mano
+        ReflectionTestUtils.setField(circuitBreaker, "maxBackoff", 86400);
+        ReflectionTestUtils.setField(circuitBreaker, "rampInterval", 3600);
+        ReflectionTestUtils.setField(circuitBreaker, "maxConcurrency", 4);
+    }
+
+    @AfterEach
+    void tearDown() {
+        circuitBreaker.stop();
+    }
+
+    private static MailConnectException connectionRefused() {
+        return new MailConnectException(new SocketConnectException("Connection refused", new ConnectException(),
+                "smtp.test.com", 587, 1000));
+    }
+
+    private void failConnection() {
+        assertThrows(MailConnectException.class, () -> circuitBreaker.execute(() -> {
+            throw connectionRefused();
+        }));
+    }
+
+    private void open() {
+        when(listenerRegistry.getListenerContainer(anyString())).thenReturn(container);
+        for (int i = 0; i < 3; i++) failConnection();
+    }
+
+    @Test
+    void openAfterConsecutiveConnectionFailuresTest() throws MessagingException {
+        //Arrange
+        when(container.isRunning()).thenReturn(true);
+        AtomicInteger calls = new AtomicInteger();
+
+        //Act
+        open();
+
+        //Assert
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState());
+        assertEquals(1, circuitBreaker.getOpenedCount());
+        assertEquals(0, circuitBreaker.getConcurrencyLimit());
+        assertThrows(SmtpCircuitOpenException.class, () -> circuitBreaker.execute(calls::incrementAndGet));
+        assertEquals(0, calls.get());
+        verify(container, timeout(1000).times(3)).stop(); //Carril transaccional, masivo y campañas
+    }
+
+    @Test
+    void openStopsCampaignConsumptionTest() {
+        //Arrange
+        MessageListenerContainer campaigns = mock(MessageListenerContainer.class);
+        when(campaigns.isRunning()).thenReturn(true);
+        when(listenerRegistry.getListenerContainer(anyString())).thenReturn(null);
+        when(listenerRegistry.getListenerContainer(SmtpCircuitBreaker.CAMPAIGN_LISTENER)).thenReturn(campaigns);
+
+        //Act
+        for (int i = 0; i < 3; i++) failConnection();
+
+        //Assert
+        verify(campaigns, timeout(1000)).stop();
+    }
+
+    @Test
+    void serverRejectionsKeepCircuitClosedTest() {
+        //Act
+        for (int i = 0; i < 5; i++) {
+            failConnection();
+            failConnection();
+            assertThrows(MessagingException.class, () -> circuitBreaker.execute(() -> {
+                throw new MessagingException("550 Buzón no disponible");
+            }));
+        }
+
+        //Assert
+        assertEquals(CircuitState.CLOSED, circuitBreaker.getState());
+        verifyNoInteractions(listenerRegistry);
+    }
+
+    @Test
+    void poolExhaustionDoesNotResetFailuresTest() {
+        //Arrange
+        when(container.isRunning()).thenReturn(true);
+        when(listenerRegistry.getListenerContainer(anyString())).thenReturn(container);
+
+        //Act
+        failConnection();
+        failConnection();
+        assertThrows(SmtpPoolExhaustedException.class, () -> circuitBreaker.execute(() -> {
+            throw new SmtpPoolExhaustedException();
+        }));
+        failConnection();
+
+        //Assert
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState());
+        verify(container, timeout(1000).times(3)).stop();
+    }
+
+    @Test
+    void resumeGraduallyAfterProbeTest() throws MessagingException {
+        //Arrange
+        open();
+
+        //Act
+        circuitBreaker.probe();
+        int first = circuitBreaker.getConcurrencyLimit();
+        circuitBreaker.execute(() -> {});
+        Semaphore permits = (Semaphore) ReflectionTestUtils.getField(circuitBreaker, "ramp");
+        circuitBreaker.rampUp(permits);
+        int second = circuitBreaker.getConcurrencyLimit();
+        circuitBreaker.rampUp(permits);
+
+        //Assert
+        verify(transportPool, times(1)).probe();
+        verify(container, times(3)).start();
+        assertEquals(1, first);
+        assertEquals(2, second);
+        assertEquals(CircuitState.CLOSED, circuitBreaker.getState());
+        assertEquals(4, circuitBreaker.getConcurrencyLimit());
+    }
+
+    @Test
+    void reopenWithLongerBackoffTest() throws MessagingException {
+        //Arrange
+        open();
+        doThrow(connectionRefused()).doNothing()
+                .when(transportPool).probe();
+
+        //Act
+        circuitBreaker.probe();
+        long failedProbeBackoff = (long) ReflectionTestUtils.getField(circuitBreaker, "backoffMillis");
+        circuitBreaker.probe();
+        CircuitState resumed = circuitBreaker.getState();
+        failConnection();
+
+        //Assert
+        assertEquals(7_200_000, failedProbeBackoff);
+        assertEquals(CircuitState.HALF_OPEN, resumed);
+        assertEquals(CircuitState.OPEN, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getOpenedCount());
+        assertEquals(14_400_000L, ReflectionTestUtils.getField(circuitBreaker, "backoffMillis"));
+    }
+}
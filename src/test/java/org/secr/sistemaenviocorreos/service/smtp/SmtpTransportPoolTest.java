@@ -0,0 +1,126 @@
+package org.secr.sistemaenviocorreos.service.smtp;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.secr.sistemaenviocorreos.service.metrics.EmailMetrics;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+public class SmtpTransportPoolTest {
+    @Mock
+    private JavaMailSenderImpl mailSenderImpl;
+    @Mock
+    private Session session;
+    @Mock
+    private Transport transport;
+    @Mock
+    private MimeMessage mimeMessage;
+    @Mock
+    private EmailMetrics metrics;
+    @InjectMocks
+    private SmtpTransportPool transportPool;
+
+    @BeforeEach
+    void setUp() throws MessagingException {
+        when(mailSenderImpl.getSession()).thenReturn(session);
+        when(mailSenderImpl.getHost()).thenReturn("smtp.test.com");
+        when(mailSenderImpl.getPort()).thenReturn(587);
+        when(mailSenderImpl.getUsername()).thenReturn("user");
+        when(session.getTransport(anyString())).thenReturn(transport);
+    }
+
+    @Test
+    void reuseConnectionTest() throws MessagingException {
+        //Act
+        transportPool.send(mimeMessage);
+        transportPool.send(mimeMessage);
+
+        //Assert
+        verify(transport, times(1)).connect(any(), anyInt(), any(), any());
+        verify(transport, times(2)).sendMessage(eq(mimeMessage), any());
+        assertEquals(1, transportPool.getStats().hits());
+        assertEquals(1, transportPool.getStats().misses());
+        assertEquals(1, transportPool.getStats().handshakes());
+        verify(metrics, times(1)).recordConnect(anyLong());
+        verify(metrics, times(2)).recordSend(anyLong());
+    }
+
+    @Test
+    void recycleConnectionAfterMaxMessagesTest() throws MessagingException {
+        //Arrange
+        ReflectionTestUtils.setField(transportPool, "maxMessagesPerConnection", 1);
+
+        //Act
+        transportPool.send(mimeMessage);
+        transportPool.send(mimeMessage);
+
+        //Assert
+        verify(transport, times(2)).connect(any(), anyInt(), any(), any());
+        verify(transport, times(2)).close();
+    }
+
+    @Test
+    void discardConnectionOnFailureTest() throws MessagingException {
+        //Arrange
+        doThrow(MessagingException.class).doNothing().when(transport).sendMessage(any(MimeMessage.class), any());
+
+        //Act
+        assertThrows(MessagingException.class, () -> transportPool.send(mimeMessage));
+        transportPool.send(mimeMessage);
+
+        //Assert
+        verify(transport, times(1)).close();
+        verify(transport, times(2)).connect(any(), anyInt(), any(), any());
+    }
+
+    @Test
+    void exhaustedPoolIsNotAConnectionFailureTest() throws Exception {
+        //Arrange
+        ReflectionTestUtils.setField(transportPool, "maxConnectionsPerHost", 1);
+        ReflectionTestUtils.setField(transportPool, "borrowTimeout", 0);
+        CountDownLatch sending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            sending.countDown();
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(transport).sendMessage(any(MimeMessage.class), any());
+        CompletableFuture<Void> busy = CompletableFuture.runAsync(() -> {
+            try {
+                transportPool.send(mimeMessage);
+            } catch (MessagingException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        sending.await(5, TimeUnit.SECONDS);
+
+        //Act
+        SmtpPoolExhaustedException error = assertThrows(SmtpPoolExhaustedException.class,
+                () -> transportPool.send(mimeMessage));
+        release.countDown();
+        busy.get(5, TimeUnit.SECONDS);
+
+        //Assert
+        assertFalse(SmtpCircuitBreaker.isConnectionFailure(error));
+        verify(transport, times(1)).connect(any(), anyInt(), any(), any());
+    }
+}
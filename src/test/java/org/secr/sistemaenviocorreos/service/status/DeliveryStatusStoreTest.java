@@ -0,0 +1,145 @@
+package org.secr.sistemaenviocorreos.service.status;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.secr.sistemaenviocorreos.dto.DeliveryStatusDTO;
+import org.secr.sistemaenviocorreos.enums.DeliveryState;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DeliveryStatusStoreTest {
+
+    @TempDir
+    private Path directory;
+
+    private final AtomicLong now = new AtomicLong(1_700_000_000_000L);
+
+    private DeliveryStatusStore newStore(int capacity, String dir) throws IOException {
+        DeliveryStatusStore store = new DeliveryStatusStore();
+        ReflectionTestUtils.setField(store, "capacity", capacity);
+        ReflectionTestUtils.setField(store, "ttl", 2);
+        ReflectionTestUtils.setField(store, "directory", dir);
+        store.clock = now::get;
+        store.init();
+        return store;
+    }
+
+    @Test
+    void recordTransitionsTest() throws IOException {
+        //Arrange
+        DeliveryStatusStore store = newStore(1024, "");
+
+        //Act
+        store.record("id-1", DeliveryState.SENDING, 3);
+        store.record("id-1", DeliveryState.QUEUED, 3); //Confirmación del broker tardía
+        DeliveryStatusDTO sending = store.get("id-1");
+        store.record("id-1", DeliveryState.FAILED, 2);
+        store.record("id-1", DeliveryState.SENT, 2);
+        store.record("id-1", DeliveryState.FAILED, 1);
+
+        //Assert
+        assertEquals(DeliveryState.SENDING, sending.state());
+        DeliveryStatusDTO sent = store.get("id-1");
+        assertEquals(DeliveryState.SENT, sent.state());
+        assertEquals(2, sent.retriesLeft());
+        assertNull(store.get("id-2"));
+        assertEquals(DeliveryState.UNKNOWN, store.getOrUnknown("id-2").state());
+    }
+
+    @Test
+    void concurrentUpdatesTest() throws Exception {
+        //Arrange
+        DeliveryStatusStore store = newStore(1 << 18, "");
+        int threads = 4;
+        int perThread = 20_000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        //Act
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < threads * perThread; i++) {
+                    store.record("id-" + i, DeliveryState.SENDING, 3);
+                    store.record("id-" + i, DeliveryState.QUEUED, 3);
+                }
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        for (int t = 0; t < threads; t++) {
+            int first = t * perThread;
+            futures.set(t, executor.submit(() -> {
+                for (int i = first; i < first + perThread; i++) store.record("id-" + i, DeliveryState.SENT, 3);
+            }));
+        }
+        for (Future<?> future : futures) future.get();
+        executor.shutdown();
+
+        //Assert
+        assertEquals(threads * perThread, store.getTracked());
+        for (int i = 0; i < threads * perThread; i++) {
+            assertEquals(DeliveryState.SENT, store.get("id-" + i).state());
+        }
+    }
+
+    @Test
+    void evictExpiredGenerationsTest() throws IOException {
+        //Arrange
+        DeliveryStatusStore store = newStore(1024, "");
+        store.record("antiguo", DeliveryState.SENT, 3);
+        store.record("activo", DeliveryState.SENDING, 3);
+
+        //Act
+        now.addAndGet(TimeUnit.MINUTES.toMillis(61));
+        store.evict();
+        store.record("activo", DeliveryState.FAILED, 2);
+        DeliveryStatusDTO previousGeneration = store.get("antiguo");
+        now.addAndGet(TimeUnit.MINUTES.toMillis(61));
+        store.evict();
+
+        //Assert
+        assertEquals(DeliveryState.SENT, previousGeneration.state());
+        assertNull(store.get("antiguo"));
+        assertEquals(DeliveryState.FAILED, store.get("activo").state());
+    }
+
+    @Test
+    void rotateWhenFullTest() throws IOException {
+        //Arrange
+        DeliveryStatusStore store = newStore(DeliveryStatusStore.SHARDS * 16, "");
+
+        //Act
+        for (int i = 0; i < 10_000; i++) store.record("id-" + i, DeliveryState.QUEUED, 3);
+
+        //Assert
+        assertEquals(DeliveryState.QUEUED, store.get("id-9999").state());
+        assertTrue(store.getTracked() < 10_000);
+    }
+
+    @Test
+    void reloadSnapshotTest() throws IOException {
+        //Arrange
+        DeliveryStatusStore store = newStore(1024, directory.toString());
+        store.record("id-1", DeliveryState.EXHAUSTED, 0);
+        store.record("id-2", DeliveryState.SCHEDULED, 3);
+
+        //Act
+        store.close();
+        DeliveryStatusStore reloaded = newStore(1024, directory.toString());
+
+        //Assert
+        assertEquals(DeliveryState.EXHAUSTED, reloaded.get("id-1").state());
+        assertEquals(0, reloaded.get("id-1").retriesLeft());
+        assertEquals(store.get("id-2"), reloaded.get("id-2"));
+    }
+}
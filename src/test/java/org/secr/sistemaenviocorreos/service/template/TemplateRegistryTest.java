@@ -0,0 +1,121 @@
+package org.secr.sistemaenviocorreos.service.template;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.secr.sistemaenviocorreos.dto.PublishRabbitMQDTO;
+import org.secr.sistemaenviocorreos.dto.TemplateDTO;
+import org.secr.sistemaenviocorreos.enums.EmailTemplateType;
+import org.secr.sistemaenviocorreos.service.EmailTemplateRenderer;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.thymeleaf.spring6.SpringTemplateEngine;
+import org.thymeleaf.templatemode.TemplateMode;
+import org.thymeleaf.templateresolver.ClassLoaderTemplateResolver;
+import org.thymeleaf.templateresolver.FileTemplateResolver;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemplateRegistryTest {
+
+    private static final String NEW_VERSION = "<html><body><p th:text=\"${data.message}\">x</p></body></html>";
+
+    @TempDir
+    Path dir;
+
+    private TemplateRegistry registry;
+    private EmailTemplateRenderer renderer;
+
+    @BeforeEach
+    void setUp() {
+        ClassLoaderTemplateResolver classpath = new ClassLoaderTemplateResolver();
+        classpath.setPrefix("templates/");
+        classpath.setSuffix(".html");
+        classpath.setTemplateMode(TemplateMode.HTML);
+        classpath.setCharacterEncoding("UTF-8");
+        classpath.setCheckExistence(true);
+        FileTemplateResolver versions = new FileTemplateResolver();
+        versions.setPrefix(dir + "/");
+        versions.setSuffix(".html");
+        versions.setTemplateMode(TemplateMode.HTML);
+        versions.setCharacterEncoding("UTF-8");
+        versions.setCheckExistence(true);
+        SpringTemplateEngine templateEngine = new SpringTemplateEngine();
+        templateEngine.addTemplateResolver(classpath);
+        templateEngine.addTemplateResolver(versions);
+
+        registry = new TemplateRegistry(templateEngine);
+        ReflectionTestUtils.setField(registry, "dir", dir.toString());
+        ReflectionTestUtils.setField(registry, "warmupIterations", 5);
+        ReflectionTestUtils.setField(registry, "installEnabled", true);
+        renderer = new EmailTemplateRenderer(templateEngine, registry);
+    }
+
+    @Test
+    void discoverTemplatesAtStartupTest() throws Exception {
+        //Act
+        registry.init();
+        List<TemplateDTO> templates = registry.list();
+
+        //Assert
+        assertTrue(templates.contains(new TemplateDTO("welcome-email", 0, "PublishRabbitMQDTO", true)));
+        assertTrue(templates.contains(new TemplateDTO("conditional-email", 0, "PublishRabbitMQDTO", false)));
+    }
+
+    @Test
+    void installNewVersionTest() throws Exception {
+        //Arrange
+        PublishRabbitMQDTO data = new PublishRabbitMQDTO("test@test.com", "Test", "Cuerpo", null, 3);
+        registry.init();
+
+        //Act
+        TemplateDTO installed = registry.install("welcome-email", NEW_VERSION, "127.0.0.1");
+
+        //Assert
+        assertEquals(1, installed.version());
+        assertTrue(installed.precompiled());
+        assertTrue(Files.exists(dir.resolve("welcome-email.v1.html")));
+        assertEquals("<html><body><p>Cuerpo</p></body></html>", renderer.render(EmailTemplateType.WELCOME, data));
+    }
+
+    @Test
+    void keepCurrentVersionWhenInvalidTest() throws Exception {
+        //Arrange
+        registry.init();
+
+        //Act & Assert
+        assertThrows(IllegalArgumentException.class,
+                () -> registry.install("welcome-email", "<p th:text=\"${data.nope}\"></p>", "127.0.0.1"));
+        assertEquals(0, registry.get("welcome-email").version());
+        assertFalse(Files.exists(dir.resolve("welcome-email.v1.html")));
+    }
+
+    @Test
+    void installDisabledByDefaultTest() throws Exception {
+        //Arrange
+        ReflectionTestUtils.setField(registry, "installEnabled", false);
+        registry.init();
+
+        //Act & Assert
+        assertThrows(IllegalStateException.class, () -> registry.install("welcome-email", NEW_VERSION, "127.0.0.1"));
+        assertEquals(0, registry.get("welcome-email").version());
+        assertFalse(Files.exists(dir.resolve("welcome-email.v1.html")));
+    }
+
+    @Test
+    void loadVersionsFromOtherNodesTest() throws Exception {
+        //Arrange
+        registry.init();
+        Files.writeString(dir.resolve("welcome-email.v3.html"), NEW_VERSION);
+
+        //Act
+        registry.refresh();
+
+        //Assert
+        assertEquals(3, registry.get("welcome-email").version());
+        assertEquals("welcome-email.v3", registry.get("welcome-email").resolvedName());
+    }
+}
@@ -0,0 +1,88 @@
+package org.secr.sistemaenviocorreos.service.throttling;
+
+import org.junit.jupiter.api.Test;
+import org.secr.sistemaenviocorreos.config.ThrottlingProperties;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DomainRateLimiterTest {
+
+    private static DomainRateLimiter limiter(long maxLocalDelay, ThrottlingProperties.Limit sender) {
+        return new DomainRateLimiter(new ThrottlingProperties(true, maxLocalDelay, 30,
+                new ThrottlingProperties.Limit(100, 1), sender,
+                Map.of("gmail.com", new ThrottlingProperties.Limit(1, 2))));
+    }
+
+    @Test
+    void allowBurstThenRequeueTest() {
+        //Arrange
+        DomainRateLimiter limiter = limiter(0, null);
+
+        //Act
+        DomainRateLimiter.Permit first = limiter.acquire("a@gmail.com");
+        DomainRateLimiter.Permit second = limiter.acquire("b@GMAIL.com");
+        DomainRateLimiter.Permit third = limiter.acquire("c@gmail.com");
+
+        //Assert
+        assertEquals(0, first.delayNanos());
+        assertEquals(0, second.delayNanos());
+        assertFalse(third.reserved());
+        assertTrue(third.delayNanos() > TimeUnit.MILLISECONDS.toNanos(900));
+        assertEquals(0, limiter.acquire("d@otro.com").delayNanos());
+    }
+
+    @Test
+    void reserveShortDelaysTest() {
+        //Arrange
+        DomainRateLimiter limiter = limiter(5000, null);
+        limiter.acquire("a@gmail.com");
+        limiter.acquire("b@gmail.com");
+
+        //Act
+        DomainRateLimiter.Permit third = limiter.acquire("c@gmail.com");
+        DomainRateLimiter.Permit fourth = limiter.acquire("d@gmail.com");
+
+        //Assert
+        assertTrue(third.reserved());
+        assertTrue(fourth.reserved());
+        assertTrue(fourth.delayNanos() > third.delayNanos());
+    }
+
+    @Test
+    void senderLimitReleasesDomainTokenTest() {
+        //Arrange
+        DomainRateLimiter limiter = limiter(0, new ThrottlingProperties.Limit(1, 1));
+        limiter.acquire("a@otro.com");
+
+        //Act
+        DomainRateLimiter.Permit blocked = limiter.acquire("a@gmail.com");
+
+        //Assert: el token de gmail.com no se ha gastado
+        assertFalse(blocked.reserved());
+        assertEquals("gmail.com", limiter.limitKey("a@gmail.com"));
+        assertEquals("default", limiter.limitKey("a@otro.com"));
+    }
+
+    @Test
+    void penalizeDomainTest() {
+        //Arrange
+        DomainRateLimiter limiter = limiter(0, null);
+
+        //Act
+        limiter.penalize("a@gmail.com");
+
+        //Assert
+        DomainRateLimiter.Permit permit = limiter.acquire("a@gmail.com");
+        assertFalse(permit.reserved());
+        assertTrue(permit.delayNanos() > TimeUnit.SECONDS.toNanos(25));
+    }
+
+    @Test
+    void disabledTest() {
+        DomainRateLimiter limiter = new DomainRateLimiter(new ThrottlingProperties(false, 0, 30, null, null, null));
+        for (int i = 0; i < 100; i++) assertEquals(0, limiter.acquire("a@gmail.com").delayNanos());
+    }
+}